@@ -0,0 +1,89 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*************************************************************
+ * Benchmarks for encoding and decoding handle values and
+ * resolution messages.
+ *************************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+    @Param({ "1", "10", "100" })
+    public int numValues;
+
+    @Param({ "32", "1024" })
+    public int dataSize;
+
+    private HandleValue value;
+    private byte[] encodedValue;
+    private byte[] valueBuf;
+    private ResolutionResponse response;
+    private byte[] encodedResponse;
+    private MessageEnvelope envelope;
+
+    @Setup
+    public void setup() throws HandleException {
+        Random random = new Random(0);
+        HandleValue[] values = new HandleValue[numValues];
+        for (int i = 0; i < numValues; i++) {
+            byte[] data = new byte[dataSize];
+            random.nextBytes(data);
+            values[i] = new HandleValue(i + 1, "URL", data);
+        }
+        value = values[0];
+        encodedValue = Encoder.encodeHandleValue(value);
+        valueBuf = new byte[Encoder.calcStorageSize(value)];
+
+        byte[] handle = Util.encodeString("0.NA/BENCH");
+        ResolutionRequest req = new ResolutionRequest(handle, null, null, null);
+        response = new ResolutionResponse(req, handle, values);
+        encodedResponse = Encoder.encodeMessage(response);
+        envelope = new MessageEnvelope();
+        envelope.messageLength = encodedResponse.length;
+    }
+
+    @Benchmark
+    public int encodeHandleValue() {
+        return Encoder.encodeHandleValue(valueBuf, 0, value);
+    }
+
+    @Benchmark
+    public HandleValue decodeHandleValue() throws HandleException {
+        HandleValue result = new HandleValue();
+        Encoder.decodeHandleValue(encodedValue, 0, result);
+        return result;
+    }
+
+    @Benchmark
+    public byte[] encodeMessage() throws HandleException {
+        return Encoder.encodeMessage(response);
+    }
+
+    @Benchmark
+    public AbstractMessage decodeMessage() throws HandleException {
+        return Encoder.decodeMessage(encodedResponse, 0, envelope);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AbstractMessage decodeMessageContended() throws HandleException {
+        return Encoder.decodeMessage(encodedResponse, 0, envelope);
+    }
+}
@@ -0,0 +1,91 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*************************************************************
+ * Benchmarks for the in-memory resolver caches, single-threaded
+ * and with several threads reading and writing the same cache.
+ *************************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemCacheBenchmark {
+    @Param({ "MemCache", "ConcurrentMemCache" })
+    public String cacheClass;
+
+    @Param({ "1000", "100000" })
+    public int numHandles;
+
+    private Cache cache;
+    private byte[][] handles;
+    private HandleValue[] values;
+
+    @Setup
+    public void setup() throws Exception {
+        if ("ConcurrentMemCache".equals(cacheClass)) cache = new ConcurrentMemCache(numHandles, 3600);
+        else cache = new MemCache(numHandles, 3600);
+        handles = new byte[numHandles][];
+        values = new HandleValue[] {
+            new HandleValue(1, "URL", "http://example.org/"),
+            new HandleValue(100, "HS_ADMIN", "admin")
+        };
+        for (int i = 0; i < numHandles; i++) {
+            handles[i] = Util.encodeString("0.NA/BENCH." + i);
+            cache.setCachedValues(handles[i], values, null, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        cache.close();
+    }
+
+    private byte[] randomHandle() {
+        return handles[ThreadLocalRandom.current().nextInt(numHandles)];
+    }
+
+    @Benchmark
+    public byte[][] getCachedValues() throws Exception {
+        return cache.getCachedValues(randomHandle(), null, null);
+    }
+
+    @Benchmark
+    public void setCachedValues() throws Exception {
+        cache.setCachedValues(randomHandle(), values, null, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[][] getCachedValuesContended() throws Exception {
+        return cache.getCachedValues(randomHandle(), null, null);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(6)
+    public byte[][] readWriteGet() throws Exception {
+        return cache.getCachedValues(randomHandle(), null, null);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(2)
+    public void readWriteSet() throws Exception {
+        cache.setCachedValues(randomHandle(), values, null, null);
+    }
+}
@@ -0,0 +1,75 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*************************************************************
+ * Benchmarks for signing resolution responses with a public
+ * key, as servers do for certified responses, and with a
+ * session's secret key.
+ *************************************************************/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignMessageBenchmark {
+    @Param({ "RSA", "DSA" })
+    public String keyAlgorithm;
+
+    private Signature signer;
+    private byte[] secretKey;
+    private ResolutionResponse response;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(keyAlgorithm);
+        kpg.initialize(2048);
+        KeyPair keys = kpg.generateKeyPair();
+        signer = Signature.getInstance(Util.getSigIdFromHashAlgId(Common.HASH_ALG_SHA256, keyAlgorithm));
+        signer.initSign(keys.getPrivate());
+        secretKey = new byte[32];
+
+        byte[] handle = Util.encodeString("0.NA/BENCH");
+        ResolutionRequest req = new ResolutionRequest(handle, null, null, null);
+        req.certify = true;
+        HandleValue[] values = {
+            new HandleValue(1, "URL", "http://example.org/"),
+            new HandleValue(100, "HS_ADMIN", "admin")
+        };
+        response = new ResolutionResponse(req, handle, values);
+    }
+
+    @Benchmark
+    public AbstractMessage signWithKey() throws Exception {
+        response.signMessage(signer);
+        return response;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AbstractMessage signWithKeyParallel() throws Exception {
+        response.signMessage(signer);
+        return response;
+    }
+
+    @Benchmark
+    public AbstractMessage signWithSecretKey() throws Exception {
+        response.signMessage(secretKey);
+        return response;
+    }
+}
@@ -0,0 +1,122 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.cnri.util.StreamTable;
+import net.handle.hdllib.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*************************************************************
+ * Benchmarks for reading handles from each of the storage
+ * backends.  Each backend is created in a temporary directory
+ * and filled with handles before measuring; the SQL backend
+ * uses an in-memory H2 database.
+ *************************************************************/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+    private static final String H2_URL = "jdbc:h2:mem:handles;DB_CLOSE_DELAY=-1";
+
+    @Param({ "BDBJE", "JDB", "SQL" })
+    public String storageType;
+
+    @Param({ "10000" })
+    public int numHandles;
+
+    private File serverDir;
+    private HandleStorage storage;
+    private byte[][] handles;
+
+    @Setup
+    public void setup() throws Exception {
+        serverDir = Files.createTempDirectory("hdl-storage-bench").toFile();
+        StreamTable config = new StreamTable();
+        config.put(HandleStorageFactory.STORAGE_TYPE, storageType);
+        if ("SQL".equals(storageType)) {
+            createSqlTables();
+            StreamTable sqlConfig = new StreamTable();
+            sqlConfig.put("sql_url", H2_URL);
+            sqlConfig.put("sql_driver", "org.h2.Driver");
+            sqlConfig.put("sql_login", "sa");
+            sqlConfig.put("sql_passwd", "");
+            sqlConfig.put("sql_connection_pool_size", String.valueOf(Runtime.getRuntime().availableProcessors()));
+            config.put(HandleStorageFactory.SQL_CONFIG, sqlConfig);
+        }
+        storage = HandleStorageFactory.getStorage(serverDir, config, false);
+
+        handles = new byte[numHandles][];
+        for (int i = 0; i < numHandles; i++) {
+            handles[i] = Util.encodeString("0.NA/BENCH." + i);
+            HandleValue[] values = {
+                new HandleValue(1, "URL", "http://example.org/" + i),
+                new HandleValue(2, "EMAIL", "bench@example.org"),
+                new HandleValue(100, "HS_ADMIN", "admin")
+            };
+            storage.createHandle(handles[i], values);
+        }
+    }
+
+    private static void createSqlTables() throws Exception {
+        Class.forName("org.h2.Driver");
+        try (Connection conn = DriverManager.getConnection(H2_URL, "sa", ""); Statement stmt = conn.createStatement()) {
+            stmt.execute("drop table if exists handles");
+            stmt.execute("drop table if exists nas");
+            stmt.execute("create table nas (na varbinary(255) not null, primary key(na))");
+            stmt.execute("create table handles (handle varbinary(255) not null, idx int not null, type varbinary(255), data varbinary(65535), "
+                + "ttl_type smallint, ttl int, timestamp int, refs varchar(2048), admin_read boolean, admin_write boolean, "
+                + "pub_read boolean, pub_write boolean, primary key(handle, idx))");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        storage.shutdown();
+        deleteRecursively(serverDir);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private byte[] randomHandle() {
+        return handles[ThreadLocalRandom.current().nextInt(numHandles)];
+    }
+
+    @Benchmark
+    public byte[][] getRawHandleValues() throws HandleException {
+        return storage.getRawHandleValues(randomHandle(), null, null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[][] getRawHandleValuesContended() throws HandleException {
+        return storage.getRawHandleValues(randomHandle(), null, null);
+    }
+}
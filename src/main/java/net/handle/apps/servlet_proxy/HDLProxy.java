@@ -63,8 +63,8 @@ public class HDLProxy extends HttpServlet {
     protected String HTDOCS = "";
     public final static Object resolverInitLock = new Object();
     public static RequestProcessor resolver = null;
-    private static MemCache memCache;
-    private static MemCache memCacheCertified;
+    private static Cache memCache;
+    private static Cache memCacheCertified;
     protected static final NamespaceInfo DEFAULT_NAMESPACE_INFO = new NamespaceInfo();
 
     private HandleServerInterface handleServer;
@@ -107,11 +107,24 @@ public class HDLProxy extends HttpServlet {
     public synchronized void destroy() {
         loadedSettings = false;
         if (logger != null) logger.shutdown();
-        if (memCache != null) memCache.close();
-        if (memCacheCertified != null) memCacheCertified.close();
+        closeCache(memCache);
+        closeCache(memCacheCertified);
+        if (resolver instanceof HandleResolver) {
+            HdlTcpConnectionPool pool = ((HandleResolver) resolver).getTcpConnectionPool();
+            if (pool != null) pool.close();
+        }
         logger = null;
     }
 
+    private static void closeCache(Cache cache) {
+        if (cache == null) return;
+        try {
+            cache.close();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
     protected volatile boolean loadedSettings = false;
 
     protected void loadSettings() throws ServletException {
@@ -363,14 +376,23 @@ public class HDLProxy extends HttpServlet {
             if (useCache) {
                 int maxHandles = Integer.valueOf(config.getProperty("cache_max_handles", "16384")).intValue();
                 long maxTtl = Long.valueOf(config.getProperty("cache_max_ttl", "3600")).longValue();
-                memCache = new MemCache(maxHandles, maxTtl);
-                memCacheCertified = new MemCache(maxHandles, maxTtl);
+                boolean concurrent = Boolean.valueOf(config.getProperty("cache_concurrent", "false")).booleanValue();
+                if (concurrent) {
+                    long maxBytes = Long.valueOf(config.getProperty("cache_max_bytes", String.valueOf(Long.MAX_VALUE))).longValue();
+                    memCache = new ConcurrentMemCache(maxHandles, maxBytes, maxTtl);
+                    memCacheCertified = new ConcurrentMemCache(maxHandles, maxBytes, maxTtl);
+                } else {
+                    memCache = new MemCache(maxHandles, maxTtl);
+                    memCacheCertified = new MemCache(maxHandles, maxTtl);
+                }
             } else {
                 memCache = null;
                 memCacheCertified = null;
             }
             ((HandleResolver) resolver).setCache(memCache);
             ((HandleResolver) resolver).setCertifiedCache(memCacheCertified);
+            boolean tcpKeepAlive = Boolean.valueOf(config.getProperty("tcp_keep_alive", "false")).booleanValue();
+            if (tcpKeepAlive) ((HandleResolver) resolver).setTcpConnectionPool(new HdlTcpConnectionPool());
         }
     }
 
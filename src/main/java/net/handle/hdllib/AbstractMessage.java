@@ -43,6 +43,7 @@ public abstract class AbstractMessage implements Cloneable {
     public static final int OC_RETRIEVE_TXN_LOG = 1001;
     public static final int OC_DUMP_HANDLES = 1002;
     public static final int OC_BACKUP_SERVER = 1003;
+    public static final int OC_BULK_RESOLUTION = 1004; // not part of the official protocol specification
 
     // response codes... (responseCode)
     public static final int RC_RESERVED = 0; // (only used for requests)
@@ -129,6 +130,7 @@ public abstract class AbstractMessage implements Cloneable {
     public boolean overwriteWhenExists = false; // for Create or Add Value messages, if true overwrite when exists
     public boolean mintNewSuffix = false; //used in create request. Asks server to mint a new suffix
     public boolean doNotRefer = false; // request server not to send referral response
+    public boolean acceptCompressed = false; // in a request, indicates that the client can decode compressed responses and streams
 
     public byte signerHdl[] = null; // currently unused
     public int signerHdlIdx = 0; // currently unused
@@ -382,6 +384,18 @@ public abstract class AbstractMessage implements Cloneable {
      * </pre>
      *******************************************************************************/
     public final void signMessage(Signature signer) throws HandleException, java.security.SignatureException {
+        byte[] envelopeFields = getSignedEnvelopeFields();
+        if (envelopeFields != null) signer.update(envelopeFields);
+        signer.update(getEncodedMessageBody());
+        setSignature(signer.getAlgorithm(), signer.sign());
+    }
+
+    /**
+     * Returns the fields from the envelope which are covered by a public-key
+     * signature of this message, ahead of the encoded message body, or null
+     * if the protocol version predates signing them.
+     */
+    public final byte[] getSignedEnvelopeFields() {
         if (hasEqualOrGreaterVersion(2, 6)) {
             boolean newVersion = hasEqualOrGreaterVersion(2, 7);
             boolean hasSuggest = hasEqualOrGreaterVersion(2, 8);
@@ -404,14 +418,20 @@ public abstract class AbstractMessage implements Cloneable {
                 offset = Encoder.writeInt(toBeSigned, offset, requestId);
                 offset = Encoder.writeInt(toBeSigned, offset, sessionCounter);
             }
-            signer.update(toBeSigned);
+            return toBeSigned;
         }
+        return null;
+    }
 
-        signer.update(getEncodedMessageBody());
+    /**
+     * Attaches a public-key signature to this message, given the raw bytes
+     * produced by a Signature with the given algorithm over the envelope
+     * fields and the encoded message body.
+     */
+    public final void setSignature(String sigAlg, byte[] signatureBytes) throws HandleException {
         byte sigType[] = Common.CREDENTIAL_TYPE_SIGNED;
-        byte sigHashType[] = Util.getHashAlgIdFromSigId(signer.getAlgorithm());
+        byte sigHashType[] = Util.getHashAlgIdFromSigId(sigAlg);
 
-        byte signatureBytes[] = signer.sign();
         int offset = 0;
         signature = new byte[1 + // version - 1 octet
             1 + // reserved - 1 octet
@@ -678,6 +698,7 @@ public abstract class AbstractMessage implements Cloneable {
             + (overwriteWhenExists ? " overwriteWhenExists" : "")
             + (mintNewSuffix ? " mintNewSuffix" : "")
             + (doNotRefer ? " doNotRefer" : "")
+            + (acceptCompressed ? " acceptCompressed" : "")
             + (expiration != 0 ? (" expires:" + new java.util.Date(expiration * 1000l)) : "");
     }
 
@@ -0,0 +1,201 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends a request to the sites of a service without blocking, for the
+ * asynchronous resolver API.  As with {@link HappyEyeballsResolver}, the IPv6
+ * sites are tried first and the IPv4 sites are raced against them after a
+ * short delay; within each list, sites are tried in order of preference for
+ * each of the resolver's preferred protocols.  UDP attempts use the resolver's
+ * non-blocking UDP client and the delay is a timer, so no thread is held per
+ * attempt.  Attempts by other protocols are run on the resolver's executor.
+ */
+class AsyncSiteResolver {
+    private static final int IPV4_DELAY_MILLIS = 300;
+
+    private final HandleResolver resolver;
+    private final AbstractRequest req;
+    private final CompletableFuture<AbstractResponse> result = new CompletableFuture<>();
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger lanesRemaining = new AtomicInteger();
+    private final AtomicBoolean answered = new AtomicBoolean();
+    private volatile HandleException lastException;
+
+    private AsyncSiteResolver(HandleResolver resolver, AbstractRequest req) {
+        this.resolver = resolver;
+        this.req = req;
+    }
+
+    /**
+     * Sends the request to the given sites.  The returned future completes with
+     * the first response received, or fails with the last exception if no site
+     * answered.  If the owner completes first, the outstanding attempts are
+     * abandoned and the returned future is cancelled.
+     *
+     * @param race whether to start the IPv4 sites after a delay, alongside the IPv6 sites, instead of after them
+     */
+    static CompletableFuture<AbstractResponse> send(HandleResolver resolver, AbstractRequest req, SiteInfo[] ipv6Sites, SiteInfo[] ipv4Sites, boolean race, CompletableFuture<?> owner) {
+        AsyncSiteResolver asyncResolver = new AsyncSiteResolver(resolver, req);
+        owner.whenComplete((r, e) -> asyncResolver.result.cancel(false));
+        asyncResolver.result.whenComplete((r, e) -> asyncResolver.cancelInFlight());
+        if (!race) {
+            SiteInfo[] allSites = new SiteInfo[ipv6Sites.length + ipv4Sites.length];
+            System.arraycopy(ipv6Sites, 0, allSites, 0, ipv6Sites.length);
+            System.arraycopy(ipv4Sites, 0, allSites, ipv6Sites.length, ipv4Sites.length);
+            asyncResolver.lanesRemaining.set(1);
+            asyncResolver.new Lane(allSites, req).start();
+        } else {
+            asyncResolver.lanesRemaining.set(2);
+            Lane ipv6Lane = asyncResolver.new Lane(ipv6Sites, req.clone());
+            Lane ipv4Lane = asyncResolver.new Lane(ipv4Sites, req.clone());
+            ipv6Lane.sibling = ipv4Lane;
+            ipv6Lane.start();
+            TimerWheel.Timeout delay = asyncResolver.schedule(ipv4Lane::start, IPV4_DELAY_MILLIS);
+            if (delay != null) asyncResolver.result.whenComplete((r, e) -> delay.cancel());
+            else ipv4Lane.start();
+        }
+        return asyncResolver.result;
+    }
+
+    private TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        try {
+            return resolver.getUdpClient().schedule(() -> resolver.getExecutorService().execute(task), delayMillis);
+        } catch (HandleException e) {
+            return null;
+        }
+    }
+
+    private void cancelInFlight() {
+        for (CompletableFuture<?> future : inFlight) {
+            future.cancel(false);
+        }
+    }
+
+    /** Tries a list of sites one after another. */
+    private class Lane {
+        final SiteInfo[] sites;
+        final AbstractRequest laneReq;
+        final AtomicBoolean started = new AtomicBoolean();
+        // the lane to start at once if this one runs out of sites
+        Lane sibling;
+        int protocolIndex = 0;
+        int siteIndex = 0;
+
+        Lane(SiteInfo[] sites, AbstractRequest laneReq) {
+            this.sites = sites;
+            this.laneReq = laneReq;
+        }
+
+        void start() {
+            if (!started.compareAndSet(false, true)) return;
+            next();
+        }
+
+        /** Starts the attempt at the next site, or finishes the lane if there are none left. */
+        void next() {
+            while (!result.isDone()) {
+                if (siteIndex >= sites.length) {
+                    siteIndex = 0;
+                    protocolIndex++;
+                }
+                if (protocolIndex >= resolver.preferredProtocols.length) {
+                    finish();
+                    return;
+                }
+                SiteInfo site = sites[siteIndex++];
+                if (site.servers == null || site.servers.length == 0) continue;
+                if (!site.isPrimary && (laneReq.isAdminRequest || laneReq.authoritative)) continue;
+                CompletableFuture<AbstractResponse> attempt = sendToSite(site, resolver.preferredProtocols[protocolIndex]);
+                if (attempt == null) continue;
+                inFlight.add(attempt);
+                if (result.isDone()) attempt.cancel(false);
+                attempt.whenComplete((resp, e) -> {
+                    inFlight.remove(attempt);
+                    if (resp != null) {
+                        // only the first response is used
+                        if (answered.compareAndSet(false, true)) {
+                            if (laneReq != req) req.takeValuesFromRequestActuallyUsed(laneReq);
+                            result.complete(resp);
+                        }
+                        return;
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof HandleException) lastException = (HandleException) cause;
+                    else if (cause != null && !(cause instanceof CancellationException)) lastException = new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Unable to contact site", cause);
+                    next();
+                });
+                return;
+            }
+        }
+
+        private void finish() {
+            if (sibling != null) sibling.start();
+            if (lanesRemaining.decrementAndGet() > 0) return;
+            HandleException e = lastException;
+            if (e == null) e = new HandleException(HandleException.NO_ACCEPTABLE_INTERFACES, "Cannot contact an acceptable interface");
+            result.completeExceptionally(e);
+        }
+
+        /** Returns the attempt to send the request to the given site by the given protocol, or null if the site has no interface for it. */
+        private CompletableFuture<AbstractResponse> sendToSite(SiteInfo site, int protocol) {
+            if (protocol != Interface.SP_HDL_UDP) {
+                return resolver.supplyAsync(() -> {
+                    if (result.isDone()) throw new CancellationException();
+                    return resolver.sendRequestToSite(laneReq, site, protocol);
+                });
+            }
+            try {
+                laneReq.siteInfoSerial = site.serialNumber;
+                laneReq.setSupportedProtocolVersion(site);
+                if (laneReq.majorProtocolVersion <= 0) {
+                    laneReq.majorProtocolVersion = Common.COMPATIBILITY_MAJOR_VERSION;
+                    laneReq.minorProtocolVersion = Common.COMPATIBILITY_MINOR_VERSION;
+                }
+                ServerInfo server = site.determineServer(laneReq.handle);
+                Interface interfce = server.interfaceWithProtocol(Interface.SP_HDL_UDP, laneReq);
+                if (interfce == null) return null;
+                laneReq.serverPubKeyBytes = server.publicKey;
+                long start = System.currentTimeMillis();
+                String address = site.servers[0].getAddressString();
+                return resolver.sendHdlUdpRequestAsync(laneReq, server.getInetAddress(), interfce.port).handle((resp, e) -> {
+                    long elapsed = System.currentTimeMillis() - start;
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof CancellationException) throw (CancellationException) cause;
+                    if (cause instanceof HandleException && ((HandleException) cause).getCode() == HandleException.CANNOT_CONNECT_TO_SERVER) {
+                        // prefer other sites from now on
+                        resolver.responseTimeTbl.put(address, Long.valueOf(resolver.getTcpTimeout()));
+                    } else {
+                        site.responseTime = elapsed;
+                        resolver.responseTimeTbl.put(address, Long.valueOf(elapsed));
+                    }
+                    if (cause != null) throw new CompletionException(cause);
+                    if (site.isRoot && resp.siteInfoSerial > laneReq.siteInfoSerial) resolver.getConfiguration().notifyRootInfoOutdated(resolver);
+                    if (resp.responseCode == AbstractMessage.RC_ERROR) {
+                        throw new CompletionException(new HandleException(HandleException.SERVER_ERROR, Util.decodeString(((ErrorResponse) resp).message)));
+                    }
+                    return resp;
+                });
+            } catch (HandleException e) {
+                CompletableFuture<AbstractResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+    }
+}
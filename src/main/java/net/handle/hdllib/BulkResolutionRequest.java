@@ -0,0 +1,43 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+
+package net.handle.hdllib;
+
+/**
+ * Request used to resolve several handles in one message.  Every handle
+ * is resolved with the same requested types and indexes, and only
+ * publicly readable values are returned.  All of the handles should be
+ * the responsibility of the server the request is sent to; the 'handle'
+ * member holds the first of them, which is used to pick that server.
+ *
+ * This request type is not a part of the official handle protocol
+ * specification, so servers which do not support it will answer with
+ * an error.
+ */
+public class BulkResolutionRequest extends AbstractRequest {
+
+    public byte handles[][];
+    public byte requestedTypes[][] = null;
+    public int requestedIndexes[] = null;
+
+    public BulkResolutionRequest(byte handles[][], byte reqTypes[][], int reqIndexes[], AuthenticationInfo authInfo) {
+        super(handles.length > 0 ? handles[0] : Common.BLANK_HANDLE, AbstractMessage.OC_BULK_RESOLUTION, authInfo);
+        this.handles = handles;
+        this.requestedIndexes = reqIndexes;
+        this.requestedTypes = reqTypes;
+        this.requiresConnection = true;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (" + handles.length + " handles)";
+    }
+
+}
@@ -0,0 +1,90 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+
+package net.handle.hdllib;
+
+/**
+ * Response to a BulkResolutionRequest.  Holds a result for each requested
+ * handle, in the order in which the handles were requested.  Each result
+ * has its own response code; the values are only present for results with
+ * RC_SUCCESS, and the message is only present for other results.
+ */
+public class BulkResolutionResponse extends AbstractResponse {
+
+    public byte handles[][];
+    public int responseCodes[];
+    public byte values[][][];
+    public byte messages[][];
+
+    public BulkResolutionResponse(byte handles[][], int responseCodes[], byte values[][][], byte messages[][]) {
+        super(OC_BULK_RESOLUTION, AbstractMessage.RC_SUCCESS);
+        this.handles = handles;
+        this.responseCodes = responseCodes;
+        this.values = values;
+        this.messages = messages;
+    }
+
+    public BulkResolutionResponse(BulkResolutionRequest req) throws HandleException {
+        super(req, AbstractMessage.RC_SUCCESS);
+        int numHandles = req.handles.length;
+        this.handles = req.handles;
+        this.responseCodes = new int[numHandles];
+        this.values = new byte[numHandles][][];
+        this.messages = new byte[numHandles][];
+    }
+
+    /** Sets the result for the handle at the given position from a resolution response for that handle. */
+    public void setResult(int i, AbstractResponse response) {
+        responseCodes[i] = response.responseCode;
+        if (response instanceof ResolutionResponse && response.responseCode == AbstractMessage.RC_SUCCESS) {
+            values[i] = ((ResolutionResponse) response).values;
+            messages[i] = null;
+        } else {
+            values[i] = null;
+            messages[i] = response instanceof ErrorResponse ? ((ErrorResponse) response).message : null;
+        }
+    }
+
+    /**
+     * Returns the result for the handle at the given position as the
+     * response which would have been received for a ResolutionRequest.
+     */
+    public AbstractResponse getResult(int i, ResolutionRequest req) throws HandleException {
+        if (responseCodes[i] == AbstractMessage.RC_SUCCESS) {
+            return new ResolutionResponse(req, handles[i], values[i]);
+        }
+        return new ErrorResponse(req, responseCodes[i], messages[i]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuffer sb = new StringBuffer(super.toString());
+        sb.append(' ');
+        sb.append(handles == null ? 0 : handles.length);
+        sb.append(" handles\n");
+        for (int i = 0; handles != null && i < handles.length; i++) {
+            sb.append("   ");
+            sb.append(Util.decodeString(handles[i]));
+            sb.append(": ");
+            sb.append(AbstractMessage.getResponseCodeMessage(responseCodes[i]));
+            if (values[i] != null) {
+                sb.append(" (").append(values[i].length).append(" values)");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean shouldEncrypt() {
+        // only publicly readable values are returned
+        return false;
+    }
+}
@@ -176,6 +176,9 @@ public abstract class Common {
     // maximum allowable size (in bytes) of a message
     public static final int MAX_MESSAGE_LENGTH = 262144;
 
+    // default size (in bytes) from which servers compress responses for clients which accept compression
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 4096;
+
     // maximum size of udp packets.  packets in multi-packet
     // messages must be as large as possible equal to or below
     // this limit.
@@ -191,6 +194,9 @@ public abstract class Common {
     // the maximum length of a handle
     public static final int MAX_HANDLE_LENGTH = 2048;
 
+    // the maximum number of handles which are allowed in a bulk resolution message
+    public static final int MAX_BULK_RESOLUTION_HANDLES = 1000;
+
     // limit all arrays in messages to one million elements max
     public static final int MAX_ARRAY_SIZE = 1048576;
 
@@ -0,0 +1,282 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*************************************************************
+ * An in-memory cache which, unlike MemCache, does not serialize
+ * lookups behind a single lock.  Lookups go straight to a
+ * ConcurrentHashMap keyed on the raw handle bytes; insertions are
+ * serialized per segment, and each segment evicts using the CLOCK
+ * (second chance) policy when it exceeds its share of either the
+ * maximum number of handles or the maximum number of bytes.
+ *************************************************************/
+
+public class ConcurrentMemCache extends ClumpCache {
+    /** Rough per-entry overhead in bytes (map node, entry, key, ring slot) counted against the size bound. */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final ConcurrentHashMap<HandleKey, Entry> db;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ConcurrentMemCache(int maxHandles, long maxSize, long maxTTL) {
+        super(maxTTL);
+        int numSegments = 1;
+        while (numSegments < 4 * Runtime.getRuntime().availableProcessors() && numSegments < 64) {
+            numSegments <<= 1;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = numSegments - 1;
+        db = new ConcurrentHashMap<>(Math.max(16, Math.min(maxHandles, 1 << 20)), 0.75f, numSegments);
+        setMaximumHandles(maxHandles);
+        setMaximumSize(maxSize);
+    }
+
+    public ConcurrentMemCache(int maxHandles, long maxTTL) {
+        this(maxHandles, Long.MAX_VALUE, maxTTL);
+    }
+
+    public ConcurrentMemCache() {
+        this(100, 60 * 60);
+    }
+
+    @Override
+    protected byte[] getClumps(byte[] handle) {
+        Entry entry = db.get(new HandleKey(handle));
+        if (entry == null) return null;
+        if (!entry.referenced) entry.referenced = true;
+        return entry.clumps;
+    }
+
+    @Override
+    protected void putClumps(byte[] handle, byte[] clumps) {
+        HandleKey key = new HandleKey(handle.clone());
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = db.get(key);
+            if (entry == null) {
+                entry = new Entry(key, clumps);
+                db.put(key, entry);
+                segment.ring.addLast(entry);
+                segment.count++;
+                segment.bytes += entry.size;
+            } else {
+                long size = sizeOf(key, clumps);
+                segment.bytes += size - entry.size;
+                entry.size = size;
+                entry.clumps = clumps;
+                entry.referenced = true;
+            }
+            segment.evict();
+        }
+    }
+
+    @Override
+    public byte[][] getCachedValues(byte handle[], byte reqTypes[][], int reqIndexes[]) throws Exception {
+        byte[][] result = super.getCachedValues(handle, reqTypes, reqIndexes);
+        if (result == null) misses.increment();
+        else hits.increment();
+        return result;
+    }
+
+    @Override
+    public void removeHandle(byte[] handle) {
+        HandleKey key = new HandleKey(handle);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = db.remove(key);
+            if (entry != null) segment.unlink(entry);
+        }
+    }
+
+    /** Remove all values from the cache */
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (Entry entry : segment.ring) {
+                    db.remove(entry.key, entry);
+                }
+                segment.ring.clear();
+                segment.count = 0;
+                segment.bytes = 0;
+                segment.removed = 0;
+            }
+        }
+    }
+
+    /** Set the maximum size for the cache by the number of handles. */
+    @Override
+    public void setMaximumHandles(int maxHandles) {
+        long perSegment = Math.max(1, (maxHandles + segments.length - 1) / segments.length);
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.maxCount = perSegment;
+                segment.evict();
+            }
+        }
+    }
+
+    /** Set the maximum size for the cache by the number of bytes
+     *  used for storage.
+     */
+    @Override
+    public void setMaximumSize(int maxSize) {
+        setMaximumSize((long) maxSize);
+    }
+
+    public void setMaximumSize(long maxSize) {
+        long perSegment = maxSize == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxSize / segments.length);
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.maxBytes = perSegment;
+                segment.evict();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /** Returns the number of lookups which were answered from the cache. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of lookups which were not answered from the cache. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the number of handles which were removed from the cache to make room for others. */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** Returns the number of handles in the cache. */
+    public int getSize() {
+        return db.size();
+    }
+
+    /** Returns the approximate number of bytes used by the cache. */
+    public long getByteSize() {
+        long res = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                res += segment.bytes;
+            }
+        }
+        return res;
+    }
+
+    private Segment segmentFor(HandleKey key) {
+        int h = key.hash;
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
+    }
+
+    private static long sizeOf(HandleKey key, byte[] clumps) {
+        return ENTRY_OVERHEAD + key.handle.length + clumps.length;
+    }
+
+    /** The segment's ring only holds entries for keys which hash to that segment, and is only touched with the segment locked. */
+    private class Segment {
+        final ArrayDeque<Entry> ring = new ArrayDeque<>();
+        long count;
+        long bytes;
+        long removed;
+        long maxCount = Long.MAX_VALUE;
+        long maxBytes = Long.MAX_VALUE;
+
+        void unlink(Entry entry) {
+            entry.removed = true;
+            count--;
+            bytes -= entry.size;
+            removed++;
+            // entries removed out of turn are skipped when the hand reaches them,
+            // but don't let them pile up if the segment never fills
+            if (removed > count + 16) {
+                ring.removeIf(e -> e.removed);
+                removed = 0;
+            }
+        }
+
+        void evict() {
+            while ((count > maxCount || bytes > maxBytes) && !ring.isEmpty()) {
+                Entry entry = ring.pollFirst();
+                if (entry.removed) {
+                    removed--;
+                    continue;
+                }
+                if (entry.referenced) {
+                    // second chance
+                    entry.referenced = false;
+                    ring.addLast(entry);
+                    continue;
+                }
+                db.remove(entry.key, entry);
+                entry.removed = true;
+                count--;
+                bytes -= entry.size;
+                evictions.increment();
+            }
+        }
+    }
+
+    private static class Entry {
+        final HandleKey key;
+        volatile byte[] clumps;
+        volatile boolean referenced;
+        long size;
+        boolean removed;
+
+        Entry(HandleKey key, byte[] clumps) {
+            this.key = key;
+            this.clumps = clumps;
+            this.size = sizeOf(key, clumps);
+        }
+    }
+
+    private static class HandleKey {
+        final byte[] handle;
+        final int hash;
+
+        HandleKey(byte[] handle) {
+            this.handle = handle;
+            this.hash = Arrays.hashCode(handle);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof HandleKey)) return false;
+            HandleKey other = (HandleKey) obj;
+            return hash == other.hash && Arrays.equals(handle, other.handle);
+        }
+    }
+}
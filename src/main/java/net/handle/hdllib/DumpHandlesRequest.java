@@ -21,6 +21,10 @@ public class DumpHandlesRequest extends AbstractRequest {
     public static final int NA_REPLICATION_DB = 1;
     public static final int HANDLE = 2;
     public static final int NA = 3;
+    // only the handles after startingPoint (an empty startingPoint for all) up to and including endingPoint
+    public static final int HANDLE_RANGE = 4;
+    // everything except the handles, followed by boundaries splitting the handles into numPartitions ranges
+    public static final int PARTITIONED = 5;
 
     // to specify which handles to send (filtered by how the handles are hashed)
     public int serverNum;
@@ -28,6 +32,8 @@ public class DumpHandlesRequest extends AbstractRequest {
     public int numServers;
     public byte[] startingPoint = null; //Optional handle used to resume the dump from a particular point.
     public int startingPointType;
+    public byte[] endingPoint = null; //Optional last handle of a HANDLE_RANGE dump; null for the rest of the handles.
+    public int numPartitions = 0; //Number of handle ranges wanted by a PARTITIONED dump.
 
     public DumpHandlesRequest(byte rcvrHashType, int numServers, int serverNum, AuthenticationInfo authInfo) {
         super(Common.BLANK_HANDLE, OC_DUMP_HANDLES, authInfo);
@@ -44,4 +50,18 @@ public class DumpHandlesRequest extends AbstractRequest {
         this.startingPoint = startingPoint;
         this.startingPointType = startingPointType;
     }
+
+    /** Creates a request for the handles after startingPoint up to and including endingPoint. */
+    public static DumpHandlesRequest forHandleRange(byte rcvrHashType, int numServers, int serverNum, AuthenticationInfo authInfo, byte[] startingPoint, byte[] endingPoint) {
+        DumpHandlesRequest req = new DumpHandlesRequest(rcvrHashType, numServers, serverNum, authInfo, startingPoint == null ? new byte[0] : startingPoint, HANDLE_RANGE);
+        req.endingPoint = endingPoint;
+        return req;
+    }
+
+    /** Creates a request for everything except the handles, along with boundaries splitting the handles into numPartitions ranges. */
+    public static DumpHandlesRequest forPartitions(byte rcvrHashType, int numServers, int serverNum, AuthenticationInfo authInfo, int numPartitions) {
+        DumpHandlesRequest req = new DumpHandlesRequest(rcvrHashType, numServers, serverNum, authInfo, new byte[0], PARTITIONED);
+        req.numPartitions = numPartitions;
+        return req;
+    }
 }
@@ -36,6 +36,10 @@ public class DumpHandlesResponse extends AbstractResponse {
 
     private byte lastProcessedRecordType = -2; //-2 indicates no records ever processed
     private byte[] lastProcessedRecord = null;
+    private List<byte[]> handleRangeBoundaries = null;
+
+    // the most handle ranges a PARTITIONED dump will be split into
+    private static final int MAX_PARTITIONS = 1024;
 
     // renamed from END_TRANSMISSION_RECORD
     public static final byte THIS_SERVER_REPLICATION_INFO_RECORD = 0;
@@ -44,6 +48,7 @@ public class DumpHandlesResponse extends AbstractResponse {
     public static final byte HANDLE_DATE_RECORD = 3;
     public static final byte NA_DATE_RECORD = 4;
     public static final byte OTHER_SITE_REPLICATION_INFO_RECORD = 5;
+    public static final byte HANDLE_RANGES_RECORD = 6;
     public static final byte ABSOLUTELY_DONE_RECORD = -1;
 
     /***************************************************************
@@ -82,6 +87,16 @@ public class DumpHandlesResponse extends AbstractResponse {
         this.lastProcessedRecord = lastProcessedRecord;
     }
 
+    /**
+     * Returns the boundaries sent in response to a PARTITIONED dump request;
+     * each is the last handle of a range, and the final range has no boundary.
+     * Returns null if the stream contained no boundaries, as when the server
+     * does not support partitioned dumps.
+     */
+    public List<byte[]> getHandleRangeBoundaries() {
+        return handleRangeBoundaries;
+    }
+
     /**********************************************************************
      * Process the incoming stream and call the given callback for every
      * handle that is retrieved.
@@ -209,10 +224,26 @@ public class DumpHandlesResponse extends AbstractResponse {
                     replicationConfig.readFrom(Util.decodeString(statusBytes));
                     callback.processOtherSiteReplicationInfo(replicationConfig);
                     lastProcessedRecordType = OTHER_SITE_REPLICATION_INFO_RECORD;
+                } else if (recordType == HANDLE_RANGES_RECORD) {
+                    int numBoundaries = in.readInt();
+                    if (numBoundaries < 0 || numBoundaries >= MAX_PARTITIONS) {
+                        throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid number of handle ranges: " + numBoundaries);
+                    }
+                    List<byte[]> boundaries = new ArrayList<>(numBoundaries);
+                    for (int i = 0; i < numBoundaries; i++) {
+                        byte boundary[] = new byte[in.readInt()];
+                        in.readFully(boundary);
+                        boundaries.add(boundary);
+                    }
+                    // verify the signature for this record
+                    if (!sin.verifyBlock()) {
+                        throw new HandleException(HandleException.SECURITY_ALERT, "Invalid signature on replication stream");
+                    }
+                    handleRangeBoundaries = boundaries;
+                    lastProcessedRecordType = HANDLE_RANGES_RECORD;
                 } else {
                     throw new HandleException(HandleException.INVALID_VALUE, "Unknown transmission record type: " + recordType);
                 }
-                Thread.yield();
             }
             if (!sawAbsolutelyDone) {
                 System.err.println(">>> Dump stream ended unexpectedly");
@@ -260,7 +291,14 @@ public class DumpHandlesResponse extends AbstractResponse {
             out.writeInt(2); // 2 is for the new potentially multi-master dump
             sout.signBlock();
 
-            if (req.startingPoint != null) {
+            if (req.startingPoint != null && req.startingPointType == DumpHandlesRequest.PARTITIONED) {
+                // everything but the handles, which the requestor will retrieve by range
+                sendReplicationInfo(sout, out);
+                storage.scanNAs(new HdlForwarder(out, sout, true));
+                sendHandleRanges(sout, out);
+            } else if (req.startingPoint != null && req.startingPointType == DumpHandlesRequest.HANDLE_RANGE) {
+                sendHandleRange(sout, out);
+            } else if (req.startingPoint != null) {
                 System.err.println("Resuming dump.");
                 resumeDumpSendFromStartingPoint(sout, out);
             } else { //dump everything
@@ -272,50 +310,7 @@ public class DumpHandlesResponse extends AbstractResponse {
                 // We then send the last transaction number and the replication status of other primaries (which hasn't changed).
                 // The dumpee will start after the calculated last transaction, which means re-doing some transactions that were really already included
                 // in what was sent, but that does not pose a problem.
-                if (replicationDaemon != null) {
-                    StreamTable replicationStatus = replicationDaemon.replicationStatus();
-                    replicationStatus = omitEmptyQueues(replicationStatus);
-                    byte[] statusBytes = Util.encodeString(replicationStatus.writeToString());
-                    out.writeByte(OTHER_SITE_REPLICATION_INFO_RECORD);
-                    out.writeInt(statusBytes.length);
-                    out.write(statusBytes);
-                    sout.signBlock();
-                }
-                if (queue != null) {
-                    long time = System.currentTimeMillis();
-                    long txnId = queue.getLastTxnId();
-
-                    out.writeByte(THIS_SERVER_REPLICATION_INFO_RECORD);
-
-                    // Write the date that the requestor should use as the lastQueryDate
-                    // for their next RetrieveHandlesRequest to this server.
-                    // This is needed because if there are no transactions in a while,
-                    // we don't want the receiver to have to redump the entire database.
-                    out.writeLong(time);
-
-                    // Write the transaction ID that the requestor should use as the
-                    // lastTransactionID for their next RetrieveHandlesRequest to this server.
-                    out.writeLong(txnId);
-
-                    // sign this record
-                    sout.signBlock();
-                }
-
-                if (replicationDaemon != null) {
-                    // send handle and NA last change information
-                    Iterator<byte[]> iter = replicationDaemon.handleIterator();
-                    while (iter.hasNext()) {
-                        out.writeByte(HANDLE_DATE_RECORD);
-                        out.write(iter.next());
-                        sout.signBlock();
-                    }
-                    iter = replicationDaemon.naIterator();
-                    while (iter.hasNext()) {
-                        out.writeByte(NA_DATE_RECORD);
-                        out.write(iter.next());
-                        sout.signBlock();
-                    }
-                }
+                sendReplicationInfo(sout, out);
                 storage.scanHandles(new HdlForwarder(out, sout, false));
                 storage.scanNAs(new HdlForwarder(out, sout, true));
             }
@@ -328,6 +323,92 @@ public class DumpHandlesResponse extends AbstractResponse {
         }
     }
 
+    /**
+     * Sends the replication status of other primaries, the last transaction of this server,
+     * and the dates of the last change to each handle and prefix.
+     */
+    private void sendReplicationInfo(SignedOutputStream sout, DataOutputStream out) throws IOException, SignatureException, HandleException {
+        if (replicationDaemon != null) {
+            StreamTable replicationStatus = replicationDaemon.replicationStatus();
+            replicationStatus = omitEmptyQueues(replicationStatus);
+            byte[] statusBytes = Util.encodeString(replicationStatus.writeToString());
+            out.writeByte(OTHER_SITE_REPLICATION_INFO_RECORD);
+            out.writeInt(statusBytes.length);
+            out.write(statusBytes);
+            sout.signBlock();
+        }
+        if (queue != null) {
+            long time = System.currentTimeMillis();
+            long txnId = queue.getLastTxnId();
+
+            out.writeByte(THIS_SERVER_REPLICATION_INFO_RECORD);
+
+            // Write the date that the requestor should use as the lastQueryDate
+            // for their next RetrieveHandlesRequest to this server.
+            // This is needed because if there are no transactions in a while,
+            // we don't want the receiver to have to redump the entire database.
+            out.writeLong(time);
+
+            // Write the transaction ID that the requestor should use as the
+            // lastTransactionID for their next RetrieveHandlesRequest to this server.
+            out.writeLong(txnId);
+
+            // sign this record
+            sout.signBlock();
+        }
+
+        if (replicationDaemon != null) {
+            // send handle and NA last change information
+            Iterator<byte[]> iter = replicationDaemon.handleIterator();
+            while (iter.hasNext()) {
+                out.writeByte(HANDLE_DATE_RECORD);
+                out.write(iter.next());
+                sout.signBlock();
+            }
+            iter = replicationDaemon.naIterator();
+            while (iter.hasNext()) {
+                out.writeByte(NA_DATE_RECORD);
+                out.write(iter.next());
+                sout.signBlock();
+            }
+        }
+    }
+
+    /**
+     * Sends the handles after the starting point up to and including the ending point.
+     */
+    private void sendHandleRange(SignedOutputStream sout, DataOutputStream out) throws HandleException {
+        if (!storage.supportsDumpResumption() || !storage.scansHandlesInByteOrder()) {
+            throw new HandleException(HandleException.SERVER_ERROR, "Cannot dump handle ranges from storage " + storage.getClass());
+        }
+        try {
+            // the forwarder skips the starting point itself, which need not still exist
+            storage.scanHandlesFrom(req.startingPoint, true, new HdlForwarder(out, sout, false, req.startingPoint, req.endingPoint));
+        } catch (EndOfRangeException e) {
+            // the rest of the handles are outside of the range
+        }
+    }
+
+    /**
+     * Scans the names of the handles which belong to the requestor and sends the
+     * boundaries which split them into the requested number of ranges.
+     */
+    private void sendHandleRanges(SignedOutputStream sout, DataOutputStream out) throws IOException, SignatureException, HandleException {
+        if (!storage.supportsDumpResumption() || !storage.scansHandlesInByteOrder()) {
+            throw new HandleException(HandleException.SERVER_ERROR, "Cannot dump handle ranges from storage " + storage.getClass());
+        }
+        HandleRangeSampler sampler = new HandleRangeSampler(Math.max(1, Math.min(req.numPartitions, MAX_PARTITIONS)));
+        storage.scanHandles(sampler);
+        List<byte[]> boundaries = sampler.getBoundaries();
+        out.writeByte(HANDLE_RANGES_RECORD);
+        out.writeInt(boundaries.size());
+        for (byte[] boundary : boundaries) {
+            out.writeInt(boundary.length);
+            out.write(boundary);
+        }
+        sout.signBlock();
+    }
+
     private static StreamTable omitEmptyQueues(StreamTable replicationStatus) {
         List<String> namesToDelete = new ArrayList<>();
         for (Enumeration<String> e = replicationStatus.keys(); e.hasMoreElements();) {
@@ -391,15 +472,84 @@ public class DumpHandlesResponse extends AbstractResponse {
         }
     }
 
+    /**
+     * Thrown by a range dump's forwarder to stop scanning at the end of the range.
+     */
+    private static class EndOfRangeException extends HandleException {
+        private static final long serialVersionUID = 1L;
+
+        EndOfRangeException() {
+            super(HandleException.INTERNAL_ERROR, "End of handle range");
+        }
+    }
+
+    /**
+     * Collects evenly spaced handle names while scanning, keeping memory bounded
+     * by dropping every other sample and halving the sampling rate whenever the
+     * samples fill up.
+     */
+    private class HandleRangeSampler implements ScanCallback {
+        private final int numPartitions;
+        private final int maxSamples;
+        private final List<byte[]> samples = new ArrayList<>();
+        private long count = 0;
+        private long step = 1;
+
+        HandleRangeSampler(int numPartitions) {
+            this.numPartitions = numPartitions;
+            this.maxSamples = 16 * numPartitions;
+        }
+
+        @Override
+        public void scanHandle(byte handle[]) throws HandleException {
+            if (req.serverNum != SiteInfo.determineServerNum(handle, req.rcvrHashType, req.numServers)) return;
+            if (count++ % step != 0) return;
+            samples.add(handle);
+            if (samples.size() >= maxSamples) {
+                for (int i = 1; i < samples.size() / 2 + samples.size() % 2; i++) {
+                    samples.set(i, samples.get(2 * i));
+                }
+                samples.subList(samples.size() / 2 + samples.size() % 2, samples.size()).clear();
+                step *= 2;
+            }
+        }
+
+        List<byte[]> getBoundaries() {
+            samples.sort(Util::compare);
+            List<byte[]> boundaries = new ArrayList<>();
+            for (int i = 1; i < numPartitions; i++) {
+                int index = (int) ((long) i * samples.size() / numPartitions) - 1;
+                if (index < 0) continue;
+                byte[] boundary = samples.get(index);
+                if (boundaries.isEmpty() || Util.compare(boundaries.get(boundaries.size() - 1), boundary) < 0) {
+                    boundaries.add(boundary);
+                }
+            }
+            return boundaries;
+        }
+    }
+
     private class HdlForwarder implements ScanCallback {
         private final boolean scanningNAs;
         private final DataOutputStream out;
         private final SignedOutputStream sout;
+        private final byte[] startingPoint;
+        private final byte[] endingPoint;
 
         public HdlForwarder(DataOutputStream out, SignedOutputStream sout, boolean scanningNAs) {
+            this(out, sout, scanningNAs, null, null);
+        }
+
+        /**
+         * Creates a forwarder which sends only the handles after the starting point
+         * up to and including the ending point.
+         */
+        public HdlForwarder(DataOutputStream out, SignedOutputStream sout, boolean scanningNAs, byte[] startingPoint, byte[] endingPoint) {
             this.out = out;
             this.sout = sout;
             this.scanningNAs = scanningNAs;
+            this.startingPoint = startingPoint;
+            this.endingPoint = endingPoint;
         }
 
         /***************************************************************************
@@ -408,6 +558,12 @@ public class DumpHandlesResponse extends AbstractResponse {
          ***************************************************************************/
         @Override
         public void scanHandle(byte handle[]) throws HandleException {
+            if (startingPoint != null && Util.compare(handle, startingPoint) <= 0) {
+                return;
+            }
+            if (endingPoint != null && Util.compare(handle, endingPoint) > 0) {
+                throw new EndOfRangeException();
+            }
             if (!scanningNAs && req.serverNum != SiteInfo.determineServerNum(handle, req.rcvrHashType, req.numServers)) {
                 // this handle doesn't belong on the requesting server, so don't send it
                 return;
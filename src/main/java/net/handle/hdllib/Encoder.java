@@ -10,10 +10,14 @@
 package net.handle.hdllib;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Iterator;
 import java.util.Scanner;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import com.google.gson.Gson;
 
@@ -40,10 +44,15 @@ public abstract class Encoder {
     public static final int MSG_FLAG_OVRW = 0x00400000; // ask server to overwrite existing values
     public static final int MSG_FLAG_MINT = 0x00200000; // used in create request. Asks server to mint a new suffix
     public static final int MSG_FLAG_DNRF = 0x00100000; // requests server to not send a referral response
+    public static final int MSG_FLAG_CMPR = 0x00080000; // responses may be compressed (not part of the official protocol specification)
 
     public static final byte ENV_FLAG_COMPRESSED = (byte) 0x80;
     public static final byte ENV_FLAG_ENCRYPTED = (byte) 0x40;
     public static final byte ENV_FLAG_TRUNCATED = (byte) 0x20;
+    public static final byte ENV_FLAG_KEEP_ALIVE = (byte) 0x10; // not part of the official protocol specification
+
+    // flags optionally trailing the body of a RetrieveTxnRequest; not part of the official protocol specification
+    public static final byte RETRIEVE_TXN_FLAG_SUBSCRIBE = (byte) 0x01;
 
     // the permission masks for the per-value access specifiers (rwrw)
     public static final byte PERM_ADMIN_READ = 0x8;
@@ -327,6 +336,9 @@ public abstract class Encoder {
             case AbstractMessage.OC_RESOLUTION:
                 message = decodeResolutionRequest(msg, loc, envelope);
                 break;
+            case AbstractMessage.OC_BULK_RESOLUTION:
+                message = decodeBulkResolutionRequest(msg, loc, envelope);
+                break;
             case AbstractMessage.OC_RESPONSE_TO_CHALLENGE:
                 message = decodeChallengeAnswer(msg, loc, envelope);
                 break;
@@ -355,7 +367,7 @@ public abstract class Encoder {
                 message = decodeListNAsRequest(msg, loc, envelope);
                 break;
             case AbstractMessage.OC_RETRIEVE_TXN_LOG:
-                message = decodeRetrieveTxnRequest(msg, loc, envelope);
+                message = decodeRetrieveTxnRequest(msg, loc, envelope, headers.bodyLen);
                 break;
             case AbstractMessage.OC_DUMP_HANDLES:
                 message = decodeDumpHandlesRequest(msg, loc, envelope, headers.bodyLen);
@@ -425,6 +437,9 @@ public abstract class Encoder {
                 case AbstractMessage.OC_RESOLUTION:
                     message = decodeResolutionResponse(msg, bodyOffset, envelope);
                     break;
+                case AbstractMessage.OC_BULK_RESOLUTION:
+                    message = decodeBulkResolutionResponse(msg, bodyOffset, envelope);
+                    break;
                 case AbstractMessage.OC_VERIFY_CHALLENGE:
                     message = decodeVerifyAuthResponse(msg, bodyOffset, envelope);
                     break;
@@ -583,6 +598,7 @@ public abstract class Encoder {
         message.overwriteWhenExists = (MSG_FLAG_OVRW & opFlags) != 0;
         message.mintNewSuffix = (MSG_FLAG_MINT & opFlags) != 0;
         message.doNotRefer = (MSG_FLAG_DNRF & opFlags) != 0;
+        message.acceptCompressed = (MSG_FLAG_CMPR & opFlags) != 0;
     }
 
     /*************************************************************************
@@ -1100,6 +1116,9 @@ public abstract class Encoder {
             case AbstractMessage.OC_RESOLUTION:
                 buf = encodeResolutionRequest((ResolutionRequest) msg);
                 break;
+            case AbstractMessage.OC_BULK_RESOLUTION:
+                buf = encodeBulkResolutionRequest((BulkResolutionRequest) msg);
+                break;
             case AbstractMessage.OC_VERIFY_CHALLENGE:
                 buf = encodeVerifyAuthRequest((VerifyAuthRequest) msg);
                 break;
@@ -1160,6 +1179,9 @@ public abstract class Encoder {
             case AbstractMessage.OC_RESOLUTION:
                 buf = encodeResolutionResponse((ResolutionResponse) msg);
                 break;
+            case AbstractMessage.OC_BULK_RESOLUTION:
+                buf = encodeBulkResolutionResponse((BulkResolutionResponse) msg);
+                break;
             case AbstractMessage.OC_VERIFY_CHALLENGE:
                 buf = encodeVerifyAuthResponse((VerifyAuthResponse) msg);
                 break;
@@ -1248,6 +1270,56 @@ public abstract class Encoder {
         return buf;
     }
 
+    /*******************************************************************************
+     * Returns the given encoded message compressed with deflate, for sending
+     * in an envelope with the compressed flag set, or null if compressing
+     * would not make the message smaller.
+     *******************************************************************************/
+    public static final byte[] compressMessage(byte msg[]) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(msg);
+            deflater.finish();
+            byte buf[] = new byte[msg.length];
+            int len = 0;
+            while (!deflater.finished() && len < buf.length) {
+                len += deflater.deflate(buf, len, buf.length - len);
+            }
+            if (!deflater.finished() || len >= msg.length) return null;
+            return Arrays.copyOf(buf, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /*******************************************************************************
+     * Returns the message contained in the given compressed bytes, which may be
+     * no longer than Common.MAX_MESSAGE_LENGTH once decompressed.
+     *******************************************************************************/
+    public static final byte[] decompressMessage(byte buf[], int offset, int len) throws HandleException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buf, offset, len);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.min(len * 4, Common.MAX_MESSAGE_LENGTH));
+            byte chunk[] = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(chunk);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Truncated compressed message");
+                }
+                bout.write(chunk, 0, n);
+                if (bout.size() > Common.MAX_MESSAGE_LENGTH) {
+                    throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Compressed message too long");
+                }
+            }
+            return bout.toByteArray();
+        } catch (DataFormatException e) {
+            throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid compressed message", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     /*******************************************************************************
      * Write the encoded value of the given message envelope to the
      * given buffer.
@@ -1255,7 +1327,7 @@ public abstract class Encoder {
     public static final void encodeEnvelope(MessageEnvelope msgEnv, byte udpPkt[]) {
         udpPkt[0] = msgEnv.protocolMajorVersion;
         udpPkt[1] = msgEnv.protocolMinorVersion;
-        udpPkt[2] = (byte) ((msgEnv.compressed ? ENV_FLAG_COMPRESSED : 0) | (msgEnv.encrypted ? ENV_FLAG_ENCRYPTED : 0) | (msgEnv.truncated ? ENV_FLAG_TRUNCATED : 0) | msgEnv.suggestMajorProtocolVersion);
+        udpPkt[2] = (byte) ((msgEnv.compressed ? ENV_FLAG_COMPRESSED : 0) | (msgEnv.encrypted ? ENV_FLAG_ENCRYPTED : 0) | (msgEnv.truncated ? ENV_FLAG_TRUNCATED : 0) | (msgEnv.keepAlive ? ENV_FLAG_KEEP_ALIVE : 0) | msgEnv.suggestMajorProtocolVersion);
         udpPkt[3] = msgEnv.suggestMinorProtocolVersion;
         writeInt(udpPkt, 4, msgEnv.sessionId); // bytes 4,5,6,7
         writeInt(udpPkt, 8, msgEnv.requestId); // bytes 8,9,10,11
@@ -1274,6 +1346,7 @@ public abstract class Encoder {
         msgEnv.compressed = (udpPkt[2] & ENV_FLAG_COMPRESSED) != 0;
         msgEnv.encrypted = (udpPkt[2] & ENV_FLAG_ENCRYPTED) != 0;
         msgEnv.truncated = (udpPkt[2] & ENV_FLAG_TRUNCATED) != 0;
+        msgEnv.keepAlive = (udpPkt[2] & ENV_FLAG_KEEP_ALIVE) != 0;
         msgEnv.suggestMajorProtocolVersion = (byte) (udpPkt[2] & 0x03);
         msgEnv.suggestMinorProtocolVersion = udpPkt[3];
         if (msgEnv.suggestMajorProtocolVersion == 0) {
@@ -1567,7 +1640,7 @@ public abstract class Encoder {
                 String replicationStateInfoJson = gson.toJson(req.replicationStateInfo);
                 byte[] replicationStateInfoJsonBytes = Util.encodeString(replicationStateInfoJson);
 
-                int bodyLen = 1 + INT_SIZE + replicationStateInfoJsonBytes.length + 1 + INT_SIZE + INT_SIZE;
+                int bodyLen = 1 + INT_SIZE + replicationStateInfoJsonBytes.length + 1 + INT_SIZE + INT_SIZE + (req.subscribe ? 1 : 0);
                 byte msg[] = new byte[Common.MESSAGE_HEADER_SIZE + bodyLen];
 
                 int offset = writeHeader(req, msg, bodyLen);
@@ -1576,9 +1649,11 @@ public abstract class Encoder {
                 msg[offset++] = req.rcvrHashType;
                 offset += writeInt(msg, offset, req.numServers);
                 offset += writeInt(msg, offset, req.serverNum);
+                // optional trailing flags; older servers ignore it
+                if (req.subscribe) msg[offset++] = RETRIEVE_TXN_FLAG_SUBSCRIBE;
                 return msg;
             } else {
-                int bodyLen = 1 + LONG_SIZE + LONG_SIZE + 1 + INT_SIZE + INT_SIZE;
+                int bodyLen = 1 + LONG_SIZE + LONG_SIZE + 1 + INT_SIZE + INT_SIZE + (req.subscribe ? 1 : 0);
                 byte msg[] = new byte[Common.MESSAGE_HEADER_SIZE + bodyLen];
 
                 int offset = writeHeader(req, msg, bodyLen);
@@ -1588,6 +1663,7 @@ public abstract class Encoder {
                 msg[offset++] = req.rcvrHashType;
                 offset += writeInt(msg, offset, req.numServers);
                 offset += writeInt(msg, offset, req.serverNum);
+                if (req.subscribe) msg[offset++] = RETRIEVE_TXN_FLAG_SUBSCRIBE;
                 return msg;
             }
         } else {
@@ -1636,14 +1712,23 @@ public abstract class Encoder {
     /*******************************************************************************
      * Decode, create, and return a RetrieveTxnRequest object from the given buffer
      *******************************************************************************/
-    static final RetrieveTxnRequest decodeRetrieveTxnRequest(byte msg[], int loc, MessageEnvelope env) throws HandleException {
+    static final RetrieveTxnRequest decodeRetrieveTxnRequest(byte msg[], int loc, MessageEnvelope env, int bodyLen) throws HandleException {
         if (AbstractMessage.hasEqualOrGreaterVersion(env.protocolMajorVersion, env.protocolMinorVersion, 2, 9)) {
+            int startOfBody = loc;
             byte isPullOtherTransactionsByte = msg[loc++];
+            RetrieveTxnRequest req;
+            int endOfFields;
             if (isPullOtherTransactionsByte == 1) {
-                return decodeRetrieveTransactionRequestPullingAllSources(msg, loc);
+                req = decodeRetrieveTransactionRequestPullingAllSources(msg, loc);
+                endOfFields = loc + INT_SIZE + readInt(msg, loc) + 1 + INT_SIZE + INT_SIZE;
             } else {
-                return decodeRetrieveTransactionRequestPullingOnlyOneSource(msg, loc);
+                req = decodeRetrieveTransactionRequestPullingOnlyOneSource(msg, loc);
+                endOfFields = loc + LONG_SIZE + LONG_SIZE + 1 + INT_SIZE + INT_SIZE;
+            }
+            if (endOfFields < startOfBody + bodyLen) {
+                req.subscribe = (msg[endOfFields] & RETRIEVE_TXN_FLAG_SUBSCRIBE) != 0;
             }
+            return req;
         } else {
             return decodeRetrieveTransactionRequestPullingOnlyOneSource(msg, loc);
         }
@@ -1682,8 +1767,12 @@ public abstract class Encoder {
      *******************************************************************************/
     static final byte[] encodeDumpHandlesRequest(DumpHandlesRequest req) {
         int bodyLen = 1 + INT_SIZE + INT_SIZE;
+        boolean hasRange = req.endingPoint != null || req.numPartitions > 0;
         if (req.startingPoint != null) {
             bodyLen += INT_SIZE + req.startingPoint.length + INT_SIZE;
+            if (hasRange) {
+                bodyLen += INT_SIZE + (req.endingPoint == null ? 0 : req.endingPoint.length) + INT_SIZE;
+            }
         }
         byte msg[] = new byte[Common.MESSAGE_HEADER_SIZE + bodyLen];
 
@@ -1696,6 +1785,12 @@ public abstract class Encoder {
             // write the startingPoint
             offset += writeByteArray(msg, offset, req.startingPoint, 0, req.startingPoint.length);
             offset += writeInt(msg, offset, req.startingPointType);
+            if (hasRange) {
+                // servers which don't know about ranges ignore the rest of the body
+                byte[] endingPoint = req.endingPoint == null ? new byte[0] : req.endingPoint;
+                offset += writeByteArray(msg, offset, endingPoint, 0, endingPoint.length);
+                offset += writeInt(msg, offset, req.numPartitions);
+            }
         }
         return msg;
     }
@@ -1741,7 +1836,15 @@ public abstract class Encoder {
             loc += INT_SIZE + startingPoint.length;
             int startingPointType = readInt(msg, loc);
             loc += INT_SIZE;
-            return new DumpHandlesRequest(rcvrHashType, numServers, serverNum, null, startingPoint, startingPointType);
+            DumpHandlesRequest req = new DumpHandlesRequest(rcvrHashType, numServers, serverNum, null, startingPoint, startingPointType);
+            if (loc < startOfBody + bodyLen) {
+                byte[] endingPoint = readByteArray(msg, loc);
+                loc += INT_SIZE + endingPoint.length;
+                if (endingPoint.length > 0) req.endingPoint = endingPoint;
+                req.numPartitions = readInt(msg, loc);
+                loc += INT_SIZE;
+            }
+            return req;
         }
     }
 
@@ -2041,6 +2144,79 @@ public abstract class Encoder {
         return new ResolutionResponse(handle, values);
     }
 
+    /*******************************************************************************
+     * Decode and create a bulk resolution request object from the given buffer.
+     *******************************************************************************/
+    public static BulkResolutionRequest decodeBulkResolutionRequest(byte msg[], int offset, @SuppressWarnings("unused") MessageEnvelope env) throws HandleException {
+        // read the handle list
+        int numHandles = readInt(msg, offset);
+        offset += INT_SIZE;
+
+        if (numHandles < 0 || numHandles > Common.MAX_BULK_RESOLUTION_HANDLES) throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid number of handles: " + numHandles);
+
+        byte handles[][] = new byte[numHandles][];
+        offset += readByteArrayArray(handles, msg, offset);
+
+        // read the index list
+        int indexes[] = readIntArray(msg, offset);
+        offset += INT_SIZE + INT_SIZE * indexes.length;
+
+        // read the type list
+        byte types[][] = new byte[readInt(msg, offset)][];
+        offset += INT_SIZE;
+        offset += readByteArrayArray(types, msg, offset);
+
+        return new BulkResolutionRequest(handles, types, indexes, null);
+    }
+
+    /*******************************************************************************
+     * Decode and create a bulk resolution response object from the given buffer.
+     *******************************************************************************/
+    public static BulkResolutionResponse decodeBulkResolutionResponse(byte msg[], int offset, @SuppressWarnings("unused") MessageEnvelope env) throws HandleException {
+        int numHandles = readInt(msg, offset);
+        offset += INT_SIZE;
+
+        if (numHandles < 0 || numHandles > Common.MAX_BULK_RESOLUTION_HANDLES) throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid number of handles: " + numHandles);
+
+        byte handles[][] = new byte[numHandles][];
+        int responseCodes[] = new int[numHandles];
+        byte values[][][] = new byte[numHandles][][];
+        byte messages[][] = new byte[numHandles][];
+        for (int i = 0; i < numHandles; i++) {
+            int handleLen = readInt(msg, offset);
+            offset += INT_SIZE;
+
+            if (handleLen < 0 || handleLen > Common.MAX_HANDLE_LENGTH) throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid handle length: " + handleLen);
+
+            handles[i] = new byte[handleLen];
+            System.arraycopy(msg, offset, handles[i], 0, handleLen);
+            offset += handleLen;
+
+            responseCodes[i] = readInt(msg, offset);
+            offset += INT_SIZE;
+
+            if (responseCodes[i] == AbstractMessage.RC_SUCCESS) {
+                int numValues = readInt(msg, offset);
+                offset += INT_SIZE;
+
+                if (numValues < 0 || numValues > Common.MAX_HANDLE_VALUES) throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Invalid number of values: " + numValues);
+
+                values[i] = new byte[numValues][];
+                for (int j = 0; j < numValues; j++) {
+                    int valLen = calcHandleValueSize(msg, offset);
+                    values[i][j] = new byte[valLen];
+                    System.arraycopy(msg, offset, values[i][j], 0, valLen);
+                    offset += valLen;
+                }
+            } else {
+                messages[i] = readByteArray(msg, offset);
+                offset += INT_SIZE + messages[i].length;
+            }
+        }
+
+        return new BulkResolutionResponse(handles, responseCodes, values, messages);
+    }
+
     public static ServiceReferralResponse decodeServiceReferralResponse(int responseCode, byte msg[], int offset, @SuppressWarnings("unused") MessageEnvelope env, int endOfBuf) throws HandleException {
         int handleLen = readInt(msg, offset);
         offset += INT_SIZE;
@@ -2141,6 +2317,92 @@ public abstract class Encoder {
         return msg;
     }
 
+    /*******************************************************************************
+     * Encode the given BulkResolutionRequest and return the resulting buffer
+     *******************************************************************************/
+    public static final byte[] encodeBulkResolutionRequest(BulkResolutionRequest req) {
+        int bodyLen = INT_SIZE + // space for the handle list length
+
+            INT_SIZE + // space for the index list length
+            // space for the index list
+            ((req.requestedIndexes == null) ? 0 : req.requestedIndexes.length * INT_SIZE) +
+
+            INT_SIZE; // space for the type list length
+
+        for (byte[] handle : req.handles) { // add the size for each handle
+            bodyLen += (handle.length + INT_SIZE);
+        }
+        if (req.requestedTypes != null) { // add the size for each type item
+            for (byte[] requestedType : req.requestedTypes) {
+                bodyLen += (requestedType.length + INT_SIZE);
+            }
+        }
+
+        byte msg[] = new byte[bodyLen + Common.MESSAGE_HEADER_SIZE];
+        writeHeader(req, msg, bodyLen);
+
+        int loc = Common.MESSAGE_HEADER_SIZE;
+
+        // write the handle list
+        loc += writeByteArrayArray(msg, loc, req.handles);
+
+        // write the index list
+        loc += writeIntArray(msg, loc, req.requestedIndexes);
+
+        // write the type list
+        loc += writeByteArrayArray(msg, loc, req.requestedTypes);
+
+        return msg;
+    }
+
+    /*******************************************************************************
+     * Encode the given BulkResolutionResponse and return the resulting buffer
+     *******************************************************************************/
+    public static final byte[] encodeBulkResolutionResponse(BulkResolutionResponse res) {
+        int bodyLen = INT_SIZE + // space for the number of results
+            (res.returnRequestDigest ? 1 + res.requestDigest.length : 0); // request digest
+
+        // add the size for each result
+        for (int i = 0; i < res.handles.length; i++) {
+            bodyLen += INT_SIZE + res.handles[i].length + INT_SIZE;
+            if (res.responseCodes[i] == AbstractMessage.RC_SUCCESS) {
+                bodyLen += INT_SIZE;
+                for (byte[] value : res.values[i]) {
+                    bodyLen += value.length;
+                }
+            } else {
+                bodyLen += INT_SIZE + (res.messages[i] == null ? 0 : res.messages[i].length);
+            }
+        }
+        byte msg[] = new byte[bodyLen + Common.MESSAGE_HEADER_SIZE];
+        int offset = writeHeader(res, msg, bodyLen);
+
+        if (res.returnRequestDigest) {
+            msg[offset++] = res.rdHashType;
+            System.arraycopy(res.requestDigest, 0, msg, offset, res.requestDigest.length);
+            offset += res.requestDigest.length;
+        }
+
+        offset += writeInt(msg, offset, res.handles.length);
+        for (int i = 0; i < res.handles.length; i++) {
+            // write the handle and its response code
+            offset += writeByteArray(msg, offset, res.handles[i], 0, res.handles[i].length);
+            offset += writeInt(msg, offset, res.responseCodes[i]);
+
+            if (res.responseCodes[i] == AbstractMessage.RC_SUCCESS) {
+                // write the values...
+                offset += writeInt(msg, offset, res.values[i].length);
+                for (byte[] value : res.values[i]) {
+                    System.arraycopy(value, 0, msg, offset, value.length);
+                    offset += value.length;
+                }
+            } else {
+                offset += writeByteArray(msg, offset, res.messages[i]);
+            }
+        }
+        return msg;
+    }
+
     public static final byte[] encodeServiceReferralResponse(ServiceReferralResponse res) {
         int bodyLen = INT_SIZE + // space for the handle length
             res.handle.length + // space for the handle itself
@@ -2401,6 +2663,7 @@ public abstract class Encoder {
         if (msg.overwriteWhenExists) flags |= MSG_FLAG_OVRW; // introduced in 2.3 but we send regardless
         if (msg.mintNewSuffix) flags |= MSG_FLAG_MINT;
         if (msg.doNotRefer) flags |= MSG_FLAG_DNRF;
+        if (msg.acceptCompressed) flags |= MSG_FLAG_CMPR;
 
         loc += writeInt(buf, loc, flags);
 
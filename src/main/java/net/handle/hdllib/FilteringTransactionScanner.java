@@ -0,0 +1,33 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+/**
+ * A transaction scanner which can pass over the transactions not sent to a
+ * particular server of a replicating site, as decided by
+ * {@link Transaction#isSentToServer}, without returning them.  Scanners of
+ * queues which keep the handle hashes apart from the rest of each
+ * transaction can do this without decoding the transactions passed over.
+ */
+public interface FilteringTransactionScanner extends TransactionScannerInterface {
+
+    /**
+     * Returns the next transaction which is sent to the given server of a
+     * site using the given hash type, or null if there are no more, or if
+     * the next transaction has an ID greater than maxTxnId.
+     */
+    public Transaction nextTransaction(long maxTxnId, byte hashType, int numServers, int serverNum) throws Exception;
+
+    /**
+     * Returns the ID of the last transaction returned or passed over by
+     * {@link #nextTransaction(long, byte, int, int)}, or 0 if there is none.
+     */
+    public long getLastScannedTxnId();
+}
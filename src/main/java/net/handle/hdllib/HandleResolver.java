@@ -13,11 +13,17 @@ import java.net.*;
 import java.nio.channels.SocketChannel;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.security.*;
@@ -54,13 +60,26 @@ public class HandleResolver implements RequestProcessor {
     private int maxUDPDataSize = Common.MAX_UDP_DATA_SIZE;
     private Cache secureCache = null;
     private Cache cache = null;
+    private final PrefixServiceCache<ServiceInfo> prefixServiceCache = new PrefixServiceCache<>(PREFIX_SERVICE_CACHE_SIZE, PREFIX_SERVICE_CACHE_MAX_TTL, PREFIX_NOT_FOUND_CACHE_TTL);
+    private boolean usePrefixServiceCache = true;
+    private final ResolutionCoalescer resolutionCoalescer = new ResolutionCoalescer();
+    private boolean coalesceResolutions = true;
     private int udpRetryScheme[] = { 500, 1000, 1500 };
 
     // the default length of time that a not-found result will be cached
     private static final int CACHED_NOT_FOUND_TTL = 0; // 60*60;
 
+    // the most prefixes, and the longest time in seconds, for which decoded service information is cached
+    private static final int PREFIX_SERVICE_CACHE_SIZE = 10000;
+    private static final int PREFIX_SERVICE_CACHE_MAX_TTL = 60 * 60;
+    // the default length of time that a failure to find the service for a prefix will be cached
+    private static final int PREFIX_NOT_FOUND_CACHE_TTL = 30;
+
     // timeout used for normal hdl-tcp and hdl-http connections(1 minute)
     private int tcpTimeout = 60000;
+    private volatile HdlTcpConnectionPool tcpConnectionPool = null;
+    private volatile HdlUdpClient udpClient = null;
+    private boolean acceptCompressedResponses = true;
 
     // true if this resolver should check for and verify
     // signatures on responses to requests that have the
@@ -149,6 +168,24 @@ public class HandleResolver implements RequestProcessor {
         });
     }
 
+    // the UDP client shared by resolvers which have not been given their own
+    private static volatile HdlUdpClient sharedUdpClient;
+
+    private static HdlUdpClient getSharedUdpClient() throws HandleException {
+        HdlUdpClient client = sharedUdpClient;
+        if (client != null) return client;
+        synchronized (HandleResolver.class) {
+            if (sharedUdpClient == null) {
+                try {
+                    sharedUdpClient = new HdlUdpClient();
+                } catch (IOException e) {
+                    throw new HandleException(HandleException.INTERNAL_ERROR, "Unable to open UDP channels", e);
+                }
+            }
+            return sharedUdpClient;
+        }
+    }
+
     public ExecutorService getExecutorService() {
         if (execServ != null) return execServ;
         return CachedThreadPoolHolder.execServ;
@@ -269,8 +306,48 @@ public class HandleResolver implements RequestProcessor {
         this.secureCache = cache;
     }
 
+    /*************************************************************
+     * Sets whether the decoded service information for prefixes is
+     * cached, separately from the cache of handle values, for as long
+     * as the TTLs of the site and service values of the prefix handle
+     * allow.  Concurrent lookups of the same uncached prefix share one
+     * resolution.  Enabled by default.
+     *************************************************************/
+    public void setUsePrefixServiceCache(boolean usePrefixServiceCache) {
+        this.usePrefixServiceCache = usePrefixServiceCache;
+    }
+
+    /*************************************************************
+     * Sets how long, in seconds, a failure to find the service for a
+     * prefix is cached by the prefix service cache; 0 turns off
+     * caching of failures.
+     *************************************************************/
+    public void setPrefixNotFoundCacheTTL(int ttl) {
+        prefixServiceCache.setNotFoundTTL(ttl);
+    }
+
+    /*************************************************************
+     * Sets whether concurrent identical resolution requests which
+     * miss the cache share one request to the handle service and
+     * its response.  Enabled by default.
+     *************************************************************/
+    public void setCoalesceResolutions(boolean coalesceResolutions) {
+        this.coalesceResolutions = coalesceResolutions;
+    }
+
+    /** Returns the coalescer of concurrent identical resolutions, for its statistics. */
+    public ResolutionCoalescer getResolutionCoalescer() {
+        return resolutionCoalescer;
+    }
+
+    /** Returns the cache of service information for prefixes, for its statistics. */
+    public PrefixServiceCache<?> getPrefixServiceCache() {
+        return prefixServiceCache;
+    }
+
     /** Clear any caches being used by this resolver */
     public void clearCaches() throws Exception {
+        prefixServiceCache.clear();
         Cache c;
         c = secureCache;
         if (c != null) c.clear();
@@ -360,6 +437,47 @@ public class HandleResolver implements RequestProcessor {
         return this.tcpTimeout;
     }
 
+    /*****************************************************************
+     * Set a pool of persistent connections to use for TCP requests,
+     * or null (the default) to open a new connection for each request.
+     * Requests with streamed responses always use a new connection.
+     *****************************************************************/
+    public void setTcpConnectionPool(HdlTcpConnectionPool pool) {
+        this.tcpConnectionPool = pool;
+    }
+
+    public HdlTcpConnectionPool getTcpConnectionPool() {
+        return this.tcpConnectionPool;
+    }
+
+    /*****************************************************************
+     * Set the client used to send UDP requests, or null (the default)
+     * to use a client shared by all resolvers in this JVM.
+     *****************************************************************/
+    public void setUdpClient(HdlUdpClient udpClient) {
+        this.udpClient = udpClient;
+    }
+
+    public HdlUdpClient getUdpClient() throws HandleException {
+        HdlUdpClient client = this.udpClient;
+        if (client != null) return client;
+        return getSharedUdpClient();
+    }
+
+    /*****************************************************************
+     * Set whether requests tell servers that they may compress large
+     * responses, and the streamed parts of responses, sent over TCP and
+     * HTTP.  Servers which do not support compression ignore this.
+     * Defaults to true.
+     *****************************************************************/
+    public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+    }
+
+    public boolean getAcceptCompressedResponses() {
+        return this.acceptCompressedResponses;
+    }
+
     public boolean isUseIPv6FastFallback() {
         return useIPv6FastFallback;
     }
@@ -445,26 +563,63 @@ public class HandleResolver implements RequestProcessor {
      *
      *********************************************************************************/
     public HandleValue[] resolveHandle(String sHandle, String sTypes[], int indexes[]) throws HandleException {
-        if (sTypes == null) sTypes = new String[0];
-        if (indexes == null) indexes = new int[0];
+        return resolveHandle(Util.encodeString(sHandle), encodeTypes(sTypes), indexes);
+    }
 
-        // convert the types and handle to UTF8 byte-strings
+    // convert the types to UTF8 byte-strings
+    private static byte[][] encodeTypes(String sTypes[]) {
+        if (sTypes == null) return new byte[0][];
         byte types[][] = new byte[sTypes.length][];
-        byte handle[];
-
-        handle = Util.encodeString(sHandle);
         for (int i = 0; i < sTypes.length; i++) {
             types[i] = Util.encodeString(sTypes[i]);
         }
-
-        return resolveHandle(handle, types, indexes);
+        return types;
     }
 
     public HandleValue[] resolveHandle(byte[] handle, byte[][] types, int[] indexes) throws HandleException {
         if (types == null) types = new byte[0][];
         if (indexes == null) indexes = new int[0];
         AbstractResponse response = processRequest(new ResolutionRequest(handle, types, indexes, null));
+        return getRequestedValues(response, types, indexes);
+    }
+
+    /*******************************************************************************
+     * Asynchronous version of resolveHandle(String, String[], int[]).  Returns a
+     * future which completes with the values of the handle, or fails with a
+     * HandleException.
+     *******************************************************************************/
+    public CompletableFuture<HandleValue[]> resolveHandleAsync(String sHandle, String sTypes[], int indexes[]) {
+        return resolveHandleAsync(Util.encodeString(sHandle), encodeTypes(sTypes), indexes);
+    }
+
+    /*******************************************************************************
+     * Asynchronous version of resolveHandle(byte[], byte[][], int[]).  Returns a
+     * future which completes with the values of the handle, or fails with a
+     * HandleException.  Cancelling the future abandons the resolution.
+     *******************************************************************************/
+    public CompletableFuture<HandleValue[]> resolveHandleAsync(byte[] handle, byte[][] types, int[] indexes) {
+        byte[][] requestedTypes = types == null ? new byte[0][] : types;
+        int[] requestedIndexes = indexes == null ? new int[0] : indexes;
+        CompletableFuture<AbstractResponse> responseFuture = processRequestAsync(new ResolutionRequest(handle, requestedTypes, requestedIndexes, null));
+        CompletableFuture<HandleValue[]> result = new CompletableFuture<>();
+        result.whenComplete((values, e) -> {
+            if (result.isCancelled()) responseFuture.cancel(false);
+        });
+        responseFuture.whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(unwrapCompletionException(e));
+                return;
+            }
+            try {
+                result.complete(getRequestedValues(response, requestedTypes, requestedIndexes));
+            } catch (HandleException he) {
+                result.completeExceptionally(he);
+            }
+        });
+        return result;
+    }
 
+    private static HandleValue[] getRequestedValues(AbstractResponse response, byte[][] types, int[] indexes) throws HandleException {
         if (response.responseCode == AbstractMessage.RC_HANDLE_NOT_FOUND) {
             throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST);
         } else if (response.responseCode == AbstractMessage.RC_VALUES_NOT_FOUND) {
@@ -505,6 +660,168 @@ public class HandleResolver implements RequestProcessor {
         return this.resolveHandle(handle, null, null);
     }
 
+    /*******************************************************************************
+     * Resolves a number of handles at once, returning only publicly readable
+     * values.  The handles are grouped by the server responsible for them, and
+     * each server is sent a single BulkResolutionRequest over TCP, with the
+     * servers contacted in parallel.  Handles which can't be resolved that way
+     * (because the server predates bulk resolution, because the handle was
+     * referred elsewhere, because caching servers are configured, ...) are
+     * resolved individually.
+     *
+     * The result for each handle, in the same order as the handles, is either
+     * a ResolutionResponse or an ErrorResponse.  Errors which resolveHandle
+     * would throw are returned as ErrorResponses.
+     *******************************************************************************/
+    public AbstractResponse[] resolveHandles(byte[][] handles, byte[][] types, int[] indexes) {
+        if (types == null) types = new byte[0][];
+        if (indexes == null) indexes = new int[0];
+        AbstractResponse[] results = new AbstractResponse[handles.length];
+        ResolutionRequest[] requests = new ResolutionRequest[handles.length];
+
+        // answer what we can from the cache, and group the rest by server
+        Map<ServerInfo, BulkResolutionGroup> groups = new LinkedHashMap<>();
+        for (int i = 0; i < handles.length; i++) {
+            requests[i] = new ResolutionRequest(handles[i], types, indexes, null);
+            if (cache != null) {
+                results[i] = resolveFromCache(requests[i], cache);
+                if (results[i] != null) continue;
+            }
+            try {
+                BulkResolutionGroup group = getBulkResolutionGroup(requests[i], groups);
+                if (group != null) group.positions.add(i);
+            } catch (HandleException e) {
+                // resolved individually below
+            }
+        }
+
+        List<BulkResolutionGroup> groupList = new ArrayList<>(groups.values());
+        if (groupList.size() == 1) {
+            BulkResolutionGroup group = groupList.get(0);
+            group.takeResults(sendBulkResolutionRequests(group, requests, types, indexes), results);
+        } else if (groupList.size() > 1) {
+            final byte[][] finalTypes = types;
+            final int[] finalIndexes = indexes;
+            List<Future<AbstractResponse[]>> futures = new ArrayList<>(groupList.size());
+            for (BulkResolutionGroup group : groupList) {
+                futures.add(getExecutorService().submit(() -> sendBulkResolutionRequests(group, requests, finalTypes, finalIndexes)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    groupList.get(i).takeResults(futures.get(i).get(), results);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Future<AbstractResponse[]> future : futures) {
+                        future.cancel(true);
+                    }
+                    break;
+                } catch (ExecutionException e) {
+                    // resolved individually below
+                }
+            }
+        }
+
+        for (int i = 0; i < handles.length; i++) {
+            if (results[i] != null) continue;
+            try {
+                requests[i].clearBuffers();
+                results[i] = processRequest(requests[i]);
+            } catch (HandleException e) {
+                results[i] = e.toErrorResponse(requests[i]);
+            }
+        }
+        return results;
+    }
+
+    /** Handles waiting to be sent to one server in bulk resolution requests. */
+    private static class BulkResolutionGroup {
+        final SiteInfo site;
+        final ServerInfo server;
+        final List<Integer> positions = new ArrayList<>();
+
+        BulkResolutionGroup(SiteInfo site, ServerInfo server) {
+            this.site = site;
+            this.server = server;
+        }
+
+        void takeResults(AbstractResponse[] groupResults, AbstractResponse[] results) {
+            for (int j = 0; j < groupResults.length; j++) {
+                if (groupResults[j] != null) results[positions.get(j)] = groupResults[j];
+            }
+        }
+    }
+
+    /**
+     * Returns the group for the server which the given request would be sent to,
+     * creating it if needed, or null if the request should be sent by itself.
+     */
+    private BulkResolutionGroup getBulkResolutionGroup(ResolutionRequest req, Map<ServerInfo, BulkResolutionGroup> groups) throws HandleException {
+        if (config.getResolutionMethod() == Configuration.RM_WITH_CACHE) {
+            SiteInfo cacheSites[] = config.getCacheSites();
+            if (cacheSites != null && cacheSites.length > 0) return null;
+        }
+        SiteInfo sites[] = filterSitesForRequest(findLocalSites(req), req);
+        if (sites == null || sites.length == 0 || someSiteHasZeroAddressAndDomain(sites)) return null;
+        if (Boolean.parseBoolean(System.getProperty("java.net.preferIPv4Stack")) || !hasIPv6Interface) {
+            sites = getIpSites(sites, IP_VERSION_4);
+            if (sites == null) return null;
+        }
+        setResponseTimesOfSites(sites);
+        SiteInfo site = Util.orderSitesByPreference(sites)[0];
+        ServerInfo server = site.determineServer(req.handle);
+        if (server == null || server.interfaceWithProtocol(Interface.SP_HDL_TCP, req) == null) return null;
+        BulkResolutionGroup group = groups.get(server);
+        if (group == null) {
+            group = new BulkResolutionGroup(site, server);
+            groups.put(server, group);
+        }
+        return group;
+    }
+
+    /**
+     * Sends the handles in the given group to their server, returning results
+     * parallel to the group's positions.  Results are left null for handles
+     * which need to be resolved individually.
+     */
+    private AbstractResponse[] sendBulkResolutionRequests(BulkResolutionGroup group, ResolutionRequest[] requests, byte[][] types, int[] indexes) {
+        int numHandles = group.positions.size();
+        AbstractResponse[] groupResults = new AbstractResponse[numHandles];
+        for (int start = 0; start < numHandles; start += Common.MAX_BULK_RESOLUTION_HANDLES) {
+            int end = Math.min(numHandles, start + Common.MAX_BULK_RESOLUTION_HANDLES);
+            byte[][] bulkHandles = new byte[end - start][];
+            for (int j = start; j < end; j++) {
+                bulkHandles[j - start] = requests[group.positions.get(j)].handle;
+            }
+            BulkResolutionRequest bulkReq = new BulkResolutionRequest(bulkHandles, types, indexes, null);
+            AbstractResponse response;
+            try {
+                response = sendRequestToServerInSiteByProtocol(bulkReq, group.site, group.server, Interface.SP_HDL_TCP, null);
+            } catch (HandleException e) {
+                if (traceMessages) System.err.println("Bulk resolution failed, resolving individually: " + e);
+                break;
+            }
+            if (!(response instanceof BulkResolutionResponse) || ((BulkResolutionResponse) response).handles.length != bulkHandles.length) {
+                // most likely a server which doesn't support bulk resolution
+                if (traceMessages) System.err.println("Bulk resolution not available, resolving individually: " + response);
+                break;
+            }
+            BulkResolutionResponse bulkResponse = (BulkResolutionResponse) response;
+            for (int j = start; j < end; j++) {
+                int responseCode = bulkResponse.responseCodes[j - start];
+                if (responseCode != AbstractMessage.RC_SUCCESS && responseCode != AbstractMessage.RC_HANDLE_NOT_FOUND && responseCode != AbstractMessage.RC_VALUES_NOT_FOUND) continue;
+                ResolutionRequest req = requests[group.positions.get(j)];
+                try {
+                    AbstractResponse result = bulkResponse.getResult(j - start, req);
+                    cacheResponse(result, req, true, cache);
+                    groupResults[j] = result;
+                } catch (HandleException e) {
+                    // resolved individually
+                }
+            }
+        }
+        return groupResults;
+    }
+
     public HandleValue resolveValueReference(ValueReference valueReference) throws HandleException {
         HandleValue[] values = resolveHandle(valueReference.handle, null, new int[] { valueReference.index });
         if (values == null || values.length == 0) return null;
@@ -624,6 +941,170 @@ public class HandleResolver implements RequestProcessor {
         return processRequestGlobally(req, null);
     }
 
+    /***********************************************************************
+     * Shortcut to processRequestAsync(req, 0);
+     ***********************************************************************/
+    public CompletableFuture<AbstractResponse> processRequestAsync(AbstractRequest req) {
+        return processRequestAsync(req, 0);
+    }
+
+    /***********************************************************************
+     * Asynchronous version of processRequest(req).  Returns a future which
+     * completes with the response, or fails with a HandleException, including
+     * when no response arrives within the given timeout (if it is greater
+     * than 0).  Cancelling the future, or its timing out, abandons the
+     * outstanding attempts.
+     *
+     * Anonymous resolution requests are processed without holding a thread
+     * while waiting: cached values and prefix information are used
+     * directly, requests are sent over UDP through the resolver's
+     * non-blocking UDP client, and the IPv4 sites of a service are raced
+     * against the IPv6 sites after a timer.  Steps which block, such as
+     * resolving a prefix which is not cached, following referrals, and
+     * sending by TCP or HTTP, run on the resolver's executor, as do
+     * requests of other kinds.
+     ***********************************************************************/
+    public CompletableFuture<AbstractResponse> processRequestAsync(AbstractRequest req, long timeoutMillis) {
+        CompletableFuture<AbstractResponse> result = new CompletableFuture<>();
+        if (timeoutMillis > 0) scheduleTimeout(result, req, timeoutMillis);
+        if (!canProcessAsync(req)) {
+            completeFrom(result, supplyAsync(() -> processRequest(req)));
+            return result;
+        }
+        try {
+            SiteInfo sites[] = null;
+            if (config.getResolutionMethod() == Configuration.RM_WITH_CACHE) {
+                SiteInfo cacheSites[] = config.getCacheSites();
+                if (cacheSites != null && cacheSites.length > 0) sites = cacheSites;
+            }
+            if (sites == null) sites = findLocalSitesWithoutLookup(req);
+            if (sites != null) {
+                completeFrom(result, sendRequestToServiceAsync(req, sites, true, result));
+            } else {
+                // the prefix has to be resolved first
+                completeFrom(result, supplyAsync(() -> findLocalSites(req)).thenCompose(localSites -> sendRequestToServiceAsync(req, localSites, true, result)));
+            }
+        } catch (HandleException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /***********************************************************************
+     * Asynchronous version of sendRequestToService(req, sites).
+     ***********************************************************************/
+    public CompletableFuture<AbstractResponse> sendRequestToServiceAsync(AbstractRequest req, SiteInfo sites[]) {
+        CompletableFuture<AbstractResponse> result = new CompletableFuture<>();
+        if (!canProcessAsync(req)) completeFrom(result, supplyAsync(() -> sendRequestToService(req, sites)));
+        else completeFrom(result, sendRequestToServiceAsync(req, sites, false, result));
+        return result;
+    }
+
+    /** Returns true if the request can be sent without blocking: an anonymous resolution outside of any session. */
+    private static boolean canProcessAsync(AbstractRequest req) {
+        return req.opCode == AbstractMessage.OC_RESOLUTION && !req.isAdminRequest && !req.authoritative && !req.requiresConnection && !req.streaming && req.ignoreRestrictedValues && req.sessionInfo == null
+            && req.sessionTracker == null;
+    }
+
+    private CompletableFuture<AbstractResponse> sendRequestToServiceAsync(AbstractRequest req, SiteInfo sites[], boolean cacheResult, CompletableFuture<?> owner) {
+        if (sites == null) return failedFuture(new HandleException(HandleException.SERVICE_NOT_FOUND, "No sites found"));
+        boolean isCacheable = cacheResult && req.opCode == AbstractMessage.OC_RESOLUTION;
+
+        // use the regular or certified cache, determined by the certify request flag
+        @SuppressWarnings("hiding")
+        Cache cache = req.certify ? this.secureCache : this.cache;
+        if (cache != null) {
+            AbstractResponse resp = resolveFromCache(req, cache);
+            if (resp != null) return CompletableFuture.completedFuture(resp);
+        }
+        if (isCacheable && coalesceResolutions) {
+            return resolutionCoalescer.resolveAsync(req, () -> sendRequestToSitesAsync(req, sites, cacheResult, isCacheable, cache, owner));
+        }
+        return sendRequestToSitesAsync(req, sites, cacheResult, isCacheable, cache, owner);
+    }
+
+    private CompletableFuture<AbstractResponse> sendRequestToSitesAsync(AbstractRequest req, SiteInfo sites[], boolean cacheResult, boolean isCacheable, @SuppressWarnings("hiding") Cache cache, CompletableFuture<?> owner) {
+        SiteInfo usableSites[] = adjustSitesForDomains(filterSitesForRequest(sites, req));
+        SiteInfo ipv6Sites[] = getIpSites(usableSites, IP_VERSION_6);
+        SiteInfo ipv4Sites[] = getIpSites(usableSites, IP_VERSION_4);
+        setResponseTimesOfSites(usableSites);
+        ipv6Sites = Util.orderSitesByPreference(ipv6Sites);
+        ipv4Sites = Util.orderSitesByPreference(ipv4Sites);
+
+        // choose sites as sendRequestToSites does
+        boolean preferIPv4Stack = Boolean.parseBoolean(System.getProperty("java.net.preferIPv4Stack"));
+        boolean race = false;
+        if (preferIPv4Stack || !hasIPv6Interface || ipv6Sites.length == 0) {
+            ipv6Sites = new SiteInfo[0];
+        } else if (!hasIPv4Interface || ipv4Sites.length == 0) {
+            ipv4Sites = new SiteInfo[0];
+        } else {
+            race = useIPv6FastFallback;
+        }
+
+        return AsyncSiteResolver.send(this, req, ipv6Sites, ipv4Sites, race, owner).thenCompose(resp -> {
+            if (cacheResult && isReferral(req, resp)) return supplyAsync(() -> followReferral(req, resp, null));
+            cacheResponse(resp, req, isCacheable, cache);
+            if (resp.responseCode == AbstractMessage.RC_OUT_OF_DATE_SITE_INFO) config.notifyRootInfoOutdated(this);
+            return CompletableFuture.completedFuture(resp);
+        });
+    }
+
+    /** A step of the asynchronous API which blocks, and so is run on the executor. */
+    interface BlockingStep<T> {
+        T run() throws HandleException;
+    }
+
+    <T> CompletableFuture<T> supplyAsync(BlockingStep<T> step) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            getExecutorService().execute(() -> {
+                if (future.isDone()) return;
+                try {
+                    future.complete(step.run());
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new HandleException(HandleException.INTERNAL_ERROR, "Resolver executor rejected request", e));
+        }
+        return future;
+    }
+
+    private void scheduleTimeout(CompletableFuture<AbstractResponse> result, AbstractRequest req, long timeoutMillis) {
+        try {
+            TimerWheel.Timeout timeout = getUdpClient().schedule(() -> getExecutorService().execute(() -> {
+                result.completeExceptionally(new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Timed out resolving " + Util.decodeString(req.handle)));
+            }), timeoutMillis);
+            result.whenComplete((r, e) -> timeout.cancel());
+        } catch (HandleException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    /** Completes the result as the given future completes, and cancels the future if the result is cancelled. */
+    private static <T> void completeFrom(CompletableFuture<T> result, CompletableFuture<T> future) {
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) future.cancel(false);
+        });
+        future.whenComplete((r, e) -> {
+            if (e != null) result.completeExceptionally(unwrapCompletionException(e));
+            else result.complete(r);
+        });
+    }
+
+    private static Throwable unwrapCompletionException(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) return e.getCause();
+        return e;
+    }
+
+    private static <T> CompletableFuture<T> failedFuture(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
     /** Information about a prefix. */
     private class ServiceInfo {
         /** Sites from HS_SITE.PREFIX values at the prefix handle */
@@ -634,8 +1115,7 @@ public class HandleResolver implements RequestProcessor {
         NamespaceInfo ns;
         /** The response returned by resolving the prefix handle (used in case of errors) */
         AbstractResponse response;
-        /** The values at the prefix handle (unused) */
-        @SuppressWarnings("unused")
+        /** The values at the prefix handle, used to determine how long this information may be cached */
         HandleValue[] values;
     }
 
@@ -861,6 +1341,61 @@ public class HandleResolver implements RequestProcessor {
             return globalServiceInfo(Util.getZeroNAHandle(req.handle));
         }
 
+        byte[] prefixHandle = Util.getZeroNAHandle(req.handle);
+        if (!usePrefixServiceCache || (!forceResolution && config.getLocalSites(prefixHandle) != null)) {
+            return resolveServiceInfo(req, forceResolution);
+        }
+        String key = prefixServiceCacheKey(prefixHandle, req.certify, forceResolution);
+        ServiceInfo service = prefixServiceCache.get(key, () -> {
+            ServiceInfo resolvedService = resolveServiceInfo(req, forceResolution);
+            return new PrefixServiceCache.Loaded<>(resolvedService, getServiceInfoTTL(resolvedService));
+        });
+        req.setNamespace(service.ns != null ? service.ns : config.getGlobalNamespace());
+        return service;
+    }
+
+    /**
+     * Returns the sites for the handle of the request if they are known without
+     * resolving its prefix handle, or null if the prefix handle must be resolved.
+     */
+    private SiteInfo[] findLocalSitesWithoutLookup(AbstractRequest req) throws HandleException {
+        byte[] prefixHandle = Util.getZeroNAHandle(req.handle);
+        if (Util.startsWithCI(req.handle, Common.GLOBAL_NA_PREFIX) || Util.startsWithCI(req.handle, Common.GLOBAL_NA) || !Util.hasSlash(req.handle) || config.getLocalSites(prefixHandle) != null) {
+            return findLocalSites(req);
+        }
+        if (!usePrefixServiceCache) return null;
+        ServiceInfo service = prefixServiceCache.getIfPresent(prefixServiceCacheKey(prefixHandle, req.certify, false));
+        if (service == null) return null;
+        req.setNamespace(service.ns != null ? service.ns : config.getGlobalNamespace());
+        return service.sites;
+    }
+
+    private static String prefixServiceCacheKey(byte[] prefixHandle, boolean certify, boolean forceResolution) {
+        return Util.decodeString(Util.upperCase(prefixHandle)) + (certify ? " certify" : "") + (forceResolution ? " force" : "");
+    }
+
+    /**
+     * Returns how long, in seconds, the given information may be cached: the least
+     * TTL of the values of the prefix handle, or 0 if the prefix handle was not resolved.
+     */
+    private static long getServiceInfoTTL(ServiceInfo service) {
+        if (service.values == null || service.values.length == 0) return 0;
+        int now = (int) (System.currentTimeMillis() / 1000);
+        long ttl = Long.MAX_VALUE;
+        for (HandleValue value : service.values) {
+            long valueTTL;
+            if (value.getTTLType() == HandleValue.TTL_TYPE_ABSOLUTE) valueTTL = (long) value.getTTL() - now;
+            else valueTTL = Math.min(value.getTTL(), HandleValue.MAX_RECOGNIZED_TTL);
+            ttl = Math.min(ttl, valueTTL);
+        }
+        return Math.max(0, ttl);
+    }
+
+    /**
+     * Resolves the prefix of the request to get the information for the service
+     * that is responsible for the handle, without using the prefix service cache.
+     */
+    private ServiceInfo resolveServiceInfo(AbstractRequest req, boolean forceResolution) throws HandleException {
         // start by adding the namespace of the global service, since that is our starting point
         req.setNamespace(config.getGlobalNamespace());
 
@@ -902,6 +1437,13 @@ public class HandleResolver implements RequestProcessor {
         }
     }
 
+    private void removeFromPrefixServiceCache(byte[] prefixHandle) {
+        for (boolean certify : new boolean[] { false, true }) {
+            prefixServiceCache.remove(prefixServiceCacheKey(prefixHandle, certify, false));
+            prefixServiceCache.remove(prefixServiceCacheKey(prefixHandle, certify, true));
+        }
+    }
+
     /**********************************************************************
      * Get the site information for the service that is responsible for
      * this handle while at the same time populating the namespace
@@ -954,8 +1496,6 @@ public class HandleResolver implements RequestProcessor {
     private AbstractResponse sendRequestToService(AbstractRequest req, SiteInfo sites[], boolean cacheResult, ResponseMessageCallback callback) throws HandleException {
         if (sites == null) throw new HandleException(HandleException.SERVICE_NOT_FOUND, "No sites found");
         boolean isCacheable = cacheResult && req.opCode == AbstractMessage.OC_RESOLUTION;
-        SiteInfo ipv6Sites[] = null;
-        SiteInfo ipv4Sites[] = null;
 
         // use the regular or certified cache, determined by the certify request flag
         @SuppressWarnings("hiding")
@@ -976,12 +1516,28 @@ public class HandleResolver implements RequestProcessor {
             try {
                 if (this.cache != null) this.cache.removeHandle(Util.upperCasePrefix(req.handle));
                 if (this.secureCache != null && this.secureCache != this.cache) this.secureCache.removeHandle(Util.upperCasePrefix(req.handle));
+                if (Util.startsWithCI(req.handle, Common.NA_HANDLE_PREFIX)) removeFromPrefixServiceCache(req.handle);
             } catch (Throwable e) {
                 System.err.println("Cache remove error: " + e);
                 e.printStackTrace(System.err);
             }
         }
 
+        if (isCacheable && coalesceResolutions) {
+            // concurrent identical resolutions which missed the cache share one upstream request
+            return resolutionCoalescer.resolve(req, callback, () -> sendRequestToSites(req, sites, cacheResult, callback, isCacheable, cache));
+        }
+        return sendRequestToSites(req, sites, cacheResult, callback, isCacheable, cache);
+    }
+
+    /**********************************************************************
+     * Send the specified request to the given sites, following referrals
+     * if cacheResult is true, and cache the result if isCacheable is true.
+     **********************************************************************/
+    private AbstractResponse sendRequestToSites(AbstractRequest req, SiteInfo sites[], boolean cacheResult, ResponseMessageCallback callback, boolean isCacheable, @SuppressWarnings("hiding") Cache cache) throws HandleException {
+        SiteInfo ipv6Sites[] = null;
+        SiteInfo ipv4Sites[] = null;
+
         // if the request is an admin message or is authoritative,
         // it should only be sent to a primary site.
         sites = filterSitesForRequest(sites, req);
@@ -1102,7 +1658,28 @@ public class HandleResolver implements RequestProcessor {
         }
 
         // only do if cacheResult is true, to avoid doing this when sending requests to a specific service intentionally
-        if (cacheResult && resp.responseCode == AbstractMessage.RC_SERVICE_REFERRAL) {
+        if (cacheResult && isReferral(req, resp)) return followReferral(req, resp, callback);
+
+        cacheResponse(resp, req, isCacheable, cache);
+
+        // When a global server is retired, it should return
+        // RC_OUT_OF_DATE_SITE_INFO for a while.  This will cause clients to
+        // upgrade their root_info.
+        //
+        // Note: A less disruptive way to cause clients to update the root_info
+        // is to increment the serial numbers of one of the global siteinfo records.
+        if (resp.responseCode == AbstractMessage.RC_OUT_OF_DATE_SITE_INFO) config.notifyRootInfoOutdated(this);
+        return resp;
+    }
+
+    private static boolean isReferral(AbstractRequest req, AbstractResponse resp) {
+        if (resp.responseCode == AbstractMessage.RC_SERVICE_REFERRAL) return true;
+        return (Util.startsWithCI(req.handle, Common.NA_HANDLE_PREFIX) || !Util.hasSlash(req.handle)) && resp.responseCode == AbstractMessage.RC_PREFIX_REFERRAL;
+    }
+
+    /** Sends the request on to the sites given by a service or prefix referral, returning the response from there. */
+    private AbstractResponse followReferral(AbstractRequest req, AbstractResponse resp, ResponseMessageCallback callback) throws HandleException {
+        if (resp.responseCode == AbstractMessage.RC_SERVICE_REFERRAL) {
             req = newRequestForReferral(req);
             req.recursionCount++;
             if (req.recursionCount >= recursionCountLimit) throw new HandleException(HandleException.SERVICE_REFERRAL_ERROR, "Recursion limit exceeded on service referral for " + Util.decodeString(req.handle));
@@ -1112,9 +1689,8 @@ public class HandleResolver implements RequestProcessor {
                 referralSites = findLocalSitesForNA(srresp.handle, req);
             }
             if (referralSites == null) throw new HandleException(HandleException.SERVICE_REFERRAL_ERROR, "Unable to find sites for service referral");
-            return sendRequestToService(req, referralSites, cacheResult, callback);
-        }
-        if (cacheResult && (Util.startsWithCI(req.handle, Common.NA_HANDLE_PREFIX) || !Util.hasSlash(req.handle)) && resp.responseCode == AbstractMessage.RC_PREFIX_REFERRAL) {
+            return sendRequestToService(req, referralSites, true, callback);
+        } else {
             req = newRequestForReferral(req);
             req.recursionCount++;
             if (req.recursionCount >= recursionCountLimit) throw new HandleException(HandleException.SERVICE_REFERRAL_ERROR, "Recursion limit exceeded on prefix referral for " + Util.decodeString(req.handle));
@@ -1125,19 +1701,8 @@ public class HandleResolver implements RequestProcessor {
                 prefixSites = findPrefixReferralSitesForNA(srresp.handle, req);
             }
             if (prefixSites == null) throw new HandleException(HandleException.SERVICE_REFERRAL_ERROR, "Unable to find sites for prefix referral");
-            return sendRequestToService(req, prefixSites, cacheResult, callback);
+            return sendRequestToService(req, prefixSites, true, callback);
         }
-
-        cacheResponse(resp, req, isCacheable, cache);
-
-        // When a global server is retired, it should return
-        // RC_OUT_OF_DATE_SITE_INFO for a while.  This will cause clients to
-        // upgrade their root_info.
-        //
-        // Note: A less disruptive way to cause clients to update the root_info
-        // is to increment the serial numbers of one of the global siteinfo records.
-        if (resp.responseCode == AbstractMessage.RC_OUT_OF_DATE_SITE_INFO) config.notifyRootInfoOutdated(this);
-        return resp;
     }
 
     private AbstractRequest newRequestForReferral(AbstractRequest req) {
@@ -1719,6 +2284,11 @@ public class HandleResolver implements RequestProcessor {
             req.minorProtocolVersion = Common.COMPATIBILITY_MINOR_VERSION;
         }
 
+        // the flag is part of the encoded request, so leave requests which have already been encoded alone
+        if (acceptCompressedResponses && !req.acceptCompressed && req.messageBody == null && req.encodedMessage == null) {
+            req.acceptCompressed = true;
+        }
+
         AbstractResponse response = null;
         Exception exception = null;
         Interface interfce = null;
@@ -2295,148 +2865,100 @@ public class HandleResolver implements RequestProcessor {
     }
 
     public AbstractResponse sendHdlUdpRequest(AbstractRequest req, InetAddress addr, int port, ResponseMessageCallback callback) throws HandleException {
-        config.startAutoUpdate(this);
-        addr = config.mapLocalAddress(addr);
-        DatagramSocket socket = null;
-        DatagramPacket[] packets = null;
-        Exception lastException = null;
-
-        // create the socket, set the timeout value
+        waitIfSiblingConnectedAndThrowHandleExceptionIfFinished(req);
+        // the responses are decoded on this thread, which is waiting anyway
+        BlockingQueue<Runnable> decodeTasks = new LinkedBlockingQueue<>();
+        CompletableFuture<AbstractResponse> future = sendHdlUdpRequestAsync(req, addr, port, decodeTasks::add);
+        future.whenComplete((resp, e) -> decodeTasks.add(() -> { }));
+        AbstractResponse response;
         try {
-            try {
-                socket = new DatagramSocket();
-            } catch (Exception e) {
-                if (socket != null) try {
-                    socket.close();
-                } catch (Exception e2) {
-                }
-                throw new HandleException(HandleException.INTERNAL_ERROR, e);
-            }
-
-            MessageEnvelope rcvEnvelope = new MessageEnvelope();
-            long whenToTimeout;
-
-            for (int element : udpRetryScheme) {
-
-                if (packets == null) {
-                    packets = getUdpPacketsForRequest(req, addr, port);
-                } else {
-                    // if sending UDP requests in a session, resign each attempt to avoid duplicate session counters
-                    if (req.sessionInfo != null && req.authInfo != null && req.hasEqualOrGreaterVersion(2, 5)) {
-                        req.signMessageForSession();
-                        packets = getUdpPacketsForRequest(req, addr, port);
-                    }
-                }
-                waitIfSiblingConnectedAndThrowHandleExceptionIfFinished(req);
-
-                if (traceMessages) {
-                    System.err.println("  sending HDL-UDP request (" + req + ") to " + Util.rfcIpPortRepr(addr, port));
-                }
-
-                // send out each request packet
-                try {
-                    socket.setSoTimeout(element);
-                    for (DatagramPacket datagramPacket : packets) {
-                        socket.send(datagramPacket);
-                    }
-                    whenToTimeout = System.currentTimeMillis() + element;
-                } catch (Exception e) {
-                    throw new HandleException(HandleException.INTERNAL_ERROR, String.valueOf(e) + " sending UDP request to " + Util.rfcIpRepr(addr));
-                }
-
-                // loop, waiting for packets until the timeout is reached or
-                // we have all of the packets, whichever comes first.
-                byte returnMessage[] = null;
-                boolean packetsReceived[] = null;
-                boolean haveAllPackets = false;
-                while (!haveAllPackets && System.currentTimeMillis() <= whenToTimeout) {
-                    DatagramPacket rspnsPkt = new DatagramPacket(new byte[maxUDPDataSize + Common.MESSAGE_ENVELOPE_SIZE], maxUDPDataSize + Common.MESSAGE_ENVELOPE_SIZE);
-
-                    waitIfSiblingConnectedAndThrowHandleExceptionIfFinished(req);
-
-                    try {
-                        socket.receive(rspnsPkt);
-                        if (rspnsPkt.getLength() <= 0) continue;
-
-                        // need to decode the envelop data...
-                        byte rspnsPktData[] = rspnsPkt.getData();
-                        int rspnsPktDataLen = rspnsPkt.getLength();
-
-                        Encoder.decodeEnvelope(rspnsPktData, rcvEnvelope);
-
-                        // if we got someone else's packet, ignore it.
-                        if (rcvEnvelope.requestId != req.requestId) continue;
-
-                        if (packetsReceived == null) {
-                            int numPkts = rcvEnvelope.messageLength / maxUDPDataSize;
-                            if ((rcvEnvelope.messageLength % maxUDPDataSize) != 0) numPkts++;
-                            packetsReceived = new boolean[numPkts];
-                            for (int pr = 0; pr < packetsReceived.length; pr++) {
-                                packetsReceived[pr] = false;
-                            }
-                            returnMessage = new byte[rcvEnvelope.messageLength];
-                        }
-
-                        packetsReceived[rcvEnvelope.messageId] = true;
-                        System.arraycopy(rspnsPktData, Common.MESSAGE_ENVELOPE_SIZE, returnMessage, rcvEnvelope.messageId * maxUDPDataSize, rspnsPktDataLen - Common.MESSAGE_ENVELOPE_SIZE);
-                        haveAllPackets = true;
-                        for (int pr = 0; pr < packetsReceived.length; pr++) {
-                            if (!packetsReceived[pr]) {
-                                haveAllPackets = false;
-                                pr = packetsReceived.length;
-                            }
-                        }
-
-                        if (haveAllPackets) {
+            while (!future.isDone()) {
+                decodeTasks.take().run();
+            }
+            response = future.get();
+            if (req.multithread) req.connectionLock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            if (req.multithread) throw new HandleException(HandleException.OTHER_CONNECTION_ESTABLISHED, HandleException.OTHER_CONNECTION_ESTABLISHED_STRING);
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Interrupted waiting for response from " + Util.rfcIpRepr(addr));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof HandleException) throw (HandleException) cause;
+            throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, addr + ": " + cause, cause);
+        }
+        if (callback != null) {
+            callback.handleResponse(response);
+        }
+        return response;
+    }
 
-                            if (req.multithread) req.connectionLock.lockInterruptibly();
+    /***********************************************************************
+     * Sends the request to the given server over UDP without waiting for the
+     * response.  Returns a future which completes with the response, or with
+     * a HandleException if there is no valid response once the UDP retry
+     * scheme is exhausted.  Each response is decoded and its signature checked
+     * on a thread of the resolver's executor; responses which fail are ignored.
+     * Cancelling the future abandons the request.
+     ***********************************************************************/
+    public CompletableFuture<AbstractResponse> sendHdlUdpRequestAsync(AbstractRequest req, InetAddress addr, int port) {
+        return sendHdlUdpRequestAsync(req, addr, port, getExecutorService());
+    }
 
-                            // decrypt the message using pre-established session information
-                            if (rcvEnvelope.encrypted) {
-                                // try session key decryption first ...
-                                ClientSideSessionInfo sessionInfo = req.sessionInfo;
-                                if (sessionInfo == null) throw new HandleException(HandleException.INCOMPLETE_SESSIONSETUP, "Cannot decrypt message without a session");
+    private CompletableFuture<AbstractResponse> sendHdlUdpRequestAsync(AbstractRequest req, InetAddress addr, int port, Executor decodeExecutor) {
+        config.startAutoUpdate(this);
+        InetAddress mappedAddr = config.mapLocalAddress(addr);
+        DatagramPacket[] packets;
+        HdlUdpClient client;
+        try {
+            packets = getUdpPacketsForRequest(req, mappedAddr, port);
+            client = getUdpClient();
+        } catch (HandleException e) {
+            CompletableFuture<AbstractResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (traceMessages) {
+            System.err.println("  sending HDL-UDP request (" + req + ") to " + Util.rfcIpPortRepr(mappedAddr, port));
+        }
+        return client.send(new InetSocketAddress(mappedAddr, port), req.requestId, packets, maxUDPDataSize, udpRetryScheme, attempt -> {
+            if (req.multithread && req.completed.get()) {
+                throw new HandleException(HandleException.OTHER_CONNECTION_ESTABLISHED, HandleException.OTHER_CONNECTION_ESTABLISHED_STRING);
+            }
+            if (traceMessages) {
+                System.err.println("  resending HDL-UDP request (" + req + ") to " + Util.rfcIpPortRepr(mappedAddr, port));
+            }
+            // if sending UDP requests in a session, resign each attempt to avoid duplicate session counters
+            if (req.sessionInfo != null && req.authInfo != null && req.hasEqualOrGreaterVersion(2, 5)) {
+                req.signMessageForSession();
+                return getUdpPacketsForRequest(req, mappedAddr, port);
+            }
+            return null;
+        }, received -> decodeUdpResponse(req, received), decodeExecutor);
+    }
 
-                                if (traceMessages) System.err.println("Decrypting UDP message: " + rcvEnvelope);
-                                if (returnMessage == null) throw new AssertionError();
-                                returnMessage = sessionInfo.decryptBuffer(returnMessage, 0, returnMessage.length);
-                                rcvEnvelope.encrypted = false;
-                                rcvEnvelope.messageLength = returnMessage.length;
-                            }
+    private AbstractResponse decodeUdpResponse(AbstractRequest req, HdlTcpConnectionPool.ReceivedMessage received) throws HandleException {
+        MessageEnvelope rcvEnvelope = received.envelope;
+        byte returnMessage[] = received.message;
 
-                            // parse the message
-                            AbstractResponse response = (AbstractResponse) Encoder.decodeMessage(returnMessage, 0, rcvEnvelope);
+        // decrypt the message using pre-established session information
+        if (rcvEnvelope.encrypted) {
+            ClientSideSessionInfo sessionInfo = req.sessionInfo;
+            if (sessionInfo == null) throw new HandleException(HandleException.INCOMPLETE_SESSIONSETUP, "Cannot decrypt message without a session");
 
-                            if (traceMessages) System.err.println("    received HDL-UDP response: " + response);
+            if (traceMessages) System.err.println("Decrypting UDP message: " + rcvEnvelope);
+            returnMessage = sessionInfo.decryptBuffer(returnMessage, 0, returnMessage.length);
+            rcvEnvelope.encrypted = false;
+            rcvEnvelope.messageLength = returnMessage.length;
+        }
 
-                            checkSignatureIfNeeded(req, response);
+        // parse the message
+        AbstractResponse response = (AbstractResponse) Encoder.decodeMessage(returnMessage, 0, rcvEnvelope);
 
-                            if (callback != null) {
-                                callback.handleResponse(response);
-                            }
-                            return response;
-                        }
-                    } catch (InterruptedException e) {
-                        throw new HandleException(HandleException.OTHER_CONNECTION_ESTABLISHED, HandleException.OTHER_CONNECTION_ESTABLISHED_STRING);
-                    } catch (Exception e) {
-                        lastException = e;
-                    }
-                }
-            }
-        } finally {
-            if (socket != null) {
-                try {
-                    socket.close();
-                } catch (Exception e) {
-                }
-            }
-        }
+        if (traceMessages) System.err.println("    received HDL-UDP response: " + response);
 
-        if (lastException != null) {
-            if (lastException instanceof HandleException) throw (HandleException) lastException;
-            else throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, addr + ": " + lastException.toString());
-        }
-        throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Unable to connect to server: " + addr);
+        checkSignatureIfNeeded(req, response);
+        return response;
     }
 
     private void checkSignatureIfNeeded(AbstractRequest req, AbstractResponse response) throws HandleException {
@@ -2562,6 +3084,12 @@ public class HandleResolver implements RequestProcessor {
             System.err.println("  sending HDL-TCP request (" + req + ") to " + Util.rfcIpPortRepr(addr, port));
         }
 
+        HdlTcpConnectionPool pool = tcpConnectionPool;
+        if (pool != null && !req.streaming && !expectStreamingResponse(req)) {
+            AbstractResponse pooledResponse = sendPooledHdlTcpRequest(pool, req, addr, port, sndEnvelope, requestBuf, callback);
+            if (pooledResponse != null) return pooledResponse;
+        }
+
         AbstractResponse response = null;
         Socket socket = null;
         OutputStream out = null;
@@ -2623,20 +3151,7 @@ public class HandleResolver implements RequestProcessor {
                 }
                 if (n < rcvEnvelope.messageLength) throw new HandleException(HandleException.MESSAGE_FORMAT_ERROR, "Connection closed partway through message");
 
-                // decrypt the received message
-                if (rcvEnvelope.encrypted) {
-                    ClientSideSessionInfo csinfo = req.sessionInfo;
-                    if (csinfo == null) throw new HandleException(HandleException.INCOMPLETE_SESSIONSETUP, "Cannot decrypt messages without a session");
-
-                    if (traceMessages) System.err.println("Decrypting TCP message: " + rcvEnvelope);
-
-                    messageBuf = csinfo.decryptBuffer(messageBuf, 0, messageBuf.length);
-                    rcvEnvelope.encrypted = false;
-                    rcvEnvelope.messageLength = messageBuf.length;
-                }
-
-                // parse the response message
-                response = (AbstractResponse) Encoder.decodeMessage(messageBuf, 0, rcvEnvelope);
+                response = decodeTcpResponse(req, rcvEnvelope, messageBuf);
 
                 if (response.streaming) {
                     response.stream = in;
@@ -2682,6 +3197,91 @@ public class HandleResolver implements RequestProcessor {
         }
     }
 
+    /**
+     * Decrypts, if needed, and decodes a response received over TCP.
+     */
+    private AbstractResponse decodeTcpResponse(AbstractRequest req, MessageEnvelope rcvEnvelope, byte messageBuf[]) throws HandleException {
+        // decrypt the received message
+        if (rcvEnvelope.encrypted) {
+            ClientSideSessionInfo csinfo = req.sessionInfo;
+            if (csinfo == null) throw new HandleException(HandleException.INCOMPLETE_SESSIONSETUP, "Cannot decrypt messages without a session");
+
+            if (traceMessages) System.err.println("Decrypting TCP message: " + rcvEnvelope);
+
+            messageBuf = csinfo.decryptBuffer(messageBuf, 0, messageBuf.length);
+            rcvEnvelope.encrypted = false;
+            rcvEnvelope.messageLength = messageBuf.length;
+        }
+        messageBuf = decompressIfNeeded(rcvEnvelope, messageBuf);
+
+        // parse the response message
+        return (AbstractResponse) Encoder.decodeMessage(messageBuf, 0, rcvEnvelope);
+    }
+
+    /**
+     * Decompresses a received message if its envelope says that it is compressed.
+     */
+    private static byte[] decompressIfNeeded(MessageEnvelope rcvEnvelope, byte messageBuf[]) throws HandleException {
+        if (!rcvEnvelope.compressed) return messageBuf;
+        messageBuf = Encoder.decompressMessage(messageBuf, 0, rcvEnvelope.messageLength);
+        rcvEnvelope.compressed = false;
+        rcvEnvelope.messageLength = messageBuf.length;
+        return messageBuf;
+    }
+
+    /**
+     * Sends a TCP request over a pooled connection.  Returns null if the pool
+     * declines the request, in which case it should be sent over a new connection.
+     */
+    private AbstractResponse sendPooledHdlTcpRequest(HdlTcpConnectionPool pool, AbstractRequest req, InetAddress addr, int port, MessageEnvelope sndEnvelope, byte requestBuf[], ResponseMessageCallback callback) throws HandleException {
+        InetSocketAddress address = new InetSocketAddress(addr, port);
+        byte envBuf[] = new byte[Common.MESSAGE_ENVELOPE_SIZE];
+        sndEnvelope.keepAlive = true;
+        Encoder.encodeEnvelope(sndEnvelope, envBuf);
+        sndEnvelope.keepAlive = false;
+        byte buf[] = Util.concat(envBuf, requestBuf);
+
+        boolean retried = false;
+        while (true) {
+            HdlTcpConnectionPool.Exchange exchange;
+            try {
+                exchange = pool.send(address, req.requestId, buf, tcpTimeout);
+            } catch (IOException e) {
+                throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "" + addr, e);
+            }
+            if (exchange == null) return null;
+            try {
+                lockConnectionAndThrowHandleExceptionIfFinished(req);
+                while (true) {
+                    HdlTcpConnectionPool.ReceivedMessage received = exchange.receive(tcpTimeout);
+                    if (received == null) throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Timed out waiting for response from " + Util.rfcIpRepr(addr));
+
+                    AbstractResponse response = decodeTcpResponse(req, received.envelope, received.message);
+                    checkSignatureIfNeeded(req, response);
+
+                    if (traceMessages) System.err.println("    received HDL-TCP response: " + response);
+
+                    if (callback == null) return response;
+                    callback.handleResponse(response);
+                    if (!response.continuous) return response;
+                }
+            } catch (IOException e) {
+                if (!retried && exchange.canRetry()) {
+                    // the server probably closed the idle connection as the request was sent
+                    retried = true;
+                    continue;
+                }
+                if (traceMessages) e.printStackTrace(System.err);
+                throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Error talking to " + Util.rfcIpRepr(addr), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HandleException(HandleException.OTHER_CONNECTION_ESTABLISHED, HandleException.OTHER_CONNECTION_ESTABLISHED_STRING);
+            } finally {
+                exchange.finish();
+            }
+        }
+    }
+
     private static final String encodeHandleAsUri(byte handle[]) {
         // considered encodeURLPath, but ParameterParser uses ! as a delimiter.
         return "/" + StringUtils.encodeURLComponent(Util.decodeString(handle));
@@ -2877,6 +3477,7 @@ public class HandleResolver implements RequestProcessor {
                         throw new HandleException(HandleException.SECURITY_ALERT, "Invalid response session id.  Cannot decrypt response.");
                     }
                 }
+                messageBuf = decompressIfNeeded(rcvEnvelope, messageBuf);
 
                 response = (AbstractResponse) Encoder.decodeMessage(messageBuf, 0, rcvEnvelope);
 
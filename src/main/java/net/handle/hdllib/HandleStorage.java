@@ -9,7 +9,11 @@
 
 package net.handle.hdllib;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /***********************************************************************
  * HandleStorage is an interface to an object that is capable
@@ -82,6 +86,46 @@ public interface HandleStorage {
      *********************************************************************/
     public Enumeration<byte[]> getHandlesForNA(byte naHdl[]) throws HandleException;
 
+    /*********************************************************************
+     * Returns up to <i>maxHandles</i> of the handles with the given prefix,
+     * in order, starting after <i>startAfter</i> (or from the first handle
+     * if it is null).  Used to list the handles of a prefix a page at a
+     * time by passing the last handle of each page as <i>startAfter</i>
+     * for the next.  Storage which keeps handles in order should override
+     * this to read only the requested page; this default enumerates all
+     * the handles of the prefix and keeps the first of them in byte order.
+     *********************************************************************/
+    default List<byte[]> getHandlesForNA(byte naHdl[], byte startAfter[], int maxHandles) throws HandleException {
+        // the greatest of the handles kept so far is at the head
+        PriorityQueue<byte[]> page = new PriorityQueue<>(Math.max(1, Math.min(maxHandles, 1024)), (a, b) -> Util.compare(b, a));
+        Enumeration<byte[]> handles = getHandlesForNA(naHdl);
+        try {
+            while (handles.hasMoreElements()) {
+                byte[] handle = handles.nextElement();
+                if (startAfter != null && Util.compare(handle, startAfter) <= 0) continue;
+                if (page.size() < maxHandles) {
+                    page.add(handle);
+                } else if (maxHandles > 0 && Util.compare(handle, page.peek()) < 0) {
+                    page.poll();
+                    page.add(handle);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof HandleException) throw (HandleException) e.getCause();
+            else throw e;
+        } finally {
+            if (handles instanceof Closeable) {
+                try {
+                    ((Closeable) handles).close();
+                } catch (Exception e) {
+                }
+            }
+        }
+        List<byte[]> result = new ArrayList<>(page);
+        result.sort(Util::compare);
+        return result;
+    }
+
     /*********************************************************************
      * Remove all of the records from the database.
      ********************************************************************/
@@ -110,6 +154,15 @@ public interface HandleStorage {
         return false;
     }
 
+    /**
+     * Returns true if {@link #scanHandlesFrom(byte[], boolean, ScanCallback)} returns
+     * the handles in the unsigned byte order of {@link Util#compare(byte[], byte[])}, as
+     * needed to dump the handles by range; otherwise false.
+     */
+    default boolean scansHandlesInByteOrder() {
+        return false;
+    }
+
     /*********************************************************************
      * Scan the database, calling a method in the specified callback for
      * every handle in the database.
@@ -145,4 +198,34 @@ public interface HandleStorage {
             createHandle(handle, values);
         }
     }
+
+    /**
+     * Applies the given transactions in order, as a replicating server does.
+     * Create and update transactions replace the handle's values, delete
+     * transactions remove the handle if it exists, and home and unhome
+     * transactions set whether this server is responsible for the prefix.
+     * Storage implementations which can write several records at once may
+     * override this to apply the whole list in a single storage transaction.
+     */
+    default void applyTransactions(List<Transaction> txns) throws HandleException {
+        for (Transaction txn : txns) {
+            switch (txn.action) {
+            case Transaction.ACTION_CREATE_HANDLE:
+            case Transaction.ACTION_UPDATE_HANDLE:
+                createOrUpdateRecord(txn.handle, txn.values);
+                break;
+            case Transaction.ACTION_DELETE_HANDLE:
+                deleteHandle(txn.handle);
+                break;
+            case Transaction.ACTION_HOME_NA:
+                setHaveNA(txn.handle, true);
+                break;
+            case Transaction.ACTION_UNHOME_NA:
+                setHaveNA(txn.handle, false);
+                break;
+            default:
+                throw new HandleException(HandleException.INVALID_VALUE, "Unknown transaction type: " + txn.action);
+            }
+        }
+    }
 }
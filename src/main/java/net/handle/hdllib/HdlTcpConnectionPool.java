@@ -0,0 +1,356 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************
+ * A pool of persistent TCP connections to handle servers, used by
+ * HandleResolver once set with setTcpConnectionPool.  Requests sent
+ * over pooled connections set the keep-alive flag in the message
+ * envelope; a server which supports it echoes the flag and keeps the
+ * connection open.  Several requests may be outstanding on one
+ * connection at a time, and responses are matched to their requests
+ * by request id, so the server may answer them in any order.
+ *
+ * A new connection carries a single request until the server's first
+ * response shows that it will keep the connection open.  Servers which
+ * don't are remembered for a while and not sent pooled requests.
+ * Connections which have been idle for longer than the idle timeout
+ * are closed.
+ *
+ * Each connection has a thread of its own blocked reading responses,
+ * so a resolver talking to many servers can have up to
+ * maxConnectionsPerServer reader threads per server; the threads are
+ * daemons and end along with their idle connections.
+ *************************************************************/
+public class HdlTcpConnectionPool {
+    private static final long NO_KEEP_ALIVE_RETRY_MILLIS = 10 * 60 * 1000;
+
+    private final int maxConnectionsPerServer;
+    private final int maxRequestsPerConnection;
+    private final int idleTimeout;
+    private final Map<InetSocketAddress, ServerConnections> connections = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Long> noKeepAlive = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxConnectionsPerServer the number of connections to keep open to each server
+     * @param maxRequestsPerConnection the number of requests which may be outstanding on one connection
+     * @param idleTimeout the number of milliseconds after which an unused connection is closed
+     */
+    public HdlTcpConnectionPool(int maxConnectionsPerServer, int maxRequestsPerConnection, int idleTimeout) {
+        this.maxConnectionsPerServer = Math.max(1, maxConnectionsPerServer);
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+        this.idleTimeout = idleTimeout;
+    }
+
+    public HdlTcpConnectionPool() {
+        this(4, 64, 60000);
+    }
+
+    /** The open connections to one server, along with the connections being opened. */
+    private static class ServerConnections {
+        final List<Connection> list = new ArrayList<>();
+        // slots reserved for connections which are being opened; guarded by list
+        int numConnecting = 0;
+    }
+
+    /** A message received in response to a request. */
+    public static class ReceivedMessage {
+        public final MessageEnvelope envelope;
+        public final byte[] message;
+
+        ReceivedMessage(MessageEnvelope envelope, byte[] message) {
+            this.envelope = envelope;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Sends the given request, which must include its envelope, to the given
+     * server.  Returns the exchange on which the responses will arrive, or null
+     * if the request should be sent over a connection of its own, because the
+     * server does not keep connections open or because all of the connections
+     * to the server are busy.
+     *
+     * @param connectTimeout the number of milliseconds to wait when a new connection is needed
+     */
+    public Exchange send(InetSocketAddress address, int requestId, byte[] envelopeAndMessage, int connectTimeout) throws IOException {
+        if (closed) return null;
+        Long since = noKeepAlive.get(address);
+        if (since != null) {
+            if (System.currentTimeMillis() - since.longValue() < NO_KEEP_ALIVE_RETRY_MILLIS) return null;
+            noKeepAlive.remove(address, since);
+        }
+        Exchange exchange = new Exchange(requestId);
+        Connection conn = acquire(address, exchange, connectTimeout);
+        if (conn == null) return null;
+        conn.write(envelopeAndMessage);
+        return exchange;
+    }
+
+    private Connection acquire(InetSocketAddress address, Exchange exchange, int connectTimeout) throws IOException {
+        ServerConnections serverConnections = connections.computeIfAbsent(address, key -> new ServerConnections());
+        List<Connection> list = serverConnections.list;
+        synchronized (list) {
+            Connection best = null;
+            for (Connection conn : list) {
+                if (conn.closing || conn.pending.containsKey(exchange.requestId)) continue;
+                int load = conn.pending.size();
+                if (load >= (conn.confirmed ? maxRequestsPerConnection : 1)) continue;
+                if (best == null || load < best.pending.size()) best = conn;
+            }
+            boolean full = list.size() + serverConnections.numConnecting >= maxConnectionsPerServer;
+            if (best != null && (best.pending.isEmpty() || full)) {
+                best.register(exchange, true);
+                return best;
+            }
+            if (best == null && full) return null;
+            // reserve the slot for the new connection, which is opened without holding the lock
+            serverConnections.numConnecting++;
+        }
+        Connection conn = null;
+        try {
+            conn = new Connection(address, connectTimeout);
+            conn.register(exchange, false);
+        } finally {
+            synchronized (list) {
+                serverConnections.numConnecting--;
+                if (conn != null) list.add(conn);
+            }
+        }
+        Thread t = new Thread(conn, "HdlTcpConnectionPool " + Util.rfcIpPortRepr(address.getAddress(), address.getPort()));
+        t.setDaemon(true);
+        t.start();
+        return conn;
+    }
+
+    /** Closes all of the pooled connections. */
+    public void close() {
+        closed = true;
+        for (ServerConnections serverConnections : connections.values()) {
+            List<Connection> list = serverConnections.list;
+            List<Connection> copy;
+            synchronized (list) {
+                copy = new ArrayList<>(list);
+            }
+            for (Connection conn : copy) {
+                conn.close(new IOException("Connection pool closed"));
+            }
+        }
+    }
+
+    /***********************************************************************
+     * A request which has been sent on a pooled connection.  The caller
+     * receives the responses to the request and then calls finish().
+     ***********************************************************************/
+    public class Exchange {
+        final int requestId;
+        private final BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        private Connection connection;
+        private boolean reusedConnection;
+        private boolean receivedAny = false;
+
+        Exchange(int requestId) {
+            this.requestId = requestId;
+        }
+
+        /**
+         * Waits for the next response message, returning null if none arrives within
+         * the given number of milliseconds.  Throws an IOException if the connection
+         * failed before the message arrived.
+         */
+        public ReceivedMessage receive(long timeout) throws IOException, InterruptedException {
+            Object obj = received.poll(timeout, TimeUnit.MILLISECONDS);
+            if (obj instanceof IOException) {
+                received.add(obj);
+                throw new IOException(((IOException) obj).getMessage(), (IOException) obj);
+            }
+            if (obj != null) receivedAny = true;
+            return (ReceivedMessage) obj;
+        }
+
+        /**
+         * Returns true if the request was sent on a connection which had already
+         * been used and the connection failed before any response arrived.  The
+         * server may have closed the connection as idle just as the request was
+         * sent, so the request can safely be sent again.
+         */
+        public boolean canRetry() {
+            return reusedConnection && !receivedAny;
+        }
+
+        /** Called when no more responses are expected, releasing the connection for other requests. */
+        public void finish() {
+            connection.unregister(this);
+        }
+
+        void deliver(Object obj) {
+            received.add(obj);
+        }
+    }
+
+    /***********************************************************************
+     * A connection to one server.  Responses are read by a thread for the
+     * connection and handed to the exchange with the matching request id.
+     ***********************************************************************/
+    private class Connection implements Runnable {
+        final InetSocketAddress address;
+        final Socket socket;
+        final OutputStream out;
+        final InputStream in;
+        final Map<Integer, Exchange> pending = new ConcurrentHashMap<>();
+        // set once the server has agreed to keep the connection open
+        volatile boolean confirmed = false;
+        // set when no new requests should be sent; closed once pending requests are done
+        volatile boolean closing = false;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        @SuppressWarnings("resource")
+        Connection(InetSocketAddress address, int connectTimeout) throws IOException {
+            this.address = address;
+            Socket sock = new Socket();
+            try {
+                sock.setSoLinger(false, 0);
+                sock.setTcpNoDelay(true);
+                sock.setSoTimeout(idleTimeout);
+                sock.connect(address, connectTimeout);
+                this.out = sock.getOutputStream();
+                this.in = new BufferedInputStream(sock.getInputStream());
+            } catch (IOException e) {
+                try {
+                    sock.close();
+                } catch (IOException e2) {
+                    // ignore
+                }
+                throw e;
+            }
+            this.socket = sock;
+        }
+
+        void register(Exchange exchange, boolean reused) {
+            exchange.connection = this;
+            exchange.reusedConnection = reused;
+            pending.put(exchange.requestId, exchange);
+            lastUsed = System.currentTimeMillis();
+        }
+
+        void unregister(Exchange exchange) {
+            pending.remove(exchange.requestId, exchange);
+            lastUsed = System.currentTimeMillis();
+            if (closing && pending.isEmpty()) close(new IOException("Connection closed"));
+        }
+
+        void write(byte[] buf) throws IOException {
+            try {
+                synchronized (out) {
+                    out.write(buf);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            byte envBuf[] = new byte[Common.MESSAGE_ENVELOPE_SIZE];
+            IOException failure = null;
+            try {
+                while (!socket.isClosed()) {
+                    int n;
+                    try {
+                        n = readFully(envBuf, 0);
+                    } catch (SocketTimeoutException e) {
+                        // nothing arrived; close the connection if it is no longer being used
+                        if (pending.isEmpty() && System.currentTimeMillis() - lastUsed >= idleTimeout) {
+                            closing = true;
+                            if (pending.isEmpty()) break;
+                        }
+                        continue;
+                    }
+                    if (n == 0) throw new IOException("Connection closed by server");
+                    if (n < Common.MESSAGE_ENVELOPE_SIZE) throw new IOException("Connection closed partway through message envelope");
+
+                    MessageEnvelope envelope = new MessageEnvelope();
+                    Encoder.decodeEnvelope(envBuf, envelope);
+                    byte message[] = new byte[envelope.messageLength];
+                    if (readFully(message, 0) < message.length) throw new IOException("Connection closed partway through message");
+
+                    if (envelope.keepAlive) {
+                        confirmed = true;
+                    } else {
+                        // the server will close the connection after this response
+                        if (!confirmed) noKeepAlive.put(address, Long.valueOf(System.currentTimeMillis()));
+                        closing = true;
+                    }
+                    lastUsed = System.currentTimeMillis();
+                    Exchange exchange = pending.get(envelope.requestId);
+                    // responses to requests which were given up on are dropped
+                    if (exchange != null) exchange.deliver(new ReceivedMessage(envelope, message));
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (HandleException e) {
+                failure = new IOException(e.getMessage(), e);
+            } finally {
+                close(failure == null ? new IOException("Connection closed") : failure);
+            }
+        }
+
+        /** Reads until the buffer is full or the connection is closed, returning the number of bytes read. */
+        private int readFully(byte buf[], int offset) throws IOException {
+            int n = offset;
+            int r;
+            try {
+                while (n < buf.length && (r = in.read(buf, n, buf.length - n)) > 0) {
+                    n += r;
+                }
+            } catch (SocketTimeoutException e) {
+                if (n > 0) throw new IOException("Timed out partway through message", e);
+                throw e;
+            }
+            return n;
+        }
+
+        void close(IOException cause) {
+            closing = true;
+            ServerConnections serverConnections = connections.get(address);
+            if (serverConnections != null) {
+                synchronized (serverConnections.list) {
+                    serverConnections.list.remove(this);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (Exchange exchange : pending.values()) {
+                exchange.deliver(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*************************************************************
+ * A shared, non-blocking client for sending requests to handle
+ * servers over UDP.  Requests from all threads are sent from a small
+ * number of datagram channels, and responses are matched to their
+ * requests by request id.  A single thread receives the responses
+ * and drives the retries of unanswered requests from a timer wheel,
+ * so no thread is parked and no socket is opened per request.
+ *
+ * Requests are retried according to a retry scheme: the number of
+ * milliseconds to wait for a response after each attempt.  A
+ * request which is still unanswered after its last attempt fails
+ * with CANNOT_CONNECT_TO_SERVER.  Responses are decoded on a given
+ * executor; one which can't be decoded is ignored, and the client
+ * keeps waiting for another.
+ *************************************************************/
+public class HdlUdpClient {
+    private static final long TICK_MILLIS = 10;
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+
+    /** Supplies the packets to send on each retry of a request. */
+    public interface Retrier {
+        /**
+         * Returns the packets to send on the given attempt, counting from 1 for
+         * the first retry, or null to send the same packets again.  Called from
+         * the client's thread; throwing stops the request with the exception.
+         */
+        DatagramPacket[] packetsForRetry(int attempt) throws HandleException;
+    }
+
+    /** Decodes, and checks as needed, a received response. */
+    public interface ResponseDecoder<T> {
+        /** Returns the decoded response, or throws if the response is not valid. */
+        T decode(HdlTcpConnectionPool.ReceivedMessage received) throws HandleException;
+    }
+
+    private final Selector selector;
+    private final List<Channel> channels = new ArrayList<>();
+    private final TimerWheel timerWheel = new TimerWheel(TICK_MILLIS, 512);
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final Thread thread;
+    private volatile boolean closed = false;
+
+    /**
+     * @param numChannels the number of datagram channels (local ports) to send requests from
+     */
+    public HdlUdpClient(int numChannels) throws IOException {
+        selector = Selector.open();
+        try {
+            for (int i = 0; i < Math.max(1, numChannels); i++) {
+                DatagramChannel datagramChannel = DatagramChannel.open();
+                Channel channel = new Channel(datagramChannel);
+                channels.add(channel);
+                datagramChannel.configureBlocking(false);
+                datagramChannel.bind(null);
+                datagramChannel.register(selector, SelectionKey.OP_READ, channel);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        thread = new Thread(this::run, "HdlUdpClient");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public HdlUdpClient() throws IOException {
+        this(4);
+    }
+
+    /**
+     * Sends a request, as the given packets with their envelopes, to the given
+     * server.  Returns a future which completes with the decoded response once
+     * all of the packets of a valid response have arrived, or fails once the
+     * retry scheme is exhausted, with the last decoding error if there was one.
+     * Cancelling the future abandons the request.
+     *
+     * @param requestId the request id in the envelopes of the packets, echoed by the server
+     * @param maxUDPDataSize the largest message data in one packet of the response
+     * @param retryScheme the number of milliseconds to wait for a response after each attempt
+     * @param decoder decodes each complete response, on the given executor
+     */
+    public <T> CompletableFuture<T> send(InetSocketAddress address, int requestId, DatagramPacket[] packets, int maxUDPDataSize, int[] retryScheme, Retrier retrier, ResponseDecoder<T> decoder, Executor executor) {
+        Pending<T> pending = new Pending<>(address, requestId, packets, maxUDPDataSize, retryScheme, retrier, decoder, executor);
+        if (closed) {
+            pending.fail(new HandleException(HandleException.INTERNAL_ERROR, "UDP client closed"));
+            return pending.future;
+        }
+        if (!register(pending)) {
+            pending.fail(new HandleException(HandleException.INTERNAL_ERROR, "Too many outstanding UDP requests with id " + requestId));
+            return pending.future;
+        }
+        pending.future.whenComplete((received, e) -> pending.unregister());
+        if (retryScheme.length == 0) pending.fail(new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Unable to connect to server: " + address.getAddress()));
+        else pending.sendAttempt();
+        return pending.future;
+    }
+
+    private boolean register(Pending<?> pending) {
+        int start = Math.floorMod(nextChannel.getAndIncrement(), channels.size());
+        for (int i = 0; i < channels.size(); i++) {
+            // requests with the same id, such as copies sent to several addresses, use different channels
+            Channel channel = channels.get((start + i) % channels.size());
+            if (channel.pending.putIfAbsent(pending.requestId, pending) == null) {
+                pending.channel = channel;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Schedules a task to run on the client's thread after the given delay; the task must not block. */
+    TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timerWheel.schedule(task, delayMillis);
+    }
+
+    /** Closes the channels, failing any outstanding requests. */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void closeChannels() {
+        for (Channel channel : channels) {
+            try {
+                channel.datagramChannel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            for (Pending<?> pending : channel.pending.values()) {
+                pending.fail(new HandleException(HandleException.INTERNAL_ERROR, "UDP client closed"));
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void run() {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        try {
+            while (!closed) {
+                try {
+                    selector.select(timerWheel.millisUntilNextTick());
+                } catch (IOException e) {
+                    continue;
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Channel channel = (Channel) key.attachment();
+                    receiveAll(channel, buf);
+                }
+                selector.selectedKeys().clear();
+                // the wheel catches anything thrown by its tasks
+                timerWheel.advance();
+            }
+        } finally {
+            // nothing more is sent once the thread is gone
+            closed = true;
+            closeChannels();
+        }
+    }
+
+    private static void receiveAll(Channel channel, ByteBuffer buf) {
+        while (true) {
+            buf.clear();
+            SocketAddress source;
+            try {
+                source = channel.datagramChannel.receive(buf);
+                if (source == null) return;
+            } catch (IOException e) {
+                // such as an ICMP port unreachable from an earlier send; the retries go on
+                return;
+            }
+            if (buf.position() < Common.MESSAGE_ENVELOPE_SIZE) continue;
+            try {
+                MessageEnvelope envelope = new MessageEnvelope();
+                Encoder.decodeEnvelope(buf.array(), envelope);
+                Pending<?> pending = channel.pending.get(envelope.requestId);
+                // responses to requests which were given up on, or from other addresses, are dropped
+                if (pending != null && pending.address.equals(source)) pending.receivePacket(envelope, buf.array(), buf.position());
+            } catch (HandleException e) {
+                continue;
+            } catch (Throwable t) {
+                // one bad packet must not stop the thread shared by all requests
+                System.err.println("Error receiving UDP response: " + t);
+            }
+        }
+    }
+
+    private static class Channel {
+        final DatagramChannel datagramChannel;
+        final Map<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+
+        Channel(DatagramChannel datagramChannel) {
+            this.datagramChannel = datagramChannel;
+        }
+    }
+
+    /***********************************************************************
+     * An outstanding request.  Once registered, its packets are received and
+     * its retries are run only by the client's thread.
+     ***********************************************************************/
+    private class Pending<T> {
+        final InetSocketAddress address;
+        final int requestId;
+        final int maxUDPDataSize;
+        final int[] retryScheme;
+        final Retrier retrier;
+        final ResponseDecoder<T> decoder;
+        final Executor executor;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Channel channel;
+        DatagramPacket[] packets;
+        int attempt = 0;
+        volatile TimerWheel.Timeout timeout;
+        // the response packets received so far
+        MessageEnvelope firstEnvelope;
+        byte[] message;
+        boolean[] packetsReceived;
+        int numPacketsReceived;
+        // complete responses being decoded, and whether the retry scheme ran out meanwhile
+        int numDecoding;
+        boolean exhausted;
+        HandleException lastDecodeError;
+
+        Pending(InetSocketAddress address, int requestId, DatagramPacket[] packets, int maxUDPDataSize, int[] retryScheme, Retrier retrier, ResponseDecoder<T> decoder, Executor executor) {
+            this.address = address;
+            this.requestId = requestId;
+            this.packets = packets;
+            this.maxUDPDataSize = maxUDPDataSize;
+            this.retryScheme = retryScheme;
+            this.retrier = retrier;
+            this.decoder = decoder;
+            this.executor = executor;
+        }
+
+        void sendAttempt() {
+            try {
+                for (DatagramPacket packet : packets) {
+                    channel.datagramChannel.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), address);
+                }
+            } catch (IOException e) {
+                fail(new HandleException(HandleException.INTERNAL_ERROR, String.valueOf(e) + " sending UDP request to " + Util.rfcIpRepr(address.getAddress())));
+                return;
+            }
+            timeout = timerWheel.schedule(this::retry, retryScheme[attempt]);
+        }
+
+        void retry() {
+            if (future.isDone()) return;
+            attempt++;
+            if (attempt >= retryScheme.length) {
+                exhausted = true;
+                failIfExhausted();
+                return;
+            }
+            try {
+                DatagramPacket[] retryPackets = retrier == null ? null : retrier.packetsForRetry(attempt);
+                if (retryPackets != null) packets = retryPackets;
+                // the response to an earlier attempt may still arrive; the new attempt starts a new response
+                message = null;
+            } catch (HandleException e) {
+                fail(e);
+                return;
+            } catch (RuntimeException e) {
+                fail(new HandleException(HandleException.INTERNAL_ERROR, e));
+                return;
+            }
+            sendAttempt();
+        }
+
+        void receivePacket(MessageEnvelope envelope, byte[] buf, int len) {
+            if (future.isDone()) return;
+            if (message == null) {
+                if (envelope.messageLength < 0 || envelope.messageLength > Common.MAX_MESSAGE_LENGTH) return;
+                int numPackets = envelope.messageLength / maxUDPDataSize;
+                if ((envelope.messageLength % maxUDPDataSize) != 0) numPackets++;
+                message = new byte[envelope.messageLength];
+                packetsReceived = new boolean[numPackets];
+                numPacketsReceived = 0;
+                firstEnvelope = envelope;
+            }
+            int offset = envelope.messageId * maxUDPDataSize;
+            int dataLen = len - Common.MESSAGE_ENVELOPE_SIZE;
+            if (envelope.messageId < 0 || envelope.messageId >= packetsReceived.length || offset + dataLen > message.length) return;
+            if (!packetsReceived[envelope.messageId]) {
+                packetsReceived[envelope.messageId] = true;
+                numPacketsReceived++;
+            }
+            System.arraycopy(buf, Common.MESSAGE_ENVELOPE_SIZE, message, offset, dataLen);
+            if (numPacketsReceived == packetsReceived.length) {
+                HdlTcpConnectionPool.ReceivedMessage received = new HdlTcpConnectionPool.ReceivedMessage(firstEnvelope, message);
+                // any further packets start another response
+                message = null;
+                decode(received);
+            }
+        }
+
+        private void decode(HdlTcpConnectionPool.ReceivedMessage received) {
+            numDecoding++;
+            try {
+                executor.execute(() -> {
+                    try {
+                        future.complete(decoder.decode(received));
+                    } catch (HandleException e) {
+                        decodeFailed(e);
+                    } catch (RuntimeException e) {
+                        decodeFailed(new HandleException(HandleException.INTERNAL_ERROR, e));
+                    }
+                });
+            } catch (RuntimeException e) {
+                fail(new HandleException(HandleException.INTERNAL_ERROR, e));
+            }
+        }
+
+        private void decodeFailed(HandleException e) {
+            // go on waiting for a valid response, back on the client's thread
+            timerWheel.schedule(() -> {
+                numDecoding--;
+                lastDecodeError = e;
+                failIfExhausted();
+            }, 0);
+        }
+
+        private void failIfExhausted() {
+            if (!exhausted || numDecoding > 0 || future.isDone()) return;
+            if (lastDecodeError != null) fail(lastDecodeError);
+            else fail(new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Unable to connect to server: " + address.getAddress()));
+        }
+
+        void fail(HandleException e) {
+            future.completeExceptionally(e);
+        }
+
+        void unregister() {
+            TimerWheel.Timeout t = timeout;
+            if (t != null) t.cancel();
+            if (channel != null) channel.pending.remove(requestId, this);
+        }
+    }
+}
@@ -131,6 +131,7 @@ public class Interface {
 
         // these are always considered queries
         case AbstractMessage.OC_RESOLUTION:
+        case AbstractMessage.OC_BULK_RESOLUTION:
             return processQueries ? null : "Received query request on non-query interface";
 
         // the following could be considered either, so we'll accept them no matter what
@@ -27,6 +27,18 @@ package net.handle.hdllib;
  ***************************************************************************/
 
 public class ListHandlesRequest extends AbstractRequest {
+    // The following are used by requests processed within the server, such
+    // as those from the REST API, and are not sent over the network.
+
+    /** If not null, only the handles after this one are listed. */
+    public byte startAfter[];
+    /**
+     * If not negative, at most this many handles are listed, in order, and
+     * the response gives the last handle listed if there may be more.
+     */
+    public int maxHandles = -1;
+    /** If true, the response gives the total number of handles with the prefix. */
+    public boolean countHandles;
 
     public ListHandlesRequest(byte naHandle[], AuthenticationInfo authInfo) {
         super(naHandle, OC_LIST_HANDLES, authInfo);
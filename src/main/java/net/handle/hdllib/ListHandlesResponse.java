@@ -18,6 +18,17 @@ package net.handle.hdllib;
 public class ListHandlesResponse extends AbstractResponse {
     public byte handles[][];
 
+    // The following are given only to requests processed within the server
+    // and are not sent over the network.
+
+    /**
+     * For a request with a maximum number of handles: the last handle
+     * listed if there may be more after it, otherwise null.
+     */
+    public byte nextStartAfter[];
+    /** The total number of handles with the prefix, or -1 if not counted. */
+    public long totalCount = -1;
+
     /***************************************************************
      * Constructor for the server side.
      ***************************************************************/
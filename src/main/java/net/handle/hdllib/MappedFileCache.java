@@ -0,0 +1,597 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*************************************************************
+ * Class used to cache values in a memory-mapped file, so that a
+ * large cache does not live on the Java heap and the cache is
+ * still warm after a restart.
+ *
+ * The file holds a header, two open-addressing index areas, and a
+ * number of fixed-size data chunks.  Only one index area is in use
+ * at a time; the other is where the index is rebuilt, to get rid of
+ * tombstones, while lookups carry on against the one in use.  Records are appended to the
+ * current chunk; when it fills, another chunk is recycled: a chunk
+ * whose records have all expired if there is one, otherwise the
+ * oldest.  The index is only trusted if the file was closed
+ * cleanly, otherwise the cache starts out empty.
+ *************************************************************/
+
+public class MappedFileCache extends ClumpCache {
+    private static final long MAGIC = 0x48444c434143484cL;
+    private static final int VERSION = 2;
+
+    // header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_CLEAN = 12;
+    private static final int H_NUM_SLOTS = 16;
+    private static final int H_NUM_CHUNKS = 20;
+    private static final int H_CHUNK_SIZE = 24;
+    private static final int H_CURRENT_CHUNK = 28;
+    private static final int H_CURRENT_OFFSET = 32;
+    private static final int H_USED_SLOTS = 36;
+    private static final int H_LIVE_COUNT = 40;
+    private static final int H_NEXT_SEQUENCE = 44;
+    private static final int H_ACTIVE_INDEX = 52;
+    private static final int HEADER_SIZE = 64;
+
+    // per-chunk info: sequence(8) maxExpiration(4) used(4)
+    private static final int CHUNK_INFO_SIZE = 16;
+    // index slot: hashTag(4) expiration(4) location(8)
+    private static final int SLOT_SIZE = 16;
+    // record: length(4) keyLength(4, negative if dead) key clumps
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private static final int MIN_CHUNK_SIZE = 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final MappedByteBuffer index;
+    private final MappedByteBuffer[] chunks;
+    private final int numSlots;
+    private final int slotMask;
+    private final int numChunks;
+    private final int chunkSize;
+    private final int[] indexStarts = new int[2];
+    // the index area in use; only changed by rebuildIndex(), so lookups read it once
+    private volatile int indexStart;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int maxHandles;
+    private int currentChunk;
+    private int currentOffset;
+    private int usedSlots;
+    private volatile int liveCount;
+    private long nextSequence;
+    private boolean closed = false;
+
+    /**
+     * Opens (or creates) a cache in the given file.  The number of index slots
+     * and the size of the data area are fixed by maxHandles and maxSize; if an
+     * existing file was created with different settings it is discarded.
+     */
+    public MappedFileCache(File file, int maxHandles, long maxSize, long maxTTL) throws IOException {
+        super(maxTTL);
+        this.file = file;
+        int slots = 1024;
+        while (slots < 2L * maxHandles && slots < MAX_SLOTS) {
+            slots <<= 1;
+        }
+        numSlots = slots;
+        slotMask = numSlots - 1;
+        this.maxHandles = Math.min(maxHandles, numSlots / 2);
+        chunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, maxSize / 16));
+        numChunks = (int) Math.max(2, maxSize / chunkSize);
+        indexStarts[0] = roundUp(HEADER_SIZE + numChunks * CHUNK_INFO_SIZE);
+        indexStarts[1] = roundUp(indexStarts[0] + (long) numSlots * SLOT_SIZE);
+        long dataStart = roundUp(indexStarts[1] + (long) numSlots * SLOT_SIZE);
+        long fileSize = dataStart + (long) numChunks * chunkSize;
+
+        raf = new RandomAccessFile(file, "rw");
+        boolean reuse = raf.length() == fileSize && isCompatible(raf);
+        if (!reuse) {
+            // truncating first gives a zero-filled (empty) index
+            raf.setLength(0);
+            raf.setLength(fileSize);
+        }
+        channel = raf.getChannel();
+        index = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart);
+        chunks = new MappedByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, dataStart + (long) i * chunkSize, chunkSize);
+        }
+
+        if (reuse) {
+            currentChunk = index.getInt(H_CURRENT_CHUNK);
+            currentOffset = index.getInt(H_CURRENT_OFFSET);
+            usedSlots = index.getInt(H_USED_SLOTS);
+            liveCount = index.getInt(H_LIVE_COUNT);
+            nextSequence = index.getLong(H_NEXT_SEQUENCE);
+            indexStart = indexStarts[index.getInt(H_ACTIVE_INDEX) == 1 ? 1 : 0];
+        } else {
+            index.putLong(H_MAGIC, MAGIC);
+            index.putInt(H_VERSION, VERSION);
+            index.putInt(H_NUM_SLOTS, numSlots);
+            index.putInt(H_NUM_CHUNKS, numChunks);
+            index.putInt(H_CHUNK_SIZE, chunkSize);
+            index.putInt(H_ACTIVE_INDEX, 0);
+            indexStart = indexStarts[0];
+            currentChunk = 0;
+            currentOffset = 0;
+            usedSlots = 0;
+            liveCount = 0;
+            nextSequence = 1;
+            setChunkSequence(0, nextSequence++);
+        }
+        // anything that happens from here until close() makes the index untrustworthy
+        index.putInt(H_CLEAN, 0);
+        index.force();
+    }
+
+    private boolean isCompatible(RandomAccessFile f) throws IOException {
+        if (f.length() < HEADER_SIZE) return false;
+        f.seek(0);
+        byte[] buf = new byte[HEADER_SIZE];
+        f.readFully(buf);
+        ByteBuffer header = ByteBuffer.wrap(buf);
+        return header.getLong(H_MAGIC) == MAGIC && header.getInt(H_VERSION) == VERSION && header.getInt(H_CLEAN) == 1 && header.getInt(H_NUM_SLOTS) == numSlots && header.getInt(H_NUM_CHUNKS) == numChunks
+            && header.getInt(H_CHUNK_SIZE) == chunkSize;
+    }
+
+    private static int roundUp(long n) {
+        return (int) ((n + 4095) & ~4095L);
+    }
+
+    @Override
+    protected byte[] getClumps(byte[] handle) throws IOException {
+        long hash = hash(handle);
+        lock.readLock().lock();
+        try {
+            if (closed) throw new IOException("Cache " + file + " is closed");
+            int base = indexStart;
+            int slot = findSlot(base, handle, hash);
+            if (slot < 0) return null;
+            int pos = slotPosition(base, slot);
+            if (index.getInt(pos + 4) < now()) return null;
+            long loc = index.getLong(pos + 8);
+            ByteBuffer chunk = chunks[chunkOf(loc)].duplicate();
+            int offset = offsetOf(loc);
+            int recordLen = chunk.getInt(offset);
+            int keyLen = chunk.getInt(offset + 4);
+            byte[] clumps = new byte[recordLen - RECORD_HEADER_SIZE - keyLen];
+            chunk.position(offset + RECORD_HEADER_SIZE + keyLen);
+            chunk.get(clumps);
+            return clumps;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void putClumps(byte[] handle, byte[] clumps) throws IOException, HandleException {
+        long hash = hash(handle);
+        int expiration = getExpiration(clumps);
+        long recordLen = RECORD_HEADER_SIZE + (long) handle.length + clumps.length;
+        boolean rebuild = false;
+        lock.writeLock().lock();
+        try {
+            if (closed) throw new IOException("Cache " + file + " is closed");
+            int slot = findSlot(indexStart, handle, hash);
+            if (slot >= 0) removeSlot(slot);
+            if (recordLen > chunkSize) return;
+            if (currentOffset + recordLen > chunkSize) nextChunk();
+
+            ByteBuffer chunk = chunks[currentChunk].duplicate();
+            int offset = currentOffset;
+            chunk.putInt(offset, (int) recordLen);
+            chunk.putInt(offset + 4, handle.length);
+            chunk.position(offset + RECORD_HEADER_SIZE);
+            chunk.put(handle);
+            chunk.put(clumps);
+            currentOffset += (int) recordLen;
+            setChunkUsed(currentChunk, currentOffset);
+            if (expiration > getChunkMaxExpiration(currentChunk)) setChunkMaxExpiration(currentChunk, expiration);
+
+            insertSlot(hash, expiration, location(currentChunk, offset));
+            while (liveCount > maxHandles && evictOldestChunk()) {
+                // keep evicting
+            }
+            if (usedSlots > numSlots / 4 * 3) {
+                // downgrade to the read lock, so lookups are not held up by the rebuild
+                lock.readLock().lock();
+                rebuild = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (rebuild) {
+            try {
+                rebuildIndex();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void removeHandle(byte[] handle) throws IOException {
+        long hash = hash(handle);
+        lock.writeLock().lock();
+        try {
+            if (closed) throw new IOException("Cache " + file + " is closed");
+            int slot = findSlot(indexStart, handle, hash);
+            if (slot >= 0) removeSlot(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Remove all values from the cache */
+    @Override
+    public void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) throw new IOException("Cache " + file + " is closed");
+            clearIndex();
+            for (int i = 0; i < numChunks; i++) {
+                resetChunk(i, 0);
+            }
+            currentChunk = 0;
+            currentOffset = 0;
+            setChunkSequence(0, nextSequence++);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Set the maximum size for the cache by the number of handles.
+     *  The number can not be raised above the number the file was
+     *  created for.
+     */
+    @Override
+    public void setMaximumHandles(int maxHandles) {
+        lock.writeLock().lock();
+        try {
+            this.maxHandles = Math.min(maxHandles, numSlots / 2);
+            if (closed) return;
+            while (liveCount > this.maxHandles && evictOldestChunk()) {
+                // keep evicting
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** The size of the data area is fixed when the file is opened, so this does nothing. */
+    @Override
+    public void setMaximumSize(int maxSize) {
+    }
+
+    /** Writes out the header and marks the file as cleanly closed, so that its contents are used the next time it is opened. */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            index.putInt(H_CURRENT_CHUNK, currentChunk);
+            index.putInt(H_CURRENT_OFFSET, currentOffset);
+            index.putInt(H_USED_SLOTS, usedSlots);
+            index.putInt(H_LIVE_COUNT, liveCount);
+            index.putLong(H_NEXT_SEQUENCE, nextSequence);
+            index.force();
+            index.putInt(H_CLEAN, 1);
+            index.force();
+            channel.close();
+            raf.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Returns the number of handles in the cache. */
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static int now() {
+        return (int) (System.currentTimeMillis() / 1000);
+    }
+
+    // FNV-1a
+    private static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static int hashTag(long hash) {
+        return (int) (hash >>> 32);
+    }
+
+    private int homeSlot(long hash) {
+        return (int) hash & slotMask;
+    }
+
+    private int slotPosition(int slot) {
+        return slotPosition(indexStart, slot);
+    }
+
+    private static int slotPosition(int base, int slot) {
+        return base + slot * SLOT_SIZE;
+    }
+
+    private static long location(int chunk, int offset) {
+        return (((long) chunk << 32) | (offset & 0xffffffffL)) + 1;
+    }
+
+    private static int chunkOf(long loc) {
+        return (int) ((loc - 1) >>> 32);
+    }
+
+    private static int offsetOf(long loc) {
+        return (int) (loc - 1);
+    }
+
+    /** Returns the slot holding the given key in the index area starting at base, or -1. */
+    private int findSlot(int base, byte[] key, long hash) {
+        int tag = hashTag(hash);
+        int slot = homeSlot(hash);
+        for (int i = 0; i < numSlots; i++) {
+            int pos = slotPosition(base, slot);
+            long loc = index.getLong(pos + 8);
+            if (loc == EMPTY) return -1;
+            if (loc != TOMBSTONE && index.getInt(pos) == tag && keyMatches(loc, key)) return slot;
+            slot = (slot + 1) & slotMask;
+        }
+        return -1;
+    }
+
+    private boolean keyMatches(long loc, byte[] key) {
+        ByteBuffer chunk = chunks[chunkOf(loc)];
+        int offset = offsetOf(loc);
+        if (chunk.getInt(offset + 4) != key.length) return false;
+        offset += RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(offset + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    /** Adds an index entry for a key which is known not to be in the index. */
+    private void insertSlot(long hash, int expiration, long loc) {
+        int now = now();
+        int slot = homeSlot(hash);
+        for (int i = 0; i < numSlots; i++) {
+            int pos = slotPosition(slot);
+            long existing = index.getLong(pos + 8);
+            boolean reusable = existing == EMPTY || existing == TOMBSTONE;
+            if (!reusable && index.getInt(pos + 4) < now) {
+                // take over the slot of an expired entry
+                removeSlot(slot);
+                reusable = true;
+            }
+            if (reusable) {
+                if (existing == EMPTY) usedSlots++;
+                index.putInt(pos, hashTag(hash));
+                index.putInt(pos + 4, expiration);
+                index.putLong(pos + 8, loc);
+                liveCount++;
+                return;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private void removeSlot(int slot) {
+        int pos = slotPosition(slot);
+        markDead(index.getLong(pos + 8));
+        index.putLong(pos + 8, TOMBSTONE);
+        liveCount--;
+    }
+
+    private void markDead(long loc) {
+        ByteBuffer chunk = chunks[chunkOf(loc)];
+        int offset = offsetOf(loc);
+        int keyLen = chunk.getInt(offset + 4);
+        if (keyLen >= 0) chunk.putInt(offset + 4, -keyLen - 1);
+    }
+
+    private void clearIndex() {
+        for (int slot = 0; slot < numSlots; slot++) {
+            index.putLong(slotPosition(slot) + 8, EMPTY);
+        }
+        usedSlots = 0;
+        liveCount = 0;
+    }
+
+    /** Moves writing on to another chunk, evicting whatever that chunk held. */
+    private void nextChunk() {
+        int victim = chooseVictim(true);
+        evictChunk(victim);
+        resetChunk(victim, nextSequence++);
+        currentChunk = victim;
+        currentOffset = 0;
+    }
+
+    /** Evicts the chunk which would be recycled next; returns false if there is nothing left but the current chunk. */
+    private boolean evictOldestChunk() {
+        int victim = chooseVictim(false);
+        if (victim < 0) return false;
+        evictChunk(victim);
+        resetChunk(victim, 0);
+        return true;
+    }
+
+    /**
+     * Prefers an unused chunk (if allowUnused), then a chunk in which everything has
+     * expired, then the oldest chunk.  Never chooses the chunk currently being written.
+     */
+    private int chooseVictim(boolean allowUnused) {
+        int now = now();
+        int oldest = -1;
+        for (int i = 0; i < numChunks; i++) {
+            if (i == currentChunk) continue;
+            if (getChunkUsed(i) == 0) {
+                if (allowUnused) return i;
+                continue;
+            }
+            if (getChunkMaxExpiration(i) < now) return i;
+            if (oldest < 0 || getChunkSequence(i) < getChunkSequence(oldest)) oldest = i;
+        }
+        return oldest;
+    }
+
+    private void evictChunk(int chunkNum) {
+        ByteBuffer chunk = chunks[chunkNum];
+        int used = getChunkUsed(chunkNum);
+        int offset = 0;
+        while (offset < used) {
+            int recordLen = chunk.getInt(offset);
+            int keyLen = chunk.getInt(offset + 4);
+            if (keyLen >= 0) {
+                byte[] key = new byte[keyLen];
+                ByteBuffer dup = chunk.duplicate();
+                dup.position(offset + RECORD_HEADER_SIZE);
+                dup.get(key);
+                int slot = findSlot(indexStart, key, hash(key));
+                if (slot >= 0 && index.getLong(slotPosition(slot) + 8) == location(chunkNum, offset)) removeSlot(slot);
+            }
+            offset += recordLen;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the live records, to get rid of tombstones.  The new
+     * index is built in the index area not in use and then swapped in.  Called holding
+     * only the read lock: lookups carry on against the old index while the records are
+     * scanned, and writers wait until the new index is in place.  Nothing visible to
+     * lookups is written until the swap.
+     */
+    private void rebuildIndex() {
+        int base = indexStart == indexStarts[0] ? indexStarts[1] : indexStarts[0];
+        for (int slot = 0; slot < numSlots; slot++) {
+            index.putLong(slotPosition(base, slot) + 8, EMPTY);
+        }
+        int count = 0;
+        int now = now();
+        Integer[] order = new Integer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(getChunkSequence(a), getChunkSequence(b)));
+        for (int chunkNum : order) {
+            ByteBuffer chunk = chunks[chunkNum];
+            int used = getChunkUsed(chunkNum);
+            int offset = 0;
+            while (offset < used) {
+                int recordLen = chunk.getInt(offset);
+                int keyLen = chunk.getInt(offset + 4);
+                if (keyLen >= 0) {
+                    byte[] key = new byte[keyLen];
+                    byte[] clumps = new byte[recordLen - RECORD_HEADER_SIZE - keyLen];
+                    ByteBuffer dup = chunk.duplicate();
+                    dup.position(offset + RECORD_HEADER_SIZE);
+                    dup.get(key);
+                    dup.get(clumps);
+                    int expiration;
+                    try {
+                        expiration = getExpiration(clumps);
+                    } catch (HandleException e) {
+                        expiration = 0;
+                    }
+                    if (expiration >= now) {
+                        // later chunks hold later records, so a key seen again replaces its entry
+                        long hash = hash(key);
+                        int slot = findSlot(base, key, hash);
+                        if (slot < 0) {
+                            slot = homeSlot(hash);
+                            while (index.getLong(slotPosition(base, slot) + 8) != EMPTY) {
+                                slot = (slot + 1) & slotMask;
+                            }
+                            count++;
+                        }
+                        int pos = slotPosition(base, slot);
+                        index.putInt(pos, hashTag(hash));
+                        index.putInt(pos + 4, expiration);
+                        index.putLong(pos + 8, location(chunkNum, offset));
+                    }
+                }
+                offset += recordLen;
+            }
+        }
+        usedSlots = count;
+        liveCount = count;
+        index.putInt(H_ACTIVE_INDEX, base == indexStarts[0] ? 0 : 1);
+        indexStart = base;
+    }
+
+    private int chunkInfoPosition(int chunkNum) {
+        return HEADER_SIZE + chunkNum * CHUNK_INFO_SIZE;
+    }
+
+    private long getChunkSequence(int chunkNum) {
+        return index.getLong(chunkInfoPosition(chunkNum));
+    }
+
+    private void setChunkSequence(int chunkNum, long sequence) {
+        index.putLong(chunkInfoPosition(chunkNum), sequence);
+    }
+
+    private int getChunkMaxExpiration(int chunkNum) {
+        return index.getInt(chunkInfoPosition(chunkNum) + 8);
+    }
+
+    private void setChunkMaxExpiration(int chunkNum, int expiration) {
+        index.putInt(chunkInfoPosition(chunkNum) + 8, expiration);
+    }
+
+    private int getChunkUsed(int chunkNum) {
+        return index.getInt(chunkInfoPosition(chunkNum) + 12);
+    }
+
+    private void setChunkUsed(int chunkNum, int used) {
+        index.putInt(chunkInfoPosition(chunkNum) + 12, used);
+    }
+
+    private void resetChunk(int chunkNum, long sequence) {
+        setChunkSequence(chunkNum, sequence);
+        setChunkMaxExpiration(chunkNum, 0);
+        setChunkUsed(chunkNum, 0);
+    }
+}
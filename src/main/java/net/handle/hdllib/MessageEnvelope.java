@@ -24,6 +24,9 @@ public class MessageEnvelope {
     public boolean truncated = false;
     public boolean encrypted = false;
     public boolean compressed = false;
+    // in a request, asks a TCP server to keep the connection open for more requests;
+    // in a response, indicates that the server will do so
+    public boolean keepAlive = false;
 
     @Override
     public String toString() {
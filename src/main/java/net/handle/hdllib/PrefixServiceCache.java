@@ -0,0 +1,244 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+/******************************************************************************
+ * A cache of the decoded service information for prefixes, used by the
+ * resolver to find the sites responsible for a handle without resolving and
+ * parsing the prefix handle for every request.  Entries expire according to
+ * the TTLs given by the loader.  Failures to find a prefix can be cached too,
+ * so that repeated requests for handles under a nonexistent prefix don't each
+ * go to the global service.
+ *
+ * Concurrent misses for the same prefix share one lookup: the first thread
+ * loads the entry while the others wait for its result.  Lookups made while
+ * the same thread is already loading an entry, as when resolving the service
+ * handles of a prefix, never wait on other threads, so that cycles between
+ * prefixes can't deadlock.
+ ******************************************************************************/
+public class PrefixServiceCache<V> {
+    /** Loads the service information for a prefix. */
+    public interface Loader<V> {
+        /** Returns the information along with how long it may be cached, in seconds. */
+        Loaded<V> load() throws HandleException;
+    }
+
+    /** Service information along with how long it may be cached. */
+    public static class Loaded<V> {
+        final V value;
+        final long ttlSeconds;
+
+        public Loaded(V value, long ttlSeconds) {
+            this.value = value;
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final HandleException failure;
+        final long expiration;
+
+        Entry(V value, HandleException failure, long expiration) {
+            this.value = value;
+            this.failure = failure;
+            this.expiration = expiration;
+        }
+    }
+
+    // the keys being loaded by the current thread
+    private final ThreadLocal<Set<String>> loading = ThreadLocal.withInitial(HashSet::new);
+    private final ConcurrentHashMap<String, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry<V>>> inFlight = new ConcurrentHashMap<>();
+    private final int maxEntries;
+    private volatile long maxTTL;
+    private volatile long notFoundTTL;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder notFoundHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param maxEntries the most prefixes to cache
+     * @param maxTTL the longest time, in seconds, to cache a prefix
+     * @param notFoundTTL the time, in seconds, to cache a failure to find a prefix; 0 to not cache failures
+     */
+    public PrefixServiceCache(int maxEntries, long maxTTL, long notFoundTTL) {
+        this.maxEntries = maxEntries;
+        this.maxTTL = maxTTL;
+        this.notFoundTTL = notFoundTTL;
+    }
+
+    public void setMaxTTL(long maxTTL) {
+        this.maxTTL = maxTTL;
+    }
+
+    public void setNotFoundTTL(long notFoundTTL) {
+        this.notFoundTTL = notFoundTTL;
+    }
+
+    /**
+     * Returns the cached information for the given key, loading it if it is not
+     * cached.  Throws the exception thrown by the loader, which is cached if it
+     * indicates that the prefix was not found.
+     */
+    public V get(String key, Loader<V> loader) throws HandleException {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.expiration > System.currentTimeMillis()) {
+            if (entry.failure != null) {
+                notFoundHits.increment();
+                throw copyOf(entry.failure);
+            }
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        Set<String> keysLoadingHere = loading.get();
+        if (!keysLoadingHere.isEmpty()) {
+            // nested lookups load without waiting on other threads
+            return load(key, loader, keysLoadingHere, null);
+        }
+        CompletableFuture<Entry<V>> future = new CompletableFuture<>();
+        CompletableFuture<Entry<V>> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalesced.increment();
+            return await(existing);
+        }
+        try {
+            return load(key, loader, keysLoadingHere, future);
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the cached information for the given key, or null if it is not
+     * cached or a failure to find the prefix is cached, without loading it.
+     */
+    public V getIfPresent(String key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.failure != null || entry.expiration <= System.currentTimeMillis()) return null;
+        hits.increment();
+        return entry.value;
+    }
+
+    private V load(String key, Loader<V> loader, Set<String> keysLoadingHere, CompletableFuture<Entry<V>> future) throws HandleException {
+        keysLoadingHere.add(key);
+        try {
+            Loaded<V> loaded = loader.load();
+            long ttl = Math.min(loaded.ttlSeconds, maxTTL);
+            Entry<V> entry = new Entry<>(loaded.value, null, System.currentTimeMillis() + ttl * 1000);
+            if (ttl > 0) put(key, entry);
+            if (future != null) future.complete(entry);
+            return loaded.value;
+        } catch (HandleException e) {
+            long ttl = e.getCode() == HandleException.SERVICE_NOT_FOUND ? notFoundTTL : 0;
+            Entry<V> entry = new Entry<>(null, e, System.currentTimeMillis() + ttl * 1000);
+            if (ttl > 0) put(key, entry);
+            if (future != null) future.complete(entry);
+            throw e;
+        } catch (RuntimeException | Error e) {
+            if (future != null) future.completeExceptionally(e);
+            throw e;
+        } finally {
+            keysLoadingHere.remove(key);
+        }
+    }
+
+    private V await(CompletableFuture<Entry<V>> future) throws HandleException {
+        Entry<V> entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted waiting for prefix lookup", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error in prefix lookup", cause);
+        }
+        if (entry.failure != null) throw copyOf(entry.failure);
+        return entry.value;
+    }
+
+    // the same exception object is not thrown in several threads
+    private static HandleException copyOf(HandleException e) {
+        return new HandleException(e.getCode(), e.getMessage(), e);
+    }
+
+    private void put(String key, Entry<V> entry) {
+        if (entries.size() >= maxEntries) {
+            long now = System.currentTimeMillis();
+            entries.values().removeIf(e -> e.expiration <= now);
+            Iterator<String> iter = entries.keySet().iterator();
+            while (entries.size() >= maxEntries && iter.hasNext()) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        entries.put(key, entry);
+    }
+
+    /** Removes the given key from the cache. */
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    /** Returns the number of lookups which were answered with cached information. */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /** Returns the number of lookups which were answered with a cached failure to find the prefix. */
+    public long getNotFoundHitCount() {
+        return notFoundHits.sum();
+    }
+
+    /** Returns the number of lookups which were not answered from the cache. */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Returns the number of misses which waited for another thread's lookup of the same prefix. */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /** Returns the number of prefixes in the cache. */
+    public int getSize() {
+        return entries.size();
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("size", getSize());
+        stats.addProperty("hits", getHitCount());
+        stats.addProperty("notFoundHits", getNotFoundHitCount());
+        stats.addProperty("misses", getMissCount());
+        stats.addProperty("coalesced", getCoalescedCount());
+        return stats;
+    }
+}
@@ -0,0 +1,242 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonObject;
+
+/******************************************************************************
+ * Shares one upstream resolution among concurrent identical resolution
+ * requests.  When many requests for the same handle miss the cache at the same
+ * time, the first one is sent to the handle service while the others wait for
+ * its response, which each of them receives as its own copy.  Requests are
+ * identical when they have the same handle, requested types and indexes,
+ * certify, authoritative and restricted-values flags, and the same
+ * authentication information object.
+ *
+ * Resolutions started while the same thread is already resolving a coalesced
+ * request, as when following a referral, never wait on other threads, so that
+ * cycles between handles can't deadlock.
+ ******************************************************************************/
+public class ResolutionCoalescer {
+    /** Sends a resolution request upstream. */
+    public interface Resolution {
+        AbstractResponse resolve() throws HandleException;
+    }
+
+    private static class Key {
+        final byte[] handle;
+        final byte[][] types;
+        final int[] indexes;
+        final int flags;
+        final AuthenticationInfo authInfo;
+        final int hash;
+
+        Key(ResolutionRequest req) {
+            handle = Util.upperCasePrefix(req.handle);
+            types = req.requestedTypes;
+            indexes = req.requestedIndexes;
+            flags = (req.certify ? 1 : 0) | (req.authoritative ? 2 : 0) | (req.ignoreRestrictedValues ? 4 : 0) | (req.recursive ? 8 : 0) | (req.doNotRefer ? 16 : 0);
+            authInfo = req.authInfo;
+            hash = ((Arrays.hashCode(handle) * 31 + Arrays.deepHashCode(types)) * 31 + Arrays.hashCode(indexes)) * 31 + flags;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return hash == other.hash && flags == other.flags && authInfo == other.authInfo && Arrays.equals(handle, other.handle) && Arrays.deepEquals(types, other.types) && Arrays.equals(indexes, other.indexes);
+        }
+    }
+
+    // the keys being resolved by the current thread
+    private final ThreadLocal<Set<Key>> resolving = ThreadLocal.withInitial(HashSet::new);
+    private final ConcurrentHashMap<Key, CompletableFuture<AbstractResponse>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Returns true if the given request may share its resolution with other requests. */
+    public static boolean isCoalescable(AbstractRequest req) {
+        return req.opCode == AbstractMessage.OC_RESOLUTION && req instanceof ResolutionRequest && !req.isAdminRequest && !req.streaming;
+    }
+
+    /**
+     * Returns the response to the given request, either by calling the given
+     * resolution or by waiting for a concurrent identical request which is
+     * already being resolved.  If the callback is not null it is given the
+     * response of a shared resolution; the resolution itself is expected to
+     * call the callback otherwise.
+     */
+    public AbstractResponse resolve(AbstractRequest req, ResponseMessageCallback callback, Resolution resolution) throws HandleException {
+        if (!isCoalescable(req)) return resolution.resolve();
+        requests.increment();
+        Key key = new Key((ResolutionRequest) req);
+        Set<Key> keysResolvingHere = resolving.get();
+        if (!keysResolvingHere.isEmpty()) {
+            // nested resolutions don't wait on other threads
+            return resolveAndRecord(key, resolution, keysResolvingHere);
+        }
+        CompletableFuture<AbstractResponse> future = new CompletableFuture<>();
+        CompletableFuture<AbstractResponse> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            AbstractResponse resp;
+            try {
+                resp = copyFor(req, await(existing));
+            } catch (CancellationException e) {
+                // abandoned by the request which started it
+                resp = null;
+            }
+            if (resp == null) {
+                // a response that can't be shared; resolve independently
+                return resolution.resolve();
+            }
+            coalesced.increment();
+            if (callback != null) callback.handleResponse(resp);
+            return resp;
+        }
+        try {
+            AbstractResponse resp = resolveAndRecord(key, resolution, keysResolvingHere);
+            future.complete(resp);
+            return resp;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Returns the eventual response to the given request, either from the
+     * given asynchronous resolution or from a concurrent identical request
+     * which is already being resolved.  If the shared resolution is abandoned
+     * by the request which started it, the given resolution is used instead.
+     */
+    public CompletableFuture<AbstractResponse> resolveAsync(AbstractRequest req, Supplier<CompletableFuture<AbstractResponse>> resolution) {
+        if (!isCoalescable(req)) return resolution.get();
+        requests.increment();
+        Key key = new Key((ResolutionRequest) req);
+        CompletableFuture<AbstractResponse> future = new CompletableFuture<>();
+        CompletableFuture<AbstractResponse> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing.handle((resp, e) -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof CancellationException) return resolution.get();
+                CompletableFuture<AbstractResponse> shared = new CompletableFuture<>();
+                try {
+                    if (cause instanceof HandleException) {
+                        HandleException he = (HandleException) cause;
+                        throw new HandleException(he.getCode(), he.getMessage(), he);
+                    } else if (cause != null) {
+                        shared.completeExceptionally(cause);
+                        return shared;
+                    }
+                    AbstractResponse copy = copyFor(req, resp);
+                    if (copy == null) return resolution.get();
+                    coalesced.increment();
+                    shared.complete(copy);
+                } catch (HandleException he) {
+                    shared.completeExceptionally(he);
+                }
+                return shared;
+            }).thenCompose(f -> f);
+        }
+        CompletableFuture<AbstractResponse> own;
+        try {
+            own = resolution.get();
+        } catch (RuntimeException | Error e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        own.whenComplete((resp, e) -> {
+            inFlight.remove(key, future);
+            if (e != null) future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            else future.complete(resp);
+        });
+        return own;
+    }
+
+    private static AbstractResponse resolveAndRecord(Key key, Resolution resolution, Set<Key> keysResolvingHere) throws HandleException {
+        boolean added = keysResolvingHere.add(key);
+        try {
+            return resolution.resolve();
+        } finally {
+            if (added) keysResolvingHere.remove(key);
+        }
+    }
+
+    private static AbstractResponse await(CompletableFuture<AbstractResponse> future) throws HandleException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted waiting for resolution", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof HandleException) {
+                HandleException he = (HandleException) cause;
+                // the same exception object is not thrown in several threads
+                throw new HandleException(he.getCode(), he.getMessage(), he);
+            }
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error in resolution", cause);
+        }
+    }
+
+    /** Returns a response to the given request with the contents of the given response, or null if it can't be shared. */
+    private static AbstractResponse copyFor(AbstractRequest req, AbstractResponse resp) throws HandleException {
+        if (resp instanceof ResolutionResponse) {
+            ResolutionResponse resResp = (ResolutionResponse) resp;
+            return new ResolutionResponse(req, req.handle, resResp.values);
+        }
+        if (resp instanceof ErrorResponse) {
+            return new ErrorResponse(req, resp.responseCode, ((ErrorResponse) resp).message);
+        }
+        return null;
+    }
+
+    /** Returns the number of coalescable requests. */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /** Returns the number of requests which were answered by another request's resolution. */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        long numRequests = requests.sum();
+        long numCoalesced = coalesced.sum();
+        stats.addProperty("requests", numRequests);
+        stats.addProperty("coalesced", numCoalesced);
+        stats.addProperty("coalescingRatio", numRequests == 0 ? 0 : numCoalesced / (double) numRequests);
+        return stats;
+    }
+}
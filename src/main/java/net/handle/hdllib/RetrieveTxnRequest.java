@@ -38,6 +38,12 @@ public class RetrieveTxnRequest extends AbstractRequest {
     public byte rcvrHashType;
     public int numServers;
 
+    // If set, asks the server to keep the stream open after sending the
+    // transactions the requestor is missing, and to push new transactions
+    // as they are added to its queue.  Servers which do not support
+    // subscriptions end the stream as usual.
+    public boolean subscribe = false;
+
     public RetrieveTxnRequest(long lastTxnId, long lastQueryDate, byte rcvrHashType, int numServers, int serverNum, AuthenticationInfo authInfo) {
         super(Common.BLANK_HANDLE, OC_RETRIEVE_TXN_LOG, authInfo);
         this.lastTxnId = lastTxnId;
@@ -63,7 +69,7 @@ public class RetrieveTxnRequest extends AbstractRequest {
 
     @Override
     public String toString() {
-        return super.toString() + " [retrieve-txns lasttxn=" + lastTxnId + " lastdate=" + (new java.util.Date(lastQueryDate)) + " svr=" + serverNum + "/" + numServers + " hash=" + rcvrHashType;
+        return super.toString() + " [retrieve-txns lasttxn=" + lastTxnId + " lastdate=" + (new java.util.Date(lastQueryDate)) + " svr=" + serverNum + "/" + numServers + " hash=" + rcvrHashType + (subscribe ? " subscribe" : "");
     }
 
 }
@@ -11,9 +11,13 @@ package net.handle.hdllib;
 
 import java.io.*;
 import java.security.*;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongSupplier;
 
 import net.cnri.util.FastDateFormat;
 import net.cnri.util.FastDateFormat.FormatSpec;
@@ -33,6 +37,12 @@ public class RetrieveTxnResponse extends AbstractResponse {
     private static final byte HANDLE_RECORD = 1;
     private static final byte NAME_OF_QUEUE_RECORD = 2;
     private static final byte END_OF_QUEUE_LAST_TIMESTAMP_RECORD = 3;
+    // only sent in response to a subscribing request
+    private static final byte CAUGHT_UP_RECORD = 4;
+
+    // while subscribed, how often to look for transactions that were
+    // added to the queue but not yet committed to storage
+    private static final long PENDING_COMMIT_POLL_INTERVAL = 10;
 
     // - settings used only on the server side -
     public RetrieveTxnRequest req = null;
@@ -48,6 +58,11 @@ public class RetrieveTxnResponse extends AbstractResponse {
     private TransactionQueuesInterface txnQueues;
     private String ownReplicationServerName;
     private ReplicationStateInfo serversReplicationSourceSites;
+    // used on the server side to keep the stream open for subscribing requests
+    private LongSupplier latestCommittedTxnIdSupplier;
+    private ReplicationDaemonInterface replicationDaemon;
+    private Semaphore subscriptionPermits;
+    private long heartbeatInterval;
 
     /***************************************************************
      * Constructor for the client side.
@@ -87,6 +102,24 @@ public class RetrieveTxnResponse extends AbstractResponse {
         this.latestCommittedTxnId = latestCommittedTxnId;
     }
 
+    /***************************************************************
+     * Allows this response to keep streaming transactions after the
+     * requestor has caught up, if the request asked to subscribe.
+     * Each subscription holds one of the given permits for as long as
+     * it is open; if none are available the stream ends as usual.
+     * A CAUGHT_UP_RECORD is sent at least every heartbeatInterval
+     * milliseconds so that the requestor can tell that the stream is
+     * still alive.  The replication daemon, if given, is listened to
+     * for transactions proxied from other sources.
+     ***************************************************************/
+    @SuppressWarnings("hiding")
+    public void setSubscription(LongSupplier latestCommittedTxnIdSupplier, ReplicationDaemonInterface replicationDaemon, Semaphore subscriptionPermits, long heartbeatInterval) {
+        this.latestCommittedTxnIdSupplier = latestCommittedTxnIdSupplier;
+        this.replicationDaemon = replicationDaemon;
+        this.subscriptionPermits = subscriptionPermits;
+        this.heartbeatInterval = heartbeatInterval;
+    }
+
     /**********************************************************************
      * Process the incoming stream and call the given callback for every transaction that is retrieved. The status codes that this function can return
      * include SENDING_TRANSACTIONS, or NEED_TO_REDUMP. If NEED_TO_REDUMP is returned, all of the handles should be requested from all of the servers
@@ -202,6 +235,12 @@ public class RetrieveTxnResponse extends AbstractResponse {
                         throw new HandleException(HandleException.SECURITY_ALERT, "Invalid signature on replication stream");
                     }
                     callback.setQueueLastTimestamp(currentQueueName, sourceDate);
+                } else if (recordType == CAUGHT_UP_RECORD) {
+                    long sourceDate = in.readLong();
+                    if (!sin.verifyBlock()) {
+                        throw new HandleException(HandleException.SECURITY_ALERT, "Invalid signature on replication stream");
+                    }
+                    callback.caughtUp(sourceDate);
                 } else {
                     throw new HandleException(HandleException.INVALID_VALUE, "Unknown transmission record type: " + recordType);
                 }
@@ -336,31 +375,23 @@ public class RetrieveTxnResponse extends AbstractResponse {
             // sign the header info
             sout.signBlock();
 
+            // the last transaction sent (or skipped) from each queue
+            Map<String, Long> lastSentTxnIds = new HashMap<>();
             if (thisServersTransactionQueue != null) {
-                out.writeByte(NAME_OF_QUEUE_RECORD);
-                out.writeInt(Util.encodeString(ownReplicationServerName).length);
-                out.write(Util.encodeString(ownReplicationServerName));
-                sout.signBlock();
-                forwardTransactions(txnQueues.getThisServersTransactionQueue(), latestCommittedTxnId, clientsLastTxnIdForThisServer, out, sout);
-                out.writeByte(END_OF_QUEUE_LAST_TIMESTAMP_RECORD);
-                out.writeLong(System.currentTimeMillis());
-                sout.signBlock();
+                lastSentTxnIds.put(ownReplicationServerName, clientsLastTxnIdForThisServer);
             }
             for (String queueName : queueNames) {
                 if (sourceReplicationStateInfo.isQueueNameInOwnSite(queueName)) continue;
-                long serversLastTimestamp = getProxiedLastTimestampForQueueName(queueName);
-                // avoid race condition where sender has transactions but last timestamp is -1
-                if (serversLastTimestamp <= 0) continue;
-                long clientsLastTxnId = sourceReplicationStateInfo.getLastTxnId(queueName);
-                out.writeByte(NAME_OF_QUEUE_RECORD);
-                out.writeInt(Util.encodeString(queueName).length);
-                out.write(Util.encodeString(queueName));
-                sout.signBlock();
-                TransactionQueueInterface queue = txnQueues.getQueue(queueName);
-                if (queue != null) forwardTransactions(queue, serversReplicationSourceSites.getLastTxnId(queueName), clientsLastTxnId, out, sout);
-                out.writeByte(END_OF_QUEUE_LAST_TIMESTAMP_RECORD);
-                out.writeLong(serversLastTimestamp);
-                sout.signBlock();
+                lastSentTxnIds.put(queueName, sourceReplicationStateInfo.getLastTxnId(queueName));
+            }
+            boolean pendingCommit = forwardAllTransactions(thisServersTransactionQueue, latestCommittedTxnId, lastSentTxnIds, out, sout);
+
+            if (acquireSubscription()) {
+                try {
+                    pushAllTransactions(thisServersTransactionQueue, lastSentTxnIds, pendingCommit, out, sout);
+                } finally {
+                    subscriptionPermits.release();
+                }
             }
         }
         // write the ending summary record...
@@ -368,6 +399,83 @@ public class RetrieveTxnResponse extends AbstractResponse {
         sout.signBlock();
     }
 
+    /***************************************************************************
+     * Forward the transactions from this server's queue and from each of the
+     * queues in lastSentTxnIds which the requestor doesn't already have, and
+     * update lastSentTxnIds accordingly.  Returns true if any queue holds
+     * transactions which cannot be sent yet because they are not yet
+     * committed to storage.
+     ***************************************************************************/
+    private boolean forwardAllTransactions(TransactionQueueInterface thisServersTransactionQueue, long thisServersLatestTxnId, Map<String, Long> lastSentTxnIds, DataOutputStream out,
+        SignedOutputStream sout) throws Exception {
+        boolean pendingCommit = false;
+        if (thisServersTransactionQueue != null) {
+            out.writeByte(NAME_OF_QUEUE_RECORD);
+            out.writeInt(Util.encodeString(ownReplicationServerName).length);
+            out.write(Util.encodeString(ownReplicationServerName));
+            sout.signBlock();
+            lastSentTxnIds.put(ownReplicationServerName, forwardTransactions(thisServersTransactionQueue, thisServersLatestTxnId, lastSentTxnIds.get(ownReplicationServerName), out, sout));
+            out.writeByte(END_OF_QUEUE_LAST_TIMESTAMP_RECORD);
+            out.writeLong(System.currentTimeMillis());
+            sout.signBlock();
+            pendingCommit = thisServersTransactionQueue.getLastTxnId() > thisServersLatestTxnId;
+        }
+        for (Map.Entry<String, Long> entry : lastSentTxnIds.entrySet()) {
+            String queueName = entry.getKey();
+            if (queueName.equals(ownReplicationServerName)) continue;
+            long serversLastTimestamp = getProxiedLastTimestampForQueueName(queueName);
+            // avoid race condition where sender has transactions but last timestamp is -1
+            if (serversLastTimestamp <= 0) continue;
+            out.writeByte(NAME_OF_QUEUE_RECORD);
+            out.writeInt(Util.encodeString(queueName).length);
+            out.write(Util.encodeString(queueName));
+            sout.signBlock();
+            TransactionQueueInterface queue = txnQueues.getQueue(queueName);
+            if (queue != null) {
+                long serversLastTxnId = serversReplicationSourceSites.getLastTxnId(queueName);
+                entry.setValue(forwardTransactions(queue, serversLastTxnId, entry.getValue(), out, sout));
+                if (queue.getLastTxnId() > serversLastTxnId) pendingCommit = true;
+            }
+            out.writeByte(END_OF_QUEUE_LAST_TIMESTAMP_RECORD);
+            out.writeLong(serversLastTimestamp);
+            sout.signBlock();
+        }
+        return pendingCommit;
+    }
+
+    /***************************************************************************
+     * Keep forwarding transactions from all queues as they arrive, until the
+     * stream breaks, the server shuts down, or a queue appears that the
+     * requestor has not been checked against (in which case the requestor
+     * needs to send a new request).
+     ***************************************************************************/
+    private void pushAllTransactions(TransactionQueueInterface thisServersTransactionQueue, Map<String, Long> lastSentTxnIds, boolean pendingCommit, DataOutputStream out, SignedOutputStream sout) throws Exception {
+        SubscriptionListener listener = new SubscriptionListener(heartbeatInterval);
+        if (thisServersTransactionQueue != null) thisServersTransactionQueue.addQueueListener(listener);
+        if (replicationDaemon != null) replicationDaemon.addQueueListener(listener);
+        try {
+            writeCaughtUpRecord(out, sout);
+            while (listener.awaitTransactions(pendingCommit)) {
+                if (hasNewQueue(lastSentTxnIds)) break;
+                pendingCommit = forwardAllTransactions(thisServersTransactionQueue, latestCommittedTxnIdSupplier.getAsLong(), lastSentTxnIds, out, sout);
+                writeCaughtUpRecord(out, sout);
+            }
+        } finally {
+            if (thisServersTransactionQueue != null) thisServersTransactionQueue.removeQueueListener(listener);
+            if (replicationDaemon != null) replicationDaemon.removeQueueListener(listener);
+        }
+    }
+
+    private boolean hasNewQueue(Map<String, Long> lastSentTxnIds) throws Exception {
+        Set<String> queueNames = new HashSet<>(serversReplicationSourceSites.keySet());
+        queueNames.addAll(txnQueues.listQueueNames());
+        for (String queueName : queueNames) {
+            if (req.replicationStateInfo.isQueueNameInOwnSite(queueName)) continue;
+            if (!lastSentTxnIds.containsKey(queueName)) return true;
+        }
+        return false;
+    }
+
     private long getProxiedLastTimestampForQueueName(String queueName) {
         return serversReplicationSourceSites.getLastTimestamp(queueName);
     }
@@ -400,7 +508,15 @@ public class RetrieveTxnResponse extends AbstractResponse {
             // sign the header info
             sout.signBlock();
 
-            forwardTransactions(txnQueue, latestCommittedTxnId, req.lastTxnId, out, sout);
+            long lastSentTxnId = forwardTransactions(txnQueue, latestCommittedTxnId, req.lastTxnId, out, sout);
+
+            if (txnQueue != null && acquireSubscription()) {
+                try {
+                    pushThisServersTransactions(lastSentTxnId, txnQueue.getLastTxnId() > latestCommittedTxnId, out, sout);
+                } finally {
+                    subscriptionPermits.release();
+                }
+            }
         }
 
         // write the ending summary record...
@@ -420,6 +536,93 @@ public class RetrieveTxnResponse extends AbstractResponse {
         sout.signBlock();
     }
 
+    /***************************************************************************
+     * Keep forwarding transactions from this server's queue as they arrive,
+     * until the stream breaks or the server shuts down.
+     ***************************************************************************/
+    private void pushThisServersTransactions(long lastSentTxnId, boolean pendingCommit, DataOutputStream out, SignedOutputStream sout) throws Exception {
+        SubscriptionListener listener = new SubscriptionListener(heartbeatInterval);
+        txnQueue.addQueueListener(listener);
+        try {
+            writeCaughtUpRecord(out, sout);
+            while (listener.awaitTransactions(pendingCommit)) {
+                long latestSafeTxnId = latestCommittedTxnIdSupplier.getAsLong();
+                lastSentTxnId = forwardTransactions(txnQueue, latestSafeTxnId, lastSentTxnId, out, sout);
+                pendingCommit = txnQueue.getLastTxnId() > latestSafeTxnId;
+                writeCaughtUpRecord(out, sout);
+            }
+        } finally {
+            txnQueue.removeQueueListener(listener);
+        }
+    }
+
+    private boolean acquireSubscription() {
+        return req.subscribe && latestCommittedTxnIdSupplier != null && subscriptionPermits != null && subscriptionPermits.tryAcquire();
+    }
+
+    private static void writeCaughtUpRecord(DataOutputStream out, SignedOutputStream sout) throws Exception {
+        out.writeByte(CAUGHT_UP_RECORD);
+        out.writeLong(System.currentTimeMillis());
+        sout.signBlock();
+        // push everything written so far to the requestor
+        out.flush();
+    }
+
+    /***************************************************************************
+     * Wakes a subscribed stream when transactions are added to a queue.  Only
+     * the fact that there are new transactions is recorded; they are read
+     * back from the queue by the streaming thread.  A requestor which reads
+     * slowly therefore just slows down its own stream, and never causes
+     * transactions to pile up in memory on the server.
+     ***************************************************************************/
+    private static class SubscriptionListener implements TransactionQueueListener {
+        private final long heartbeatInterval;
+        // start out pending, to pick up anything added before the listener was registered
+        private boolean pending = true;
+        private boolean shutdown = false;
+        private long pollInterval = 0;
+
+        SubscriptionListener(long heartbeatInterval) {
+            this.heartbeatInterval = heartbeatInterval;
+        }
+
+        @Override
+        public synchronized void transactionAdded(Transaction txn) {
+            pending = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            shutdown = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until there are new transactions or it is time for a heartbeat.
+         * If some transactions were not yet committed on the last pass, waits
+         * for a short but increasing interval instead.  Returns false if the
+         * queue has been shut down.
+         */
+        synchronized boolean awaitTransactions(boolean pendingCommit) throws InterruptedException {
+            long timeout;
+            if (pendingCommit) {
+                pollInterval = pollInterval == 0 ? PENDING_COMMIT_POLL_INTERVAL : Math.min(pollInterval * 2, heartbeatInterval);
+                timeout = pollInterval;
+            } else {
+                pollInterval = 0;
+                timeout = heartbeatInterval;
+            }
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining;
+            while (!pending && !shutdown && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+            pending = false;
+            return !shutdown;
+        }
+    }
+
     private static boolean queueHasTransactionNumberOne(TransactionQueueInterface queue) {
         try {
             TransactionScannerInterface scanner = queue.getScanner(0);
@@ -469,11 +672,24 @@ public class RetrieveTxnResponse extends AbstractResponse {
 
     /***************************************************************************
      * Forward all of the transactions that the requestor doesn't already have.
+     * Returns the ID of the last transaction sent or skipped.
      ***************************************************************************/
-    private void forwardTransactions(TransactionQueueInterface queue, long latestSafeTxnIdInQueue, @SuppressWarnings("hiding") long lastTxnId, DataOutputStream out, SignedOutputStream sout) throws Exception {
+    private long forwardTransactions(TransactionQueueInterface queue, long latestSafeTxnIdInQueue, @SuppressWarnings("hiding") long lastTxnId, DataOutputStream out, SignedOutputStream sout) throws Exception {
+        long lastForwardedTxnId = lastTxnId;
         TransactionScannerInterface scanner = queue.getScanner(lastTxnId);
         try {
             Transaction txn = null;
+            if (scanner instanceof FilteringTransactionScanner) {
+                // the scanner passes over transactions for other servers itself
+                FilteringTransactionScanner filteringScanner = (FilteringTransactionScanner) scanner;
+                while ((txn = filteringScanner.nextTransaction(latestSafeTxnIdInQueue, req.rcvrHashType, req.numServers, req.serverNum)) != null) {
+                    if (txn.txnId <= lastTxnId) {
+                        continue;
+                    }
+                    forwardTransaction(txn, out, sout);
+                }
+                return Math.max(lastForwardedTxnId, filteringScanner.getLastScannedTxnId());
+            }
             while ((txn = scanner.nextTransaction()) != null) {
                 // ///// This currently doesn't handle wrap-around transaction IDs
                 if (txn.txnId <= lastTxnId) {
@@ -482,85 +698,76 @@ public class RetrieveTxnResponse extends AbstractResponse {
                 if (txn.txnId > latestSafeTxnIdInQueue) {
                     break;
                 }
+                lastForwardedTxnId = txn.txnId;
 
-                if (txn.action != Transaction.ACTION_UNHOME_NA && txn.action != Transaction.ACTION_HOME_NA) {
-                    // only hash to the appropriate site, unless it is a NA home or unhome
-                    // transaction. In that case, send the message to all servers!
-                    boolean hashes;
-                    switch (req.rcvrHashType) {
-                    case SiteInfo.HASH_TYPE_BY_PREFIX:
-                        hashes = (Math.abs(txn.hashOnNA % req.numServers) == req.serverNum);
-                        break;
-                    case SiteInfo.HASH_TYPE_BY_SUFFIX:
-                        hashes = (Math.abs(txn.hashOnId % req.numServers) == req.serverNum);
-                        break;
-                    case SiteInfo.HASH_TYPE_BY_ALL:
-                        hashes = (Math.abs(txn.hashOnAll % req.numServers) == req.serverNum);
-                        break;
-                    default:
-                        System.err.println("Warning: unknown hash type (" + req.rcvrHashType + ") in RetrieveTxnRequest");
-                        hashes = true; // if we're not sure.. just send it
-                    }
-
-                    if (!hashes) {
-                        continue;
-                    }
+                // only hash to the appropriate site, unless it is a NA home or unhome
+                // transaction. In that case, send the message to all servers!
+                if (!Transaction.isSentToServer(txn.action, txn.hashOnAll, txn.hashOnNA, txn.hashOnId, req.rcvrHashType, req.numServers, req.serverNum)) {
+                    continue;
                 }
+                forwardTransaction(txn, out, sout);
+            }
+        } finally {
+            scanner.close();
+        }
+        return lastForwardedTxnId;
+    }
 
-                byte[][] hdlValue = null;
-                if (txn.handle != null) {
-                    hdlValue = storageGetRawHandleValues(txn.handle, null, null);
-                }
-                if (txn.action == Transaction.ACTION_CREATE_HANDLE || txn.action == Transaction.ACTION_UPDATE_HANDLE) {
-                    if (hdlValue == null) {
-                        // don't send an update transaction for a missing handle record
-                        continue;
-                    }
-                } else if (txn.action == Transaction.ACTION_DELETE_HANDLE) {
-                    if (hdlValue != null) {
-                        // don't send a delete transaction for a handle record that does exist
-                        continue;
-                    }
-                }
+    /***************************************************************************
+     * Send the given transaction along with the current value of its handle,
+     * unless the handle record no longer matches the transaction.
+     ***************************************************************************/
+    private void forwardTransaction(Transaction txn, DataOutputStream out, SignedOutputStream sout) throws Exception {
+        byte[][] hdlValue = null;
+        if (txn.handle != null) {
+            hdlValue = storageGetRawHandleValues(txn.handle, null, null);
+        }
+        if (txn.action == Transaction.ACTION_CREATE_HANDLE || txn.action == Transaction.ACTION_UPDATE_HANDLE) {
+            if (hdlValue == null) {
+                // don't send an update transaction for a missing handle record
+                return;
+            }
+        } else if (txn.action == Transaction.ACTION_DELETE_HANDLE) {
+            if (hdlValue != null) {
+                // don't send a delete transaction for a handle record that does exist
+                return;
+            }
+        }
 
-                // write a transaction record
-                out.writeByte(HANDLE_RECORD);
-                out.writeLong(txn.txnId);
-                out.writeInt(txn.handle == null ? 0 : txn.handle.length);
-                if (txn.handle != null) {
-                    out.write(txn.handle, 0, txn.handle.length);
-                }
-                out.writeByte(txn.action);
-                out.writeLong(txn.date);
-
-                // send the current value of the handle record
-                switch (txn.action) {
-                case Transaction.ACTION_CREATE_HANDLE:
-                case Transaction.ACTION_UPDATE_HANDLE:
-                    if (hdlValue == null) {
+        // write a transaction record
+        out.writeByte(HANDLE_RECORD);
+        out.writeLong(txn.txnId);
+        out.writeInt(txn.handle == null ? 0 : txn.handle.length);
+        if (txn.handle != null) {
+            out.write(txn.handle, 0, txn.handle.length);
+        }
+        out.writeByte(txn.action);
+        out.writeLong(txn.date);
+
+        // send the current value of the handle record
+        switch (txn.action) {
+        case Transaction.ACTION_CREATE_HANDLE:
+        case Transaction.ACTION_UPDATE_HANDLE:
+            if (hdlValue == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(hdlValue.length);
+                for (byte[] element : hdlValue) {
+                    if (element == null) {
                         out.writeInt(0);
                     } else {
-                        out.writeInt(hdlValue.length);
-                        for (byte[] element : hdlValue) {
-                            if (element == null) {
-                                out.writeInt(0);
-                            } else {
-                                out.writeInt(element.length);
-                                out.write(element);
-                            }
-                        }
+                        out.writeInt(element.length);
+                        out.write(element);
                     }
-                    break;
-                case Transaction.ACTION_DELETE_HANDLE:
-                default:
-                    break;
                 }
-                // sign this transaction record
-                sout.signBlock();
             }
-        } finally {
-            scanner.close();
+            break;
+        case Transaction.ACTION_DELETE_HANDLE:
+        default:
+            break;
         }
+        // sign this transaction record
+        sout.signBlock();
     }
 
     // needed for custom storage modules
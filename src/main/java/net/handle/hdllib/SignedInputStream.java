@@ -12,6 +12,7 @@ package net.handle.hdllib;
 import java.net.Socket;
 import java.security.*;
 import java.io.*;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -27,6 +28,10 @@ public class SignedInputStream extends FilterInputStream {
     public static final int STREAM_TYPE_PK = 0;
     public static final int STREAM_TYPE_UNSIGNED = -1;
     public static final int STREAM_TYPE_TLS = 0x544C5300;
+    // as above, with the contents after the header compressed with deflate
+    public static final int STREAM_TYPE_PK_COMPRESSED = 0x504B5A00;
+    public static final int STREAM_TYPE_UNSIGNED_COMPRESSED = 0x554E5A00;
+    public static final int STREAM_TYPE_TLS_COMPRESSED = 0x544C535A;
 
     private Signature sig;
     private final int streamType;
@@ -44,7 +49,8 @@ public class SignedInputStream extends FilterInputStream {
         // read the type-of-stream identifier - the first 4 bytes
         byte streamTypeBuf[] = new byte[Encoder.INT_SIZE];
         Util.readFully(in, streamTypeBuf);
-        streamType = Encoder.readInt(streamTypeBuf, 0);
+        int rawStreamType = Encoder.readInt(streamTypeBuf, 0);
+        streamType = getUncompressedStreamType(rawStreamType);
 
         // initialize ourself depending on the type of stream
         switch (streamType) {
@@ -77,7 +83,33 @@ public class SignedInputStream extends FilterInputStream {
         default:
             throw new SignatureException("Unrecognized stream type: " + streamType);
         }
+        if (rawStreamType != streamType) this.in = new InflaterInputStream(this.in);
+    }
+
+    static int getCompressedStreamType(int streamType) {
+        switch (streamType) {
+        case STREAM_TYPE_PK:
+            return STREAM_TYPE_PK_COMPRESSED;
+        case STREAM_TYPE_UNSIGNED:
+            return STREAM_TYPE_UNSIGNED_COMPRESSED;
+        case STREAM_TYPE_TLS:
+            return STREAM_TYPE_TLS_COMPRESSED;
+        default:
+            throw new IllegalArgumentException("Unrecognized stream type: " + streamType);
+        }
+    }
 
+    private static int getUncompressedStreamType(int streamType) {
+        switch (streamType) {
+        case STREAM_TYPE_PK_COMPRESSED:
+            return STREAM_TYPE_PK;
+        case STREAM_TYPE_UNSIGNED_COMPRESSED:
+            return STREAM_TYPE_UNSIGNED;
+        case STREAM_TYPE_TLS_COMPRESSED:
+            return STREAM_TYPE_TLS;
+        default:
+            return streamType;
+        }
     }
 
     public boolean isSecure() {
@@ -13,6 +13,7 @@ import java.net.Socket;
 import java.security.*;
 import java.security.cert.X509Certificate;
 import java.io.*;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -27,6 +28,7 @@ import javax.net.ssl.SSLSocket;
 public class SignedOutputStream extends FilterOutputStream {
     private Signature sig;
     private int streamType;
+    private final boolean compressed;
 
     /**************************************************************************
      * Create a stream that can verify the data read from the stream in
@@ -36,8 +38,20 @@ public class SignedOutputStream extends FilterOutputStream {
      * in the parallel SignedOutputStream object that generated the stream.
      **************************************************************************/
     public SignedOutputStream(PrivateKey sourceKey, OutputStream out) throws HandleException, IOException {
+        this(sourceKey, out, false);
+    }
+
+    /**************************************************************************
+     * As above; if compressed is true, the contents of the stream after its
+     * header are compressed with deflate.  Only a SignedInputStream from this
+     * version of the software can read a compressed stream, so compression
+     * should only be used if the reader has said that it accepts it.
+     **************************************************************************/
+    public SignedOutputStream(PrivateKey sourceKey, OutputStream out, boolean compressed) throws HandleException, IOException {
         super(out);
+        this.compressed = compressed;
         initializeSigned(sourceKey);
+        if (compressed) this.out = new DeflaterOutputStream(this.out, true);
     }
 
     private void initializeSigned(PrivateKey sourceKey) throws HandleException, IOException {
@@ -67,17 +81,28 @@ public class SignedOutputStream extends FilterOutputStream {
     private void setAndWriteStreamType(int streamType) throws IOException {
         this.streamType = streamType;
         byte streamTypeBuf[] = new byte[Encoder.INT_SIZE];
-        Encoder.writeInt(streamTypeBuf, 0, streamType);
+        Encoder.writeInt(streamTypeBuf, 0, compressed ? SignedInputStream.getCompressedStreamType(streamType) : streamType);
         out.write(streamTypeBuf);
     }
 
     public SignedOutputStream(OutputStream out) throws IOException {
+        this(out, false);
+    }
+
+    public SignedOutputStream(OutputStream out, boolean compressed) throws IOException {
         super(out);
+        this.compressed = compressed;
         setAndWriteStreamType(SignedInputStream.STREAM_TYPE_UNSIGNED);
+        if (compressed) this.out = new DeflaterOutputStream(this.out, true);
     }
 
     public SignedOutputStream(X509Certificate certificate, PrivateKey sourceKey, OutputStream out, Socket socket) throws HandleException, IOException {
+        this(certificate, sourceKey, out, socket, false);
+    }
+
+    public SignedOutputStream(X509Certificate certificate, PrivateKey sourceKey, OutputStream out, Socket socket, boolean compressed) throws HandleException, IOException {
         super(out);
+        this.compressed = compressed;
         try {
             SSLContext sslContext = SSLEngineHelper.getServerSSLContext(certificate, sourceKey);
             @SuppressWarnings("resource")
@@ -92,6 +117,7 @@ public class SignedOutputStream extends FilterOutputStream {
             // fall back
             initializeSigned(sourceKey);
         }
+        if (compressed) this.out = new DeflaterOutputStream(this.out, true);
     }
 
     /**************************************************************************
@@ -0,0 +1,111 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.hdllib;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*************************************************************
+ * A hashed timer wheel for large numbers of short timeouts, such
+ * as the retries of outstanding UDP requests.  Timeouts may be
+ * scheduled and cancelled from any thread; they are run by the one
+ * thread which calls {@link #advance()}, at the granularity of one
+ * tick.  Scheduling and cancelling take constant time, and no thread
+ * is parked per timeout.
+ *************************************************************/
+class TimerWheel {
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] buckets;
+    private final int mask;
+    private final long startNanos = System.nanoTime();
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    // the number of ticks already processed
+    private long currentTick = 0;
+
+    /** A task scheduled to run after a delay. */
+    class Timeout {
+        final Runnable task;
+        final long deadlineTick;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /** Keeps the task from running, if it has not already run. */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+
+    /**
+     * @param tickMillis the granularity of the timeouts, in milliseconds
+     * @param numBuckets the number of ticks in one turn of the wheel; rounded up to a power of two
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    TimerWheel(long tickMillis, int numBuckets) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(1, numBuckets - 1)) << 1;
+        buckets = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new ArrayDeque<>();
+        }
+        mask = size - 1;
+    }
+
+    /** Schedules the given task to run once the given number of milliseconds have passed. */
+    Timeout schedule(Runnable task, long delayMillis) {
+        long elapsed = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        // round up, so the task never runs early
+        Timeout timeout = new Timeout(task, (elapsed + tickNanos - 1) / tickNanos);
+        added.add(timeout);
+        return timeout;
+    }
+
+    /** Returns the number of milliseconds until the next tick is due, at least 1. */
+    long millisUntilNextTick() {
+        long next = startNanos + (currentTick + 1) * tickNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - System.nanoTime()));
+    }
+
+    /** Runs the tasks which are due, catching anything they throw.  Must always be called from the same thread. */
+    void advance() {
+        long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            // tasks due in a tick which has already been processed go in the current one
+            long tick = Math.max(timeout.deadlineTick, currentTick + 1);
+            buckets[(int) (tick & mask)].add(timeout);
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            Iterator<Timeout> iter = buckets[(int) (currentTick & mask)].iterator();
+            while (iter.hasNext()) {
+                timeout = iter.next();
+                if (timeout.cancelled) {
+                    iter.remove();
+                } else if (timeout.deadlineTick <= currentTick) {
+                    iter.remove();
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        // such as a RejectedExecutionException from a shut down executor; the other tasks still run
+                        System.err.println("Error running scheduled task: " + t);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -72,6 +72,26 @@ public class Transaction {
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Returns true if a transaction with the given action and handle hashes is
+     * sent to the given server of a site using the given hash type.  Prefix
+     * home and unhome transactions are sent to every server.
+     */
+    public static boolean isSentToServer(byte action, int hashOnAll, int hashOnNA, int hashOnId, byte hashType, int numServers, int serverNum) {
+        if (action == ACTION_UNHOME_NA || action == ACTION_HOME_NA) return true;
+        switch (hashType) {
+        case SiteInfo.HASH_TYPE_BY_PREFIX:
+            return Math.abs(hashOnNA % numServers) == serverNum;
+        case SiteInfo.HASH_TYPE_BY_SUFFIX:
+            return Math.abs(hashOnId % numServers) == serverNum;
+        case SiteInfo.HASH_TYPE_BY_ALL:
+            return Math.abs(hashOnAll % numServers) == serverNum;
+        default:
+            System.err.println("Warning: unknown hash type (" + hashType + ") in RetrieveTxnRequest");
+            return true; // if we're not sure.. just send it
+        }
+    }
+
     public Transaction() {
     }
 
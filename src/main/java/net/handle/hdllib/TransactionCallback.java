@@ -26,12 +26,21 @@ public interface TransactionCallback {
      * the minimum date returned from all replicated servers) should be
      * used the next time that a RetrieveTxnRequest is sent.
      ********************************************************************/
-    public void finishProcessing(long sourceDate);
+    public void finishProcessing(long sourceDate) throws HandleException;
 
-    public void finishProcessing();
+    public void finishProcessing() throws HandleException;
 
-    public void setQueueLastTimestamp(String queueName, long sourceDate);
+    public void setQueueLastTimestamp(String queueName, long sourceDate) throws HandleException;
 
     public void processTransaction(String queueName, Transaction txn) throws HandleException;
 
+    /********************************************************************
+     * Called on a subscribed stream (see RetrieveTxnRequest.subscribe)
+     * each time the sender has pushed all of its transactions.  The given
+     * date may be used as the lastQueryDate of the next RetrieveTxnRequest.
+     ********************************************************************/
+    default void caughtUp(long sourceDate) throws HandleException {
+        finishProcessing(sourceDate);
+    }
+
 }
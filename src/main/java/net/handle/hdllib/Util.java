@@ -358,6 +358,21 @@ public abstract class Util {
         return true;
     }
 
+    /**********************************************************************
+     * compare the two arrays byte by byte, treating bytes as unsigned,
+     * which is the order in which handles are stored.  Returns a negative
+     * number, zero, or a positive number as the first array is less
+     * than, equal to, or greater than the second.
+     **********************************************************************/
+    public static final int compare(byte b1[], byte b2[]) {
+        int len = Math.min(b1.length, b2.length);
+        for (int i = 0; i < len; i++) {
+            int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+            if (diff != 0) return diff;
+        }
+        return b1.length - b2.length;
+    }
+
     /**********************************************************************
      * compare the two arrays starting at the given index. If they are
      * the same true is returned.
@@ -9,9 +9,12 @@
 
 package net.handle.jdb;
 
+import java.util.concurrent.ConcurrentHashMap;
+
 /******************************************************************************
  *
- * Memory cache used to store blocks in the DBHash database class.
+ * Memory cache used to store blocks in the DBHash database class.  Blocks
+ * can be fetched and entered by many threads at once.
  *
  *  Potential Improvements:  Fix the cache purge algorithm
  *  (currently just removes all elements!).
@@ -20,8 +23,8 @@ package net.handle.jdb;
 
 class BlockCache {
     private final int maxSize;
-    private boolean purging = false;
-    private final LongTable blocks;
+    private volatile boolean purging = false;
+    private final ConcurrentHashMap<Long, Block> blocks;
 
     /******************************************************************************
      *
@@ -30,7 +33,7 @@ class BlockCache {
      */
 
     BlockCache(int size) {
-        blocks = new LongTable(size);
+        blocks = new ConcurrentHashMap<>(size);
         maxSize = size;
     }
 
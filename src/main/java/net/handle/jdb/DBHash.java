@@ -10,7 +10,13 @@
 package net.handle.jdb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.security.*;
 
 /**
@@ -69,13 +75,27 @@ public class DBHash {
     private static final int CONT_HEADER_SIZE = 1 + 4;
     private static final int CONT_WCONT_HEADER_SIZE = 1 + 4 + 8;
 
+    // digests and block buffers for reading, so that threads can read at once
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> READ_BUFFERS = ThreadLocal.withInitial(() -> new byte[BLOCK_SIZE]);
+
     private RandomAccessFile raFile;
+    // blocks are read with positional reads on this channel, which don't move the file pointer of raFile
+    private volatile FileChannel readChannel;
+    private final Object readChannelLock = new Object();
+    // readers share the read lock; changes to the file or hash index take the write lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final File hashFile;
     private int hashLength;
     private long tableStartIndex;
     private final boolean readOnly;
     private Vector freeBlocks;
-    private final MessageDigest md5;
     private final byte blankBytes[];
     private final byte buf[] = new byte[BLOCK_SIZE];
 
@@ -123,9 +143,8 @@ public class DBHash {
 
         // load the file (or at least the hash index part of it).
         raFile = new RandomAccessFile(hashFile, readOnly ? "r" : "rw");
+        readChannel = FileChannel.open(hashFile.toPath(), StandardOpenOption.READ);
         loadFromFile();
-
-        md5 = MessageDigest.getInstance("MD5");
     }
 
     /**
@@ -134,25 +153,38 @@ public class DBHash {
     public synchronized void deleteAllRecords() throws Exception {
         if (readOnly) throw new IOException("Attempted to modify read-only database");
 
-        System.err.println("Deleting records!!!");
+        lock.writeLock().lock();
         try {
-            raFile.close();
-        } catch (Exception e) {
-            /* Ignore */ }
+            System.err.println("Deleting records!!!");
+            try {
+                raFile.close();
+                readChannel.close();
+            } catch (Exception e) {
+                /* Ignore */ }
 
-        cache.clear();
-        freeBlocks = new Vector();
-        initNewFile();
-        raFile = new RandomAccessFile(hashFile, "rw");
-        loadFromFile();
+            cache.clear();
+            freeBlocks = new Vector();
+            initNewFile();
+            raFile = new RandomAccessFile(hashFile, "rw");
+            readChannel = FileChannel.open(hashFile.toPath(), StandardOpenOption.READ);
+            loadFromFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
      * Close the random-access file.
      */
     public void close() throws Exception {
-        sync();
-        raFile.close();
+        lock.writeLock().lock();
+        try {
+            sync();
+            raFile.close();
+            readChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -180,30 +212,67 @@ public class DBHash {
      *
      * @return null if the specified key does not exist.
      */
-    public final synchronized byte[] getValue(byte key[]) throws Exception { //// maybe we can synchronize only on md5 here??
-        byte digest[] = md5.digest(key);
-        int digestLen = digest.length;
-        int hash = ((0x00ff & digest[digestLen - 1]) | (0x00ff & digest[digestLen - 2]) << 8 | (0x00ff & digest[digestLen - 3]) << 16 | ((0x000000ff & digest[digestLen - 4]) << 24));
-        int hashKey = (hash & 0x7FFFFFFF) % hashLength;
-        long recordLoc = hashIndex[hashKey];
+    public final byte[] getValue(byte key[]) throws Exception {
+        lock.readLock().lock();
+        try {
+            int hashKey = hashOfKey(key);
+            long recordLoc = hashIndex[hashKey];
 
-        if (DEBUG) System.err.println(" getvalue(" + (new String(key)) + ") startLoc: " + Long.toHexString(recordLoc));
+            if (DEBUG) System.err.println(" getvalue(" + (new String(key)) + ") startLoc: " + Long.toHexString(recordLoc));
+
+            if (recordLoc <= 0) {
+                return null;
+            }
+
+            HashBlock block = getValueAtBlock(recordLoc, key);
+
+            if (block != null) return block.data;
 
-        if (recordLoc <= 0) {
             return null;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        HashBlock block = getValueAtBlock(recordLoc, key);
-
-        if (block != null) return block.data;
+    /**
+     * Read BLOCK_SIZE bytes at the given location into the given buffer.
+     */
+    private final void readFully(long blockNum, byte b[]) throws IOException {
+        while (true) {
+            FileChannel channel = readChannel;
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            try {
+                while (bb.hasRemaining()) {
+                    if (channel.read(bb, blockNum + bb.position()) < 0) throw new EOFException();
+                }
+                return;
+            } catch (ClosedChannelException e) {
+                // a thread interrupted while reading closes the channel for every thread
+                boolean reopened = reopenReadChannel(channel);
+                if (!reopened || Thread.currentThread().isInterrupted()) throw e;
+            }
+        }
+    }
 
-        return null;
+    /**
+     * Replaces the given closed read channel, unless the file itself has been
+     * closed.  Returns true if there is a different channel to read with.
+     */
+    private boolean reopenReadChannel(FileChannel closedChannel) throws IOException {
+        // not synchronized on this, since writers hold that while waiting for readers
+        synchronized (readChannelLock) {
+            if (readChannel == closedChannel && raFile.getChannel().isOpen()) {
+                readChannel = FileChannel.open(hashFile.toPath(), StandardOpenOption.READ);
+            }
+            return readChannel != closedChannel;
+        }
     }
 
     /**
-     * Read the block at the specified location.
+     * Read the block at the specified location.  SHOULD BE CALLED WITH THE
+     * READ OR WRITE LOCK HELD!!!!!
      */
-    private final synchronized HashBlock readBlock(long blockNum) throws Exception {
+    private final HashBlock readBlock(long blockNum) throws Exception {
         HashBlock block = (HashBlock) cache.getBlock(blockNum);
 
         if (DEBUG) System.err.println("    reading block# " + Long.toHexString(blockNum));
@@ -218,8 +287,9 @@ public class DBHash {
 
         block = new HashBlock();
 
-        raFile.seek(blockNum); // read this block
-        raFile.readFully(buf);
+        @SuppressWarnings("hiding")
+        byte buf[] = READ_BUFFERS.get();
+        readFully(blockNum, buf); // read this block
 
         int keyLen = (buf[1] & 0xff) << 24 | (buf[2] & 0xff) << 16 | (buf[3] & 0xff) << 8 | (buf[4] & 0xff);
 
@@ -303,8 +373,7 @@ public class DBHash {
 
             // if this wasn't the last block, read the next
             if (i < numBlocks - 1) {
-                raFile.seek(contBlock);
-                raFile.readFully(buf);
+                readFully(contBlock, buf);
                 bloc = 5;
             }
         }
@@ -315,7 +384,7 @@ public class DBHash {
 
     /**
      * Retrieve the record associated with the given key, starting at the
-     * specified block. SHOULD BE CALLED FROM WITHIN A SYNCHRONIZED BLOCK!!!!!
+     * specified block. SHOULD BE CALLED WITH THE READ OR WRITE LOCK HELD!!!!!
      */
     private final HashBlock getValueAtBlock(long blockNum, byte key[]) throws Exception {
         HashBlock block;
@@ -342,13 +411,16 @@ public class DBHash {
     public final synchronized void setValue(byte key[], byte data[]) throws Exception {
         if (readOnly) throw new IOException("Attempted to modify read-only database");
 
-        byte digest[] = md5.digest(key);
-
-        int digestLen = digest.length;
-
-        int hash = ((0x00ff & digest[digestLen - 1]) | (0x00ff & digest[digestLen - 2]) << 8 | (0x00ff & digest[digestLen - 3]) << 16 | ((0x000000ff & digest[digestLen - 4]) << 24));
+        lock.writeLock().lock();
+        try {
+            setValueLocked(key, data);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        int hashKey = (hash & 0x7FFFFFFF) % hashLength;
+    private final void setValueLocked(byte key[], byte data[]) throws Exception {
+        int hashKey = hashOfKey(key);
 
         long recordLoc = hashIndex[hashKey];
 
@@ -390,13 +462,16 @@ public class DBHash {
         if (DEBUG) System.err.println("delete(" + (new String(key)) + ")");
         if (readOnly) throw new IOException("Attempted to modify read-only database");
 
-        byte digest[] = md5.digest(key);
-
-        int digestLen = digest.length;
-
-        int hash = ((0x00ff & digest[digestLen - 1]) | (0x00ff & digest[digestLen - 2]) << 8 | (0x00ff & digest[digestLen - 3]) << 16 | ((0x000000ff & digest[digestLen - 4]) << 24));
+        lock.writeLock().lock();
+        try {
+            return deleteValueLocked(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-        int hashKey = (hash & 0x7FFFFFFF) % hashLength;
+    private final boolean deleteValueLocked(byte key[]) throws Exception {
+        int hashKey = hashOfKey(key);
 
         long recordLoc = hashIndex[hashKey];
 
@@ -757,19 +832,24 @@ public class DBHash {
      */
     public synchronized void dumpDepthGraph() throws Exception {
         System.err.println("Dumping graph: ");
-        for (int h = 0; h < hashIndex.length; h++) {
-            long index = hashIndex[h];
-            if (index <= 0) // 0L ???
-                continue;
-
-            HashBlock block;
-            do {
-                block = readBlock(index);
-                index = block.nextRecord;
-                System.err.print('X');
-            } while (index > 0);
-
-            System.err.println("");
+        lock.readLock().lock();
+        try {
+            for (int h = 0; h < hashIndex.length; h++) {
+                long index = hashIndex[h];
+                if (index <= 0) // 0L ???
+                    continue;
+
+                HashBlock block;
+                do {
+                    block = readBlock(index);
+                    index = block.nextRecord;
+                    System.err.print('X');
+                } while (index > 0);
+
+                System.err.println("");
+            }
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
@@ -825,6 +905,7 @@ public class DBHash {
             blockNum = hashIndex[hash];
             out.println("Hash Index=" + hash + " location(h)=" + Long.toHexString(blockNum));
             do {
+                lock.readLock().lock();
                 try {
                     block = readBlock(blockNum);
                     blockNum = block.nextRecord;
@@ -833,6 +914,8 @@ public class DBHash {
                 } catch (Exception e) {
                     out.println("   Got exception reading block hash# " + hash + '\n' + "       block#" + Long.toHexString(blockNum) + '\n' + "       e: " + e);
                     blockNum = 0;
+                } finally {
+                    lock.readLock().unlock();
                 }
             } while (blockNum > 0);
 
@@ -840,8 +923,8 @@ public class DBHash {
         }
     }
 
-    private synchronized int hashOfKey(byte[] key) {
-        byte digest[] = md5.digest(key);
+    private int hashOfKey(byte[] key) {
+        byte digest[] = MD5.get().digest(key);
         int digestLen = digest.length;
         int hash = ((0x00ff & digest[digestLen - 1]) | (0x00ff & digest[digestLen - 2]) << 8 | (0x00ff & digest[digestLen - 3]) << 16 | ((0x000000ff & digest[digestLen - 4]) << 24));
         int hashKey = (hash & 0x7FFFFFFF) % hashLength;
@@ -868,6 +951,7 @@ public class DBHash {
 
         @Override
         public final byte[][] nextElement() throws NoSuchElementException {
+            lock.readLock().lock();
             try {
                 while (currentBlock != null && currentBlock.nextRecord > 0) {
                     currentBlock = readBlock(currentBlock.nextRecord);
@@ -890,6 +974,8 @@ public class DBHash {
             } catch (Exception e) {
                 System.err.println("Exception enumerating blocks: " + e);
                 System.err.println("currentBlock=\"" + ((currentBlock != null) ? (new String(currentBlock.key) + "\" at " + Long.toHexString(currentBlock.thisRecord)) : "null"));
+            } finally {
+                lock.readLock().unlock();
             }
 
             throw new NoSuchElementException();
@@ -19,6 +19,7 @@ import java.security.cert.X509Certificate;
 public class CacheServer extends AbstractServer {
     private static final byte MSG_NOT_A_PRIMARY[] = Util.encodeString("Server is read-only");
     private static final byte MSG_CHALLENGE_NOT_FOUND[] = Util.encodeString("Challenge not found");
+    private static final byte MSG_NO_BULK_RESOLUTION[] = Util.encodeString("Bulk resolution is not supported by caching servers");
 
     public static final String THIS_SERVER_ID = "this_server_id";
     public static final String SERVER_ADMINS = "server_admins";
@@ -26,6 +27,13 @@ public class CacheServer extends AbstractServer {
     public static final String SITE_INFO_FILE = "siteinfo.bin";
     public static final String PRIVATE_KEY_FILE = "privkey.bin";
     public static final String CACHE_STORAGE_FILE = "cache.jdb";
+    public static final String MAPPED_CACHE_FILE = "cache.dat";
+
+    public static final String MAPPED_CACHE = "mapped_cache";
+    public static final String MAPPED_CACHE_MAX_HANDLES = "mapped_cache_max_handles";
+    public static final String MAPPED_CACHE_SIZE = "mapped_cache_size";
+    public static final String MAPPED_CACHE_MAX_TTL = "mapped_cache_max_ttl";
+    public static final String COALESCE_RESOLUTIONS = "coalesce_resolutions";
 
     public static final int RECURSION_LIMIT = 10;
 
@@ -33,7 +41,7 @@ public class CacheServer extends AbstractServer {
 
     // private boolean keepRunning = true; // moved to AbstractServer
     private ValueReference serverAdmins[];
-    // private Cache cache;
+    private Cache cache;
 
     private SiteInfo thisSite = null;
     private int thisServerNum = -1;
@@ -160,6 +168,18 @@ public class CacheServer extends AbstractServer {
         //    cache = new JDBCache(new File(main.getConfigDir(), CACHE_STORAGE_FILE));
         //
         //    resolver.setCache(cache);
+
+        // optionally keep the cache off of the heap, in a file which survives restarts
+        if (config.getBoolean(MAPPED_CACHE, false)) {
+            int maxHandles = config.getInt(MAPPED_CACHE_MAX_HANDLES, 1024 * 1024);
+            long maxSize = config.getLong(MAPPED_CACHE_SIZE, 1024L * 1024 * 1024);
+            long maxTTL = config.getLong(MAPPED_CACHE_MAX_TTL, 60 * 60);
+            cache = new MappedFileCache(new File(main.getConfigDir(), MAPPED_CACHE_FILE), maxHandles, maxSize, maxTTL);
+            resolver.setCache(cache);
+        }
+
+        // concurrent identical resolutions which miss the cache share one upstream request
+        resolver.setCoalesceResolutions(config.getBoolean(COALESCE_RESOLUTIONS, true));
     }
 
     /**
@@ -227,6 +247,10 @@ public class CacheServer extends AbstractServer {
         case AbstractMessage.OC_SESSION_TERMINATE:
             sendResponse(callback, new ErrorResponse(req, AbstractMessage.RC_ERROR, MSG_NOT_A_PRIMARY));
             return;
+        case AbstractMessage.OC_BULK_RESOLUTION:
+            // clients fall back to single resolution requests
+            sendResponse(callback, new ErrorResponse(req, AbstractMessage.RC_OPERATION_NOT_SUPPORTED, MSG_NO_BULK_RESOLUTION));
+            return;
         case AbstractMessage.OC_RESPONSE_TO_CHALLENGE:
             sendResponse(callback, new ErrorResponse(req, AbstractMessage.RC_AUTHEN_TIMEOUT, MSG_CHALLENGE_NOT_FOUND));
             return;
@@ -261,6 +285,14 @@ public class CacheServer extends AbstractServer {
     @Override
     public void shutdown() {
         keepRunning = false;
+        main.logError(ServerLog.ERRLOG_LEVEL_INFO, "Resolution coalescing: " + resolver.getResolutionCoalescer().getStatistics());
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (Exception e) {
+                main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error closing cache: " + e);
+            }
+        }
     }
 
     @Override
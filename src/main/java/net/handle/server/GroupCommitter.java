@@ -0,0 +1,211 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.cnri.util.StreamTable;
+import net.handle.hdllib.HandleException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+/***********************************************************************
+ * Makes writes durable in batches.  A writer performs its write
+ * without forcing it to disk and then calls {@link #awaitDurable()},
+ * which returns once a single committer thread has forced all of the
+ * writes made so far to disk.  Writes which arrive while the committer
+ * is syncing are made durable together by the next sync, so that many
+ * concurrent writers share each fsync.
+ *
+ * Configured in the server_config section with "group_commit",
+ * "group_commit_max_batch_size" (the most writes acknowledged by one
+ * sync) and "group_commit_max_delay" (milliseconds the committer may
+ * wait for more writes before syncing a partial batch; 0 by default).
+ ***********************************************************************/
+public class GroupCommitter {
+    public static final String GROUP_COMMIT = "group_commit";
+    public static final String GROUP_COMMIT_MAX_BATCH_SIZE = "group_commit_max_batch_size";
+    public static final String GROUP_COMMIT_MAX_DELAY = "group_commit_max_delay";
+
+    /** Forces previously written data to disk. */
+    public interface Syncer {
+        void sync() throws Exception;
+    }
+
+    private final String name;
+    private final Syncer syncer;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final Thread committerThread;
+
+    private final Object lock = new Object();
+    private Batch current = new Batch();
+    private volatile boolean shutdown = false;
+
+    private final LongAdder numSyncs = new LongAdder();
+    private final LongAdder numWrites = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+
+    /**
+     * @param name a name for the committer thread
+     * @param syncer forces written data to disk
+     * @param maxBatchSize the most writes acknowledged by one sync
+     * @param maxDelayMillis how long to wait for more writes before syncing a partial batch
+     */
+    public GroupCommitter(String name, Syncer syncer, int maxBatchSize, long maxDelayMillis) {
+        this.name = name;
+        this.syncer = syncer;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxDelayMillis));
+        committerThread = new Thread(this::run, "GroupCommitter " + name);
+        committerThread.setDaemon(true);
+        committerThread.start();
+    }
+
+    /** Returns true if the given configuration asks for group commit. */
+    public static boolean isEnabled(StreamTable config) {
+        return config.getBoolean(GROUP_COMMIT, false);
+    }
+
+    /** Returns a committer configured from the given configuration, or null if group commit is not enabled. */
+    public static GroupCommitter fromConfig(StreamTable config, String name, Syncer syncer) {
+        if (!isEnabled(config)) return null;
+        int maxBatchSize = config.getInt(GROUP_COMMIT_MAX_BATCH_SIZE, 1000);
+        long maxDelayMillis = config.getLong(GROUP_COMMIT_MAX_DELAY, 0);
+        return new GroupCommitter(name, syncer, maxBatchSize, maxDelayMillis);
+    }
+
+    /**
+     * Waits until a write already made by the calling thread has been forced
+     * to disk.  Throws a HandleException if the sync failed.
+     */
+    public void awaitDurable() throws HandleException {
+        Batch batch;
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (!shutdown && current.size >= maxBatchSize) {
+                // the committer has yet to take the full batch
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (shutdown) {
+                batch = null;
+            } else {
+                batch = current;
+                batch.size++;
+                lock.notifyAll();
+            }
+        }
+        if (batch == null) {
+            // the committer has stopped
+            syncNow();
+            return;
+        }
+        synchronized (batch) {
+            while (!batch.done) {
+                try {
+                    batch.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (batch.failure != null) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error syncing " + name, batch.failure);
+        }
+    }
+
+    private void syncNow() throws HandleException {
+        try {
+            syncer.sync();
+        } catch (Exception e) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error syncing " + name, e);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Batch batch;
+            synchronized (lock) {
+                while (current.size == 0 && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // only shutdown stops the committer
+                    }
+                }
+                if (current.size == 0) return;
+                if (maxDelayNanos > 0) {
+                    long deadline = System.nanoTime() + maxDelayNanos;
+                    long remaining;
+                    while (current.size < maxBatchSize && !shutdown && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                batch = current;
+                current = new Batch();
+                lock.notifyAll();
+            }
+            long start = System.nanoTime();
+            Exception failure = null;
+            try {
+                syncer.sync();
+            } catch (Exception e) {
+                failure = e;
+            }
+            numSyncs.increment();
+            numWrites.add(batch.size);
+            syncNanos.add(System.nanoTime() - start);
+            synchronized (batch) {
+                batch.failure = failure;
+                batch.done = true;
+                batch.notifyAll();
+            }
+        }
+    }
+
+    /** Syncs any outstanding writes and stops the committer thread. */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+        try {
+            committerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        long syncs = numSyncs.sum();
+        stats.addProperty("syncs", syncs);
+        stats.addProperty("writes", numWrites.sum());
+        stats.addProperty("averageBatchSize", syncs == 0 ? 0 : numWrites.sum() / (double) syncs);
+        stats.addProperty("averageSyncMicros", syncs == 0 ? 0 : syncNanos.sum() / syncs / 1000);
+        return stats;
+    }
+
+    private static class Batch {
+        int size;
+        boolean done;
+        Exception failure;
+    }
+}
@@ -0,0 +1,192 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.handle.hdllib.*;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.gson.JsonObject;
+
+/***********************************************************************
+ * A table of read/write locks used to avoid performing conflicting
+ * operations on the same handle.  Each handle maps to one of a fixed
+ * number of stripes; handles which share a stripe share a lock.
+ *
+ * Each stripe also has a version number which is odd while the stripe
+ * is write-locked and is advanced on every write, so that readers can
+ * read without locking and then check that no write overlapped the
+ * read, as with java.util.concurrent.locks.StampedLock.  Unlike a
+ * StampedLock, the locks are reentrant.
+ ***********************************************************************/
+public class HandleLockManager {
+    private final ReentrantReadWriteLock[] locks;
+    private final AtomicLongArray versions;
+    private final int mask;
+
+    private final LongAdder numContended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder numOptimisticRetries = new LongAdder();
+
+    /**
+     * @param numStripes the number of locks; rounded up to a power of two
+     * @param fair whether the locks should use a fair ordering policy
+     */
+    public HandleLockManager(int numStripes, boolean fair) {
+        int n = 1;
+        while (n < numStripes && n < (1 << 20)) {
+            n <<= 1;
+        }
+        locks = new ReentrantReadWriteLock[n];
+        for (int i = 0; i < n; i++) {
+            locks[i] = new ReentrantReadWriteLock(fair);
+        }
+        versions = new AtomicLongArray(n);
+        mask = n - 1;
+    }
+
+    /** Returns a reasonable number of stripes for this machine. */
+    public static int defaultNumStripes() {
+        return Math.max(256, Runtime.getRuntime().availableProcessors() * 64);
+    }
+
+    /** An acquired lock, released by {@link #close()} in a finally block. */
+    public interface HandleLock extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /** Functional interface for reading from storage. */
+    public interface StorageRead<T> {
+        T read() throws HandleException;
+    }
+
+    /** Acquires the write lock for the given handle, waiting if necessary. */
+    public HandleLock lockForWrite(byte[] handle) {
+        int stripe = stripeFor(handle);
+        ReentrantReadWriteLock rwLock = locks[stripe];
+        acquire(rwLock.writeLock());
+        if (rwLock.getWriteHoldCount() == 1) versions.incrementAndGet(stripe);
+        return () -> {
+            if (rwLock.getWriteHoldCount() == 1) versions.incrementAndGet(stripe);
+            rwLock.writeLock().unlock();
+        };
+    }
+
+    /**
+     * Acquires the write locks for all of the given handles, waiting if necessary.
+     * The locks are taken in stripe order, so that threads locking several handles
+     * at once can't deadlock with each other.
+     */
+    public HandleLock lockAllForWrite(Collection<byte[]> handles) {
+        int[] stripes = handles.stream().mapToInt(this::stripeFor).distinct().sorted().toArray();
+        for (int stripe : stripes) {
+            ReentrantReadWriteLock rwLock = locks[stripe];
+            acquire(rwLock.writeLock());
+            if (rwLock.getWriteHoldCount() == 1) versions.incrementAndGet(stripe);
+        }
+        return () -> {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                ReentrantReadWriteLock rwLock = locks[stripes[i]];
+                if (rwLock.getWriteHoldCount() == 1) versions.incrementAndGet(stripes[i]);
+                rwLock.writeLock().unlock();
+            }
+        };
+    }
+
+    /** Acquires the read lock for the given handle, waiting if necessary. */
+    public HandleLock lockForRead(byte[] handle) {
+        Lock lock = locks[stripeFor(handle)].readLock();
+        acquire(lock);
+        return lock::unlock;
+    }
+
+    /** Returns the current version for the given handle; odd if a write is in progress. */
+    public long getVersion(byte[] handle) {
+        return versions.get(stripeFor(handle));
+    }
+
+    /** Returns true if no write to the given handle has started since the given version was obtained. */
+    public boolean validate(byte[] handle, long version) {
+        return (version & 1) == 0 && versions.get(stripeFor(handle)) == version;
+    }
+
+    /**
+     * Performs the given read without locking, unless a write to the handle
+     * is in progress or overlaps the read, in which case the read is done
+     * again holding the read lock.
+     */
+    public <T> T readOptimistically(byte[] handle, StorageRead<T> read) throws HandleException {
+        long version = getVersion(handle);
+        if ((version & 1) == 0) {
+            T result = read.read();
+            if (validate(handle, version)) return result;
+            numOptimisticRetries.increment();
+        }
+        HandleLock lock = lockForRead(handle);
+        try {
+            return read.read();
+        } finally {
+            lock.close();
+        }
+    }
+
+    private void acquire(Lock lock) {
+        if (lock.tryLock()) return;
+        long start = System.nanoTime();
+        lock.lock();
+        long elapsed = System.nanoTime() - start;
+        numContended.increment();
+        waitNanos.add(elapsed);
+        long max;
+        while (elapsed > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, elapsed)) {
+            // retry
+        }
+    }
+
+    private int stripeFor(byte[] hdl) {
+        // quickly construct an index which is based on
+        // the local part of the handle (case insensitive)
+        int result = 1;
+        boolean inSuffix = false;
+        for (byte element : hdl) {
+            if (!inSuffix) {
+                if (element == '/') inSuffix = true;
+                continue;
+            }
+            result = 31 * result + element;
+            if (element >= 'a' && element <= 'z') {
+                result += Util.CASE_DIFF;
+            }
+        }
+        // spread the bits since only the low ones are used
+        result ^= (result >>> 16);
+        result *= 0x85ebca6b;
+        result ^= (result >>> 13);
+        return result & mask;
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        long contended = numContended.sum();
+        stats.addProperty("stripes", locks.length);
+        stats.addProperty("contended", contended);
+        stats.addProperty("averageWaitMicros", contended == 0 ? 0 : waitNanos.sum() / contended / 1000);
+        stats.addProperty("maxWaitMicros", maxWaitNanos.get() / 1000);
+        stats.addProperty("optimisticRetries", numOptimisticRetries.sum());
+        return stats;
+    }
+}
@@ -26,6 +26,7 @@ import net.handle.hdllib.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 import java.net.InetAddress;
@@ -60,7 +61,9 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     private static final byte MSG_INVALID_SESSION_OR_TIMEOUT[] = Util.encodeString("Invalid session id or session time out. Please try again.");
     private static final byte MSG_NEED_LIST_HDLS_PERM[] = Util.encodeString("This server does not support the list handles operation.");
     private static final byte MSG_NO_TXN_QUEUE[] = Util.encodeString("This server does not support replication.");
+    private static final byte MSG_NO_DUMP_RESUMPTION[] = Util.encodeString("This server does not support resumed or partitioned dumps.");
     private static final byte MSG_NO_NEXT_TXN_ID[] = Util.encodeString("Next txn id no longer supported; upgrade required");
+    private static final byte MSG_TOO_MANY_HANDLES[] = Util.encodeString("Too many handles in bulk resolution request");
     private static final byte SERVER_STATUS_HANDLE[] = Util.encodeString("0.SITE/status");
     private static final byte SERVER_STATUS_HDL_TYPE[] = Util.encodeString("CNRI.SERVER_STATUS");
     private static final byte REPLICATION_STATUS_HDL_TYPE[] = Util.encodeString("CNRI.REPLICATION_STATUS");
@@ -87,6 +90,7 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     public static final String READ_ONLY_TXN_QUEUE = "read_only_txn_queue";
     public static final String FILE_WRITE_NO_SYNC = "file_write_no_sync";
     public static final String ALLOW_LIST_HANDLES = "allow_list_hdls";
+    public static final String PREFIX_COUNT_TTL = "prefix_count_ttl";
     public static final String PREFERRED_GLOBAL = "preferred_global";
     public static final String MAX_SESSION_TIME = "max_session_time";
     public static final String REQUIRE_SESSIONS = "require_sessions";
@@ -111,14 +115,18 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     public static final String PRIVATE_KEY_FILE = "privkey.bin";
     public static final String PUBLIC_KEY_FILE = "pubkey.bin";
     public static final String DO_REPLICATION = "do_replication";
+    public static final String SIGNATURE_CACHE_SIZE = "signature_cache_size";
+    public static final String SIGNATURE_CACHE_TTL = "signature_cache_ttl";
+    public static final String HANDLE_LOCK_STRIPES = "handle_lock_stripes";
+    public static final String HANDLE_LOCK_FAIR = "handle_lock_fair";
+    public static final String MAX_REPLICATION_SUBSCRIPTIONS = "max_replication_subscriptions";
+    public static final String REPLICATION_SUBSCRIPTION_HEARTBEAT = "replication_subscription_heartbeat";
 
     public static final int RECURSION_LIMIT = 10;
     public static final int LIST_HANDLES_PER_MSG = 50;
 
     public static final String DEFAULT_ENC_ALG = "AES"; // options: DES, AES, DESEDE
 
-    private static final int NUM_SERVER_SIGNATURES = 50;
-
     private static final int DEL_HANDLE_PERM[] = { AdminRecord.DELETE_HANDLE };
     private static final int ADD_HANDLE_PERM[] = { AdminRecord.ADD_HANDLE };
     private static final int READ_VAL_PERM[] = { AdminRecord.READ_VALUE };
@@ -142,6 +150,7 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     private static int nextAuthId = 0;
     private long maxAuthTime;
     protected HandleStorage storage;
+    private PrefixHandleCounts prefixHandleCounts;
     private final ConcurrentMap<Integer, ChallengeResponseInfo> pendingAuthorizations = new ConcurrentHashMap<>();
     private boolean caseSensitive = false;
     private boolean serverAdminFullAccess = false;
@@ -163,7 +172,6 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     TransactionQueuePruner txnQueuePruner;
     boolean enableTxnQueue = true;
 
-    private int currentSigIndex = 0;
     SiteInfo thisSite = null;
     private int thisServerNum = -1;
 
@@ -174,8 +182,7 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     X509Certificate hdlTcpCertificate = null;
     X509Certificate[] certificateChain = null;
     PrivateKey certificatePrivateKey = null;
-    Signature[] serverSignaturesSha1 = null;
-    Signature[] serverSignaturesSha256 = null;
+    ResponseSigner responseSigner = null;
     private boolean allowRecursiveQueries = false;
     private boolean performRecursionForOldClientsRequestingReferredPrefixes = true;
     private boolean allowNAAdmins = true;
@@ -188,6 +195,9 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     private Map<Long, Long> transactionsInProgress = new ConcurrentHashMap<>();
 
     private ReplicationDaemon replicationDaemon;
+    // limits how many mirrors may hold replication streams open at once
+    private Semaphore replicationSubscriptionPermits;
+    private long replicationSubscriptionHeartbeat;
     private long startTime = 0;
     private final AtomicLong numRequests = new AtomicLong();
     private final AtomicLong numResolutionRequests = new AtomicLong();
@@ -196,7 +206,7 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     private boolean enableStatusHandle = true;
     private boolean enableHomedPrefixNaLookupOptimization = true;
     private int encryptionAlgorithm = HdlSecurityProvider.ENCRYPT_ALG_AES;
-    private Object lockHash[] = { new Object() };
+    private HandleLockManager handleLocks = new HandleLockManager(1, false);
 
     // a server side session manager to manage session
     private final SessionManager sessions = new SessionManager();
@@ -385,6 +395,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             if (isPrimary || keepOtherTransactions) {
                 initOtherTxnQueues(txnDir);
             }
+            replicationSubscriptionPermits = new Semaphore(config.getInt(MAX_REPLICATION_SUBSCRIPTIONS, 16));
+            replicationSubscriptionHeartbeat = config.getLong(REPLICATION_SUBSCRIPTION_HEARTBEAT, 15000);
             if (txnQueue != null || allOtherTransactionQueues != null) {
                 int daysToKeep = config.getInt("txnlog_num_days_to_keep", 0);
                 if (daysToKeep > 0) {
@@ -406,6 +418,7 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
 
         // load the database/storage system
         storage = HandleStorageFactory.getStorage(getConfigDir(), config, isPrimary);
+        prefixHandleCounts = new PrefixHandleCounts(storage, config.getLong(PREFIX_COUNT_TTL, 300) * 1000);
 
         try {
             maxAuthTime = Long.parseLong(String.valueOf(config.get(MAX_AUTH_TIME)).trim());
@@ -421,11 +434,9 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             storage.scanNAs(handle -> resolver.getConfiguration().setLocalSites(Util.decodeString(handle), ss));
         }
 
-        // expand the lockHash so that more write operations can happen in parallel
-        lockHash = new Object[256];
-        for (int i = 0; i < lockHash.length; i++) {
-            lockHash[i] = new Object();
-        }
+        // expand the lock table so that more write operations can happen in parallel
+        int numLockStripes = config.getInt(HANDLE_LOCK_STRIPES, HandleLockManager.defaultNumStripes());
+        handleLocks = new HandleLockManager(numLockStripes, config.getBoolean(HANDLE_LOCK_FAIR, false));
 
         ChallengeResponse.initializeRandom();
     }
@@ -521,30 +532,21 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
 
             buildCertificate(null, publicKey, privateKey);
 
-            // create a bunch of the signature objects so that signing responses
-            // doesn't become a bottleneck
-            serverSignaturesSha1 = new Signature[NUM_SERVER_SIGNATURES];
-            for (int i = 0; i < serverSignaturesSha1.length; i++) {
-                serverSignaturesSha1[i] = Signature.getInstance(Util.getSigIdFromHashAlgId(Common.HASH_ALG_SHA1, privateKey.getAlgorithm()));
-                serverSignaturesSha1[i].initSign(privateKey);
-            }
-
-            serverSignaturesSha256 = new Signature[NUM_SERVER_SIGNATURES];
-            for (int i = 0; i < serverSignaturesSha256.length; i++) {
-                serverSignaturesSha256[i] = Signature.getInstance(Util.getSigIdFromHashAlgId(Common.HASH_ALG_SHA256, privateKey.getAlgorithm()));
-                serverSignaturesSha256[i].initSign(privateKey);
-            }
+            // each signing thread gets its own signature objects so that signing
+            // responses doesn't become a bottleneck; signatures are only cached if configured
+            int signatureCacheSize = config.getInt(SIGNATURE_CACHE_SIZE, 0);
+            long signatureCacheTTL = config.getLong(SIGNATURE_CACHE_TTL, 60);
+            responseSigner = new ResponseSigner(privateKey, signatureCacheSize, signatureCacheTTL * 1000);
 
             // the signature has been initialized... now let's verify that it matches
             // the signature in the site information for this server.
             PublicKey pubKey = thisSite.servers[thisServerNum].getPublicKey();
 
             // generate a test signature,
-            serverSignaturesSha1[0].update(SIGN_TEST);
-            byte testSig[] = serverSignaturesSha1[0].sign();
+            byte testSig[] = responseSigner.sign(SIGN_TEST);
 
             // verify the test signature
-            Signature verifier = Signature.getInstance(serverSignaturesSha1[0].getAlgorithm());
+            Signature verifier = Signature.getInstance(responseSigner.getAlgorithm());
             verifier.initVerify(pubKey);
 
             verifier.update(SIGN_TEST);
@@ -626,6 +628,12 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
 
         if (config.getBoolean(ENABLE_MONITOR_DAEMON, false)) {
             monitorDaemon = new MonitorDaemon(60, startTime, numRequests, numResolutionRequests, numAdminRequests, numTxnRequests, getConfigDir());
+            if (main != null) monitorDaemon.setInterfaceStatistics(main::getInterfaceStatistics);
+            if (main != null) monitorDaemon.addStatistics("logging", main::getLogStatistics);
+            monitorDaemon.addStatistics("signing", responseSigner::getStatistics);
+            monitorDaemon.addStatistics("handleLocks", () -> handleLocks.getStatistics());
+            monitorDaemon.addStatistics("prefixServiceCache", () -> resolver.getPrefixServiceCache().getStatistics());
+            monitorDaemon.addStatistics("resolutionCoalescing", () -> resolver.getResolutionCoalescer().getStatistics());
             monitorDaemon.start();
         }
 
@@ -723,15 +731,34 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         if (!txnDir.exists()) {
             txnDir.mkdirs();
         }
+        if (config.getBoolean(BinaryTransactionQueue.BINARY_TXN_QUEUE, false)) {
+            TransactionQueueInterface currentQueue = new BinaryTransactionQueue(txnDir, config);
+            if (isConcatenatedQueueNeeded(txnDir) || BdbjeTransactionQueue.exists(txnDir)) {
+                // keep serving the transactions from before the switch to the binary queue;
+                // the old queue is never written again, and is deleted once the binary queue is pruned
+                this.txnQueue = new ConcatenatedTransactionQueue(openBdbjeTxnQueue(txnDir, true), currentQueue);
+            } else {
+                this.txnQueue = currentQueue;
+            }
+        } else {
+            this.txnQueue = openBdbjeTxnQueue(txnDir, config.getBoolean(READ_ONLY_TXN_QUEUE, false));
+        }
+        this.nextTxnId.set(this.txnQueue.getLastTxnId());
+    }
+
+    private TransactionQueueInterface openBdbjeTxnQueue(File txnDir, boolean readOnly) throws Exception {
+        StreamTable queueConfig = config;
+        if (readOnly && !config.getBoolean(READ_ONLY_TXN_QUEUE, false)) {
+            queueConfig = (StreamTable) config.deepClone();
+            queueConfig.put(READ_ONLY_TXN_QUEUE, true);
+        }
         if (isConcatenatedQueueNeeded(txnDir)) {
-            boolean readOnly = config.getBoolean(READ_ONLY_TXN_QUEUE, false);
             TransactionQueueInterface oldQueue = new FileBasedTransactionQueue(txnDir, readOnly);
-            TransactionQueueInterface currentQueue = new BdbjeTransactionQueue(txnDir, config);
-            this.txnQueue = new ConcatenatedTransactionQueue(oldQueue, currentQueue);
+            TransactionQueueInterface currentQueue = new BdbjeTransactionQueue(txnDir, queueConfig);
+            return new ConcatenatedTransactionQueue(oldQueue, currentQueue);
         } else {
-            this.txnQueue = new BdbjeTransactionQueue(txnDir, config);
+            return new BdbjeTransactionQueue(txnDir, queueConfig);
         }
-        this.nextTxnId.set(this.txnQueue.getLastTxnId());
     }
 
     private void initOtherTxnQueues(File txnDir) throws Exception {
@@ -785,6 +812,11 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         return this.storage;
     }
 
+    /** Returns the per-prefix handle counts, which must be told of writes to storage made outside this class. */
+    public PrefixHandleCounts getPrefixHandleCounts() {
+        return this.prefixHandleCounts;
+    }
+
     @Override
     public ReplicationDaemonInterface getReplicationDaemon() {
         return this.replicationDaemon;
@@ -793,7 +825,9 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
     /** Get handle values, possibly modified by the template system */
     @Override
     public final byte[][] getRawHandleValuesWithTemplate(byte inHandle[], int indexList[], byte typeList[][], short recursionCount) throws HandleException {
-        byte[][] values = storageGetRawHandleValues(caseSensitive ? inHandle : Util.upperCase(inHandle), indexList, typeList);
+        // reads don't lock, but are redone under the lock if they overlap a write to the handle
+        byte[] storageHandle = caseSensitive ? inHandle : Util.upperCase(inHandle);
+        byte[][] values = handleLocks.readOptimistically(inHandle, () -> storageGetRawHandleValues(storageHandle, indexList, typeList));
         if (values != null) return values;
 
         // if there is no overridden handle value, return a calculated value
@@ -973,24 +1007,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             if (!signed) { //if session key signing fails
                 // normal way of sending certified response through signature of server
                 // private key
-                Signature[] serverSignatures;
-                if (supportsSha256Signature(response)) {
-                    serverSignatures = serverSignaturesSha256;
-                } else {
-                    serverSignatures = serverSignaturesSha1;
-                }
-
                 try {
-                    // rotating through an array of signatures avoids a bottleneck
-                    // since we have to 'synchronize' on the signature while signing
-                    int sigIndex = currentSigIndex++;
-                    if (sigIndex >= serverSignatures.length) sigIndex = currentSigIndex = 0;
-
-                    Signature sig = serverSignatures[sigIndex];
-
-                    synchronized (sig) {
-                        response.signMessage(sig);
-                    }
+                    responseSigner.signResponse(response);
                 } catch (Exception e) {
                     // If we get an error while signing the response, we return
                     // the unsigned message anyway.  Maybe an error message would
@@ -1003,13 +1021,6 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         callback.handleResponse(response);
     }
 
-    private boolean supportsSha256Signature(AbstractResponse response) {
-        if (response.hasEqualOrGreaterVersion(2, 11)) return true;
-        if ("DSA".equals(privateKey.getAlgorithm())) return false;
-        if (response.hasEqualOrGreaterVersion(2, 7)) return true;
-        return false;
-    }
-
     @Override
     public void disable() {
         serverEnabled = false;
@@ -1111,6 +1122,11 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             numResolutionRequests.incrementAndGet();
             sendResponse(callback, doResolution((ResolutionRequest) req, cRes, crReq, false));
             break;
+        case AbstractMessage.OC_BULK_RESOLUTION:
+            BulkResolutionRequest bulkReq = (BulkResolutionRequest) req;
+            numResolutionRequests.addAndGet(bulkReq.handles.length);
+            sendResponse(callback, doBulkResolution(bulkReq));
+            break;
         case AbstractMessage.OC_LIST_HANDLES:
             doListHandles(callback, (ListHandlesRequest) req, cRes, crReq);
             break;
@@ -1268,7 +1284,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         AbstractResponse authError = returnErrorOrChallengeIfRequestNotAuthorized(req, cRes, crReq, serverAdmins, homeOnlyAdmins);
         if (authError != null) return authError;
 
-        synchronized (getWriteLock(handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(handle);
+        try {
             try {
                 // if this NA handle hashes to this server, make a transaction for this operation
                 if (thisSite.determineServerNum(handle) == thisServerNum) {
@@ -1290,6 +1307,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             }
             // add to resolver's local sites
             adjustHomedPrefix(handle, true);
+        } finally {
+            handleLock.close();
         }
         // return success
         return new GenericResponse(req, AbstractMessage.RC_SUCCESS);
@@ -1300,7 +1319,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
      * Does not require a request object or challenge response objects.
      ***********************************************************************/
     private void doHomeNA(byte[] na) throws HandleException {
-        synchronized (getWriteLock(na)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(na);
+        try {
             try {
                 if (thisSite.determineServerNum(na) == thisServerNum) {
                     if (!insertTransaction(na, null, Transaction.ACTION_HOME_NA)) {
@@ -1313,6 +1333,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
             adjustHomedPrefix(na, true);
+        } finally {
+            handleLock.close();
         }
     }
 
@@ -1331,7 +1353,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         AbstractResponse authError = returnErrorOrChallengeIfRequestNotAuthorized(req, cRes, crReq, serverAdmins, homeOnlyAdmins);
         if (authError != null) return authError;
 
-        synchronized (getWriteLock(handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(handle);
+        try {
             try {
                 if (thisSite.determineServerNum(handle) == thisServerNum) {
                     AbstractResponse maybeError = validateAndInsertTransactionReturnResponseIfError(req, handle, null, Transaction.ACTION_UNHOME_NA);
@@ -1352,6 +1375,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             }
             // remove from resolver's local sites
             adjustHomedPrefix(handle, false);
+        } finally {
+            handleLock.close();
         }
         // return success
         return new GenericResponse(req, AbstractMessage.RC_SUCCESS);
@@ -1388,7 +1413,11 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         if (req.replicationStateInfo != null) {
             //logError(ServerLog.ERRLOG_LEVEL_INFO, "Replicating transactions from all sources");
             String ownReplicationServerName = thisServerNum + ":" + replicationSiteName;
-            return new RetrieveTxnResponse(allOtherTransactionQueues, ownReplicationServerName, latestCommittedTxnId, replicationDaemon.getReplicationStateInfo(), req, storage, caseSensitive);
+            RetrieveTxnResponse res = new RetrieveTxnResponse(allOtherTransactionQueues, ownReplicationServerName, latestCommittedTxnId, replicationDaemon.getReplicationStateInfo(), req, storage, caseSensitive);
+            if (req.subscribe) {
+                res.setSubscription(this::getLatestTxnId, replicationDaemon, replicationSubscriptionPermits, replicationSubscriptionHeartbeat);
+            }
+            return res;
         } else {
             String start = (new Date(req.lastQueryDate)).toString();
             String end = (new Date(System.currentTimeMillis())).toString();
@@ -1405,7 +1434,11 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
                 logError(ServerLog.ERRLOG_LEVEL_INFO, msg);
             }
 
-            return new RetrieveTxnResponse(txnQueue, latestCommittedTxnId, req, storage, caseSensitive);
+            RetrieveTxnResponse res = new RetrieveTxnResponse(txnQueue, latestCommittedTxnId, req, storage, caseSensitive);
+            if (req.subscribe) {
+                res.setSubscription(this::getLatestTxnId, null, replicationSubscriptionPermits, replicationSubscriptionHeartbeat);
+            }
+            return res;
         }
     }
 
@@ -1421,6 +1454,15 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         }
         AbstractResponse authError = returnErrorOrChallengeIfRequestNotAuthorized(req, cRes, crReq, replicationAdmins, serverAdmins);
         if (authError != null) return authError;
+        if (req.startingPoint != null && !storage.supportsDumpResumption()) {
+            // resumed, partitioned and range dumps all scan from a given handle
+            return new ErrorResponse(req, AbstractMessage.RC_OPERATION_NOT_SUPPORTED, MSG_NO_DUMP_RESUMPTION);
+        }
+        if ((req.startingPointType == DumpHandlesRequest.HANDLE_RANGE || req.startingPointType == DumpHandlesRequest.PARTITIONED) && !storage.scansHandlesInByteOrder()) {
+            // the ranges are in byte order, which may not be the order of the storage (such as SQL collation order);
+            // the requestor falls back to dumping all handles on one connection
+            return new ErrorResponse(req, AbstractMessage.RC_OPERATION_NOT_SUPPORTED, MSG_NO_DUMP_RESUMPTION);
+        }
 
         // at this point, the replication admin has been authenticated,
         // and the requestor is reasonably up to date, so we can begin
@@ -1505,7 +1547,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             return createChallenge(req);
         }
 
-        synchronized (getWriteLock(req.handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(req.handle);
+        try {
 
             // check to see if the given user has permission to delete this
             try {
@@ -1530,7 +1573,14 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
                 AbstractResponse maybeError = validateAndInsertTransactionReturnResponseIfError(req, req.handle, null, Transaction.ACTION_DELETE_HANDLE);
                 if (maybeError != null) return maybeError;
 
-                storage.deleteHandle((caseSensitive ? req.handle : Util.upperCase(req.handle)));
+                byte storedHandle[] = caseSensitive ? req.handle : Util.upperCase(req.handle);
+                PrefixHandleCounts.Update countUpdate = prefixHandleCounts.beginUpdate(storedHandle);
+                boolean deleted = false;
+                try {
+                    deleted = storage.deleteHandle(storedHandle);
+                } finally {
+                    countUpdate.finish(deleted ? -1 : 0);
+                }
             } catch (HandleException e) {
                 logError(ServerLog.ERRLOG_LEVEL_FATAL, "Error committing transaction: " + e);
                 switch (e.getCode()) {
@@ -1544,6 +1594,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             } finally {
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
+        } finally {
+            handleLock.close();
         }
 
         return new GenericResponse(req, AbstractMessage.RC_SUCCESS);
@@ -1574,7 +1626,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
 
         byte handle[] = (caseSensitive ? req.handle : Util.upperCase(req.handle));
 
-        synchronized (getWriteLock(req.handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(req.handle);
+        try {
 
             // get the current values...
             byte rawValues[][] = storageGetRawHandleValues(handle, null, null);
@@ -1652,6 +1705,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             } finally {
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
+        } finally {
+            handleLock.close();
         }
 
         return new GenericResponse(req, AbstractMessage.RC_SUCCESS);
@@ -1679,7 +1734,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         boolean isAnonymous = ((cRes == null || crReq == null) && !authenticatedSession(req));
         byte handle[] = (caseSensitive ? req.handle : Util.upperCase(req.handle));
 
-        synchronized (getWriteLock(req.handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(req.handle);
+        try {
 
             // get the current values...
             byte rawValues[][] = storageGetRawHandleValues(handle, null, null);
@@ -1783,6 +1839,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             } finally {
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
+        } finally {
+            handleLock.close();
         }
         return new GenericResponse(req, AbstractMessage.RC_SUCCESS);
     }
@@ -1819,7 +1877,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         byte handle[] = (caseSensitive ? req.handle : Util.upperCase(req.handle));
 
         boolean didOverwriteExisting;
-        synchronized (getWriteLock(req.handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(req.handle);
+        try {
             // get the current values...
             byte rawValues[][] = storageGetRawHandleValues(handle, null, null);
             if (rawValues == null) {
@@ -1874,6 +1933,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
 
+        } finally {
+            handleLock.close();
         }
         AbstractResponse resp = new GenericResponse(req, AbstractMessage.RC_SUCCESS);
         resp.overwriteWhenExists = didOverwriteExisting;
@@ -2240,7 +2301,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         }
 
         boolean didOverwriteExisting = false;
-        synchronized (getWriteLock(handle)) {
+        HandleLockManager.HandleLock handleLock = lockForWrite(handle);
+        try {
             byte[][] rawValues = storageGetRawHandleValues((caseSensitive ? handle : Util.upperCase(handle)), null, req.overwriteWhenExists ? null : Common.ADMIN_TYPES);
             if (!req.overwriteWhenExists && rawValues != null) {
                 return new ErrorResponse(req, AbstractMessage.RC_HANDLE_ALREADY_EXISTS, null);
@@ -2308,7 +2370,15 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
                 if (maybeError != null) return maybeError;
 
                 if (rawValues == null) {
-                    storage.createHandle((caseSensitive ? handle : Util.upperCase(handle)), req.values);
+                    byte storedHandle[] = caseSensitive ? handle : Util.upperCase(handle);
+                    PrefixHandleCounts.Update countUpdate = prefixHandleCounts.beginUpdate(storedHandle);
+                    boolean created = false;
+                    try {
+                        storage.createHandle(storedHandle, req.values);
+                        created = true;
+                    } finally {
+                        countUpdate.finish(created ? 1 : 0);
+                    }
                 } else {
                     storage.updateValue((caseSensitive ? handle : Util.upperCase(handle)), req.values);
                 }
@@ -2325,6 +2395,8 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
             } finally {
                 transactionsInProgress.remove(Thread.currentThread().getId());
             }
+        } finally {
+            handleLock.close();
         }
 
         //AbstractResponse resp = new GenericResponse(req, AbstractMessage.RC_SUCCESS);
@@ -2503,6 +2575,30 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         }
     }
 
+    /**
+     * Resolves each handle in a bulk resolution request as if it had been sent
+     * in its own non-recursive, unauthenticated resolution request, and returns
+     * all of the results in a single response.  Results which the client has
+     * to act on itself, such as referrals, only carry their response code;
+     * the client is expected to resolve those handles individually.
+     */
+    private AbstractResponse doBulkResolution(BulkResolutionRequest req) throws HandleException {
+        if (req.handles.length > Common.MAX_BULK_RESOLUTION_HANDLES) {
+            return new ErrorResponse(req, AbstractMessage.RC_PROTOCOL_ERROR, MSG_TOO_MANY_HANDLES);
+        }
+        BulkResolutionResponse res = new BulkResolutionResponse(req);
+        for (int i = 0; i < req.handles.length; i++) {
+            ResolutionRequest resReq = new ResolutionRequest(req.handles[i], req.requestedTypes, req.requestedIndexes, null);
+            resReq.ignoreRestrictedValues = true;
+            resReq.recursive = false;
+            resReq.recursionCount = req.recursionCount;
+            resReq.suggestMajorProtocolVersion = req.suggestMajorProtocolVersion;
+            resReq.suggestMinorProtocolVersion = req.suggestMinorProtocolVersion;
+            res.setResult(i, doResolution(resReq, null, null, false));
+        }
+        return res;
+    }
+
     private AbstractRequest cloneRequestForRecursion(AbstractRequest req) {
         AbstractRequest clonedReq = req.clone();
         clonedReq.recursionCount++;
@@ -2746,6 +2842,10 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         // At this point, the requestor has authenticated as an admin
         // of the NA with permission to list handles.  We will now begin
         // sending back list handle responses...
+        if (req.startAfter != null || req.maxHandles >= 0 || req.countHandles) {
+            doListHandlesPage(callback, req, handle);
+            return;
+        }
         ListHandlesResponse response = new ListHandlesResponse(req, null);
         byte handles[][] = new byte[LIST_HANDLES_PER_MSG][];
         int numHandles = 0;
@@ -2786,6 +2886,27 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         }
     }
 
+    /************************************************************************
+     * Sends, in one response, the page of handles asked for by a list-handles
+     * request from within the server, reading only that page from storage.
+     * The total count comes from the per-prefix counts instead of the listing.
+     ************************************************************************/
+    private void doListHandlesPage(ResponseMessageCallback callback, ListHandlesRequest req, byte[] handle) throws HandleException {
+        int maxHandles = req.maxHandles < 0 ? Integer.MAX_VALUE : req.maxHandles;
+        // one more than the page is read to find whether there are more
+        List<byte[]> page = storage.getHandlesForNA(handle, req.startAfter, maxHandles == Integer.MAX_VALUE ? maxHandles : maxHandles + 1);
+        byte[] nextStartAfter = null;
+        if (page.size() > maxHandles) {
+            page = page.subList(0, maxHandles);
+            if (maxHandles > 0) nextStartAfter = page.get(maxHandles - 1);
+        }
+        ListHandlesResponse response = new ListHandlesResponse(req, page.toArray(new byte[page.size()][]));
+        response.nextStartAfter = nextStartAfter;
+        if (req.countHandles) response.totalCount = prefixHandleCounts.getCount(handle);
+        response.continuous = false;
+        sendResponse(callback, response);
+    }
+
     private boolean isSpecialDerivedPrefixMarker(byte[] handle) {
         return Util.startsWithCI(handle, Common.SPECIAL_DERIVED_MARKER);
     }
@@ -3600,27 +3721,17 @@ public class HandleServer extends AbstractServer implements HandleServerInterfac
         return sessions.getSession(sessionId);
     }
 
-    /** Returns an object that can be synchronized in order to avoid performing
-     * conflicting operations on the given handle.
-     * This write lock always wraps any access to storage or replicationDb.
+    /** Acquires the lock which must be held in order to avoid performing
+     * conflicting operations on the given handle; release it by closing it.
+     * This write lock always wraps any modification of storage or replicationDb.
      * */
-    public Object getWriteLock(byte hdl[]) {
-        // quickly construct an index into the lockHash which is based on
-        // the local part of the handle (case insensitive)
-        int result = 1;
-        boolean inSuffix = false;
-        for (byte element : hdl) {
-            if (!inSuffix) {
-                if (element == '/') inSuffix = true;
-                continue;
-            }
-            result = 31 * result + element;
-            if (element >= 'a' && element <= 'z') {
-                result += Util.CASE_DIFF;
-            }
-        }
-        result = Math.abs(result);
-        return lockHash[result % lockHash.length];
+    public HandleLockManager.HandleLock lockForWrite(byte hdl[]) {
+        return handleLocks.lockForWrite(hdl);
+    }
+
+    /** Acquires the write locks for all of the given handles at once, in an order which avoids deadlock. */
+    public HandleLockManager.HandleLock lockAllForWrite(Collection<byte[]> hdls) {
+        return handleLocks.lockAllForWrite(hdls);
     }
 
     @Override
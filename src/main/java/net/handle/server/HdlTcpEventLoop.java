@@ -0,0 +1,397 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.handle.hdllib.*;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/***********************************************************************
+ * A selector thread used by HdlTcpInterface when configured with
+ * "use_nio".  Each event loop reads the message envelope and body of
+ * its connections without blocking, and only hands complete messages
+ * to the interface's handler pool.  Responses written by the handlers
+ * are queued on the connection and written out by the event loop.
+ *
+ * When the interface allows keep-alive and a request asks for it, the
+ * event loop goes on reading requests from the connection while earlier
+ * ones are being handled, up to the interface's limit on pipelined
+ * requests; responses may then be written in any order.
+ ***********************************************************************/
+public class HdlTcpEventLoop implements Runnable {
+    /** Handlers writing a response wait while more than this many bytes are queued on the connection. */
+    static final int MAX_PENDING_WRITE_BYTES = 1024 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final Main main;
+    private final HdlTcpInterface interfc;
+    private final ExecutorService handlerPool;
+    private final boolean logAccesses;
+    private final int maxIdleTime;
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean keepRunning = true;
+
+    public HdlTcpEventLoop(Main main, HdlTcpInterface interfc, ExecutorService handlerPool, boolean logAccesses, int maxIdleTime) throws IOException {
+        this.main = main;
+        this.interfc = interfc;
+        this.handlerPool = handlerPool;
+        this.logAccesses = logAccesses;
+        this.maxIdleTime = maxIdleTime;
+        this.selector = Selector.open();
+    }
+
+    /** Hands a newly accepted connection to this event loop. */
+    public void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        execute(() -> {
+            try {
+                Connection conn = new Connection(channel);
+                conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    public void stopRunning() {
+        keepRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (keepRunning) {
+                selector.select(SELECT_TIMEOUT);
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) conn.doRead();
+                        if (key.isValid() && key.isWritable()) conn.doWrite();
+                    } catch (CancelledKeyException e) {
+                        conn.close();
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= SELECT_TIMEOUT) {
+                    lastIdleCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        Connection conn = (Connection) key.attachment();
+                        if (conn != null) conn.checkIdle(now);
+                    }
+                }
+            }
+        } catch (Throwable t) {
+            if (keepRunning) {
+                main.logError(ServerLog.ERRLOG_LEVEL_REALBAD, String.valueOf(this.getClass()) + ": Error in event loop: " + t);
+                t.printStackTrace(System.err);
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (conn != null) conn.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /***********************************************************************
+     * A single client connection.  Reads happen only on the event loop
+     * thread; writes may be queued by a handler thread.
+     ***********************************************************************/
+    public class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final ByteBuffer envelopeBuf = ByteBuffer.allocate(Common.MESSAGE_ENVELOPE_SIZE);
+        private ByteBuffer messageBuf = null;
+        private boolean reading = true;
+        private long lastReadTime = System.currentTimeMillis();
+        // requests dispatched to handlers which haven't finished; only used on the event loop thread
+        private int inFlight = 0;
+        private boolean dispatchedAny = false;
+        // set once a request not asking for keep-alive is read; no more requests are read after it
+        private boolean lastRequestRead = false;
+        // completed on the event loop thread once a streaming handler may take over the socket
+        private volatile CompletableFuture<Void> blockingSwitch = null;
+
+        private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+        private long pendingWriteBytes = 0;
+        private volatile boolean closeWhenWritten = false;
+        private volatile boolean blocking = false;
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Returns the socket for this connection, for informational use, or for output once {@link #switchToBlocking()} has been called. */
+        public Socket getSocket() {
+            return channel.socket();
+        }
+
+        boolean isReading() {
+            return reading;
+        }
+
+        boolean isBlocking() {
+            return blocking;
+        }
+
+        void doRead() throws IOException {
+            if (!reading) return;
+            int r;
+            if (envelopeBuf.hasRemaining()) {
+                r = channel.read(envelopeBuf);
+                if (r < 0) {
+                    close();
+                    return;
+                }
+                if (r > 0) lastReadTime = System.currentTimeMillis();
+                if (envelopeBuf.hasRemaining()) return;
+                int messageLength = Encoder.readInt(envelopeBuf.array(), 16);
+                if (messageLength > Common.MAX_MESSAGE_LENGTH || messageLength < 0) {
+                    // the handler will report the invalid envelope
+                    dispatch(envelopeBuf.array(), null);
+                    return;
+                }
+                messageBuf = ByteBuffer.allocate(messageLength);
+            }
+            if (messageBuf.hasRemaining()) {
+                r = channel.read(messageBuf);
+                if (r < 0) {
+                    close();
+                    return;
+                }
+                if (r > 0) lastReadTime = System.currentTimeMillis();
+            }
+            if (!messageBuf.hasRemaining()) {
+                dispatch(envelopeBuf.array(), messageBuf.array());
+            }
+        }
+
+        /** Closes the connection, or has a handler report a timeout, if it has been waiting too long for a request. */
+        void checkIdle(long now) {
+            if (!reading) return;
+            boolean partway = envelopeBuf.position() > 0;
+            if (dispatchedAny && !partway) {
+                // a kept-alive connection waiting for its next request
+                if (inFlight == 0 && now - lastReadTime > interfc.getKeepAliveTimeout()) close();
+            } else if (maxIdleTime > 0 && now - lastReadTime > maxIdleTime) {
+                dispatch(null, null);
+            }
+        }
+
+        /**
+         * Passes the message to a handler, and stops reading unless the request
+         * asked for the connection to be kept alive.  A null envelope indicates
+         * that reading timed out.
+         */
+        void dispatch(byte[] envelope, byte[] message) {
+            long recvTime = System.currentTimeMillis();
+            boolean keepAlive = message != null && interfc.allowsKeepAlive() && (envelope[2] & Encoder.ENV_FLAG_KEEP_ALIVE) != 0;
+            if (envelope != null) envelope = envelope.clone();
+            inFlight++;
+            dispatchedAny = true;
+            envelopeBuf.clear();
+            messageBuf = null;
+            if (!keepAlive) lastRequestRead = true;
+            if (!keepAlive || inFlight >= interfc.getMaxPipelinedRequests()) reading = false;
+            updateInterest();
+            try {
+                handlerPool.execute(new HdlTcpRequestHandler(main, interfc, logAccesses, this, envelope, message, recvTime));
+            } catch (Exception e) {
+                main.logError(ServerLog.ERRLOG_LEVEL_REALBAD, String.valueOf(HdlTcpEventLoop.this.getClass()) + ": Error handling request: " + e);
+                close();
+            }
+        }
+
+        /** Queues the given bytes to be written by the event loop, waiting if too much output is already queued. */
+        public void write(byte[] buf) throws IOException {
+            if (closed) throw new ClosedChannelException();
+            synchronized (this) {
+                pendingWrites.add(ByteBuffer.wrap(buf));
+                pendingWriteBytes += buf.length;
+            }
+            execute(this::updateInterest);
+            synchronized (this) {
+                while (pendingWriteBytes > MAX_PENDING_WRITE_BYTES && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted writing response", e);
+                    }
+                }
+            }
+            if (closed) throw new ClosedChannelException();
+        }
+
+        void doWrite() throws IOException {
+            ByteBuffer buf;
+            while ((buf = pendingWrites.peek()) != null) {
+                int n = channel.write(buf);
+                if (n > 0) {
+                    synchronized (this) {
+                        pendingWriteBytes -= n;
+                        if (pendingWriteBytes <= MAX_PENDING_WRITE_BYTES) notifyAll();
+                    }
+                }
+                if (buf.hasRemaining()) return;
+                pendingWrites.poll();
+            }
+            updateInterest();
+            if (closeWhenWritten && inFlight == 0) close();
+            else completeBlockingSwitchIfReady();
+        }
+
+        /**
+         * Takes this connection off of the event loop and puts it in blocking mode,
+         * after any other pipelined requests have finished and all queued output has
+         * been written.  No further requests are read from the connection.  Used for
+         * streamed responses, which write directly to the socket.
+         */
+        public Socket switchToBlocking() throws IOException {
+            if (closed) throw new ClosedChannelException();
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            blockingSwitch = future;
+            execute(() -> {
+                // no further requests are read from a connection with a streamed response
+                reading = false;
+                lastRequestRead = true;
+                updateInterest();
+                if (closed) future.completeExceptionally(new ClosedChannelException());
+                else completeBlockingSwitchIfReady();
+            });
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted switching to blocking mode", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ClosedChannelException) throw (ClosedChannelException) e.getCause();
+                throw new IOException("Unable to switch to blocking mode", e.getCause());
+            }
+            return channel.socket();
+        }
+
+        /** Switches to blocking mode if requested and the streaming request is the only one left with output to write. */
+        private void completeBlockingSwitchIfReady() {
+            CompletableFuture<Void> future = blockingSwitch;
+            if (future == null || future.isDone() || inFlight > 1 || !pendingWrites.isEmpty()) return;
+            try {
+                if (key != null) key.cancel();
+                // flush the cancelled key out of the selector so the channel can block
+                selector.selectNow();
+                channel.configureBlocking(true);
+                blocking = true;
+                future.complete(null);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        /**
+         * Called by the handler when it is done.  Unless the connection is to be kept
+         * alive, it is closed once every pipelined request has finished and all queued
+         * output is written; otherwise reading resumes if it was paused, unless a request
+         * not asking for keep-alive has already been read.
+         */
+        public void finish(boolean keepAlive) {
+            if (blocking) {
+                close();
+                return;
+            }
+            if (!keepAlive) closeWhenWritten = true;
+            execute(() -> {
+                inFlight--;
+                if (closeWhenWritten) {
+                    // other pipelined requests are still allowed to write their responses
+                    reading = false;
+                    if (inFlight == 0 && pendingWrites.isEmpty()) close();
+                    else completeBlockingSwitchIfReady();
+                    return;
+                }
+                completeBlockingSwitchIfReady();
+                lastReadTime = System.currentTimeMillis();
+                if (!reading && !lastRequestRead) {
+                    reading = true;
+                    updateInterest();
+                }
+            });
+        }
+
+        private void updateInterest() {
+            setInterest((reading ? SelectionKey.OP_READ : 0) | (pendingWrites.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+        }
+
+        private void setInterest(int ops) {
+            if (key == null || blocking || closed) return;
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void close() {
+            closed = true;
+            CompletableFuture<Void> future = blockingSwitch;
+            if (future != null) future.completeExceptionally(new ClosedChannelException());
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+            synchronized (this) {
+                pendingWrites.clear();
+                pendingWriteBytes = 0;
+                notifyAll();
+            }
+        }
+    }
+}
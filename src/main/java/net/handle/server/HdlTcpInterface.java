@@ -14,6 +14,8 @@ import net.cnri.util.StreamTable;
 import net.handle.hdllib.*;
 
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
 
@@ -37,6 +39,21 @@ public class HdlTcpInterface extends NetworkInterface {
     private ServerSocket socket = null;
     private boolean keepServing = true;
 
+    // optional selector-based transport
+    private boolean useNio = false;
+    private int numEventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    private ServerSocketChannel serverChannel = null;
+    private HdlTcpEventLoop[] eventLoops = null;
+
+    // optional persistent connections, for clients which ask for them
+    private boolean keepAlive = false;
+    private int keepAliveTimeout = 60 * 1000;
+    private int maxPipelinedRequests = 16;
+
+    // compression of responses and streams, for clients which accept it
+    private boolean compression = true;
+    private int compressionThreshold = Common.DEFAULT_COMPRESSION_THRESHOLD;
+
     public HdlTcpInterface(Main main, StreamTable config) throws Exception {
         super(main);
         init(config);
@@ -95,9 +112,71 @@ public class HdlTcpInterface extends NetworkInterface {
 
         // check if we should log accesses or not...
         logAccesses = config.getBoolean("log_accesses");
+
+        // use event loops to read requests without tying up a handler thread per connection
+        useNio = config.getBoolean("use_nio", false);
+        try {
+            if (config.containsKey("num_event_loops")) {
+                numEventLoops = Integer.parseInt((String) config.get("num_event_loops"));
+                if (numEventLoops <= 0) throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            numEventLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid num_event_loops, using default: " + numEventLoops);
+        }
+
+        // keep connections open for further requests when the client sets the keep-alive envelope flag
+        keepAlive = config.getBoolean("keep_alive", false);
+        try {
+            if (config.containsKey("keep_alive_timeout")) {
+                keepAliveTimeout = Integer.parseInt((String) config.get("keep_alive_timeout"));
+                if (keepAliveTimeout <= 0) throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            keepAliveTimeout = 60 * 1000;
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid keep_alive_timeout, using default: " + keepAliveTimeout);
+        }
+        try {
+            if (config.containsKey("max_pipelined_requests")) {
+                maxPipelinedRequests = Integer.parseInt((String) config.get("max_pipelined_requests"));
+                if (maxPipelinedRequests <= 0) throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            maxPipelinedRequests = 16;
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid max_pipelined_requests, using default: " + maxPipelinedRequests);
+        }
+
+        // compress responses of at least compression_threshold bytes, and streamed responses, when the client accepts it
+        compression = config.getBoolean("enable_compression", true);
+        compressionThreshold = config.getInt("compression_threshold", Common.DEFAULT_COMPRESSION_THRESHOLD);
         super.initialize();
     }
 
+    /** Returns whether connections are kept open for clients which set the keep-alive envelope flag. */
+    public boolean allowsKeepAlive() {
+        return keepAlive;
+    }
+
+    /** Returns how long, in milliseconds, a kept-alive connection may wait for its next request. */
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    /** Returns whether responses may be compressed for clients which accept compression. */
+    public boolean allowsCompression() {
+        return compression;
+    }
+
+    /** Returns the size, in bytes, from which responses are compressed for clients which accept compression. */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /** Returns how many requests on one kept-alive connection may be processed at once when using event loops. */
+    public int getMaxPipelinedRequests() {
+        return maxPipelinedRequests;
+    }
+
     /****************************************************************
      * Tells the interface to finish up the current operation and
      * stop listening for new connections.
@@ -106,9 +185,19 @@ public class HdlTcpInterface extends NetworkInterface {
     protected void stopService() {
         keepServing = false;
         try {
-            socket.close();
+            if (socket != null) socket.close();
         } catch (Exception e) {
         }
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (Exception e) {
+        }
+        HdlTcpEventLoop[] loops = eventLoops;
+        if (loops != null) {
+            for (HdlTcpEventLoop loop : loops) {
+                loop.stopRunning();
+            }
+        }
     }
 
     /****************************************************************
@@ -118,6 +207,10 @@ public class HdlTcpInterface extends NetworkInterface {
     @Override
     public void serveRequests() {
         keepServing = true;
+        if (useNio) {
+            serveRequestsWithEventLoops();
+            return;
+        }
         try {
             if (bindAddress == null) {
                 socket = new ServerSocket(bindPort, backlog);
@@ -161,4 +254,67 @@ public class HdlTcpInterface extends NetworkInterface {
         } catch (Exception e) {
         }
     }
+
+    /****************************************************************
+     * Accepts connections and hands them to event loops, which read
+     * each request without blocking and dispatch complete messages
+     * to the handler pool.
+     ***************************************************************/
+    private void serveRequestsWithEventLoops() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(bindAddress, bindPort), backlog < 0 ? 0 : backlog);
+        } catch (Exception e) {
+            main.logError(ServerLog.ERRLOG_LEVEL_FATAL, String.valueOf(this.getClass()) + ": Error setting up server socket: " + e);
+            return;
+        }
+        System.out.println("TCP handle Request Listener:");
+        System.out.println("   address: " + (bindAddress == null ? "ANY" : "" + Util.rfcIpRepr(bindAddress)));
+        System.out.println("      port: " + bindPort);
+        System.out.println("    (using " + numEventLoops + " event loops)");
+        handlerPool = new GrowBeforeTransferQueueThreadPoolExecutor(numThreads, maxHandlers, 1, TimeUnit.MINUTES, new LinkedTransferQueue<>());
+        HdlTcpEventLoop[] loops = new HdlTcpEventLoop[numEventLoops];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new HdlTcpEventLoop(main, this, handlerPool, logAccesses, maxIdleTime);
+                Thread t = new Thread(loops[i], "HdlTcpEventLoop-" + bindPort + "-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (Exception e) {
+            main.logError(ServerLog.ERRLOG_LEVEL_FATAL, String.valueOf(this.getClass()) + ": Error setting up event loops: " + e);
+            for (HdlTcpEventLoop loop : loops) {
+                if (loop != null) loop.stopRunning();
+            }
+            return;
+        }
+        eventLoops = loops;
+        System.out.println("Starting TCP request handlers...");
+        try {
+            System.out.flush();
+        } catch (Exception e) {
+        }
+        int nextLoop = 0;
+        while (keepServing) {
+            try {
+                @SuppressWarnings("resource")
+                SocketChannel newChannel = serverChannel.accept();
+                loops[nextLoop].register(newChannel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            } catch (Exception e) {
+                if (keepServing) {
+                    main.logError(ServerLog.ERRLOG_LEVEL_REALBAD, String.valueOf(this.getClass()) + ": Error handling request: " + e);
+                    e.printStackTrace(System.err);
+                }
+            }
+        }
+        try {
+            serverChannel.close();
+        } catch (Exception e) {
+        }
+        for (HdlTcpEventLoop loop : loops) {
+            loop.stopRunning();
+        }
+        eventLoops = null;
+    }
 }
@@ -43,6 +43,15 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
     private AbstractRequest currentRequest;
     private final HdlTcpInterface interfc;
 
+    // set when the request was read by an HdlTcpEventLoop
+    private final HdlTcpEventLoop.Connection connection;
+    private final byte[] preReadEnvelope;
+    private final byte[] preReadMessage;
+
+    private InputStream in = null;
+    // whether the connection stays open for another request after the current one
+    private boolean keepAlive = false;
+
     public HdlTcpRequestHandler(Main main, HdlTcpInterface ifc, boolean logAccesses, Socket socket, long recvTime) {
         this.main = main;
         this.interfc = ifc;
@@ -50,35 +59,107 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
         this.logAccesses = logAccesses;
         this.recvTime = recvTime;
         this.socket = socket;
+        this.connection = null;
+        this.preReadEnvelope = null;
+        this.preReadMessage = null;
+    }
+
+    /**
+     * Constructs a handler for a message which has already been read by an event loop.
+     * A null envelope indicates that the client timed out before sending a complete message;
+     * a null message indicates that the envelope was invalid.
+     */
+    public HdlTcpRequestHandler(Main main, HdlTcpInterface ifc, boolean logAccesses, HdlTcpEventLoop.Connection connection, byte[] envelope, byte[] message, long recvTime) {
+        this.main = main;
+        this.interfc = ifc;
+        this.server = main.getServer();
+        this.logAccesses = logAccesses;
+        this.recvTime = recvTime;
+        this.socket = connection.getSocket();
+        this.connection = connection;
+        this.preReadEnvelope = envelope;
+        this.preReadMessage = message;
     }
 
     @Override
     public void run() {
-        InputStream in = null;
         try {
-            in = socket.getInputStream();
-            int r, n = 0;
-            // receive and parse the message envelope
-            while (n < Common.MESSAGE_ENVELOPE_SIZE && (r = in.read(envelopeBuf, n, Common.MESSAGE_ENVELOPE_SIZE - n)) > 0) {
-                n += r;
+            handleRequest(false);
+            // an event loop reads any further requests itself
+            while (keepAlive && connection == null) {
+                currentRequest = null;
+                handleRequest(true);
             }
-            Encoder.decodeEnvelope(envelopeBuf, envelope);
-            if (envelope.messageLength > Common.MAX_MESSAGE_LENGTH || envelope.messageLength < 0) {
-                handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_INVALID_MSG_SIZE));
-                return;
-            }
-            if (messageBuf.length < envelope.messageLength) { // increase the messageBuf size if necessary
-                messageBuf = new byte[envelope.messageLength];
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Throwable e) { }
             }
-            // receive the rest of the message
-            r = n = 0;
-            while (n < envelope.messageLength && (r = in.read(messageBuf, n, envelope.messageLength - n)) > 0) {
-                n += r;
+            if (connection != null) {
+                connection.finish(keepAlive);
+                socket = null;
+            } else if (socket != null) {
+                try { socket.close(); } catch (Exception e){ }
+                socket = null;
             }
-            if (n < envelope.messageLength) { // we didn't receive the whole message...
-                String errMsg = "Expecting " + envelope.messageLength + " bytes, " + "only received " + n;
-                handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, Util.encodeString(errMsg)));
-                return;
+        }
+    }
+
+    /**
+     * Reads, processes and responds to one request.  If awaitingNext is true,
+     * the connection has been kept alive after a previous request, and the
+     * handler returns quietly if the client closes it or sends nothing within
+     * the keep-alive timeout.
+     */
+    private void handleRequest(boolean awaitingNext) {
+        keepAlive = false;
+        try {
+            if (connection != null) {
+                // the event loop has already read the message
+                if (preReadEnvelope == null) throw new SocketTimeoutException();
+                System.arraycopy(preReadEnvelope, 0, envelopeBuf, 0, Common.MESSAGE_ENVELOPE_SIZE);
+                Encoder.decodeEnvelope(envelopeBuf, envelope);
+                if (preReadMessage == null || envelope.messageLength > Common.MAX_MESSAGE_LENGTH || envelope.messageLength < 0) {
+                    handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_INVALID_MSG_SIZE));
+                    return;
+                }
+                messageBuf = preReadMessage;
+            } else {
+                if (in == null) in = socket.getInputStream();
+                int r, n = 0;
+                if (awaitingNext) {
+                    int readTimeout = socket.getSoTimeout();
+                    socket.setSoTimeout(interfc.getKeepAliveTimeout());
+                    try {
+                        n = in.read(envelopeBuf, 0, Common.MESSAGE_ENVELOPE_SIZE);
+                    } catch (SocketTimeoutException e) {
+                        return;
+                    }
+                    if (n <= 0) return;
+                    socket.setSoTimeout(readTimeout);
+                    recvTime = System.currentTimeMillis();
+                }
+                // receive and parse the message envelope
+                while (n < Common.MESSAGE_ENVELOPE_SIZE && (r = in.read(envelopeBuf, n, Common.MESSAGE_ENVELOPE_SIZE - n)) > 0) {
+                    n += r;
+                }
+                Encoder.decodeEnvelope(envelopeBuf, envelope);
+                if (envelope.messageLength > Common.MAX_MESSAGE_LENGTH || envelope.messageLength < 0) {
+                    handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_INVALID_MSG_SIZE));
+                    return;
+                }
+                if (messageBuf.length < envelope.messageLength) { // increase the messageBuf size if necessary
+                    messageBuf = new byte[envelope.messageLength];
+                }
+                // receive the rest of the message
+                r = n = 0;
+                while (n < envelope.messageLength && (r = in.read(messageBuf, n, envelope.messageLength - n)) > 0) {
+                    n += r;
+                }
+                if (n < envelope.messageLength) { // we didn't receive the whole message...
+                    String errMsg = "Expecting " + envelope.messageLength + " bytes, " + "only received " + n;
+                    handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, Util.encodeString(errMsg)));
+                    return;
+                }
             }
 
             if (envelope.encrypted) { //decrypt incoming request if it says so ..
@@ -120,6 +201,17 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
                 }
             }
 
+            if (envelope.compressed) {
+                try {
+                    messageBuf = Encoder.decompressMessage(messageBuf, 0, envelope.messageLength);
+                } catch (HandleException e) {
+                    handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, Util.encodeString(e.getMessage())));
+                    return;
+                }
+                envelope.compressed = false;
+                envelope.messageLength = messageBuf.length;
+            }
+
             if (envelope.messageLength < 24) {
                 handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_INVALID_MSG_SIZE));
                 return;
@@ -138,21 +230,17 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
                 handleResponse(new ErrorResponse(currentRequest.opCode, AbstractMessage.RC_PROTOCOL_ERROR, Util.encodeString(errMsg)));
                 return;
             }
+            // only requests which were read and decoded without error keep the connection open
+            keepAlive = envelope.keepAlive && interfc.allowsKeepAlive();
             server.processRequest(currentRequest, this);
         } catch (SocketTimeoutException e) {
+            keepAlive = false;
             handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_READ_TIMED_OUT));
         } catch (Throwable e) {
+            keepAlive = false;
             handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_ERROR, Util.encodeString("Server error processing request, see server logs")));
             main.logError(ServerLog.ERRLOG_LEVEL_REALBAD, String.valueOf(this.getClass()) + ": Exception processing request: " + e);
             e.printStackTrace();
-        } finally {
-            if (in != null) {
-                try { in.close(); } catch (Throwable e) { }
-            }
-            if (socket != null) {
-                try { socket.close(); } catch (Exception e){ }
-                socket = null;
-            }
         }
     }
 
@@ -171,11 +259,23 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
     @SuppressWarnings("resource") // we may keep the socket (and thus the output stream) open
     public void handleResponse(AbstractResponse response) {
         OutputStream out = null;
-        boolean keepSocketOpen = response.continuous;
+        // continuous and streamed responses end the connection
+        if (response.continuous || response.streaming) keepAlive = false;
+        boolean keepSocketOpen = response.continuous || keepAlive;
         boolean errorWriting = false;
         try {
             byte msg[] = response.getEncodedMessage();
 
+            // compress large responses for clients which accept it, before any encryption
+            boolean compressed = false;
+            if (clientAcceptsCompression() && msg.length >= interfc.getCompressionThreshold()) {
+                byte compressedMsg[] = Encoder.compressMessage(msg);
+                if (compressedMsg != null) {
+                    msg = compressedMsg;
+                    compressed = true;
+                }
+            }
+
             // when to encrypt? right before sending it out! after the credential portion is formed!
             // encrypt response here if the request asks for encryption
             // and set the flag in envelop if successfull
@@ -202,7 +302,8 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
                 }
             }
 
-            // set the envelop flag for encryption
+            // set the envelop flags for compression and encryption
+            envelope.compressed = compressed;
             envelope.encrypted = encrypted;
             envelope.messageLength = msg.length; //get the length after encryption
             envelope.messageId = 0;
@@ -212,12 +313,18 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
             envelope.protocolMinorVersion = response.minorProtocolVersion;
             envelope.suggestMajorProtocolVersion = response.suggestMajorProtocolVersion;
             envelope.suggestMinorProtocolVersion = response.suggestMinorProtocolVersion;
+            envelope.keepAlive = keepAlive;
             Encoder.encodeEnvelope(envelope, envelopeBuf);
 
             try {
-                out = socket.getOutputStream();
-                out.write(Util.concat(envelopeBuf, msg));
-                out.flush();
+                if (connection != null && !connection.isBlocking()) {
+                    // queued and written without blocking by the event loop
+                    connection.write(Util.concat(envelopeBuf, msg));
+                } else {
+                    out = socket.getOutputStream();
+                    out.write(Util.concat(envelopeBuf, msg));
+                    out.flush();
+                }
             } catch (Exception e) {
                 errorWriting = true;
                 throw e;
@@ -240,7 +347,8 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
             } catch (Exception ex) {
                 // ignore
             }
-            if (errorWriting && keepSocketOpen) {
+            keepAlive = false;
+            if (errorWriting && response.continuous) {
                 keepSocketOpen = false;
                 throw new RuntimeException(new HandleException(HandleException.INTERNAL_ERROR, "Error writing continuous handle response" + clientString, e));
             }
@@ -270,15 +378,23 @@ public class HdlTcpRequestHandler implements Runnable, ResponseMessageCallback {
         }
     }
 
+    private boolean clientAcceptsCompression() {
+        return currentRequest != null && currentRequest.acceptCompressed && interfc.allowsCompression();
+    }
+
     @SuppressWarnings("resource") // we don't close here, only flush
     private void streamResponse(AbstractResponse response) throws HandleException, IOException {
+        if (connection != null && !connection.isBlocking()) {
+            // streamed responses write directly to the socket
+            socket = connection.switchToBlocking();
+        }
         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
         SignedOutputStream sout;
         if (server instanceof HandleServer && response.hasEqualOrGreaterVersion(2, 8)) {
             X509Certificate certificate = ((HandleServer) server).getHdlTcpCertificate();
-            sout = new SignedOutputStream(certificate, server.getPrivateKey(), out, socket);
+            sout = new SignedOutputStream(certificate, server.getPrivateKey(), out, socket, clientAcceptsCompression());
         } else {
-            sout = new SignedOutputStream(server.getPrivateKey(), out);
+            sout = new SignedOutputStream(server.getPrivateKey(), out, clientAcceptsCompression());
         }
         response.streamResponse(sout);
         sout.flush();
@@ -0,0 +1,167 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.handle.hdllib.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonObject;
+
+/***********************************************************************
+ * Receives requests on one of the DatagramChannels used by an
+ * HdlUdpInterface configured with more than one socket.  Packets are
+ * drained from the channel in batches into a preallocated direct
+ * buffer, and responses are sent back on the same channel using
+ * per-thread preallocated buffers.
+ ***********************************************************************/
+public class HdlUdpChannelListener implements Runnable {
+    private static final int MAX_SEND_ATTEMPTS = 100;
+
+    private final Main main;
+    private final HdlUdpInterface interfc;
+    private final DatagramChannel channel;
+    private final ExecutorService handlerPool;
+    private final boolean logAccesses;
+    private final int batchSize;
+    private final Selector selector;
+    private final ByteBuffer receiveBuf = ByteBuffer.allocateDirect(Common.MAX_UDP_PACKET_SIZE);
+    private final ThreadLocal<ByteBuffer> sendBuf = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Common.MAX_UDP_PACKET_SIZE));
+    private final ThreadLocal<byte[]> envelopeBuf = ThreadLocal.withInitial(() -> new byte[Common.MESSAGE_ENVELOPE_SIZE]);
+    private volatile boolean keepRunning = true;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong packetsDropped = new AtomicLong();
+
+    public HdlUdpChannelListener(Main main, HdlUdpInterface interfc, DatagramChannel channel, ExecutorService handlerPool, boolean logAccesses, int batchSize) throws IOException {
+        this.main = main;
+        this.interfc = interfc;
+        this.channel = channel;
+        this.handlerPool = handlerPool;
+        this.logAccesses = logAccesses;
+        this.batchSize = batchSize;
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (keepRunning) {
+                if (selector.select() == 0) continue;
+                selector.selectedKeys().clear();
+                // drain whatever has arrived, up to the batch size, before selecting again
+                for (int i = 0; i < batchSize && keepRunning; i++) {
+                    receiveBuf.clear();
+                    SocketAddress addr = channel.receive(receiveBuf);
+                    if (addr == null) break;
+                    long recvTime = System.currentTimeMillis();
+                    receiveBuf.flip();
+                    byte[] data = new byte[receiveBuf.remaining()];
+                    receiveBuf.get(data);
+                    packetsReceived.incrementAndGet();
+                    bytesReceived.addAndGet(data.length);
+                    DatagramPacket packet = new DatagramPacket(data, data.length, addr);
+                    try {
+                        handlerPool.execute(new HdlUdpRequestHandler(main, this, interfc, logAccesses, packet, recvTime));
+                    } catch (RejectedExecutionException e) {
+                        packetsDropped.incrementAndGet();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (keepRunning) {
+                main.logError(ServerLog.ERRLOG_LEVEL_REALBAD, String.valueOf(this.getClass()) + ": Error receiving request: " + e);
+                e.printStackTrace(System.err);
+            }
+        } finally {
+            stopRunning();
+        }
+    }
+
+    public void stopRunning() {
+        keepRunning = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        selector.wakeup();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Sends the given response message to the given address, split into
+     * multiple packets if necessary.  The messageId of the envelope is
+     * advanced for each packet sent.
+     */
+    void sendMessage(MessageEnvelope envelope, byte[] msg, SocketAddress addr) throws IOException {
+        ByteBuffer buf = sendBuf.get();
+        byte[] envBytes = envelopeBuf.get();
+        int offset = 0;
+        do {
+            int len = Math.min(msg.length - offset, Common.MAX_UDP_DATA_SIZE);
+            Encoder.encodeEnvelope(envelope, envBytes);
+            buf.clear();
+            buf.put(envBytes);
+            buf.put(msg, offset, len);
+            buf.flip();
+            send(buf, addr);
+            offset += len;
+            envelope.messageId++;
+        } while (offset < msg.length);
+    }
+
+    private void send(ByteBuffer buf, SocketAddress addr) throws IOException {
+        int len = buf.remaining();
+        for (int attempt = 0; attempt < MAX_SEND_ATTEMPTS; attempt++) {
+            if (channel.send(buf, addr) > 0) {
+                packetsSent.incrementAndGet();
+                bytesSent.addAndGet(len);
+                return;
+            }
+            // the socket's send buffer is full
+            Thread.yield();
+        }
+        packetsDropped.incrementAndGet();
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        try {
+            stats.addProperty("address", String.valueOf(channel.getLocalAddress()));
+        } catch (IOException e) {
+            // ignore
+        }
+        stats.addProperty("packetsReceived", packetsReceived.get());
+        stats.addProperty("bytesReceived", bytesReceived.get());
+        stats.addProperty("packetsSent", packetsSent.get());
+        stats.addProperty("bytesSent", bytesSent.get());
+        stats.addProperty("packetsDropped", packetsDropped.get());
+        return stats;
+    }
+}
@@ -14,11 +14,15 @@ import net.cnri.util.StreamTable;
 import net.handle.hdllib.*;
 
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedTransferQueue;
 import java.util.concurrent.TimeUnit;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
 /***********************************************************************
  * base class describing an object that listens to a network
  * interface/port and handles incoming requests.  Most subclasses
@@ -36,6 +40,11 @@ public class HdlUdpInterface extends NetworkInterface {
     private DatagramSocket dsocket = null;
     private boolean keepServing = true;
 
+    // when more than one socket is configured, each is a DatagramChannel bound with SO_REUSEPORT
+    private int numSockets = 1;
+    private int receiveBatchSize = 32;
+    private volatile HdlUdpChannelListener[] channelListeners = null;
+
     private final ConcurrentMap<String, HdlUdpPendingRequest> pendingRequests;
 
     public HdlUdpInterface(Main main, StreamTable config) throws Exception {
@@ -84,6 +93,26 @@ public class HdlUdpInterface extends NetworkInterface {
         } catch (Exception e) {
             main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid thread life, using default: " + threadLife);
         }
+        try {
+            if (config.containsKey("num_sockets")) {
+                numSockets = Integer.parseInt((String) config.get("num_sockets"));
+                if (numSockets <= 0) throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            numSockets = 1;
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid num_sockets, using default: " + numSockets);
+        }
+
+        try {
+            if (config.containsKey("receive_batch_size")) {
+                receiveBatchSize = Integer.parseInt((String) config.get("receive_batch_size"));
+                if (receiveBatchSize <= 0) throw new IllegalArgumentException();
+            }
+        } catch (Exception e) {
+            receiveBatchSize = 32;
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Invalid receive_batch_size, using default: " + receiveBatchSize);
+        }
+
         // check if we should log accesses or not...
         logAccesses = config.getBoolean("log_accesses");
         super.initialize();
@@ -97,9 +126,30 @@ public class HdlUdpInterface extends NetworkInterface {
     protected void stopService() {
         keepServing = false;
         try {
-            dsocket.close();
+            if (dsocket != null) dsocket.close();
         } catch (Exception e) {
         }
+        HdlUdpChannelListener[] listeners = channelListeners;
+        if (listeners != null) {
+            for (HdlUdpChannelListener channelListener : listeners) {
+                channelListener.stopRunning();
+            }
+        }
+    }
+
+    @Override
+    public JsonObject getStatistics() {
+        HdlUdpChannelListener[] listeners = channelListeners;
+        if (listeners == null) return null;
+        JsonObject stats = new JsonObject();
+        stats.addProperty("protocol", "UDP");
+        stats.addProperty("port", bindPort);
+        JsonArray sockets = new JsonArray();
+        for (HdlUdpChannelListener channelListener : listeners) {
+            sockets.add(channelListener.getStatistics());
+        }
+        stats.add("sockets", sockets);
+        return stats;
     }
 
     /****************************************************************
@@ -109,6 +159,14 @@ public class HdlUdpInterface extends NetworkInterface {
     @Override
     public void serveRequests() {
         keepServing = true;
+        if (numSockets > 1) {
+            SocketOption<Boolean> reusePort = getReusePortOption();
+            if (reusePort != null) {
+                serveRequestsWithChannels(reusePort);
+                return;
+            }
+            main.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "SO_REUSEPORT is not available; using a single UDP socket");
+        }
         try {
             if (bindAddress == null) {
                 dsocket = new DatagramSocket(bindPort);
@@ -206,4 +264,74 @@ public class HdlUdpInterface extends NetworkInterface {
         if (!req.isComplete()) return null;
         return req;
     }
+
+    /** Returns the SO_REUSEPORT socket option, if this platform supports it (Java 9 or later). */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            SocketOption<Boolean> option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            try (DatagramChannel channel = DatagramChannel.open()) {
+                if (!channel.supportedOptions().contains(option)) return null;
+            }
+            return option;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /****************************************************************
+     * Binds numSockets channels to the same port with SO_REUSEPORT,
+     * so that the kernel spreads incoming packets over them, and
+     * receives on each in its own thread until stopService() is called.
+     ***************************************************************/
+    private void serveRequestsWithChannels(SocketOption<Boolean> reusePort) {
+        handlerPool = new GrowBeforeTransferQueueThreadPoolExecutor(numThreads, maxHandlers, 1, TimeUnit.MINUTES, new LinkedTransferQueue<>());
+        HdlUdpChannelListener[] listeners = new HdlUdpChannelListener[numSockets];
+        Thread[] threads = new Thread[numSockets];
+        try {
+            for (int i = 0; i < numSockets; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                try {
+                    channel.setOption(reusePort, Boolean.TRUE);
+                    channel.bind(new InetSocketAddress(bindAddress, bindPort));
+                    listeners[i] = new HdlUdpChannelListener(main, this, channel, handlerPool, logAccesses, receiveBatchSize);
+                } catch (Exception e) {
+                    channel.close();
+                    throw e;
+                }
+                threads[i] = new Thread(listeners[i], "HdlUdpChannelListener-" + bindPort + "-" + i);
+            }
+        } catch (Exception e) {
+            main.logError(ServerLog.ERRLOG_LEVEL_FATAL, String.valueOf(this.getClass()) + ": Error setting up server socket: " + e);
+            for (HdlUdpChannelListener channelListener : listeners) {
+                if (channelListener != null) channelListener.stopRunning();
+            }
+            return;
+        }
+        channelListeners = listeners;
+
+        System.out.println("UDP handle Request Listener:");
+        System.out.println("   address: " + (bindAddress == null ? "ANY" : "" + Util.rfcIpRepr(bindAddress)));
+        System.out.println("      port: " + bindPort);
+        System.out.println("    (using " + numSockets + " sockets)");
+        System.out.println("Starting UDP request handlers...");
+        try {
+            System.out.flush();
+        } catch (Exception e) {
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (HdlUdpChannelListener channelListener : listeners) {
+            channelListener.stopRunning();
+        }
+    }
 }
@@ -23,6 +23,7 @@ import java.net.*;
 public class HdlUdpRequestHandler implements Runnable, ResponseMessageCallback {
     private final DatagramPacket packet;
     private final DatagramSocket dsocket;
+    private final HdlUdpChannelListener channelListener;
     private final AbstractServer server;
     private final Main main;
     private final HdlUdpInterface listener;
@@ -40,6 +41,19 @@ public class HdlUdpRequestHandler implements Runnable, ResponseMessageCallback {
         this.main = main;
         this.server = main.getServer();
         this.dsocket = dsock;
+        this.channelListener = null;
+        this.logAccesses = logAccesses;
+        this.listener = listener;
+        this.packet = packet;
+        this.recvTime = recvTime;
+    }
+
+    /** Constructs a handler for a packet received by an HdlUdpChannelListener; the response is sent back on the same channel. */
+    public HdlUdpRequestHandler(Main main, HdlUdpChannelListener channelListener, HdlUdpInterface listener, boolean logAccesses, DatagramPacket packet, long recvTime) {
+        this.main = main;
+        this.server = main.getServer();
+        this.dsocket = null;
+        this.channelListener = channelListener;
         this.logAccesses = logAccesses;
         this.listener = listener;
         this.packet = packet;
@@ -188,7 +202,9 @@ public class HdlUdpRequestHandler implements Runnable, ResponseMessageCallback {
             envelope.protocolMinorVersion = response.minorProtocolVersion;
             envelope.suggestMajorProtocolVersion = response.suggestMajorProtocolVersion;
             envelope.suggestMinorProtocolVersion = response.suggestMinorProtocolVersion;
-            if (msg.length > Common.MAX_UDP_DATA_SIZE) {
+            if (channelListener != null) {
+                channelListener.sendMessage(envelope, msg, packet.getSocketAddress());
+            } else if (msg.length > Common.MAX_UDP_DATA_SIZE) {
                 // split the response into multiple pieces and send it
                 int bytesRemaining = msg.length;
                 while (bytesRemaining > 0) {
@@ -215,7 +231,7 @@ public class HdlUdpRequestHandler implements Runnable, ResponseMessageCallback {
         } catch (Exception e) {
             String clientString = "";
             try {
-                clientString = " to " + Util.rfcIpRepr(dsocket.getInetAddress());
+                clientString = " to " + Util.rfcIpRepr(packet.getAddress());
             } catch (Exception ex) {
                 // ignore
             }
@@ -39,7 +39,6 @@ public final class JDBHandleStorage implements HandleStorage
     private DBTransactionLog txnLog;
 
     private final String WRITE_LOCK = "WRITE_LOCK";
-    private final String READ_LOCK = "READ_LOCK";
     private boolean readOnly = false;
 
     private final static byte[] BLANK_BYTES = new byte[0];
@@ -112,47 +111,45 @@ public final class JDBHandleStorage implements HandleStorage
     @Override
     public final void createHandle(byte inHandle[], HandleValue values[]) throws HandleException {
         synchronized (WRITE_LOCK) {
-            synchronized (READ_LOCK) {
-                // check if write operations are allowed.
-                if (readOnly) {
-                    throw new HandleException(HandleException.STORAGE_RDONLY);
-                }
+            // check if write operations are allowed.
+            if (readOnly) {
+                throw new HandleException(HandleException.STORAGE_RDONLY);
+            }
 
-                byte[] handle = inHandle;
+            byte[] handle = inHandle;
 
-                byte existingValue[] = null;
-                try {
-                    existingValue = db.getValue(handle);
-                } catch (Exception e) {
-                    throw new HandleException(HandleException.INTERNAL_ERROR, "Error checking for existing handle");
-                }
-                if (existingValue != null) throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, "Handle already exists");
+            byte existingValue[] = null;
+            try {
+                existingValue = db.getValue(handle);
+            } catch (Exception e) {
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Error checking for existing handle");
+            }
+            if (existingValue != null) throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, "Handle already exists");
 
-                // add the size of all of the clumps as well as a 'time-received' field
-                // and 'value-length' field for each value
-                int totalSize = Encoder.INT_SIZE;
-                for (int i = 0; i < values.length; i++) {
-                    totalSize += (Encoder.calcStorageSize(values[i]) + Encoder.INT_SIZE);
-                }
+            // add the size of all of the clumps as well as a 'time-received' field
+            // and 'value-length' field for each value
+            int totalSize = Encoder.INT_SIZE;
+            for (int i = 0; i < values.length; i++) {
+                totalSize += (Encoder.calcStorageSize(values[i]) + Encoder.INT_SIZE);
+            }
 
-                // write all of the clumps to a buffer
-                byte data[] = new byte[totalSize];
-                int offst = 0;
-                offst += Encoder.writeInt(data, offst, values.length);
-                for (int i = 0; i < values.length; i++) {
-                    int clumpLen = Encoder.encodeHandleValue(data, offst + Encoder.INT_SIZE, values[i]);
-                    offst += Encoder.writeInt(data, offst, clumpLen);
-                    offst += clumpLen;
-                }
+            // write all of the clumps to a buffer
+            byte data[] = new byte[totalSize];
+            int offst = 0;
+            offst += Encoder.writeInt(data, offst, values.length);
+            for (int i = 0; i < values.length; i++) {
+                int clumpLen = Encoder.encodeHandleValue(data, offst + Encoder.INT_SIZE, values[i]);
+                offst += Encoder.writeInt(data, offst, clumpLen);
+                offst += clumpLen;
+            }
 
-                try {
-                    if (logTxns) txnLog.log(DBTransactionLog.SET_HDL_VALUE, handle, data);
-                    db.setValue(handle, data);
-                } catch (HandleException e1) {
-                    throw e1;
-                } catch (Exception e) {
-                    throw new HandleException(HandleException.INTERNAL_ERROR, "Error creating handle");
-                }
+            try {
+                if (logTxns) txnLog.log(DBTransactionLog.SET_HDL_VALUE, handle, data);
+                db.setValue(handle, data);
+            } catch (HandleException e1) {
+                throw e1;
+            } catch (Exception e) {
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Error creating handle");
             }
         } //end synchronized
     }
@@ -193,13 +190,12 @@ public final class JDBHandleStorage implements HandleStorage
 
         byte[] handle = inHandle;
 
+        // reads proceed in parallel; the database excludes them only while writing
         byte value[];
-        synchronized (READ_LOCK) {
-            try {
-                value = db.getValue(handle);
-            } catch (Exception e) {
-                throw new HandleException(HandleException.INTERNAL_ERROR, "Error retrieving handle");
-            }
+        try {
+            value = db.getValue(handle);
+        } catch (Exception e) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error retrieving handle");
         }
 
         if (value == null) return null;
@@ -0,0 +1,119 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*****************************************************************************
+ * A bounded ring of preallocated log events, to which any number of threads
+ * add events without locking and from which a single writer thread takes
+ * them.  A thread adding an event claims the next slot with
+ * {@link #tryClaim()}, fills in the event, and then calls
+ * {@link #publish(long)}; the writer takes events in order with
+ * {@link #peek()} and hands each slot back with {@link #release()}.
+ *
+ * Each slot has a sequence number which tells whether it is free for the
+ * position being claimed or holds a published event for the position being
+ * taken, so neither side waits on the other except when the ring is full
+ * or empty.
+ *****************************************************************************/
+class LogEventQueue {
+
+    /** An access or error log message along with what is needed to format it later. */
+    static final class LogEvent {
+        boolean isAccess;
+        long timestamp;
+        int level;
+        String accessType;
+        InetAddress clientAddr;
+        int opCode;
+        int rsCode;
+        long time;
+        String message;
+
+        void clear() {
+            accessType = null;
+            clientAddr = null;
+            message = null;
+        }
+    }
+
+    private final LogEvent[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only advanced by the writer thread
+    private volatile long head;
+
+    /**
+     * @param capacity the most events held at once, rounded up to a power of two
+     */
+    LogEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) - 1) << 1;
+        events = new LogEvent[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            events[i] = new LogEvent();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return events.length;
+    }
+
+    /** Claims the next slot, returning its position, or -1 if the ring is full. */
+    long tryClaim() {
+        while (true) {
+            long pos = tail.get();
+            long seq = sequences.get((int) (pos & mask));
+            if (seq == pos) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+            } else if (seq < pos) {
+                // the writer has yet to take the event a lap behind
+                return -1;
+            }
+            // otherwise another thread claimed the position; try the next
+        }
+    }
+
+    /** Returns the event in the claimed slot at the given position, to be filled in. */
+    LogEvent get(long pos) {
+        return events[(int) (pos & mask)];
+    }
+
+    /** Makes the event at the given claimed position available to the writer. */
+    void publish(long pos) {
+        sequences.lazySet((int) (pos & mask), pos + 1);
+    }
+
+    /** Returns the next published event, or null if there is none yet.  For the writer thread only. */
+    LogEvent peek() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) return null;
+        return events[index];
+    }
+
+    /** Hands the slot of the event returned by {@link #peek()} back to be claimed.  For the writer thread only. */
+    void release() {
+        int index = (int) (head & mask);
+        events[index].clear();
+        sequences.lazySet(index, head + events.length);
+        head++;
+    }
+
+    /** Returns roughly how many events are waiting to be written. */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+}
@@ -9,6 +9,8 @@
 
 package net.handle.server;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import net.cnri.util.StreamTable;
 import net.cnri.util.StreamVector;
 import net.handle.apps.servlet_proxy.DefaultServlet;
@@ -245,7 +247,11 @@ public class Main {
         //      System.err.println("Warning: Cannot create handle cache (" + e + ").");
         //      e.printStackTrace(System.err);
         //    }
-        this.resolver.setCache(new MemCache(1024 * 16, 60 * 60));
+        if (configTable.getBoolean("concurrent_resolver_cache", false)) {
+            this.resolver.setCache(new ConcurrentMemCache(1024 * 16, 60 * 60));
+        } else {
+            this.resolver.setCache(new MemCache(1024 * 16, 60 * 60));
+        }
 
         // Create the server object
         server = AbstractServer.getInstance(this, configTable, resolver);
@@ -277,6 +283,26 @@ public class Main {
         return server;
     }
 
+    /**
+     * Get the statistics of those network interfaces which keep any
+     */
+    public JsonArray getInterfaceStatistics() {
+        JsonArray res = new JsonArray();
+        if (interfaces == null) return res;
+        for (NetworkInterface interfc : interfaces) {
+            JsonObject stats = interfc.getStatistics();
+            if (stats != null) res.add(stats);
+        }
+        return res;
+    }
+
+    /**
+     * Get the statistics of the access and error logs
+     */
+    public JsonObject getLogStatistics() {
+        return logger.getStatistics();
+    }
+
     /**
      * Start all of the listener threads and begin taking requests
      */
@@ -388,7 +414,12 @@ public class Main {
         hdlProxy.setInitOrder(1);
         context.getServletHandler().addServlet(hdlProxy);
         context.getServletHandler().addServlet(new ServletHolder(DefaultServlet.class.getName(), DefaultServlet.class));
-        context.getServletHandler().addServlet(new ServletHolder(NativeServlet.class.getName(), NativeServlet.class));
+        ServletHolder nativeServlet = new ServletHolder(NativeServlet.class.getName(), NativeServlet.class);
+        if (serverHttpConfig != null) {
+            nativeServlet.setInitParameter(NativeServlet.ENABLE_COMPRESSION, String.valueOf(serverHttpConfig.getBoolean(NativeServlet.ENABLE_COMPRESSION, true)));
+            nativeServlet.setInitParameter(NativeServlet.COMPRESSION_THRESHOLD, String.valueOf(serverHttpConfig.getInt(NativeServlet.COMPRESSION_THRESHOLD, Common.DEFAULT_COMPRESSION_THRESHOLD)));
+        }
+        context.getServletHandler().addServlet(nativeServlet);
         if (enableProxy) {
             ServletMapping mapping = new ServletMapping();
             mapping.setServletName(HDLProxy.class.getName());
@@ -14,8 +14,11 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import net.handle.util.FileSystemReadOnlyChecker;
 import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class MonitorDaemon extends Thread {
 
@@ -34,6 +37,8 @@ public class MonitorDaemon extends Thread {
 
     private AtomicInteger requestsPastMinute;
     private AtomicInteger peakRequestsPerMinute;
+    private Supplier<JsonArray> interfaceStatistics;
+    private final Map<String, Supplier<JsonObject>> statistics = new ConcurrentSkipListMap<>();
 
     private volatile boolean keepRunning = true;
 
@@ -58,6 +63,15 @@ public class MonitorDaemon extends Thread {
         this.peakRequestsPerMinute = peakRequestsPerMinute;
     }
 
+    public void setInterfaceStatistics(Supplier<JsonArray> interfaceStatistics) {
+        this.interfaceStatistics = interfaceStatistics;
+    }
+
+    /** Adds a named group of statistics to the status. */
+    public void addStatistics(String name, Supplier<JsonObject> supplier) {
+        statistics.put(name, supplier);
+    }
+
     private void initializeSystemInfoWrapper() {
         try {
             systemInfoWrapper = new SystemInfoWrapper();
@@ -107,6 +121,13 @@ public class MonitorDaemon extends Thread {
         systemInfo.addProperty("startTime", startTime);
         if (numRequests != null) systemInfo.add("requests", getReqInfo());
         if (requestsPastMinute != null) systemInfo.add("requestsPerMinute", getProxyReqInfo());
+        if (interfaceStatistics != null) {
+            JsonArray interfaces = interfaceStatistics.get();
+            if (interfaces != null && interfaces.size() > 0) systemInfo.add("interfaces", interfaces);
+        }
+        for (Map.Entry<String, Supplier<JsonObject>> entry : statistics.entrySet()) {
+            systemInfo.add(entry.getKey(), entry.getValue().get());
+        }
         systemInfo.addProperty("lastUpdate", System.currentTimeMillis());
 
         return systemInfo;
@@ -12,6 +12,7 @@ package net.handle.server;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import com.google.gson.JsonObject;
 import net.cnri.util.StreamTable;
 import net.handle.hdllib.*;
 import net.handle.server.dns.DnsTcpInterface;
@@ -90,6 +91,12 @@ public abstract class NetworkInterface implements Runnable {
      * net.handle.hdllib.Interface.SP_* constants. */
     abstract public int getPort();
 
+    /** Returns statistics about this interface for status reporting, or null
+     * if the interface does not keep any. */
+    public JsonObject getStatistics() {
+        return null;
+    }
+
     /** Returns true if this interface has served enough requests to warrant
       invoking the garbage collector. */
     final boolean needsGC() {
@@ -0,0 +1,236 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.handle.hdllib.Common;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleStorage;
+import net.handle.hdllib.Util;
+
+/*****************************************************************************
+ * The number of handles under each prefix, as listed by a list-handles
+ * request, so that the total can be reported with each page of a listing
+ * without enumerating the prefix.  A prefix is counted by enumerating its
+ * handles the first time its count is needed; after that the count is
+ * kept up to date as handles are created and deleted through the server.
+ *
+ * Writes whose effect on the count is unknown, such as replicated
+ * create-or-update transactions, invalidate the counts of the handle's
+ * prefixes, which are then counted again when next needed.  A count is
+ * not kept if a write to the prefix overlapped the enumeration.
+ *
+ * Writes made to the storage other than through this server, such as by
+ * another server sharing an SQL database, are not seen, so each count is
+ * only kept for a limited time (the "prefix_count_ttl" setting, in
+ * seconds) after which the prefix is counted again.  A time to live of
+ * zero keeps counts until invalidated, which is only correct if this
+ * server is the only writer to its storage.
+ *
+ * Counts are keyed by the prefix handle as given to
+ * {@link HandleStorage#getHandlesForNA(byte[])}, such as "0.NA/20.500".
+ *****************************************************************************/
+public class PrefixHandleCounts {
+
+    private static class Count {
+        long count;
+        long countedAt;
+        boolean counting = true;
+        // writes in progress since before the count was found
+        int writers;
+        // a write overlapped the enumeration
+        boolean dirty;
+    }
+
+    /** A write to a handle which may change the counts of its prefixes. */
+    public class Update {
+        private final String[] keys;
+        private final Count[] registered;
+        private boolean finished;
+
+        Update(String[] keys) {
+            this.keys = keys;
+            this.registered = new Count[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Count count = counts.get(keys[i]);
+                if (count == null) continue;
+                synchronized (count) {
+                    count.writers++;
+                }
+                registered[i] = count;
+            }
+        }
+
+        /**
+         * Records that the write is finished, having changed the number of
+         * handles by the given amount: 1 for a created handle, -1 for a
+         * deleted one, and 0 if the write failed or did neither.
+         */
+        public void finish(int delta) {
+            if (finished) return;
+            finished = true;
+            for (int i = 0; i < keys.length; i++) {
+                Count count = counts.get(keys[i]);
+                if (registered[i] != null) {
+                    synchronized (registered[i]) {
+                        registered[i].writers--;
+                    }
+                }
+                if (count == null) continue;
+                synchronized (count) {
+                    if (count.counting) {
+                        count.dirty = true;
+                    } else if (count == registered[i]) {
+                        count.count += delta;
+                    } else {
+                        // counted while this write was in progress; it may or may not have been seen
+                        counts.remove(keys[i], count);
+                    }
+                }
+            }
+        }
+    }
+
+    private final HandleStorage storage;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Count> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Keeps counts of the handles in the given storage, each for at most
+     * ttlMillis milliseconds, or until invalidated if ttlMillis is zero or less.
+     */
+    public PrefixHandleCounts(HandleStorage storage, long ttlMillis) {
+        this.storage = storage;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the number of handles which would be listed for the given
+     * prefix handle, enumerating them if the prefix has not been counted.
+     */
+    public long getCount(byte naHdl[]) throws HandleException {
+        String key = Util.decodeString(Util.upperCase(naHdl));
+        Count count = counts.get(key);
+        if (count != null) {
+            synchronized (count) {
+                if (!count.counting) {
+                    if (!isExpired(count)) return count.count;
+                    counts.remove(key, count);
+                }
+            }
+        }
+        Count existing = counts.putIfAbsent(key, count = new Count());
+        if (existing != null) {
+            synchronized (existing) {
+                if (!existing.counting && !isExpired(existing)) return existing.count;
+            }
+            // another thread is counting the prefix
+            return countHandles(naHdl);
+        }
+        long total;
+        try {
+            total = countHandles(naHdl);
+        } catch (HandleException | RuntimeException e) {
+            counts.remove(key, count);
+            throw e;
+        }
+        synchronized (count) {
+            if (count.dirty || count.writers > 0) {
+                counts.remove(key, count);
+            } else {
+                count.count = total;
+                count.countedAt = System.currentTimeMillis();
+                count.counting = false;
+            }
+        }
+        return total;
+    }
+
+    private boolean isExpired(Count count) {
+        return ttlMillis > 0 && System.currentTimeMillis() - count.countedAt > ttlMillis;
+    }
+
+    private long countHandles(byte naHdl[]) throws HandleException {
+        long total = 0;
+        Enumeration<byte[]> handles = storage.getHandlesForNA(naHdl);
+        try {
+            while (handles.hasMoreElements()) {
+                handles.nextElement();
+                total++;
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof HandleException) throw (HandleException) e.getCause();
+            else throw e;
+        } finally {
+            if (handles instanceof Closeable) {
+                try {
+                    ((Closeable) handles).close();
+                } catch (Exception e) {
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Starts a write to the given handle.  The returned update must be
+     * finished once the write is done, whether or not it succeeded.
+     */
+    public Update beginUpdate(byte handle[]) {
+        return new Update(getKeys(handle));
+    }
+
+    /** Forgets the counts of the given handle's prefixes, after a write whose effect on them is unknown. */
+    public void invalidate(byte handle[]) {
+        for (String key : getKeys(handle)) {
+            invalidate(key);
+        }
+    }
+
+    private void invalidate(String key) {
+        Count count = counts.get(key);
+        if (count == null) return;
+        synchronized (count) {
+            if (count.counting) count.dirty = true;
+            else counts.remove(key, count);
+        }
+    }
+
+    /** Forgets all counts, after writes to many handles such as deleting all of them. */
+    public void invalidateAll() {
+        for (String key : counts.keySet()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Returns the keys of the listings which include the given handle: its
+     * prefix, and for a handle like 0.NA/A.B.C, the derived prefix listings
+     * of 0.NA/A and 0.NA/A.B.
+     */
+    private static String[] getKeys(byte handle[]) {
+        String handleString = Util.decodeString(Util.upperCase(handle));
+        List<String> keys = new ArrayList<>();
+        int slash = handleString.indexOf('/');
+        if (slash > 0) keys.add("0.NA/" + handleString.substring(0, slash));
+        String zeroNA = Util.decodeString(Common.NA_HANDLE_PREFIX);
+        if (handleString.startsWith(zeroNA)) {
+            for (int dot = handleString.indexOf('.', zeroNA.length()); dot > 0; dot = handleString.indexOf('.', dot + 1)) {
+                keys.add("0.NA/" + handleString.substring(0, dot));
+            }
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
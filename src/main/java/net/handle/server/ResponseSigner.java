@@ -0,0 +1,214 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server;
+
+import net.handle.hdllib.*;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonObject;
+
+/***********************************************************************
+ * Signs certified responses with the server's private key.  Each thread
+ * gets its own Signature objects, so signing never waits on a lock.
+ *
+ * Optionally, recently computed signatures are kept in a small cache
+ * keyed on a digest of exactly the bytes which were signed, so that
+ * sending the same signed bytes again does not require another
+ * public-key operation.  Since protocol 2.6 the request id is among
+ * the signed bytes, so hits come mostly from retransmitted requests
+ * and from older clients; the cache is off unless configured.
+ ***********************************************************************/
+public class ResponseSigner {
+    private final PrivateKey privateKey;
+    private final String sha1Algorithm;
+    private final String sha256Algorithm;
+    private final ThreadLocal<Signature> sha1Signatures = new ThreadLocal<>();
+    private final ThreadLocal<Signature> sha256Signatures = new ThreadLocal<>();
+    private final ThreadLocal<MessageDigest> digests = new ThreadLocal<>();
+
+    private final Map<SignatureCacheKey, CachedSignature> signatureCache;
+    private final int signatureCacheSize;
+    private final long signatureCacheTTL;
+
+    private final LongAdder numSigned = new LongAdder();
+    private final LongAdder signNanos = new LongAdder();
+    private final AtomicLong maxSignNanos = new AtomicLong();
+    private final LongAdder cacheHits = new LongAdder();
+
+    /**
+     * @param privateKey the server's private key
+     * @param cacheSize the most signatures to remember, or 0 to not remember any
+     * @param cacheTTL the number of milliseconds for which a signature is remembered
+     */
+    public ResponseSigner(PrivateKey privateKey, int cacheSize, long cacheTTL) throws Exception {
+        this.privateKey = privateKey;
+        this.sha1Algorithm = Util.getSigIdFromHashAlgId(Common.HASH_ALG_SHA1, privateKey.getAlgorithm());
+        this.sha256Algorithm = Util.getSigIdFromHashAlgId(Common.HASH_ALG_SHA256, privateKey.getAlgorithm());
+        this.signatureCache = cacheSize > 0 ? new ConcurrentHashMap<>() : null;
+        this.signatureCacheSize = cacheSize;
+        this.signatureCacheTTL = cacheTTL;
+        // fail now, rather than on the first certified response, if the key can't be used
+        getSignature(false);
+        getSignature(true);
+    }
+
+    /** Signs arbitrary data with the SHA-1 based signature; used to check the key against the site info. */
+    public byte[] sign(byte[] data) throws GeneralSecurityException {
+        Signature sig = getSignature(false);
+        try {
+            sig.update(data);
+            return sig.sign();
+        } catch (GeneralSecurityException | RuntimeException e) {
+            sha1Signatures.remove();
+            throw e;
+        }
+    }
+
+    public String getAlgorithm() {
+        return sha1Algorithm;
+    }
+
+    /** Returns whether the requestor of the given response can verify a SHA-256 based signature. */
+    public boolean supportsSha256Signature(AbstractResponse response) {
+        if (response.hasEqualOrGreaterVersion(2, 11)) return true;
+        if ("DSA".equals(privateKey.getAlgorithm())) return false;
+        if (response.hasEqualOrGreaterVersion(2, 7)) return true;
+        return false;
+    }
+
+    /** Signs the given response with the server's private key. */
+    public void signResponse(AbstractResponse response) throws HandleException, GeneralSecurityException {
+        boolean sha256 = supportsSha256Signature(response);
+        Signature sig = getSignature(sha256);
+        byte[] envelopeFields = response.getSignedEnvelopeFields();
+        byte[] body = response.getEncodedMessageBody();
+
+        SignatureCacheKey key = null;
+        if (signatureCache != null) {
+            key = new SignatureCacheKey(sha256, digest(envelopeFields, body));
+            CachedSignature cached = signatureCache.get(key);
+            if (cached != null && cached.expiration > System.currentTimeMillis()) {
+                response.setSignature(sig.getAlgorithm(), cached.signatureBytes);
+                cacheHits.increment();
+                return;
+            }
+        }
+
+        long start = System.nanoTime();
+        byte[] signatureBytes;
+        try {
+            if (envelopeFields != null) sig.update(envelopeFields);
+            sig.update(body);
+            signatureBytes = sig.sign();
+        } catch (GeneralSecurityException | RuntimeException e) {
+            // don't reuse a signature which may have been left part way through
+            if (sha256) sha256Signatures.remove();
+            else sha1Signatures.remove();
+            throw e;
+        }
+        long elapsed = System.nanoTime() - start;
+        numSigned.increment();
+        signNanos.add(elapsed);
+        long max;
+        while (elapsed > (max = maxSignNanos.get()) && !maxSignNanos.compareAndSet(max, elapsed)) {
+            // retry
+        }
+
+        response.setSignature(sig.getAlgorithm(), signatureBytes);
+        if (key != null) cacheSignature(key, signatureBytes);
+    }
+
+    private void cacheSignature(SignatureCacheKey key, byte[] signatureBytes) {
+        long now = System.currentTimeMillis();
+        if (signatureCache.size() >= signatureCacheSize) {
+            // make room by dropping the expired signatures; if none have expired, the new one is not kept
+            signatureCache.values().removeIf(cached -> cached.expiration <= now);
+            if (signatureCache.size() >= signatureCacheSize) return;
+        }
+        signatureCache.put(key, new CachedSignature(signatureBytes, now + signatureCacheTTL));
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        long signed = numSigned.sum();
+        stats.addProperty("signed", signed);
+        stats.addProperty("cacheHits", cacheHits.sum());
+        stats.addProperty("averageSignMicros", signed == 0 ? 0 : signNanos.sum() / signed / 1000);
+        stats.addProperty("maxSignMicros", maxSignNanos.get() / 1000);
+        return stats;
+    }
+
+    private Signature getSignature(boolean sha256) throws GeneralSecurityException {
+        ThreadLocal<Signature> signatures = sha256 ? sha256Signatures : sha1Signatures;
+        Signature sig = signatures.get();
+        if (sig == null) {
+            sig = Signature.getInstance(sha256 ? sha256Algorithm : sha1Algorithm);
+            sig.initSign(privateKey);
+            signatures.set(sig);
+        }
+        return sig;
+    }
+
+    private byte[] digest(byte[] envelopeFields, byte[] body) throws NoSuchAlgorithmException {
+        MessageDigest digest = digests.get();
+        if (digest == null) {
+            digest = MessageDigest.getInstance("SHA-256");
+            digests.set(digest);
+        }
+        if (envelopeFields != null) digest.update(envelopeFields);
+        digest.update(body);
+        return digest.digest();
+    }
+
+    private static class CachedSignature {
+        final byte[] signatureBytes;
+        final long expiration;
+
+        CachedSignature(byte[] signatureBytes, long expiration) {
+            this.signatureBytes = signatureBytes;
+            this.expiration = expiration;
+        }
+    }
+
+    private static class SignatureCacheKey {
+        final boolean sha256;
+        final byte[] digest;
+        final int hash;
+
+        SignatureCacheKey(boolean sha256, byte[] digest) {
+            this.sha256 = sha256;
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest) * 31 + (sha256 ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof SignatureCacheKey)) return false;
+            SignatureCacheKey other = (SignatureCacheKey) obj;
+            return sha256 == other.sha256 && Arrays.equals(digest, other.digest);
+        }
+    }
+}
@@ -15,10 +15,19 @@ import net.handle.hdllib.*;
 import java.io.Closeable;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
 
 /*************************************************************
  * Class that provides a storage mechanism for handle records
- * using an SQL database that is accessed via JDBC
+ * using an SQL database that is accessed via JDBC.
+ *
+ * Operations run on a pool of connections (of size sql_connection_pool_size,
+ * default 1), each with its own cache of prepared statements, so that
+ * reads can proceed in parallel.  This class does not order writes;
+ * callers are expected to hold HandleServer.lockForWrite for the handle
+ * being modified, as HandleServer and ReplicationDaemon already do.
  *************************************************************/
 public class SQLHandleStorage implements HandleStorage {
     private static final String SQL_URL = "sql_url";
@@ -26,6 +35,7 @@ public class SQLHandleStorage implements HandleStorage {
     private static final String SQL_PASSWD = "sql_passwd";
     private static final String SQL_DRIVER_CLASS = "sql_driver";
     private static final String SQL_READ_ONLY = "sql_read_only";
+    private static final String SQL_CONNECTION_POOL_SIZE = "sql_connection_pool_size";
 
     private static final long CONN_LIFE_TIME = 6 * 60 * 60 * 1000; // 6 hours
     private static final long MAX_OPS_PER_CONN = 50000; // max # of queries before reconnect
@@ -40,18 +50,10 @@ public class SQLHandleStorage implements HandleStorage {
     private boolean storeHandleValueTypeAsString = false;
     private boolean traceSql = false;
 
-    private Connection sqlConnection = null;
-    private long lastConnectTime = 0;
-    private long numOperations = 0;
-
-    private PreparedStatement haveNAStatement = null;
-    private PreparedStatement addNAStatement = null;
-    private PreparedStatement delNAStatement = null;
-    private PreparedStatement createHandleStatement = null;
-    private PreparedStatement getHandleStatement = null;
-    private PreparedStatement handleExistsStatement = null;
-    private PreparedStatement deleteHandleStatement = null;
-    private PreparedStatement modifyValueStatement = null;
+    private int connectionPoolSize = 1;
+    private Semaphore connectionPermits;
+    private final BlockingDeque<PooledConnection> idleConnections = new LinkedBlockingDeque<>();
+    private volatile boolean isShutdown = false;
 
     private String HAVE_NA_STMT = "select count(*) from nas where na = ?";
     private String DEL_NA_STMT = "delete from nas where na = ?";
@@ -59,6 +61,7 @@ public class SQLHandleStorage implements HandleStorage {
     private String SCAN_HANDLES_STMT = "select distinct handle from handles order by handle";
     private String SCAN_HANDLES_FROM_STMT = "select distinct handle from handles where handle >= ? order by handle";
     private String SCAN_BYPREFIX_STMT = "select distinct handle from handles where handle like ?";
+    private String SCAN_BYPREFIX_FROM_STMT = "select distinct handle from handles where handle like ? and handle > ? order by handle";
     private String SCAN_NAS_STMT = "select distinct na from nas order by na";
     private String SCAN_NAS_FROM_STMT = "select distinct na from nas where na >= ? order by na";
     private String DELETE_ALL_HDLS_STMT = "delete from handles";
@@ -75,6 +78,7 @@ public class SQLHandleStorage implements HandleStorage {
     private static final String CFG_SCAN_HANDLES_STMT = "scan_handles_stmt";
     private static final String CFG_SCAN_HANDLES_FROM_STMT = "scan_handles_from_stmt";
     private static final String CFG_SCAN_BYPREFIX_STMT = "scan_by_prefix_stmt";
+    private static final String CFG_SCAN_BYPREFIX_FROM_STMT = "scan_by_prefix_from_stmt";
     private static final String CFG_SCAN_NAS_STMT = "scan_nas_stmt";
     private static final String CFG_SCAN_NAS_FROM_STMT = "scan_nas_from_stmt";
     private static final String CFG_DELETE_ALL_HDLS_STMT = "delete_all_handles_stmt";
@@ -119,6 +123,10 @@ public class SQLHandleStorage implements HandleStorage {
 
         this.traceSql = config.getBoolean(CFG_TRACE_SQL, false);
 
+        // the number of connections that may be used concurrently
+        this.connectionPoolSize = Math.max(1, config.getInt(SQL_CONNECTION_POOL_SIZE, 1));
+        this.connectionPermits = new Semaphore(connectionPoolSize, true);
+
         if (traceSql) {
             System.err.println("SQL URL: " + databaseURL + ", username " + username);
             StringBuilder sb = new StringBuilder("SQL config options: ");
@@ -127,6 +135,7 @@ public class SQLHandleStorage implements HandleStorage {
             if (storeHandleAsString) sb.append("storeHandleAsString ");
             if (storeNaAsString) sb.append("storeNaAsString ");
             if (storeHandleValueTypeAsString) sb.append("storeHandleValueTypeAsString ");
+            sb.append("connectionPoolSize=").append(connectionPoolSize);
             System.err.println(sb);
         }
 
@@ -137,6 +146,7 @@ public class SQLHandleStorage implements HandleStorage {
         SCAN_HANDLES_STMT = config.getStr(CFG_SCAN_HANDLES_STMT, SCAN_HANDLES_STMT);
         SCAN_HANDLES_FROM_STMT = config.getStr(CFG_SCAN_HANDLES_FROM_STMT, SCAN_HANDLES_FROM_STMT);
         SCAN_BYPREFIX_STMT = config.getStr(CFG_SCAN_BYPREFIX_STMT, SCAN_BYPREFIX_STMT);
+        SCAN_BYPREFIX_FROM_STMT = config.getStr(CFG_SCAN_BYPREFIX_FROM_STMT, SCAN_BYPREFIX_FROM_STMT);
         SCAN_NAS_STMT = config.getStr(CFG_SCAN_NAS_STMT, SCAN_NAS_STMT);
         SCAN_NAS_FROM_STMT = config.getStr(CFG_SCAN_NAS_FROM_STMT, SCAN_NAS_FROM_STMT);
         DELETE_ALL_HDLS_STMT = config.getStr(CFG_DELETE_ALL_HDLS_STMT, DELETE_ALL_HDLS_STMT);
@@ -147,64 +157,33 @@ public class SQLHandleStorage implements HandleStorage {
         DELETE_HDL_STMT = config.getStr(CFG_DELETE_HDL_STMT, DELETE_HDL_STMT);
         MOD_VALUE_STMT = config.getStr(CFG_MOD_VALUE_STMT, MOD_VALUE_STMT);
 
-        ensureOpenSingletonConnection();
+        // make sure that we can connect
+        releaseConnection(borrowConnection());
     }
 
-    private synchronized void ensureOpenSingletonConnection() throws HandleException {
-        long now = System.currentTimeMillis();
-
-        // if the current connection has seen enough action, close it and start a new one
-        if (sqlConnection != null && (lastConnectTime < now - CONN_LIFE_TIME || numOperations > MAX_OPS_PER_CONN)) {
-            try {
-                closePreparedStatements();
-                sqlConnection.close();
-                sqlConnection = null;
-            } catch (Exception e) {
-                System.err.println("Error resetting old connection: " + e);
-                e.printStackTrace(System.err);
-            }
-        }
-
-        // if we already have an open connection, use it
+    /**
+     * Returns a connection from the pool, opening a new one if there are no
+     * idle connections or the idle ones have seen enough action.  Blocks while
+     * all connections are in use.  The connection must be handed back using
+     * releaseConnection.
+     */
+    private PooledConnection borrowConnection() throws HandleException {
         try {
-            if (sqlConnection != null && !sqlConnection.isClosed()) {
-                return; // sqlConnection;
-            }
-        } catch (SQLException e) {
-            System.err.println(e);
-            e.printStackTrace(System.err);
+            connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted waiting for SQL connection", e);
         }
-
-        // at this point, there is no valid open connection
-
-        // if there is a connection, try to clean it up a little
-        if (sqlConnection != null) {
-            try {
-                closePreparedStatements();
-                sqlConnection.close();
-            } catch (Exception e) {
-                System.err.println("Error cleaning up SQL connection: " + e);
-                e.printStackTrace(System.err);
-            }
-            sqlConnection = null;
+        long now = System.currentTimeMillis();
+        PooledConnection conn;
+        while ((conn = idleConnections.pollFirst()) != null) {
+            if (!conn.isExpired(now)) return conn;
+            conn.close();
         }
-
         try {
-            // get a new connection and prepare the statements..
-            sqlConnection = getNewConnection();
-
-            lastConnectTime = now;
-            numOperations = 0;
-
-            haveNAStatement = sqlConnection.prepareStatement(HAVE_NA_STMT);
-            delNAStatement = sqlConnection.prepareStatement(DEL_NA_STMT);
-            addNAStatement = sqlConnection.prepareStatement(ADD_NA_STMT);
-            createHandleStatement = sqlConnection.prepareStatement(CREATE_HDL_STMT);
-            getHandleStatement = sqlConnection.prepareStatement(GET_HDL_STMT);
-            handleExistsStatement = sqlConnection.prepareStatement(HDL_EXISTS_STMT);
-            deleteHandleStatement = sqlConnection.prepareStatement(DELETE_HDL_STMT);
-            modifyValueStatement = sqlConnection.prepareStatement(MOD_VALUE_STMT);
+            return new PooledConnection();
         } catch (SQLException e) {
+            connectionPermits.release();
             SQLException curr = e;
             while (curr != null) {
                 System.err.println("Got SQL Exception " + curr);
@@ -213,42 +192,42 @@ public class SQLHandleStorage implements HandleStorage {
             }
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error connecting", e);
         } catch (Exception e) {
+            connectionPermits.release();
             throw new HandleException(HandleException.INTERNAL_ERROR, "Unable to setup sql connection", e);
         }
-        return; // sqlConnection;
+    }
+
+    /**
+     * Hands a connection back to the pool, or closes it if something went
+     * wrong while it was in use.
+     */
+    private void releaseConnection(PooledConnection conn) {
+        try {
+            if (conn.isBroken || isShutdown) {
+                conn.close();
+            } else {
+                // most recently used connections are handed out first
+                idleConnections.offerFirst(conn);
+                if (isShutdown && idleConnections.remove(conn)) conn.close();
+            }
+        } finally {
+            connectionPermits.release();
+        }
     }
 
     /*********************************************************************
      * Close the database and clean up
      *********************************************************************/
     @Override
-    public synchronized void shutdown() {
-        closeSingletonConnection();
-    }
-
-    private synchronized void closeSingletonConnection() {
-        if (sqlConnection != null) {
-            try {
-                closePreparedStatements();
-                sqlConnection.close();
-            } catch (Throwable t) {
-            }
-            sqlConnection = null;
+    public void shutdown() {
+        isShutdown = true;
+        PooledConnection conn;
+        while ((conn = idleConnections.pollFirst()) != null) {
+            conn.close();
         }
     }
 
-    private synchronized void closePreparedStatements() {
-        closeQuietly(haveNAStatement);
-        closeQuietly(delNAStatement);
-        closeQuietly(addNAStatement);
-        closeQuietly(createHandleStatement);
-        closeQuietly(getHandleStatement);
-        closeQuietly(handleExistsStatement);
-        closeQuietly(deleteHandleStatement);
-        closeQuietly(modifyValueStatement);
-    }
-
-    private void closeQuietly(PreparedStatement p) {
+    private static void closeQuietly(PreparedStatement p) {
         if (p != null) try { p.close(); } catch (Exception e) { }
     }
 
@@ -260,22 +239,31 @@ public class SQLHandleStorage implements HandleStorage {
      * Returns true if this server is responsible for the given prefix.
      *********************************************************************/
     @Override
-    public synchronized boolean haveNA(byte authHandle[]) throws HandleException {
-        ensureOpenSingletonConnection();
+    public boolean haveNA(byte authHandle[]) throws HandleException {
+        PooledConnection conn = borrowConnection();
+        try {
+            return haveNA(conn, authHandle);
+        } finally {
+            releaseConnection(conn);
+        }
+    }
+
+    private boolean haveNA(PooledConnection conn, byte authHandle[]) throws HandleException {
         ResultSet results = null;
         try {
             authHandle = Util.upperCase(authHandle);
+            PreparedStatement haveNAStatement = conn.prepare(HAVE_NA_STMT);
             setNa(haveNAStatement, 1, authHandle);
             if (traceSql) {
                 System.err.println("SQL: " + HAVE_NA_STMT + " " + Util.decodeString(authHandle));
             }
             results = haveNAStatement.executeQuery();
-            numOperations++;
+            conn.numOperations++;
             return results.next() && results.getInt(1) > 0;
         } catch (Exception e) {
             // force a reconnect because something is likely wrong with
             // the SQL connection
-            closeSingletonConnection();
+            conn.isBroken = true;
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error accessing NA data", e);
         } finally {
             if (results != null) try { results.close(); } catch (Exception e) { }
@@ -287,46 +275,51 @@ public class SQLHandleStorage implements HandleStorage {
      * for the given prefix
      *********************************************************************/
     @Override
-    public synchronized void setHaveNA(byte authHandle[], boolean flag) throws HandleException {
+    public void setHaveNA(byte authHandle[], boolean flag) throws HandleException {
         if (readOnly) {
             throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
         }
 
-        ensureOpenSingletonConnection();
-
-        boolean currentlyHaveIt = haveNA(authHandle);
-        if (currentlyHaveIt == flag) {
-            return;
-        }
-
+        PooledConnection conn = borrowConnection();
         try {
-            authHandle = Util.upperCase(authHandle);
-            if (currentlyHaveIt) { // we already have it but need to remove it
-                setNa(delNAStatement, 1, authHandle);
-                if (traceSql) {
-                    System.err.println("SQL: " + DEL_NA_STMT + " " + Util.decodeString(authHandle));
-                }
-                delNAStatement.executeUpdate();
-            } else { // we need to add the NA to the database
-                setNa(addNAStatement, 1, authHandle);
-                if (traceSql) {
-                    System.err.println("SQL: " + ADD_NA_STMT + " " + Util.decodeString(authHandle));
+            boolean currentlyHaveIt = haveNA(conn, authHandle);
+            if (currentlyHaveIt == flag) {
+                return;
+            }
+
+            try {
+                authHandle = Util.upperCase(authHandle);
+                if (currentlyHaveIt) { // we already have it but need to remove it
+                    PreparedStatement delNAStatement = conn.prepare(DEL_NA_STMT);
+                    setNa(delNAStatement, 1, authHandle);
+                    if (traceSql) {
+                        System.err.println("SQL: " + DEL_NA_STMT + " " + Util.decodeString(authHandle));
+                    }
+                    delNAStatement.executeUpdate();
+                } else { // we need to add the NA to the database
+                    PreparedStatement addNAStatement = conn.prepare(ADD_NA_STMT);
+                    setNa(addNAStatement, 1, authHandle);
+                    if (traceSql) {
+                        System.err.println("SQL: " + ADD_NA_STMT + " " + Util.decodeString(authHandle));
+                    }
+                    addNAStatement.executeUpdate();
                 }
-                addNAStatement.executeUpdate();
+                conn.numOperations++;
+            } catch (Exception e) {
+                // force a reconnect because something is likely wrong with
+                // the SQL connection
+                conn.isBroken = true;
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Error accessing NA data", e);
             }
-            numOperations++;
-        } catch (Exception e) {
-            // force a reconnect because something is likely wrong with
-            // the SQL connection
-            closeSingletonConnection();
-            throw new HandleException(HandleException.INTERNAL_ERROR, "Error accessing NA data", e);
+        } finally {
+            releaseConnection(conn);
         }
     }
 
-    private synchronized boolean handleExists(byte handle[]) throws HandleException {
-        ensureOpenSingletonConnection();
+    private boolean handleExists(PooledConnection conn, byte handle[]) throws HandleException {
         ResultSet results = null;
         try {
+            PreparedStatement handleExistsStatement = conn.prepare(HDL_EXISTS_STMT);
             setHandle(handleExistsStatement, 1, handle);
             if (traceSql) {
                 System.err.println("SQL: " + HDL_EXISTS_STMT + " " + Util.decodeString(handle));
@@ -336,7 +329,7 @@ public class SQLHandleStorage implements HandleStorage {
         } catch (Exception e) {
             // force a reconnect because something is likely wrong with
             // the SQL connection
-            closeSingletonConnection();
+            conn.isBroken = true;
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error checking for existing handle", e);
         } finally {
             if (results != null) try { results.close(); } catch (Exception e) {}
@@ -345,7 +338,12 @@ public class SQLHandleStorage implements HandleStorage {
 
     @Override
     public boolean exists(byte[] handle) throws HandleException {
-        return handleExists(handle);
+        PooledConnection conn = borrowConnection();
+        try {
+            return handleExists(conn, handle);
+        } finally {
+            releaseConnection(conn);
+        }
     }
 
     // special encoding used only for references
@@ -400,46 +398,51 @@ public class SQLHandleStorage implements HandleStorage {
      * initial values
      *********************************************************************/
     @Override
-    public synchronized void createHandle(byte handle[], HandleValue values[]) throws HandleException {
+    public void createHandle(byte handle[], HandleValue values[]) throws HandleException {
         if (readOnly) {
             throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
         }
 
-        ensureOpenSingletonConnection();
-
-        String handleStr = Util.decodeString(handle);
+        PooledConnection conn = borrowConnection();
+        try {
+            String handleStr = Util.decodeString(handle);
 
-        // if the handle already exists, throw an exception
-        if (handleExists(handle)) {
-            throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, handleStr);
-        }
+            // if the handle already exists, throw an exception
+            if (handleExists(conn, handle)) {
+                throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, handleStr);
+            }
 
-        if (values == null) {
-            throw new HandleException(HandleException.INVALID_VALUE);
-        }
+            if (values == null) {
+                throw new HandleException(HandleException.INVALID_VALUE);
+            }
 
-        try {
+            Connection sqlConnection = conn.connection;
             try {
-                sqlConnection.setAutoCommit(false);
-                performCreation(handle, values);
-                sqlConnection.commit();
-            } catch (Exception sqlExc) {
-                sqlConnection.rollback();
-                throw sqlExc;
+                try {
+                    sqlConnection.setAutoCommit(false);
+                    performCreation(conn, handle, values);
+                    sqlConnection.commit();
+                } catch (Exception sqlExc) {
+                    sqlConnection.rollback();
+                    throw sqlExc;
+                } finally {
+                    sqlConnection.setAutoCommit(true);
+                }
+            } catch (Exception e) {
+                // force a reconnect because something is likely wrong with
+                // the SQL connection
+                conn.isBroken = true;
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Error creating handle", e);
             } finally {
-                sqlConnection.setAutoCommit(true);
+                conn.numOperations++;
             }
-        } catch (Exception e) {
-            // force a reconnect because something is likely wrong with
-            // the SQL connection
-            closeSingletonConnection();
-            throw new HandleException(HandleException.INTERNAL_ERROR, "Error creating handle", e);
         } finally {
-            numOperations++;
+            releaseConnection(conn);
         }
     }
 
-    private void performCreation(byte[] handle, HandleValue[] values) throws SQLException {
+    private void performCreation(PooledConnection conn, byte[] handle, HandleValue[] values) throws SQLException {
+        PreparedStatement createHandleStatement = conn.prepare(CREATE_HDL_STMT);
         for (HandleValue val : values) {
             // handle, index, type, data, ttl_type, ttl, timestamp, references,
             // admin_read, admin_write, pub_read, pub_write
@@ -534,28 +537,30 @@ public class SQLHandleStorage implements HandleStorage {
      * Delete the specified handle in the database.
      *********************************************************************/
     @Override
-    public synchronized boolean deleteHandle(byte handle[]) throws HandleException {
+    public boolean deleteHandle(byte handle[]) throws HandleException {
         if (readOnly) {
             throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
         }
 
-        ensureOpenSingletonConnection();
-
+        PooledConnection conn = borrowConnection();
         boolean deleted;
         try {
-            deleted = performDeletion(handle);
-            numOperations++;
+            deleted = performDeletion(conn, handle);
+            conn.numOperations++;
         } catch (Exception e) {
             // force a reconnect because something is likely wrong with
             // the SQL connection
-            closeSingletonConnection();
+            conn.isBroken = true;
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error deleting handle");
+        } finally {
+            releaseConnection(conn);
         }
         return deleted;
     }
 
-    private boolean performDeletion(byte[] handle) throws SQLException {
+    private boolean performDeletion(PooledConnection conn, byte[] handle) throws SQLException {
         boolean deleted;
+        PreparedStatement deleteHandleStatement = conn.prepare(DELETE_HDL_STMT);
         setHandle(deleteHandleStatement, 1, handle);
         if (traceSql) {
             System.err.println("SQL: " + DELETE_HDL_STMT + " " + Util.decodeString(handle));
@@ -570,11 +575,11 @@ public class SQLHandleStorage implements HandleStorage {
      * values of type ALIAS or REDIRECT, even if they were not requested.
      *********************************************************************/
     @Override
-    public synchronized byte[][] getRawHandleValues(byte handle[], int indexList[], byte typeList[][]) throws HandleException {
-        ensureOpenSingletonConnection();
-
+    public byte[][] getRawHandleValues(byte handle[], int indexList[], byte typeList[][]) throws HandleException {
+        PooledConnection conn = borrowConnection();
         ResultSet results = null;
         try {
+            PreparedStatement getHandleStatement = conn.prepare(GET_HDL_STMT);
             setHandle(getHandleStatement, 1, handle);
             if (traceSql) {
                 System.err.println("SQL: " + GET_HDL_STMT + " " + Util.decodeString(handle));
@@ -633,7 +638,7 @@ public class SQLHandleStorage implements HandleStorage {
                 values.add(value);
             }
 
-            numOperations++;
+            conn.numOperations++;
 
             if (!handleExists) {
                 return null;
@@ -651,10 +656,11 @@ public class SQLHandleStorage implements HandleStorage {
         } catch (Exception e) {
             // force a reconnect because something is likely wrong with
             // the SQL connection
-            closeSingletonConnection();
+            conn.isBroken = true;
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error retrieving handle");
         } finally {
             if (results != null) try { results.close(); } catch (SQLException e) { }
+            releaseConnection(conn);
         }
     }
 
@@ -662,27 +668,41 @@ public class SQLHandleStorage implements HandleStorage {
      * Replace the current values for the given handle with new values.
      *********************************************************************/
     @Override
-    public synchronized void updateValue(byte handle[], HandleValue values[]) throws HandleException {
+    public void updateValue(byte handle[], HandleValue values[]) throws HandleException {
         if (readOnly) {
             throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
         }
-        if (!handleExists(handle)) {
-            throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST);
+        PooledConnection conn = borrowConnection();
+        try {
+            if (!handleExists(conn, handle)) {
+                throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST);
+            }
+            createOrUpdateRecord(conn, handle, values);
+        } finally {
+            releaseConnection(conn);
         }
-        createOrUpdateRecord(handle, values);
     }
 
     @Override
-    public synchronized void createOrUpdateRecord(byte handle[], HandleValue values[]) throws HandleException {
+    public void createOrUpdateRecord(byte handle[], HandleValue values[]) throws HandleException {
         if (readOnly) {
             throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
         }
-        ensureOpenSingletonConnection();
+        PooledConnection conn = borrowConnection();
+        try {
+            createOrUpdateRecord(conn, handle, values);
+        } finally {
+            releaseConnection(conn);
+        }
+    }
+
+    private void createOrUpdateRecord(PooledConnection conn, byte handle[], HandleValue values[]) throws HandleException {
+        Connection sqlConnection = conn.connection;
         try {
             try {
                 sqlConnection.setAutoCommit(false);
-                performDeletion(handle);
-                performCreation(handle, values);
+                performDeletion(conn, handle);
+                performCreation(conn, handle, values);
                 sqlConnection.commit();
             } catch (Exception sqlExc) {
                 sqlConnection.rollback();
@@ -693,10 +713,86 @@ public class SQLHandleStorage implements HandleStorage {
         } catch (Exception e) {
             // force a reconnect because something is likely wrong with
             // the SQL connection
-            closeSingletonConnection();
+            conn.isBroken = true;
             throw new HandleException(HandleException.INTERNAL_ERROR, "Error updating handle values", e);
         } finally {
-            numOperations++;
+            conn.numOperations++;
+        }
+    }
+
+
+    /*********************************************************************
+     * Applies the given transactions on one connection within a single
+     * SQL transaction, so that the whole list is written with one commit.
+     *********************************************************************/
+    @Override
+    public void applyTransactions(List<Transaction> txns) throws HandleException {
+        if (readOnly) {
+            throw new HandleException(HandleException.STORAGE_RDONLY, "Server is read-only");
+        }
+        PooledConnection conn = borrowConnection();
+        try {
+            Connection sqlConnection = conn.connection;
+            try {
+                try {
+                    sqlConnection.setAutoCommit(false);
+                    for (Transaction txn : txns) {
+                        applyTransaction(conn, txn);
+                    }
+                    sqlConnection.commit();
+                } catch (Exception sqlExc) {
+                    sqlConnection.rollback();
+                    throw sqlExc;
+                } finally {
+                    sqlConnection.setAutoCommit(true);
+                }
+            } catch (HandleException e) {
+                throw e;
+            } catch (Exception e) {
+                // force a reconnect because something is likely wrong with
+                // the SQL connection
+                conn.isBroken = true;
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Error applying transactions", e);
+            } finally {
+                conn.numOperations++;
+            }
+        } finally {
+            releaseConnection(conn);
+        }
+    }
+
+    private void applyTransaction(PooledConnection conn, Transaction txn) throws HandleException, SQLException {
+        switch (txn.action) {
+        case Transaction.ACTION_CREATE_HANDLE:
+        case Transaction.ACTION_UPDATE_HANDLE:
+            performDeletion(conn, txn.handle);
+            performCreation(conn, txn.handle, txn.values);
+            break;
+        case Transaction.ACTION_DELETE_HANDLE:
+            performDeletion(conn, txn.handle);
+            break;
+        case Transaction.ACTION_HOME_NA:
+            if (!haveNA(conn, txn.handle)) {
+                byte[] na = Util.upperCase(txn.handle);
+                PreparedStatement addNAStatement = conn.prepare(ADD_NA_STMT);
+                setNa(addNAStatement, 1, na);
+                if (traceSql) {
+                    System.err.println("SQL: " + ADD_NA_STMT + " " + Util.decodeString(na));
+                }
+                addNAStatement.executeUpdate();
+            }
+            break;
+        case Transaction.ACTION_UNHOME_NA:
+            byte[] na = Util.upperCase(txn.handle);
+            PreparedStatement delNAStatement = conn.prepare(DEL_NA_STMT);
+            setNa(delNAStatement, 1, na);
+            if (traceSql) {
+                System.err.println("SQL: " + DEL_NA_STMT + " " + Util.decodeString(na));
+            }
+            delNAStatement.executeUpdate();
+            break;
+        default:
+            throw new HandleException(HandleException.INVALID_VALUE, "Unknown transaction type: " + txn.action);
         }
     }
 
@@ -865,6 +961,57 @@ public class SQLHandleStorage implements HandleStorage {
         return new ListHdlsEnum(naHdl);
     }
 
+    /*********************************************************************
+     * Returns up to <i>maxHandles</i> of the handles with the given prefix,
+     * in the database's order, starting after <i>startAfter</i>.  Only
+     * the requested page is read from the database.
+     *********************************************************************/
+    @Override
+    public List<byte[]> getHandlesForNA(byte naHdl[], byte startAfter[], int maxHandles) throws HandleException {
+        if (!haveNA(naHdl)) {
+            throw new HandleException(HandleException.INVALID_VALUE, "The requested prefix doesn't live here");
+        }
+        boolean isZeroNA = Util.startsWithCI(naHdl, Common.NA_HANDLE_PREFIX);
+        if (isZeroNA) {
+            naHdl = Util.getSuffixPart(naHdl);
+        }
+        String prefix = Util.decodeString(naHdl);
+        boolean listingDerivedPrefixes = Util.startsWithCI(naHdl, Common.NA_HANDLE_PREFIX);
+        int prefixLength = Util.encodeString(prefix).length;
+        String pattern = prefix + (listingDerivedPrefixes ? ".%" : "/%");
+        List<byte[]> result = new ArrayList<>();
+        if (maxHandles <= 0) return result;
+
+        PooledConnection conn = borrowConnection();
+        ResultSet results = null;
+        try {
+            PreparedStatement scanStatement = conn.prepare(SCAN_BYPREFIX_FROM_STMT);
+            setHandle(scanStatement, 1, Util.encodeString(pattern));
+            setHandle(scanStatement, 2, startAfter == null ? new byte[0] : startAfter);
+            if (traceSql) {
+                System.err.println("SQL: " + SCAN_BYPREFIX_FROM_STMT + " " + pattern + " " + (startAfter == null ? "" : Util.decodeString(startAfter)));
+            }
+            // a prefix containing wildcards can match rows which are then skipped, so those can't be limited
+            boolean hasWildcards = prefix.indexOf('_') >= 0 || prefix.indexOf('%') >= 0;
+            scanStatement.setMaxRows(hasWildcards ? 0 : maxHandles);
+            results = scanStatement.executeQuery();
+            conn.numOperations++;
+            while (result.size() < maxHandles && results.next()) {
+                byte handle[] = getHandleBytesFromResults(results, 1);
+                if (handle.length > prefixLength && (listingDerivedPrefixes ? handle[prefixLength] == (byte) '.' : handle[prefixLength] == (byte) '/')) {
+                    result.add(handle);
+                }
+            }
+            return result;
+        } catch (SQLException e) {
+            conn.isBroken = true;
+            throw new HandleException(HandleException.INTERNAL_ERROR, "SQL Error", e);
+        } finally {
+            if (results != null) try { results.close(); } catch (Exception e) { }
+            releaseConnection(conn);
+        }
+    }
+
     /*********************************************************************
      * Remove all of the records from the database.
      ********************************************************************/
@@ -1033,4 +1180,50 @@ public class SQLHandleStorage implements HandleStorage {
         }
     }
 
+    /**
+     * A connection in the pool along with its cache of prepared statements.
+     * A PooledConnection is only ever used by one thread at a time.
+     */
+    private class PooledConnection {
+        final Connection connection;
+        final long connectTime;
+        long numOperations = 0;
+        boolean isBroken = false;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+        PooledConnection() throws SQLException {
+            this.connection = getNewConnection();
+            this.connectTime = System.currentTimeMillis();
+        }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        boolean isExpired(long now) {
+            if (connectTime < now - CONN_LIFE_TIME || numOperations > MAX_OPS_PER_CONN) return true;
+            try {
+                return connection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        void close() {
+            for (PreparedStatement statement : statements.values()) {
+                closeQuietly(statement);
+            }
+            statements.clear();
+            try {
+                connection.close();
+            } catch (Throwable t) {
+            }
+        }
+    }
+
 }
@@ -11,15 +11,31 @@ package net.handle.server;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.net.InetAddress;
 
 import net.cnri.util.StreamTable;
 import net.handle.hdllib.*;
 
+import com.google.gson.JsonObject;
+
 /*******************************************************************************
  *
  * Object that writes information to access and error log files.
  *
+ * With "async_logging" set in the log_save_config section, request threads
+ * don't write the logs themselves: they put each message in a
+ * {@link LogEventQueue}, and a single writer thread formats the queued
+ * messages and writes them in batches, flushing the error log after each
+ * batch.  "async_log_buffer_size" is the most messages queued at once
+ * (65536 by default), and "async_log_overflow" says what to do with a
+ * message when the queue is full: "block" (the default) waits for room,
+ * "drop" discards it and notes the number discarded in the error log, and
+ * "count" discards it and only counts it in the statistics.  Error
+ * messages at ERRLOG_LEVEL_REALBAD or above always wait for room.
+ *
  ******************************************************************************/
 
 public class ServerLog implements Runnable {
@@ -30,6 +46,20 @@ public class ServerLog implements Runnable {
     public static final int ERRLOG_LEVEL_REALBAD = 75;
     public static final int ERRLOG_LEVEL_FATAL = 100;
 
+    public static final String ASYNC_LOGGING = "async_logging";
+    public static final String ASYNC_LOG_BUFFER_SIZE = "async_log_buffer_size";
+    public static final String ASYNC_LOG_OVERFLOW = "async_log_overflow";
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_COUNT = "count";
+
+    // the most queued messages written at once by the writer thread
+    private static final int ASYNC_BATCH_SIZE = 1024;
+    // how long the writer thread waits for messages when the queue is empty
+    private static final long ASYNC_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // least time between notes of dropped messages in the error log
+    private static final long DROPPED_REPORT_INTERVAL = 10000;
+
     private int errorLoggingLevel = ERRLOG_LEVEL_INFO; // Default logging level
 
     private static Map<String,Integer> calendarDays;
@@ -62,6 +92,14 @@ public class ServerLog implements Runnable {
     private Thread flusherThread = null;
     private Thread rotaterThread = null;
 
+    private LogEventQueue asyncQueue = null;
+    private String overflowPolicy = OVERFLOW_BLOCK;
+    private Thread asyncWriterThread = null;
+    private volatile boolean asyncRunning = false;
+    private final LongAdder droppedEvents = new LongAdder();
+    private long reportedDroppedEvents = 0;
+    private long lastDroppedReport = 0;
+
     /**
      * Construct a log handler to write to log files under the specified directory.
      * If the directory doesnt exist, isnt writable, or is null, the handler
@@ -82,10 +120,14 @@ public class ServerLog implements Runnable {
     }
 
     private String getAccessLogDate() {
+        return getAccessLogDate(System.currentTimeMillis());
+    }
+
+    private String getAccessLogDate(long millis) {
         StringBuffer sb = new StringBuffer(40);
         int tmpInt;
         synchronized (accessCal) {
-            accessCal.setTimeInMillis(System.currentTimeMillis());
+            accessCal.setTimeInMillis(millis);
             sb.append(accessCal.get(Calendar.YEAR));
 
             sb.append('-');
@@ -225,6 +267,18 @@ public class ServerLog implements Runnable {
             } catch (Throwable t) {
             }
         }
+
+        if (conf.getBoolean(ASYNC_LOGGING, false)) {
+            overflowPolicy = conf.getStr(ASYNC_LOG_OVERFLOW, OVERFLOW_BLOCK).trim().toLowerCase(Locale.ENGLISH);
+            if (!OVERFLOW_BLOCK.equals(overflowPolicy) && !OVERFLOW_DROP.equals(overflowPolicy) && !OVERFLOW_COUNT.equals(overflowPolicy)) {
+                throw new Exception("Invalid log overflow policy: \"" + overflowPolicy + "\" for " + ASYNC_LOG_OVERFLOW + " setting in config file");
+            }
+            asyncQueue = new LogEventQueue(conf.getInt(ASYNC_LOG_BUFFER_SIZE, 65536));
+            asyncRunning = true;
+            asyncWriterThread = new Thread(this::writeQueuedEvents, "ServerLog writer");
+            asyncWriterThread.setDaemon(true);
+            asyncWriterThread.start();
+        }
     }
 
     /**
@@ -243,7 +297,25 @@ public class ServerLog implements Runnable {
      */
     public void logAccess(String accessType, InetAddress clientAddr, int opCode, int rsCode, String logString, long time) {
         if (logString != null && accessWriter != null) {
-            String msg = ((clientAddr == null) ? "" : Util.rfcIpRepr(clientAddr)) + " " + accessType + " \"" + getAccessLogDate() + "\" " + opCode + " " + rsCode + " " + time + "ms " + removeNewlines(logString);
+            if (asyncQueue != null) {
+                long pos = claimQueueSlot(OVERFLOW_BLOCK.equals(overflowPolicy));
+                if (pos < 0) {
+                    droppedEvents.increment();
+                    return;
+                }
+                LogEventQueue.LogEvent event = asyncQueue.get(pos);
+                event.isAccess = true;
+                event.timestamp = System.currentTimeMillis();
+                event.accessType = accessType;
+                event.clientAddr = clientAddr;
+                event.opCode = opCode;
+                event.rsCode = rsCode;
+                event.time = time;
+                event.message = logString;
+                asyncQueue.publish(pos);
+                return;
+            }
+            String msg = formatAccess(System.currentTimeMillis(), accessType, clientAddr, opCode, rsCode, logString, time);
 
             synchronized (ACCESS_LOG_LOCK) {
                 if (accessWriter == null) {
@@ -266,7 +338,26 @@ public class ServerLog implements Runnable {
         if (level < errorLoggingLevel || logString == null) { // No-op in either case
             return;
         }
-        String msg = "\"" + getAccessLogDate() + "\" " + level + ' ' + logString;
+        if (asyncQueue != null) {
+            // serious errors are never dropped, whatever the overflow policy
+            boolean mustKeep = level >= ERRLOG_LEVEL_REALBAD;
+            long pos = claimQueueSlot(mustKeep || OVERFLOW_BLOCK.equals(overflowPolicy));
+            if (pos >= 0) {
+                LogEventQueue.LogEvent event = asyncQueue.get(pos);
+                event.isAccess = false;
+                event.timestamp = System.currentTimeMillis();
+                event.level = level;
+                event.message = logString;
+                asyncQueue.publish(pos);
+                return;
+            }
+            if (!mustKeep) {
+                droppedEvents.increment();
+                return;
+            }
+            // the writer thread has stopped; write it here instead
+        }
+        String msg = formatError(System.currentTimeMillis(), level, logString);
 
         // If level is "fatal", write to stderr
         // even if writing to the error log, too
@@ -285,6 +376,118 @@ public class ServerLog implements Runnable {
         }
     }
 
+    private String formatAccess(long timestamp, String accessType, InetAddress clientAddr, int opCode, int rsCode, String logString, long time) {
+        return ((clientAddr == null) ? "" : Util.rfcIpRepr(clientAddr)) + " " + accessType + " \"" + getAccessLogDate(timestamp) + "\" " + opCode + " " + rsCode + " " + time + "ms " + removeNewlines(logString);
+    }
+
+    private String formatError(long timestamp, int level, String logString) {
+        return "\"" + getAccessLogDate(timestamp) + "\" " + level + ' ' + logString;
+    }
+
+    /**
+     * Claims a slot in the queue for a message, waiting for room if the queue
+     * is full and block is true.  Returns -1 if there is no room and either
+     * block is false or the writer thread has stopped.
+     */
+    private long claimQueueSlot(boolean block) {
+        long pos = asyncQueue.tryClaim();
+        if (pos >= 0) return pos;
+        if (block) {
+            while (asyncRunning) {
+                LockSupport.parkNanos(100000);
+                pos = asyncQueue.tryClaim();
+                if (pos >= 0) return pos;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The run() implementation for the writer thread when logging asynchronously:
+     * takes batches of messages from the queue, formats them, and writes them.
+     */
+    private void writeQueuedEvents() {
+        StringBuilder accessBatch = new StringBuilder();
+        StringBuilder errorBatch = new StringBuilder();
+        while (true) {
+            // messages queued before shutdown are still written
+            boolean stopping = !asyncRunning;
+            int count = 0;
+            LogEventQueue.LogEvent event;
+            while (count < ASYNC_BATCH_SIZE && (event = asyncQueue.peek()) != null) {
+                try {
+                    if (event.isAccess) {
+                        accessBatch.append(formatAccess(event.timestamp, event.accessType, event.clientAddr, event.opCode, event.rsCode, event.message, event.time)).append('\n');
+                    } else {
+                        errorBatch.append(formatError(event.timestamp, event.level, event.message)).append('\n');
+                    }
+                } catch (Throwable t) {
+                    System.err.println("Error formatting log message: " + t);
+                }
+                asyncQueue.release();
+                count++;
+            }
+            reportDroppedEvents(errorBatch, stopping && count == 0);
+            if (accessBatch.length() > 0) {
+                synchronized (ACCESS_LOG_LOCK) {
+                    try {
+                        if (accessWriter != null) accessWriter.write(accessBatch.toString());
+                    } catch (Exception e) {
+                        System.err.println("Error writing to access log: (" + e + ")");
+                    }
+                }
+                accessBatch.setLength(0);
+            }
+            if (errorBatch.length() > 0) {
+                synchronized (ERROR_LOG_LOCK) {
+                    if (errorWriter == null) {
+                        System.err.print(errorBatch);
+                    } else {
+                        try {
+                            errorWriter.write(errorBatch.toString());
+                            errorWriter.flush();
+                        } catch (Throwable e) {
+                            System.err.println("Error (" + e + ") writing to error log.");
+                        }
+                    }
+                }
+                errorBatch.setLength(0);
+            }
+            if (count == 0) {
+                if (stopping) return;
+                LockSupport.parkNanos(ASYNC_IDLE_NANOS);
+            }
+        }
+    }
+
+    private void reportDroppedEvents(StringBuilder errorBatch, boolean isFinal) {
+        if (!OVERFLOW_DROP.equals(overflowPolicy)) return;
+        long now = System.currentTimeMillis();
+        if (!isFinal && now - lastDroppedReport < DROPPED_REPORT_INTERVAL) return;
+        long dropped = droppedEvents.sum();
+        if (dropped == reportedDroppedEvents) return;
+        errorBatch.append(formatError(now, ERRLOG_LEVEL_NORMAL, "Log queue full: dropped " + (dropped - reportedDroppedEvents) + " log messages")).append('\n');
+        reportedDroppedEvents = dropped;
+        lastDroppedReport = now;
+    }
+
+    /** Returns the number of log messages discarded because the queue was full. */
+    public long getDroppedEventCount() {
+        return droppedEvents.sum();
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("async", asyncQueue != null);
+        if (asyncQueue != null) {
+            stats.addProperty("queueCapacity", asyncQueue.capacity());
+            stats.addProperty("queued", asyncQueue.size());
+            stats.addProperty("overflowPolicy", overflowPolicy);
+        }
+        stats.addProperty("droppedEvents", getDroppedEventCount());
+        return stats;
+    }
+
     /**
      * Sets the file where access log entries will be written.  If the file already exists
      * then new entries will be appended to the file.
@@ -361,6 +564,16 @@ public class ServerLog implements Runnable {
      * Stop the flusher thread and close the logs.
      */
     public void shutdown() {
+        if (asyncWriterThread != null) {
+            // write what has been queued before the logs are closed
+            asyncRunning = false;
+            LockSupport.unpark(asyncWriterThread);
+            try {
+                asyncWriterThread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         continuing = false; // Tell flusher thread to quit
         if (flusherThread != null) {
             synchronized (ACCESS_LOG_LOCK) { // Wake the flusher thread, if it's asleep
@@ -45,6 +45,7 @@ public final class BDBJEHandleStorage implements HandleStorage {
     private File serverDir;
     private Environment environment = null;
     private DBTransactionLog txnLog;
+    private GroupCommitter groupCommitter = null;
 
     private static final String HANDLE_DB_NAME = "handles";
     private static final String NA_DB_NAME = "nas";
@@ -85,10 +86,17 @@ public final class BDBJEHandleStorage implements HandleStorage {
         envConfig.setReadOnly(config.getBoolean(Common.READ_ONLY_DB_STORAGE_KEY, false));
         envConfig.setAllowCreate(true);
         envConfig.setLockTimeout(config.getInt("bdbje_timeout", 0), TimeUnit.MICROSECONDS);
-        envConfig.setDurability(config.getBoolean("bdbje_no_sync_on_write", false) ? Durability.COMMIT_WRITE_NO_SYNC : Durability.COMMIT_SYNC);
+        boolean noSync = config.getBoolean("bdbje_no_sync_on_write", false);
+        boolean groupCommit = !noSync && !envConfig.getReadOnly() && GroupCommitter.isEnabled(config);
+        // with group commit, writes are synced in batches by the committer
+        envConfig.setDurability(noSync || groupCommit ? Durability.COMMIT_WRITE_NO_SYNC : Durability.COMMIT_SYNC);
         envConfig.setSharedCache(true);
         envConfig.setConfigParam(EnvironmentConfig.FREE_DISK, "0");
         environment = JeUpgradeTool.openEnvironment(serverDir, envConfig);
+        if (groupCommit) {
+            Environment env = environment;
+            groupCommitter = GroupCommitter.fromConfig(config, "handle storage", () -> env.flushLog(true));
+        }
 
         db = new DBWrapper(environment, HANDLE_DB_NAME);
         naDB = new DBWrapper(environment, NA_DB_NAME);
@@ -136,6 +144,7 @@ public final class BDBJEHandleStorage implements HandleStorage {
                 if (logTxns) txnLog.log(DBTransactionLog.DELETE_NA_VALUE, handle, BLANK_BYTES);
                 naDB.del(handle);
             }
+            awaitDurable();
         } catch (Exception e) {
             HandleException he = new HandleException(HandleException.INTERNAL_ERROR, "Error recording NA data");
             he.initCause(e);
@@ -166,6 +175,7 @@ public final class BDBJEHandleStorage implements HandleStorage {
             } else if (status != OperationStatus.SUCCESS) {
                 throw new HandleException(HandleException.INTERNAL_ERROR, "Unknown status returned from db.putNoOverwrite: " + status);
             }
+            awaitDurable();
         } catch (HandleException e1) {
             throw e1;
         } catch (Exception e) {
@@ -175,6 +185,11 @@ public final class BDBJEHandleStorage implements HandleStorage {
         }
     }
 
+    /** With group commit, waits until the calling thread's write is on disk. */
+    private void awaitDurable() throws HandleException {
+        if (groupCommitter != null) groupCommitter.awaitDurable();
+    }
+
     private byte[] bytesOfHandleValues(HandleValue[] values) {
         // add the size of all of the clumps as well as a 'time-received' field
         // and 'value-length' field for each value
@@ -207,7 +222,9 @@ public final class BDBJEHandleStorage implements HandleStorage {
 
         try {
             if (logTxns) txnLog.log(DBTransactionLog.DELETE_HDL_VALUE, handle, BLANK_BYTES);
-            return db.del(handle);
+            boolean deleted = db.del(handle);
+            if (deleted) awaitDurable();
+            return deleted;
         } catch (HandleException e1) {
             throw e1;
         } catch (Exception e) {
@@ -346,6 +363,7 @@ public final class BDBJEHandleStorage implements HandleStorage {
             if (logTxns) txnLog.log(DBTransactionLog.SET_HDL_VALUE, handle, data);
 
             db.put(handle, data);
+            awaitDurable();
         } catch (HandleException e1) {
             throw e1;
         } catch (Exception e) {
@@ -355,6 +373,61 @@ public final class BDBJEHandleStorage implements HandleStorage {
         }
     }
 
+    /*********************************************************************
+     * Applies the given transactions within a single database transaction,
+     * so that the whole list is written with one commit.
+     *********************************************************************/
+    @Override
+    public void applyTransactions(List<net.handle.hdllib.Transaction> txns) throws HandleException {
+        // check if write operations are allowed.
+        if (readOnly) {
+            throw new HandleException(HandleException.STORAGE_RDONLY);
+        }
+        com.sleepycat.je.Transaction dbTxn = null;
+        try {
+            dbTxn = environment.beginTransaction(null, null);
+            for (net.handle.hdllib.Transaction txn : txns) {
+                switch (txn.action) {
+                case net.handle.hdllib.Transaction.ACTION_CREATE_HANDLE:
+                case net.handle.hdllib.Transaction.ACTION_UPDATE_HANDLE:
+                    byte[] data = bytesOfHandleValues(txn.values);
+                    if (logTxns) txnLog.log(DBTransactionLog.SET_HDL_VALUE, txn.handle, data);
+                    db.put(dbTxn, txn.handle, data);
+                    break;
+                case net.handle.hdllib.Transaction.ACTION_DELETE_HANDLE:
+                    if (logTxns) txnLog.log(DBTransactionLog.DELETE_HDL_VALUE, txn.handle, BLANK_BYTES);
+                    db.del(dbTxn, txn.handle);
+                    break;
+                case net.handle.hdllib.Transaction.ACTION_HOME_NA:
+                    byte[] homedNA = Util.upperCase(txn.handle);
+                    if (logTxns) txnLog.log(DBTransactionLog.SET_NA_VALUE, homedNA, BLANK_BYTES);
+                    naDB.put(dbTxn, homedNA, BLANK_BYTES);
+                    break;
+                case net.handle.hdllib.Transaction.ACTION_UNHOME_NA:
+                    byte[] unhomedNA = Util.upperCase(txn.handle);
+                    if (logTxns) txnLog.log(DBTransactionLog.DELETE_NA_VALUE, unhomedNA, BLANK_BYTES);
+                    naDB.del(dbTxn, unhomedNA);
+                    break;
+                default:
+                    throw new HandleException(HandleException.INVALID_VALUE, "Unknown transaction type: " + txn.action);
+                }
+            }
+            dbTxn.commit();
+            dbTxn = null;
+            awaitDurable();
+        } catch (HandleException e1) {
+            throw e1;
+        } catch (Exception e) {
+            HandleException he = new HandleException(HandleException.INTERNAL_ERROR, "Error applying transactions");
+            he.initCause(e);
+            throw he;
+        } finally {
+            if (dbTxn != null) {
+                try { dbTxn.abort(); } catch (Exception e) {}
+            }
+        }
+    }
+
     /*********************************************************************
      * Scan the database, calling a method in the specified callback for
      * every handle in the database.
@@ -377,6 +450,12 @@ public final class BDBJEHandleStorage implements HandleStorage {
         return true;
     }
 
+    @Override
+    public boolean scansHandlesInByteOrder() {
+        // the default comparator of the database orders keys by unsigned bytes
+        return true;
+    }
+
     @Override
     public final void scanHandlesFrom(byte[] startingPoint, boolean inclusive, ScanCallback callback) throws HandleException {
         DBWrapper.DBIterator e = db.getEnumeratorFrom(startingPoint, inclusive);
@@ -440,6 +519,38 @@ public final class BDBJEHandleStorage implements HandleStorage {
         return new HdlsForNAEnum(db.getEnumerator(naHdl), naHdl);
     }
 
+    /*********************************************************************
+     * Returns up to <i>maxHandles</i> of the handles with the given prefix,
+     * in key order, starting after <i>startAfter</i>.  Only the keys from
+     * the starting point to the end of the page are read.
+     *********************************************************************/
+    @Override
+    public final List<byte[]> getHandlesForNA(byte naHdl[], byte startAfter[], int maxHandles) throws HandleException {
+        boolean isZeroNA = Util.startsWithCI(naHdl, Common.NA_HANDLE_PREFIX);
+        if (isZeroNA) naHdl = Util.getSuffixPart(naHdl);
+        byte prefix[] = Util.encodeString(Util.decodeString(naHdl));
+        boolean listingDerivedPrefixes = Util.startsWithCI(prefix, Common.NA_HANDLE_PREFIX);
+        List<byte[]> result = new ArrayList<>();
+        if (maxHandles <= 0) return result;
+
+        DBIterator e;
+        if (startAfter != null && Util.compare(startAfter, prefix) >= 0) e = db.getEnumeratorFrom(startAfter, false);
+        else e = db.getEnumeratorFrom(prefix, true);
+        try {
+            while (e.hasMoreElements()) {
+                byte handle[] = e.nextElement()[0];
+                if (!Util.startsWithCI(handle, prefix)) break;
+                if (handle.length > prefix.length && (listingDerivedPrefixes ? handle[prefix.length] == (byte) '.' : handle[prefix.length] == (byte) '/')) {
+                    result.add(handle);
+                    if (result.size() >= maxHandles) break;
+                }
+            }
+        } finally {
+            e.close();
+        }
+        return result;
+    }
+
     /**********************************************************************
      * This is an class that scans all of the records in a database and
      * forwards only the handles that start with the given prefix.
@@ -559,6 +670,7 @@ public final class BDBJEHandleStorage implements HandleStorage {
      *********************************************************************/
     @Override
     public final void shutdown() {
+        if (groupCommitter != null) groupCommitter.shutdown();
         try {
             db.close();
         } catch (Throwable e) {
@@ -625,7 +737,11 @@ public final class BDBJEHandleStorage implements HandleStorage {
         }
 
         public void put(byte key[], byte data[]) throws DatabaseException, HandleException {
-            OperationStatus status = db.put(null, new DatabaseEntry(key), new DatabaseEntry(data));
+            put(null, key, data);
+        }
+
+        public void put(com.sleepycat.je.Transaction txn, byte key[], byte data[]) throws DatabaseException, HandleException {
+            OperationStatus status = db.put(txn, new DatabaseEntry(key), new DatabaseEntry(data));
             if (status != OperationStatus.SUCCESS) {
                 throw new HandleException(HandleException.INTERNAL_ERROR, "Unknown status returned from db.put: " + status);
             }
@@ -644,7 +760,11 @@ public final class BDBJEHandleStorage implements HandleStorage {
         }
 
         public boolean del(byte key[]) throws DatabaseException {
-            return db.delete(null, new DatabaseEntry(key)) == OperationStatus.SUCCESS;
+            return del(null, key);
+        }
+
+        public boolean del(com.sleepycat.je.Transaction txn, byte key[]) throws DatabaseException {
+            return db.delete(txn, new DatabaseEntry(key)) == OperationStatus.SUCCESS;
         }
 
         public DBIterator getEnumerator() throws HandleException {
@@ -0,0 +1,226 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server.replication;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.cnri.util.StreamTable;
+import net.cnri.util.StreamVector;
+import net.handle.hdllib.HandleException;
+
+import org.apache.commons.codec.binary.Base64;
+
+/*****************************************************************************
+ * Progress of a dump from a source site which is retrieving handles by range,
+ * saved to a file so that a dump which fails part way through can be resumed
+ * from the last handle received in each range instead of starting over.
+ * Records the replication state received before any handles, the source
+ * servers which are completely dumped, and the ranges of the server being
+ * dumped.
+ *****************************************************************************/
+class DumpCheckpoint {
+    static final String DUMP_CHECKPOINT_FILE = "dumpckpt.dct";
+
+    private static final String SOURCE_SITE = "source_site";
+    private static final String THIS_SERVER_NUM = "this_server_num";
+    private static final String REPLICATION_STATUS = "replication_status";
+    private static final String DONE_SERVERS = "done_servers";
+    private static final String SERVER_NUM = "server_num";
+    private static final String RANGES = "ranges";
+    private static final String START = "start";
+    private static final String END = "end";
+    private static final String LAST = "last";
+    private static final String DONE = "done";
+
+    // least time between saves while handles are being received
+    private static final long SAVE_INTERVAL = 5000;
+
+    /** A range of handles after a starting point up to and including an ending point. */
+    static class Range {
+        final byte[] start;
+        final byte[] end;
+        private volatile byte[] last;
+        private volatile boolean done;
+
+        Range(byte[] start, byte[] end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /** Returns the last handle received in this range, or the start of the range if none has been. */
+        byte[] getResumePoint() {
+            byte[] lastHandle = last;
+            return lastHandle == null ? start : lastHandle;
+        }
+
+        void setLast(byte[] handle) {
+            last = handle;
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        void setDone() {
+            done = true;
+        }
+    }
+
+    private final File file;
+    private final boolean sync;
+    private final String sourceSiteName;
+    private final int thisServerNum;
+    private StreamTable replicationStatus;
+    private final List<Integer> doneServers = new ArrayList<>();
+    private int serverNum = -1;
+    private List<Range> ranges;
+    private long lastSave;
+
+    DumpCheckpoint(File file, boolean sync, String sourceSiteName, int thisServerNum) {
+        this.file = file;
+        this.sync = sync;
+        this.sourceSiteName = sourceSiteName;
+        this.thisServerNum = thisServerNum;
+    }
+
+    /**
+     * Returns the checkpoint saved in the given file for a dump from the given
+     * site to the given server, or null if there is none.
+     */
+    static DumpCheckpoint load(File file, boolean sync, String sourceSiteName, int thisServerNum) throws HandleException {
+        if (!file.exists()) return null;
+        StreamTable table = new StreamTable();
+        try {
+            table.readFromFile(file);
+        } catch (Exception e) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error reading dump checkpoint " + file, e);
+        }
+        if (!String.valueOf(sourceSiteName).equals(table.getStr(SOURCE_SITE)) || table.getInt(THIS_SERVER_NUM, -1) != thisServerNum) {
+            return null;
+        }
+        if (!(table.get(REPLICATION_STATUS) instanceof StreamTable)) return null;
+        DumpCheckpoint checkpoint = new DumpCheckpoint(file, sync, sourceSiteName, thisServerNum);
+        checkpoint.replicationStatus = (StreamTable) table.get(REPLICATION_STATUS);
+        StreamVector done = (StreamVector) table.get(DONE_SERVERS);
+        if (done != null) {
+            for (Object num : done) {
+                checkpoint.doneServers.add(Integer.valueOf(String.valueOf(num)));
+            }
+        }
+        StreamVector rangeVector = (StreamVector) table.get(RANGES);
+        if (rangeVector != null) {
+            checkpoint.serverNum = table.getInt(SERVER_NUM, -1);
+            checkpoint.ranges = new ArrayList<>();
+            for (Object obj : rangeVector) {
+                StreamTable rangeTable = (StreamTable) obj;
+                Range range = new Range(decode(rangeTable.getStr(START)), decode(rangeTable.getStr(END)));
+                range.last = decode(rangeTable.getStr(LAST));
+                range.done = rangeTable.getBoolean(DONE, false);
+                checkpoint.ranges.add(range);
+            }
+        }
+        return checkpoint;
+    }
+
+    /** Returns the replication state received before the handles, or null if none has been saved. */
+    StreamTable getReplicationStatus() {
+        return replicationStatus;
+    }
+
+    synchronized boolean isServerDone(int num) {
+        return doneServers.contains(num);
+    }
+
+    /** Returns the ranges of the given source server, or null if its ranges are not yet known. */
+    synchronized List<Range> getRanges(int num) {
+        return num == serverNum ? ranges : null;
+    }
+
+    /**
+     * Records the ranges into which the given source server split its handles,
+     * along with the replication state received before any handles.
+     */
+    synchronized List<Range> startServer(int num, List<byte[]> boundaries, StreamTable status) {
+        serverNum = num;
+        replicationStatus = status;
+        ranges = new ArrayList<>();
+        byte[] start = new byte[0];
+        for (byte[] boundary : boundaries) {
+            ranges.add(new Range(start, boundary));
+            start = boundary;
+        }
+        ranges.add(new Range(start, null));
+        return ranges;
+    }
+
+    synchronized void serverDone(int num, StreamTable status) {
+        doneServers.add(num);
+        replicationStatus = status;
+        if (num == serverNum) {
+            serverNum = -1;
+            ranges = null;
+        }
+    }
+
+    /** Saves the checkpoint if it has not been saved recently. */
+    void saveIfDue() throws HandleException {
+        synchronized (this) {
+            if (System.currentTimeMillis() - lastSave < SAVE_INTERVAL) return;
+        }
+        save();
+    }
+
+    synchronized void save() throws HandleException {
+        StreamTable table = new StreamTable();
+        table.put(SOURCE_SITE, sourceSiteName);
+        table.put(THIS_SERVER_NUM, thisServerNum);
+        if (replicationStatus != null) table.put(REPLICATION_STATUS, replicationStatus);
+        StreamVector done = new StreamVector();
+        for (Integer num : doneServers) {
+            done.add(String.valueOf(num));
+        }
+        table.put(DONE_SERVERS, done);
+        if (ranges != null) {
+            table.put(SERVER_NUM, serverNum);
+            StreamVector rangeVector = new StreamVector();
+            for (Range range : ranges) {
+                StreamTable rangeTable = new StreamTable();
+                rangeTable.put(START, encode(range.start));
+                if (range.end != null) rangeTable.put(END, encode(range.end));
+                byte[] last = range.last;
+                if (last != null) rangeTable.put(LAST, encode(last));
+                rangeTable.put(DONE, range.done);
+                rangeVector.add(rangeTable);
+            }
+            table.put(RANGES, rangeVector);
+        }
+        try {
+            table.writeToFile(file, sync);
+        } catch (Exception e) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error saving dump checkpoint " + file, e);
+        }
+        lastSave = System.currentTimeMillis();
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.encodeBase64String(bytes);
+    }
+
+    private static byte[] decode(String s) {
+        if (s == null) return null;
+        return Base64.decodeBase64(s);
+    }
+}
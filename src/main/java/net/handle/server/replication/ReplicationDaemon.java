@@ -13,21 +13,34 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import net.cnri.util.FastDateFormat;
 import net.cnri.util.StreamTable;
+import net.cnri.util.StreamVector;
 import net.handle.hdllib.AbstractMessage;
 import net.handle.hdllib.AbstractResponse;
 import net.handle.hdllib.AuthenticationInfo;
@@ -57,6 +70,7 @@ import net.handle.hdllib.TransactionQueueInterface;
 import net.handle.hdllib.TransactionQueuesInterface;
 import net.handle.hdllib.Util;
 import net.handle.hdllib.ValueReference;
+import net.handle.server.HandleLockManager;
 import net.handle.server.HandleServer;
 import net.handle.server.ServerLog;
 
@@ -82,12 +96,20 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
     public static final String REPLICATION_SITE_HANDLE_VALUE = "replication_site_handle_value"; //set on the mirror config. index:handle of a single HS_SITE to pull from
     public static final String REPLICATION_PULL_OTHER_TRANSACTIONS = "replication_pull_other_transactions"; //set on mirror. yes|no indicates the server should pull all transactions including those that the source got from other servers.
     public static final String REPLICATION_KEEP_OTHER_TRANSACTIONS = "replication_keep_other_transactions"; // set on a mirror when you expect to pull from the mirror
+    public static final String REPLICATION_THREADS = "replication_threads"; // set on mirror. number of source servers to pull transactions from at once
+    public static final String REPLICATION_SUBSCRIBE = "replication_subscribe"; // set on mirror. yes|no indicates the server should keep a stream open to each source server and have new transactions pushed to it
+    public static final String REPLICATION_BATCH_SIZE = "replication_batch_size"; // set on mirror. most received transactions to apply to storage at once; 1 (the default) applies each on its own
+    public static final String REPLICATION_DUMP_THREADS = "replication_dump_threads"; // set on mirror. number of handle ranges to retrieve at once when redumping; 1 retrieves all handles on one connection
+    public static final String REPLICATION_DUMP_PARTITIONS = "replication_dump_partitions"; // set on mirror. number of ranges to split the handles into when redumping
 
     public static final String REPLICATION_SOURCES = "sources";
     public static final String REPLICATION_ACCEPT_PREFIXES = "replication_accept_prefixes"; // list of prefixes the mirror will accept when pulling
     // txns. Accept all if missing.
     public volatile boolean keepRunning = true;
     private final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    // incremented whenever replication is paused, so that open subscriptions know to start over
+    private final AtomicLong pauseGeneration = new AtomicLong();
+    private final Object replicationStatusLock = new Object();
 
     private int replicationTimeout = 300000; // default timeout of 5 minutes
     private File replicationStatusFile = null;
@@ -116,6 +138,20 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
 
     private boolean isPullEntireGroupTransactions = false;
 
+    private boolean isSubscribe = false;
+    // least time between retries of a failed subscription; doubles up to the replication interval
+    private static final long MIN_SUBSCRIPTION_RETRY_DELAY = 1000;
+    // least time between saves of the replication status while subscribed
+    private static final long SUBSCRIPTION_SAVE_INTERVAL = 1000;
+    // source servers which have said that this server needs a redump
+    private final Map<String, SiteInfo> redumpSites = new ConcurrentHashMap<>();
+    private final Map<String, ReplicationSourceStats> sourceStats = new ConcurrentHashMap<>();
+    private int replicationThreads = 4;
+    private int replicationBatchSize = 1;
+    private int dumpThreads = 4;
+    private int dumpPartitions;
+    private final File dumpCheckpointFile;
+
     protected List<TransactionQueueListener> queueListeners = new CopyOnWriteArrayList<>();
 
     long lastNoPrimarySitesLoggedTimestamp = 0;
@@ -127,6 +163,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         this.caseSensitive = config.getBoolean(HandleServer.CASE_SENSITIVE);
         this.fileWriteNoSync = config.getBoolean(HandleServer.FILE_WRITE_NO_SYNC, false);
         this.redumpNeededFile = new File(configDir, "SERVER_NEEDS_REDUMP.txt");
+        this.dumpCheckpointFile = new File(configDir, DumpCheckpoint.DUMP_CHECKPOINT_FILE);
 
         List<String> replicationAcceptPrefixes = getReplicationAcceptPrefixes(config);
         if (replicationAcceptPrefixes != null) {
@@ -227,6 +264,11 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         String replicationSitesHandle = config.getStr(REPLICATION_SITES_HANDLE, null);
         String replicationSiteHandleValue = config.getStr(REPLICATION_SITE_HANDLE_VALUE, null);
         isPullEntireGroupTransactions = config.getBoolean(REPLICATION_PULL_OTHER_TRANSACTIONS);
+        isSubscribe = config.getBoolean(REPLICATION_SUBSCRIBE, false);
+        replicationThreads = Math.max(1, config.getInt(REPLICATION_THREADS, replicationThreads));
+        replicationBatchSize = Math.max(1, config.getInt(REPLICATION_BATCH_SIZE, replicationBatchSize));
+        dumpThreads = Math.max(1, config.getInt(REPLICATION_DUMP_THREADS, dumpThreads));
+        dumpPartitions = Math.max(1, config.getInt(REPLICATION_DUMP_PARTITIONS, 4 * dumpThreads));
 
         if (replicationSitesHandle == null || "".equals(replicationSitesHandle)) {
             if (replicationSiteHandleValue == null || "".equals(replicationSiteHandleValue)) {
@@ -332,13 +374,33 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         if (replicationStateInfo == null) {
             return null;
         }
-        return ReplicationStateInfo.toStreamTable(replicationStateInfo);
+        StreamTable status = ReplicationStateInfo.toStreamTable(replicationStateInfo);
+        addSourceStats(status);
+        return status;
+    }
+
+    /**
+     * Adds the lag and throughput of each source server to its entry in the
+     * given replication status.
+     */
+    private void addSourceStats(StreamTable status) {
+        for (Map.Entry<String, ReplicationSourceStats> entry : sourceStats.entrySet()) {
+            String name = entry.getKey();
+            if (!replicationStateInfo.keySet().contains(name)) continue;
+            int colon = name.indexOf(":");
+            StreamVector serverStates = (StreamVector) status.get(name.substring(colon + 1));
+            int serverNumber = Integer.parseInt(name.substring(0, colon));
+            if (serverStates == null || serverStates.size() <= serverNumber) continue;
+            entry.getValue().addTo((StreamTable) serverStates.get(serverNumber), replicationStateInfo.getLastTimestamp(name));
+        }
     }
 
     private void saveReplicationInfo() throws HandleException {
         try {
-            StreamTable replicationConfig = replicationStatus();
-            replicationConfig.writeToFile(replicationStatusFile, !fileWriteNoSync);
+            StreamTable replicationConfig = ReplicationStateInfo.toStreamTable(replicationStateInfo);
+            synchronized (replicationStatusLock) {
+                replicationConfig.writeToFile(replicationStatusFile, !fileWriteNoSync);
+            }
         } catch (Exception e) {
             e.printStackTrace(System.err);
             if (e instanceof HandleException) {
@@ -448,6 +510,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
     @Override
     public void pauseReplication() {
         readWriteLock.readLock().lock();
+        pauseGeneration.incrementAndGet();
     }
 
     @Override
@@ -472,142 +535,287 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                 Thread.currentThread().interrupt();
             }
         }
-        while (keepRunning) {
-            readWriteLock.writeLock().lock();
-            try {
-                ArrayList<SiteInfo> redumpSites = null;
-
+        ExecutorService pullExecutor = null;
+        if (!isSubscribe) {
+            pullExecutor = Executors.newFixedThreadPool(replicationThreads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Replication pull " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        Map<String, SourceServerReplicator> replicators = new HashMap<>();
+        try {
+            while (keepRunning) {
                 try {
-                    // allow hot-update of replication site information
-                    replicationSourceSites.refresh();
-                    if (!initializedReplicationStatus) {
-                        loadInitialReplicationStatus();
-                        initializedReplicationStatus = true;
-                    }
-
-                    int primarySites = 0;
-                    for (ReplicationSourceSiteInfo replicationSourceSite : replicationSourceSites.getReplicationSourceSites()) {
-                        SiteInfo site = replicationSourceSite.getSite();
-                        if (site == null) {
-                            continue;
-                        }
-                        primarySites++;
-
-                        TxnCallback callback = new TxnCallback(replicationStateInfo, replicationSourceSite.getName(), site);
-                        for (int i = 0; i < site.servers.length; i++) {
-                            // if the queried server has no handles that will hash to us, skip it
-                            if (site.hashOption == thisSite.hashOption && site.servers.length == thisSite.servers.length && thisServerNum != i) {
-                                continue;
-                            }
-
-                            RetrieveTxnRequest req;
-                            if (isPullEntireGroupTransactions) {
-                                req = new RetrieveTxnRequest(replicationStateInfo, thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth);
-                            } else {
-                                long lastTxnId = replicationStateInfo.getLastTxnId(i + ":" + replicationSourceSite.getName());
-                                long lastTimestamp = replicationStateInfo.getLastTimestamp(i + ":" + replicationSourceSite.getName());
-                                req = new RetrieveTxnRequest(lastTxnId, lastTimestamp, thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth);
-                            }
-                            req.encrypt = false;
-                            req.certify = true;
-                            req.setSupportedProtocolVersion(site);
-                            long startTime = System.nanoTime();
-                            try {
-                                AbstractResponse res = retrievalResolver.sendRequestToServer(req, site, site.servers[i]);
-
-                                if (res.responseCode == AbstractMessage.RC_SUCCESS) {
-                                    callback.setServerNum(i);
-
-                                    // decode the public key to authenticate the stream
-                                    PublicKey pubKey = site.servers[i].getPublicKey();
-
-                                    int status = ((RetrieveTxnResponse) res).processStreamedPart(callback, pubKey);
-
-                                    if (status == RetrieveTxnResponse.NEED_TO_REDUMP) {
-                                        notifyAboutNeedToRedumpResponse(replicationSourceSite, i);
-                                        logAboutNeedToRedumpResponse(replicationSourceSite, i);
-                                        System.out.println("------------------------------------------------------------\n" + "CRITICAL: REDUMP NEEDED response from site: " + site.servers[i]
-                                            + "\n------------------------------------------------------------");
-                                        System.err.println("------------------------------------------------------------\n" + "CRITICAL: REDUMP NEEDED response from site: " + site.servers[i]
-                                            + "\n------------------------------------------------------------");
-                                        if (redumpSites == null) {
-                                            redumpSites = new ArrayList<>();
-                                        }
-                                        redumpSites.add(site);
-                                    } else if (status == RetrieveTxnResponse.SENDING_TRANSACTIONS) {
-                                        saveReplicationInfo();
-                                    } else {
-                                        server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Unknown status code from server during replication: " + status);
-                                    }
-
-                                } else {
-                                    server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Unexpected response to replication request: " + res);
-                                }
-
-                                // this doesn't handle wrap-around serial numbers - maybe it should.
-                                // but the numbers can go so large it shouldn't matter.
-                                // The date/time/seconds could be used.
-
-                                // This is about updating file-based source site info by asking the source server for its newest site info.
-                                // For now we have decided not to do this.
-                                //                                // if site info is not stored locally (e.g. it's in a handle), we take no action here.
-                                //                                if (res.siteInfoSerial > replInfo.site.serialNumber && replicationSites.siteInfoIsLocal()) {
-                                //                                    server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Updating replication info from version " + replInfo.site.serialNumber + " to version " + res.siteInfoSerial);
-                                //                                    replInfo.getNewSiteInfoFromServers(retrievalResolver, replicationAuth);
-                                //                                    saveReplicationInfo();
-                                //                                    replicationSites.saveSiteInfo();
-                                //                                    break;
-                                //                                }
-
-                            } catch (HandleException e) {
-                                if (e.getCause() instanceof javax.net.ssl.SSLHandshakeException) {
-                                    if (e.getCause().getCause() instanceof java.security.cert.CertificateException) {
-                                        server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server: " + site.servers[i] + ": " + e);
-                                        server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Note: if this problem persists, a Java upgrade may be needed");
-                                        e.printStackTrace(System.err);
-                                    } else {
-                                        server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server (if occasional handshake failure, safe to ignore): " + site.servers[i] + ": " + e.getCause());
-                                    }
-                                } else {
-                                    server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server: " + site.servers[i] + ": " + e);
-                                    if (e.getCode() == HandleException.CANNOT_CONNECT_TO_SERVER) {
-                                        // no stack trace
-                                    } else if (e.getCause() instanceof java.net.SocketTimeoutException) {
-                                        // no stack trace
-                                    } else if (e.getCause() instanceof HandleException && ((HandleException) e.getCause()).getCode() == HandleException.CANNOT_CONNECT_TO_SERVER) {
-                                        // no stack trace
-                                    } else {
-                                        e.printStackTrace(System.err);
-                                    }
-                                }
-                            }
-                            long endTime = System.nanoTime();
-                            long duration = endTime - startTime;
-                            double durationInSeconds = duration / 1000000000D;
-                            if (durationInSeconds > 10.0) {
-                                server.logError(ServerLog.ERRLOG_LEVEL_INFO, "Replication sequence at took " + durationInSeconds + " seconds at: " + site.servers[i]);
-                            }
-                            updateRedumpIsNeededStatus(redumpSites);
-                        }
-                    }
-                    if (primarySites == 0) {
-                        if (System.currentTimeMillis() > lastNoPrimarySitesLoggedTimestamp + 86400000L) {
-                            lastNoPrimarySitesLoggedTimestamp = System.currentTimeMillis();
-                            server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "No primary sites found to replicate!");
+                    replicators = updateReplicators(replicators);
+                    for (SourceServerReplicator replicator : replicators.values()) {
+                        if (isSubscribe) {
+                            replicator.subscribeIfNotSubscribed();
+                        } else {
+                            replicator.pullIfNotPulling(pullExecutor);
                         }
                     }
                 } catch (Throwable t) {
                     server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Error in replication daemon: " + t);
                     t.printStackTrace(System.err);
                 }
-            } finally {
-                readWriteLock.writeLock().unlock();
+
+                try {
+                    Thread.sleep(replicationInterval);
+                } catch (Throwable e) {
+                    server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error sleeping in replication thread: " + e);
+                }
+            }
+        } finally {
+            for (SourceServerReplicator replicator : replicators.values()) {
+                replicator.stop();
+            }
+            if (pullExecutor != null) pullExecutor.shutdownNow();
+        }
+    }
+
+    /****************************************************************************
+     * Refreshes the replication source site information and returns a replicator
+     * for each source server that has handles which hash to this server.  Existing
+     * replicators are reused unless their site has changed; replicators for servers
+     * which are no longer sources are stopped.
+     ****************************************************************************/
+    private Map<String, SourceServerReplicator> updateReplicators(Map<String, SourceServerReplicator> replicators) throws Exception {
+        readWriteLock.writeLock().lock();
+        try {
+            // allow hot-update of replication site information
+            replicationSourceSites.refresh();
+            if (!initializedReplicationStatus) {
+                loadInitialReplicationStatus();
+                initializedReplicationStatus = true;
+            }
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+
+        Map<String, SourceServerReplicator> currentReplicators = new HashMap<>();
+        for (ReplicationSourceSiteInfo replicationSourceSite : replicationSourceSites.getReplicationSourceSites()) {
+            SiteInfo site = replicationSourceSite.getSite();
+            if (site == null) {
+                continue;
+            }
+            for (int i = 0; i < site.servers.length; i++) {
+                // if the queried server has no handles that will hash to us, skip it
+                if (site.hashOption == thisSite.hashOption && site.servers.length == thisSite.servers.length && thisServerNum != i) {
+                    continue;
+                }
+                String name = i + ":" + replicationSourceSite.getName();
+                SourceServerReplicator replicator = replicators.remove(name);
+                if (replicator != null && !site.equals(replicator.site)) {
+                    replicator.stop();
+                    replicator = null;
+                }
+                if (replicator == null) {
+                    replicator = new SourceServerReplicator(replicationSourceSite, site, i);
+                }
+                currentReplicators.put(name, replicator);
+            }
+        }
+        // stop replicating from servers that are no longer sources
+        for (Map.Entry<String, SourceServerReplicator> entry : replicators.entrySet()) {
+            entry.getValue().stop();
+            redumpSites.remove(entry.getKey());
+        }
+        if (currentReplicators.isEmpty()) {
+            if (System.currentTimeMillis() > lastNoPrimarySitesLoggedTimestamp + 86400000L) {
+                lastNoPrimarySitesLoggedTimestamp = System.currentTimeMillis();
+                server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "No primary sites found to replicate!");
+            }
+        }
+        return currentReplicators;
+    }
+
+    private RetrieveTxnRequest createRetrieveTxnRequest(ReplicationSourceSiteInfo replicationSourceSite, int serverNum) {
+        SiteInfo site = replicationSourceSite.getSite();
+        RetrieveTxnRequest req;
+        if (isPullEntireGroupTransactions) {
+            req = new RetrieveTxnRequest(replicationStateInfo, thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth);
+        } else {
+            long lastTxnId = replicationStateInfo.getLastTxnId(serverNum + ":" + replicationSourceSite.getName());
+            long lastTimestamp = replicationStateInfo.getLastTimestamp(serverNum + ":" + replicationSourceSite.getName());
+            req = new RetrieveTxnRequest(lastTxnId, lastTimestamp, thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth);
+        }
+        req.encrypt = false;
+        req.certify = true;
+        req.setSupportedProtocolVersion(site);
+        return req;
+    }
+
+    private void reportNeedToRedumpResponse(ReplicationSourceSiteInfo replicationSourceSite, int i) throws HandleException {
+        SiteInfo site = replicationSourceSite.getSite();
+        notifyAboutNeedToRedumpResponse(replicationSourceSite, i);
+        logAboutNeedToRedumpResponse(replicationSourceSite, i);
+        System.out.println("------------------------------------------------------------\n" + "CRITICAL: REDUMP NEEDED response from site: " + site.servers[i]
+            + "\n------------------------------------------------------------");
+        System.err.println("------------------------------------------------------------\n" + "CRITICAL: REDUMP NEEDED response from site: " + site.servers[i]
+            + "\n------------------------------------------------------------");
+    }
+
+    private void logReplicationError(ServerInfo sourceServer, HandleException e) {
+        if (e.getCause() instanceof javax.net.ssl.SSLHandshakeException) {
+            if (e.getCause().getCause() instanceof java.security.cert.CertificateException) {
+                server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server: " + sourceServer + ": " + e);
+                server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Note: if this problem persists, a Java upgrade may be needed");
+                e.printStackTrace(System.err);
+            } else {
+                server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server (if occasional handshake failure, safe to ignore): " + sourceServer + ": " + e.getCause());
+            }
+        } else {
+            server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error doing replication at server: " + sourceServer + ": " + e);
+            if (e.getCode() == HandleException.CANNOT_CONNECT_TO_SERVER) {
+                // no stack trace
+            } else if (e.getCause() instanceof java.net.SocketTimeoutException) {
+                // no stack trace
+            } else if (e.getCause() instanceof HandleException && ((HandleException) e.getCause()).getCode() == HandleException.CANNOT_CONNECT_TO_SERVER) {
+                // no stack trace
+            } else {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /****************************************************************************
+     * Replicates from one source server, either by pulling new transactions
+     * when asked to, or by keeping a subscription open in its own thread.
+     * Replicators for different source servers run independently, so that
+     * one slow or unreachable server does not hold up the others.  Their
+     * transactions are applied one at a time under the replication lock; the
+     * per-handle dates in the replication database decide which of several
+     * sources' updates to the same handle wins, as they always have.
+     ****************************************************************************/
+    private class SourceServerReplicator {
+        final ReplicationSourceSiteInfo replicationSourceSite;
+        final SiteInfo site;
+        private final int serverNum;
+        private final String name;
+        private final ReplicationSourceStats stats;
+        volatile boolean stopped = false;
+        private Future<?> pull;
+        private Thread subscriptionThread;
+
+        SourceServerReplicator(ReplicationSourceSiteInfo replicationSourceSite, SiteInfo site, int serverNum) {
+            this.replicationSourceSite = replicationSourceSite;
+            this.site = site;
+            this.serverNum = serverNum;
+            this.name = serverNum + ":" + replicationSourceSite.getName();
+            this.stats = sourceStats.computeIfAbsent(name, key -> new ReplicationSourceStats());
+        }
+
+        /** Starts pulling new transactions on the given executor, unless the previous pull is still running. */
+        void pullIfNotPulling(ExecutorService executor) {
+            if (pull == null || pull.isDone()) {
+                pull = executor.submit(() -> replicateOnce(false));
             }
+        }
 
+        /** Starts the subscription thread, unless it is already running. */
+        void subscribeIfNotSubscribed() {
+            if (subscriptionThread == null || !subscriptionThread.isAlive()) {
+                subscriptionThread = new Thread(this::runSubscription, "Replication subscription " + name);
+                subscriptionThread.setDaemon(true);
+                subscriptionThread.start();
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            if (pull != null) pull.cancel(false);
+            if (subscriptionThread != null) subscriptionThread.interrupt();
+        }
+
+        /**
+         * Holds a subscription open, resuming from the last transaction received
+         * whenever the stream ends.  If the source server ended the stream early
+         * (for instance because it does not support subscriptions) this falls back
+         * to polling at the replication interval; failed connections are retried
+         * with an increasing delay.
+         */
+        private void runSubscription() {
+            long retryDelay = MIN_SUBSCRIPTION_RETRY_DELAY;
+            while (keepRunning && !stopped) {
+                long startTime = System.currentTimeMillis();
+                long delay;
+                if (replicateOnce(true)) {
+                    retryDelay = MIN_SUBSCRIPTION_RETRY_DELAY;
+                    delay = startTime + replicationInterval - System.currentTimeMillis();
+                } else {
+                    delay = retryDelay;
+                    retryDelay = Math.min(retryDelay * 2, Math.max(replicationInterval, MIN_SUBSCRIPTION_RETRY_DELAY));
+                }
+                if (delay > 0 && keepRunning && !stopped) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            }
+        }
+
+        /**
+         * Retrieves transactions from the source server until the stream ends.
+         * Returns false if the stream could not be opened or broke.
+         */
+        boolean replicateOnce(boolean subscribe) {
+            long generation = pauseGeneration.get();
+            RetrieveTxnRequest req = createRetrieveTxnRequest(replicationSourceSite, serverNum);
+            req.subscribe = subscribe;
+            long startTime = System.nanoTime();
             try {
-                Thread.sleep(replicationInterval);
-            } catch (Throwable e) {
-                server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Error sleeping in replication thread: " + e);
+                AbstractResponse res = retrievalResolver.sendRequestToServer(req, site, site.servers[serverNum]);
+                if (res.responseCode != AbstractMessage.RC_SUCCESS) {
+                    server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Unexpected response to replication request: " + res);
+                    return false;
+                }
+                SourceServerTxnCallback callback = new SourceServerTxnCallback(this, generation);
+                callback.setServerNum(serverNum);
+
+                // decode the public key to authenticate the stream
+                PublicKey pubKey = site.servers[serverNum].getPublicKey();
+
+                int status = ((RetrieveTxnResponse) res).processStreamedPart(callback, pubKey);
+                if (status == RetrieveTxnResponse.NEED_TO_REDUMP) {
+                    reportNeedToRedumpResponse(replicationSourceSite, serverNum);
+                    redumpSites.put(name, site);
+                } else if (status == RetrieveTxnResponse.SENDING_TRANSACTIONS) {
+                    redumpSites.remove(name);
+                    saveReplicationInfo();
+                } else {
+                    server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Unknown status code from server during replication: " + status);
+                }
+                updateRedumpIsNeededStatus(new ArrayList<>(redumpSites.values()));
+                return true;
+            } catch (HandleException e) {
+                if (keepRunning && !stopped && pauseGeneration.get() == generation) {
+                    stats.recordError(e);
+                    logReplicationError(site.servers[serverNum], e);
+                    return false;
+                }
+                // stopped or paused; resume right away
+                return true;
+            } catch (Exception e) {
+                stats.recordError(e);
+                server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Error in replication daemon: " + e);
+                e.printStackTrace(System.err);
+                return false;
+            } finally {
+                if (!subscribe) {
+                    double durationInSeconds = (System.nanoTime() - startTime) / 1000000000D;
+                    if (durationInSeconds > 10.0) {
+                        server.logError(ServerLog.ERRLOG_LEVEL_INFO, "Replication sequence at took " + durationInSeconds + " seconds at: " + site.servers[serverNum]);
+                    }
+                }
             }
         }
     }
@@ -639,7 +847,13 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
 
     private final File redumpNeededFile;
 
-    private void updateRedumpIsNeededStatus(ArrayList<SiteInfo> redumpSites) {
+    private void updateRedumpIsNeededStatus(@SuppressWarnings("hiding") ArrayList<SiteInfo> redumpSites) {
+        synchronized (redumpNeededFile) {
+            updateRedumpIsNeededFile(redumpSites);
+        }
+    }
+
+    private void updateRedumpIsNeededFile(@SuppressWarnings("hiding") ArrayList<SiteInfo> redumpSites) {
         if (redumpSites == null || redumpSites.size() == 0) { // no redump is needed
             if (redumpNeededFile.exists()) {
                 redumpNeededFile.delete();
@@ -754,18 +968,28 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
             System.err.println("------------------------------\n" + "---- REDUMPING HANDLES!!! ----\n" + "------------------------------");
             server.disable();
 
-            // indicate that all servers need to be dumped -
-            // in case we get interrupted
-            replicationStateInfo = new ReplicationStateInfo();
-            replicationStateInfo.setOwnName(replicationSourceSites.getOwnName());
-
-            // delete *all* handles
-            // it's ok to delete all handles, because *sites* are
-            // replicated, not handles under specified prefixes.
-            if (deleteAll) {
-                server.getStorage().deleteAllRecords();
-                if (replicationDb != null) {
-                    replicationDb.deleteAll();
+            DumpCheckpoint checkpoint = DumpCheckpoint.load(dumpCheckpointFile, !fileWriteNoSync, replicationSourceSite.getName(), thisServerNum);
+            if (checkpoint != null) {
+                // pick up an earlier dump from this site where it left off
+                System.err.println("Resuming dump from checkpoint " + dumpCheckpointFile);
+                replicationStateInfo = ReplicationStateInfo.fromStreamTable(checkpoint.getReplicationStatus(), replicationSourceSites.getOwnName());
+            } else {
+                checkpoint = new DumpCheckpoint(dumpCheckpointFile, !fileWriteNoSync, replicationSourceSite.getName(), thisServerNum);
+
+                // indicate that all servers need to be dumped -
+                // in case we get interrupted
+                replicationStateInfo = new ReplicationStateInfo();
+                replicationStateInfo.setOwnName(replicationSourceSites.getOwnName());
+
+                // delete *all* handles
+                // it's ok to delete all handles, because *sites* are
+                // replicated, not handles under specified prefixes.
+                if (deleteAll) {
+                    server.getStorage().deleteAllRecords();
+                    server.getPrefixHandleCounts().invalidateAll();
+                    if (replicationDb != null) {
+                        replicationDb.deleteAll();
+                    }
                 }
             }
 
@@ -780,7 +1004,17 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                 if (site.hashOption == thisSite.hashOption && site.servers.length == thisSite.servers.length && thisServerNum != i) {
                     continue;
                 }
+                if (checkpoint.isServerDone(i)) {
+                    continue;
+                }
+                if (dumpThreads > 1 && dumpServerByRange(replicationSourceSite, i, checkpoint)) {
+                    success = true;
+                    checkpoint.serverDone(i, ReplicationStateInfo.toStreamTable(replicationStateInfo));
+                    checkpoint.save();
+                    continue;
+                }
 
+                boolean serverDumped = false;
                 int resumeCount = 0;
                 int resumeTimeoutMs = 5000; // 5 seconds
                 AbstractResponse response = null;
@@ -803,6 +1037,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                             }
                             ((DumpHandlesResponse) response).processStreamedPart(new DumpHdlCallback(replicationStateInfo, replicationSourceSite.getName(), i), site.servers[i].getPublicKey());
                             success = true;
+                            serverDumped = true;
                             break; // success the dump completed so we break out of the resume loop
                         } else {
                             // System.err.println("Received non-success response to dump-handles message: "+response);
@@ -819,6 +1054,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                             if (lastProcessedRecordType == DumpHandlesResponse.ABSOLUTELY_DONE_RECORD) {
                                 // We got an exception but we still managed to process the last record so we are done.
                                 success = true;
+                                serverDumped = true;
                                 break;
                             } else if (response.hasEqualOrGreaterVersion(2, 8)) {
                                 System.out.println("trying again...");
@@ -838,10 +1074,15 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                         Thread.sleep(resumeTimeoutMs);
                     }
                 }
+                if (serverDumped) {
+                    checkpoint.serverDone(i, ReplicationStateInfo.toStreamTable(replicationStateInfo));
+                    checkpoint.save();
+                }
             }
             if (success) {
                 // and then save new replication info.
                 saveReplicationInfo();
+                checkpoint.delete();
                 server.enable();
                 System.out.println("------------------------------------\n" + "---------- REDUMP FINISHED ---------\n" + "------------------------------------");
                 System.err.println("------------------------------------\n" + "---------- REDUMP FINISHED ---------\n" + "------------------------------------");
@@ -855,6 +1096,108 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         }
     }
 
+    /**
+     * Dumps the handles of a source server by range, retrieving several ranges at once.  The source
+     * server first sends everything but the handles, along with the boundaries of the ranges, which
+     * are saved in the checkpoint so that each range can be resumed from the last handle received.
+     * Returns false if the source server can't split its handles into ranges.
+     */
+    private boolean dumpServerByRange(ReplicationSourceSiteInfo replicationSourceSite, int serverNum, DumpCheckpoint checkpoint) throws HandleException, InterruptedException {
+        SiteInfo site = replicationSourceSite.getSite();
+        ServerInfo replServer = site.servers[serverNum];
+        List<DumpCheckpoint.Range> ranges = checkpoint.getRanges(serverNum);
+        if (ranges == null) {
+            DumpHandlesRequest req = DumpHandlesRequest.forPartitions(thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth, dumpPartitions);
+            req.setSupportedProtocolVersion(site);
+            List<byte[]> boundaries = null;
+            try {
+                AbstractResponse response = retrievalResolver.sendRequestToServer(req, site, replServer);
+                if (response.responseCode == AbstractMessage.RC_SUCCESS) {
+                    DumpHandlesResponse dumpResponse = (DumpHandlesResponse) response;
+                    dumpResponse.processStreamedPart(new DumpHdlCallback(replicationStateInfo, replicationSourceSite.getName(), serverNum), replServer.getPublicKey());
+                    boundaries = dumpResponse.getHandleRangeBoundaries();
+                }
+            } catch (Exception e) {
+                System.err.println("Error starting dump by range from server " + serverNum + ": " + e);
+            }
+            if (boundaries == null) {
+                // older servers send nothing in response to a partitioned dump request
+                System.err.println("Server " + serverNum + " can't dump by range; dumping all handles on one connection");
+                return false;
+            }
+            ranges = checkpoint.startServer(serverNum, boundaries, ReplicationStateInfo.toStreamTable(replicationStateInfo));
+            checkpoint.save();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(dumpThreads, ranges.size()), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Dump range " + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (DumpCheckpoint.Range range : ranges) {
+                if (range.isDone()) continue;
+                futures.add(executor.submit(() -> {
+                    dumpRange(replicationSourceSite, serverNum, range, checkpoint);
+                    return null;
+                }));
+            }
+            HandleException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = new HandleException(HandleException.REPLICATION_ERROR, "Error dumping handle range from server " + serverNum, e.getCause());
+                }
+            }
+            checkpoint.save();
+            if (failure != null) throw failure;
+        } finally {
+            executor.shutdownNow();
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves one range of handles from a source server, resuming from the last handle
+     * received if the dump is interrupted, until the dump fails repeatedly without progress.
+     */
+    private void dumpRange(ReplicationSourceSiteInfo replicationSourceSite, int serverNum, DumpCheckpoint.Range range, DumpCheckpoint checkpoint) throws Exception {
+        SiteInfo site = replicationSourceSite.getSite();
+        ServerInfo replServer = site.servers[serverNum];
+        int resumeTimeoutMs = 5000; // 5 seconds
+        int maxAttemptsWithoutProgress = 2;
+        int resumeWithoutProgressCount = 0;
+        while (true) {
+            byte[] resumePoint = range.getResumePoint();
+            DumpHandlesRequest req = DumpHandlesRequest.forHandleRange(thisSite.hashOption, thisSite.servers.length, thisServerNum, replicationAuth, resumePoint, range.end);
+            req.setSupportedProtocolVersion(site);
+            try {
+                AbstractResponse response = retrievalResolver.sendRequestToServer(req, site, replServer);
+                if (response.responseCode != AbstractMessage.RC_SUCCESS) {
+                    throw new HandleException(HandleException.REPLICATION_ERROR, "Response code " + response.responseCode + ":  " + AbstractMessage.getResponseCodeMessage(response.responseCode));
+                }
+                ((DumpHandlesResponse) response).processStreamedPart(new RangeDumpCallback(replicationStateInfo, replicationSourceSite.getName(), serverNum, range, checkpoint), replServer.getPublicKey());
+                range.setDone();
+                checkpoint.saveIfDue();
+                return;
+            } catch (Exception e) {
+                if (range.getResumePoint() != resumePoint) {
+                    resumeWithoutProgressCount = 0;
+                } else if (++resumeWithoutProgressCount > maxAttemptsWithoutProgress) {
+                    throw e;
+                }
+                System.err.println("Error dumping handle range from server " + serverNum + "; resuming: " + e);
+                Thread.sleep(resumeTimeoutMs);
+            }
+        }
+    }
+
     private boolean isMakingProgress(DumpHandlesResponse previousResponse, AbstractResponse currentResponse) {
         if (currentResponse == null || currentResponse.responseCode != AbstractMessage.RC_SUCCESS) {
             return false;
@@ -971,6 +1314,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                 System.err.println("---> " + Util.decodeString(handle));
             }
             server.getStorage().createOrUpdateRecord(handle, values);
+            server.getPrefixHandleCounts().invalidate(handle);
         }
 
         @Override
@@ -1023,11 +1367,33 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         }
     }
 
+    /****************************************************************************
+     * Receives one range of handles from a dump by range, recording the last handle
+     * received in the checkpoint.
+     ****************************************************************************/
+    class RangeDumpCallback extends DumpHdlCallback {
+        private final DumpCheckpoint.Range range;
+        private final DumpCheckpoint checkpoint;
+
+        RangeDumpCallback(@SuppressWarnings("hiding") ReplicationStateInfo replicationStateInfo, String sourceSiteName, int serverNum, DumpCheckpoint.Range range, DumpCheckpoint checkpoint) {
+            super(replicationStateInfo, sourceSiteName, serverNum);
+            this.range = range;
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public synchronized void addHandle(byte handle[], HandleValue values[]) throws Exception {
+            super.addHandle(handle, values);
+            range.setLast(handle);
+            checkpoint.saveIfDue();
+        }
+    }
+
     interface RunnableThrowingHandleException {
         void run() throws HandleException;
     }
 
-    // synchronization note: always in server.getWriteLock(handle)
+    // synchronization note: always in server.lockForWrite(handle)
     private void runIfMoreRecent(RunnableThrowingHandleException runnable, byte[] handle, long date, int priority, boolean isNA) throws HandleException {
         if (replicationDb == null) {
             runnable.run();
@@ -1086,6 +1452,15 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
     /****************************************************************************
      * Class used to process the results of RetrieveTxnRequest messages. Since that request type is streamable, this class is used as the target for
      * the callback.
+     *
+     * If replication_batch_size is more than one, received transactions are
+     * collected and applied to storage together: of several transactions on
+     * the same handle (or prefix) only the one which would win is written,
+     * the batch is written with {@link HandleStorage#applyTransactions(List)},
+     * and the last transaction id of each queue is recorded once per batch.
+     * A batch is applied when it is full and whenever the stream reports
+     * where it has got to, so that no timestamp is recorded for transactions
+     * which have not been applied.
      ****************************************************************************/
     class TxnCallback implements TransactionCallback {
         private int currentServerNum = -1;
@@ -1093,6 +1468,7 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
         private final ReplicationStateInfo replicationStateInfo;
         private final String sourceSiteName;
         private final SiteInfo sourceSite;
+        private final List<ReceivedTransaction> batch = new ArrayList<>();
 
         public TxnCallback(ReplicationStateInfo replicationStateInfo, String sourceSiteName, SiteInfo sourceSite) {
             this.replicationStateInfo = replicationStateInfo;
@@ -1111,6 +1487,26 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
 
         @Override
         public void processTransaction(String queueName, final Transaction txn) throws HandleException {
+            boolean accepted = isAccepted(txn);
+            if (replicationBatchSize > 1) {
+                batch.add(new ReceivedTransaction(queueName, txn, accepted));
+                if (batch.size() >= replicationBatchSize) applyBatch();
+                return;
+            }
+            if (accepted) {
+                server.logError(ServerLog.ERRLOG_LEVEL_EVERYTHING, "Processing " + txn);
+                applyTransaction(queueName, txn);
+            }
+            addToOtherTransactionQueue(queueName, txn);
+            notifyQueueListeners(txn);
+            // Note: currently it is important that replicationStateInfo.setLastTxnId is called *after* storage is updated, to ensure
+            // consistency of proxied mirroring
+            replicationStateInfo.setLastTxnId(queueName, txn.txnId);
+            transactionsApplied(1);
+        }
+
+        /** Returns true if the transaction passes validation and the prefix filter, logging it otherwise. */
+        private boolean isAccepted(Transaction txn) throws HandleException {
             TransactionValidator.ValidationResult validationResult = null;
             if (replicationValidator != null) {
                 validationResult = replicationValidator.validate(txn);
@@ -1131,45 +1527,57 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                         e.printStackTrace();
                     }
                 }
+                return false;
             } else if (replicationPrefixFilter != null && !replicationPrefixFilter.acceptTransaction(txn)) {
                 System.err.println("--Transaction skipped by filter: " + txn);
-            } else {
-                final HandleStorage storage = server.getStorage();
-                int priority = getIndexFromQueueName(queueName);
-                System.err.println("--Processing " + txn);
-                final byte[] handle = caseSensitive ? txn.handle : Util.upperCase(txn.handle);
-                synchronized (server.getWriteLock(handle)) {
-                    switch (txn.action) {
-                    case Transaction.ACTION_CREATE_HANDLE:
-                    case Transaction.ACTION_UPDATE_HANDLE:
-                        runIfMoreRecent(() -> {
-                            storage.createOrUpdateRecord(handle, txn.values);
-                        }, handle, txn.date, priority, false);
-                        break;
-                    case Transaction.ACTION_DELETE_HANDLE:
-                        runIfMoreRecent(() -> {
-                            if (!storage.deleteHandle(handle)) {
-                                server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Warning: got delete-handle transaction for non-existent handle: " + Util.decodeString(txn.handle));
-                            }
-                        }, handle, txn.date, priority, false);
-                        break;
-                    case Transaction.ACTION_HOME_NA:
-                        runIfMoreRecent(() -> {
-                            storage.setHaveNA(handle, true);
-                            server.adjustHomedPrefix(handle, true);
-                        }, handle, txn.date, priority, true);
-                        break;
-                    case Transaction.ACTION_UNHOME_NA:
-                        runIfMoreRecent(() -> {
-                            storage.setHaveNA(handle, false);
-                            server.adjustHomedPrefix(handle, false);
-                        }, handle, txn.date, priority, true);
-                        break;
-                    default:
-                        server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Encountered unknown transaction type (" + txn.action + ") during replication for handle: " + Util.decodeString(txn.handle));
-                    }
+                return false;
+            }
+            return true;
+        }
+
+        private void applyTransaction(String queueName, final Transaction txn) throws HandleException {
+            final HandleStorage storage = server.getStorage();
+            int priority = getIndexFromQueueName(queueName);
+            final byte[] handle = caseSensitive ? txn.handle : Util.upperCase(txn.handle);
+            HandleLockManager.HandleLock handleLock = server.lockForWrite(handle);
+            try {
+                switch (txn.action) {
+                case Transaction.ACTION_CREATE_HANDLE:
+                case Transaction.ACTION_UPDATE_HANDLE:
+                    runIfMoreRecent(() -> {
+                        storage.createOrUpdateRecord(handle, txn.values);
+                        server.getPrefixHandleCounts().invalidate(handle);
+                    }, handle, txn.date, priority, false);
+                    break;
+                case Transaction.ACTION_DELETE_HANDLE:
+                    runIfMoreRecent(() -> {
+                        if (!storage.deleteHandle(handle)) {
+                            server.logError(ServerLog.ERRLOG_LEVEL_NORMAL, "Warning: got delete-handle transaction for non-existent handle: " + Util.decodeString(txn.handle));
+                        }
+                        server.getPrefixHandleCounts().invalidate(handle);
+                    }, handle, txn.date, priority, false);
+                    break;
+                case Transaction.ACTION_HOME_NA:
+                    runIfMoreRecent(() -> {
+                        storage.setHaveNA(handle, true);
+                        server.adjustHomedPrefix(handle, true);
+                    }, handle, txn.date, priority, true);
+                    break;
+                case Transaction.ACTION_UNHOME_NA:
+                    runIfMoreRecent(() -> {
+                        storage.setHaveNA(handle, false);
+                        server.adjustHomedPrefix(handle, false);
+                    }, handle, txn.date, priority, true);
+                    break;
+                default:
+                    server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Encountered unknown transaction type (" + txn.action + ") during replication for handle: " + Util.decodeString(txn.handle));
                 }
+            } finally {
+                handleLock.close();
             }
+        }
+
+        private void addToOtherTransactionQueue(String queueName, Transaction txn) throws HandleException {
             //get the right queue by name and add the this txn
             TransactionQueuesInterface otherTransactionQueues = server.getAllOtherTransactionQueues();
             if (otherTransactionQueues != null) {
@@ -1180,26 +1588,217 @@ public class ReplicationDaemon extends Thread implements ReplicationDaemonInterf
                     throw new HandleException(HandleException.INTERNAL_ERROR, e);
                 }
             }
-            notifyQueueListeners(txn);
-            // Note: currently it is important that replicationStateInfo.setLastTxnId is called *after* storage is updated, to ensure
-            // consistency of proxied mirroring
-            replicationStateInfo.setLastTxnId(queueName, txn.txnId);
+        }
+
+        /**
+         * Applies the collected transactions to storage, then records them as
+         * received.  If this fails the batch is dropped; as the last transaction
+         * ids have not been advanced, the transactions are retrieved again.
+         */
+        void applyBatch() throws HandleException {
+            if (batch.isEmpty()) return;
+            List<ReceivedTransaction> received = new ArrayList<>(batch);
+            batch.clear();
+
+            // pick the transaction which wins for each handle and prefix, in the same way that runIfMoreRecent would
+            List<ReceivedTransaction> candidates = new ArrayList<>(received.size());
+            Map<ByteBuffer, byte[]> toLock = new HashMap<>();
+            for (ReceivedTransaction rtxn : received) {
+                if (!rtxn.accepted) continue;
+                if (!isKnownAction(rtxn.txn.action)) {
+                    server.logError(ServerLog.ERRLOG_LEVEL_REALBAD, "Encountered unknown transaction type (" + rtxn.txn.action + ") during replication for handle: " + Util.decodeString(rtxn.txn.handle));
+                    continue;
+                }
+                candidates.add(rtxn);
+                toLock.putIfAbsent(ByteBuffer.wrap(rtxn.handle), rtxn.handle);
+            }
+            if (candidates.isEmpty()) {
+                recordBatch(received);
+                return;
+            }
+
+            Map<ByteBuffer, ReceivedTransaction> handleWinners = new LinkedHashMap<>();
+            Map<ByteBuffer, ReceivedTransaction> naWinners = new LinkedHashMap<>();
+            // all of the handles are locked at once, in a consistent order, so that concurrent batches can't deadlock
+            HandleLockManager.HandleLock handleLock = server.lockAllForWrite(toLock.values());
+            try {
+                for (ReceivedTransaction rtxn : candidates) {
+                    boolean isNA = rtxn.txn.action == Transaction.ACTION_HOME_NA || rtxn.txn.action == Transaction.ACTION_UNHOME_NA;
+                    Map<ByteBuffer, ReceivedTransaction> winners = isNA ? naWinners : handleWinners;
+                    ByteBuffer key = ByteBuffer.wrap(rtxn.handle);
+                    ReceivedTransaction current = winners.get(key);
+                    if (current == null) {
+                        if (replicationDb == null || replicationDb.isMoreRecentThanLastDate(rtxn.handle, rtxn.txn.date, rtxn.priority, isNA)) {
+                            winners.put(key, rtxn);
+                        }
+                    } else if (rtxn.txn.date > current.txn.date || (rtxn.txn.date == current.txn.date && rtxn.priority >= current.priority)) {
+                        winners.put(key, rtxn);
+                    }
+                }
+
+                List<Transaction> writes = new ArrayList<>(handleWinners.size() + naWinners.size());
+                for (ReceivedTransaction rtxn : handleWinners.values()) {
+                    writes.add(new Transaction(rtxn.txn.txnId, rtxn.handle, rtxn.txn.values, rtxn.txn.action, rtxn.txn.date));
+                }
+                for (ReceivedTransaction rtxn : naWinners.values()) {
+                    writes.add(new Transaction(rtxn.txn.txnId, rtxn.handle, rtxn.txn.action, rtxn.txn.date));
+                }
+                if (!writes.isEmpty()) {
+                    server.logError(ServerLog.ERRLOG_LEVEL_EVERYTHING, "Applying " + received.size() + " replicated transactions (" + writes.size() + " writes)");
+                    server.getStorage().applyTransactions(writes);
+                    for (Transaction write : writes) {
+                        server.getPrefixHandleCounts().invalidate(write.handle);
+                    }
+                }
+                for (ReceivedTransaction rtxn : handleWinners.values()) {
+                    if (replicationDb != null) replicationDb.setLastDate(rtxn.handle, rtxn.txn.date, rtxn.priority, false);
+                }
+                for (ReceivedTransaction rtxn : naWinners.values()) {
+                    if (replicationDb != null) replicationDb.setLastDate(rtxn.handle, rtxn.txn.date, rtxn.priority, true);
+                    server.adjustHomedPrefix(rtxn.handle, rtxn.txn.action == Transaction.ACTION_HOME_NA);
+                }
+            } finally {
+                handleLock.close();
+            }
+            recordBatch(received);
+        }
+
+        private boolean isKnownAction(byte action) {
+            switch (action) {
+            case Transaction.ACTION_CREATE_HANDLE:
+            case Transaction.ACTION_UPDATE_HANDLE:
+            case Transaction.ACTION_DELETE_HANDLE:
+            case Transaction.ACTION_HOME_NA:
+            case Transaction.ACTION_UNHOME_NA:
+                return true;
+            default:
+                return false;
+            }
+        }
+
+        /** Records the applied transactions as received. */
+        private void recordBatch(List<ReceivedTransaction> received) throws HandleException {
+            Map<String, Long> lastTxnIds = new HashMap<>();
+            for (ReceivedTransaction rtxn : received) {
+                addToOtherTransactionQueue(rtxn.queueName, rtxn.txn);
+                notifyQueueListeners(rtxn.txn);
+                lastTxnIds.put(rtxn.queueName, rtxn.txn.txnId);
+            }
+            // as above, only once storage is updated
+            for (Map.Entry<String, Long> entry : lastTxnIds.entrySet()) {
+                replicationStateInfo.setLastTxnId(entry.getKey(), entry.getValue().longValue());
+            }
+            transactionsApplied(received.size());
+        }
+
+        /** Called once the given number of received transactions have been applied. */
+        @SuppressWarnings("unused")
+        void transactionsApplied(int count) {
+            // do nothing
         }
 
         @Override
-        public void setQueueLastTimestamp(String queueName, long sourceDate) {
+        public void setQueueLastTimestamp(String queueName, long sourceDate) throws HandleException {
+            applyBatch();
             replicationStateInfo.setLastTimestamp(queueName, sourceDate);
         }
 
         @Override
-        public void finishProcessing(long date) {
+        public void finishProcessing(long date) throws HandleException {
             setQueueLastTimestamp(currentServerNum + ":" + sourceSiteName, date);
             finishProcessing();
         }
 
         @Override
-        public void finishProcessing() {
-            // do nothing
+        public void finishProcessing() throws HandleException {
+            applyBatch();
+        }
+
+        private class ReceivedTransaction {
+            final String queueName;
+            final Transaction txn;
+            final boolean accepted;
+            final byte[] handle;
+            final int priority;
+
+            ReceivedTransaction(String queueName, Transaction txn, boolean accepted) {
+                this.queueName = queueName;
+                this.txn = txn;
+                this.accepted = accepted;
+                this.handle = caseSensitive ? txn.handle : Util.upperCase(txn.handle);
+                this.priority = getIndexFromQueueName(queueName);
+            }
+        }
+    }
+
+    /****************************************************************************
+     * Callback for the stream from one source server.  Each transaction is
+     * applied under the replication lock, so that pausing replication (e.g. for
+     * a dump) waits for it; after a pause, or once the replicator is stopped,
+     * the stream is abandoned so that it can be reopened from the current
+     * replication state.
+     ****************************************************************************/
+    class SourceServerTxnCallback extends TxnCallback {
+        private final SourceServerReplicator replicator;
+        private final long generation;
+        private long lastSaveTime = System.currentTimeMillis();
+
+        SourceServerTxnCallback(SourceServerReplicator replicator, long generation) {
+            super(replicationStateInfo, replicator.replicationSourceSite.getName(), replicator.site);
+            this.replicator = replicator;
+            this.generation = generation;
+        }
+
+        private void checkStillReplicating() throws HandleException {
+            if (!keepRunning || replicator.stopped) {
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Replication from source server stopped");
+            }
+            if (pauseGeneration.get() != generation) {
+                throw new HandleException(HandleException.INTERNAL_ERROR, "Replication was paused; resubscribing");
+            }
+        }
+
+        @Override
+        public void processTransaction(String queueName, Transaction txn) throws HandleException {
+            readWriteLock.writeLock().lock();
+            try {
+                checkStillReplicating();
+                super.processTransaction(queueName, txn);
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        void applyBatch() throws HandleException {
+            readWriteLock.writeLock().lock();
+            try {
+                checkStillReplicating();
+                super.applyBatch();
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
+        }
+
+        @Override
+        void transactionsApplied(int count) {
+            replicator.stats.recordTransactions(count);
+        }
+
+        @Override
+        public void caughtUp(long sourceDate) throws HandleException {
+            readWriteLock.writeLock().lock();
+            try {
+                checkStillReplicating();
+                finishProcessing(sourceDate);
+                long now = System.currentTimeMillis();
+                if (now - lastSaveTime >= SUBSCRIPTION_SAVE_INTERVAL) {
+                    lastSaveTime = now;
+                    saveReplicationInfo();
+                }
+            } finally {
+                readWriteLock.writeLock().unlock();
+            }
         }
     }
 }
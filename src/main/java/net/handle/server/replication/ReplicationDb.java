@@ -249,7 +249,7 @@ public class ReplicationDb {
         return true;
     }
 
-    // synchronization note: always in server.getWriteLock(handle)
+    // synchronization note: always in server.lockForWrite(handle)
     public long adjustAndSetLastDate(byte[] handle, long date, int priority, boolean isNA) throws HandleException {
         @SuppressWarnings({ "resource", "hiding" })
         Database db = isNA ? this.naDB : this.db;
@@ -273,7 +273,7 @@ public class ReplicationDb {
         return date;
     }
 
-    // synchronization note: always in server.getWriteLock(handle), or else during dump
+    // synchronization note: always in server.lockForWrite(handle), or else during dump
     public void setLastDate(byte[] handle, long date, int priority, boolean isNA) throws HandleException {
         @SuppressWarnings({ "resource", "hiding" })
         Database db = isNA ? this.naDB : this.db;
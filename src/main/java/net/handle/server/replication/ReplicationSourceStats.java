@@ -0,0 +1,93 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+
+package net.handle.server.replication;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.cnri.util.StreamTable;
+
+/*****************************************************************************
+ * Statistics about replication from one source server, reported alongside
+ * the replication state in the replication status.
+ *****************************************************************************/
+class ReplicationSourceStats {
+    static final String LAG_MILLIS = "lag_millis";
+    static final String TXNS_APPLIED = "txns_applied";
+    static final String TXNS_PER_SECOND = "txns_per_second";
+    static final String ERRORS = "errors";
+    static final String LAST_ERROR = "last_error";
+    static final String LAST_ERROR_TIMESTAMP = "last_error_timestamp";
+
+    // the throughput is measured over consecutive windows of this length
+    private static final long RATE_WINDOW = 60000;
+
+    private final LongAdder txnsApplied = new LongAdder();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile String lastError;
+    private volatile long lastErrorTimestamp;
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowCount = 0;
+    private double txnsPerSecond = 0;
+
+    void recordTransactions(int count) {
+        txnsApplied.add(count);
+        synchronized (this) {
+            rollWindow(System.currentTimeMillis());
+            windowCount += count;
+        }
+    }
+
+    void recordError(Exception e) {
+        errors.incrementAndGet();
+        lastError = String.valueOf(e);
+        lastErrorTimestamp = System.currentTimeMillis();
+    }
+
+    /** Returns the rate at which transactions were applied over the last complete window. */
+    synchronized double getTransactionsPerSecond() {
+        rollWindow(System.currentTimeMillis());
+        return txnsPerSecond;
+    }
+
+    /**
+     * Ends the current window if it is over, whether or not the rate is being
+     * read, so that the rate always covers the window just before the current one.
+     */
+    private void rollWindow(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW) return;
+        // if a whole window has passed since the current one ended, nothing was applied in it
+        txnsPerSecond = elapsed < 2 * RATE_WINDOW ? windowCount * 1000.0 / RATE_WINDOW : 0;
+        windowStart = now - elapsed % RATE_WINDOW;
+        windowCount = 0;
+    }
+
+    /**
+     * Adds these statistics to the given per-server replication state.  The
+     * lag is the time since the source server last reported that this server
+     * had all of its transactions.
+     */
+    void addTo(StreamTable serverState, long lastTimestamp) {
+        if (lastTimestamp > 0) {
+            serverState.put(LAG_MILLIS, Math.max(0, System.currentTimeMillis() - lastTimestamp));
+        }
+        serverState.put(TXNS_APPLIED, txnsApplied.sum());
+        serverState.put(TXNS_PER_SECOND, String.valueOf(Math.round(getTransactionsPerSecond() * 100) / 100.0));
+        serverState.put(ERRORS, errors.get());
+        String error = lastError;
+        if (error != null) {
+            serverState.put(LAST_ERROR, error);
+            serverState.put(LAST_ERROR_TIMESTAMP, lastErrorTimestamp);
+        }
+    }
+}
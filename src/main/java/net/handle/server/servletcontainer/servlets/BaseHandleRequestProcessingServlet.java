@@ -36,7 +36,9 @@ import net.handle.hdllib.GsonUtility;
 import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleResolver;
 import net.handle.hdllib.RequestProcessor;
+import net.handle.hdllib.ResponseMessageCallback;
 import net.handle.hdllib.Util;
+import net.handle.server.servletcontainer.support.LoggingResponseMessageCallbackWrapper;
 import net.handle.server.servletcontainer.support.PreAuthenticatedRequestProcessor;
 
 public class BaseHandleRequestProcessingServlet extends HttpServlet {
@@ -124,6 +126,28 @@ public class BaseHandleRequestProcessingServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Processes a list-handles or list-prefixes request, writing the listing
+     * to the response as it arrives; see {@link StreamingListCallback}.
+     */
+    protected void streamListing(HttpServletRequest servletReq, HttpServletResponse servletResp, AbstractRequest listReq) throws IOException {
+        StreamingListCallback streamingCallback = new StreamingListCallback(servletReq, servletResp, listReq);
+        ResponseMessageCallback callbackWrapper = streamingCallback;
+        if (handleServer != null) callbackWrapper = new LoggingResponseMessageCallbackWrapper(streamingCallback, handleServer, handleServer.logHttpAccesses(), listReq, getRemoteInetAddress(servletReq), "HDLApi");
+        AbstractResponse error = null;
+        try {
+            requestHandler.processRequest(listReq, getRemoteInetAddress(servletReq), callbackWrapper);
+        } catch (HandleException e) {
+            error = HandleException.toErrorResponse(listReq, e);
+        }
+        if (error == null) error = streamingCallback.unexpectedResponse;
+        if (error != null && !streamingCallback.isStarted()) {
+            processResponse(servletReq, servletResp, listReq, error);
+        } else {
+            streamingCallback.finish(error);
+        }
+    }
+
     protected static AbstractResponse errorResponseFromException(Exception e) {
         AbstractResponse resp;
         //StringWriter writer = new StringWriter();
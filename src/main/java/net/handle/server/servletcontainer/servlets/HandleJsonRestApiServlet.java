@@ -229,9 +229,18 @@ public class HandleJsonRestApiServlet extends BaseHandleRequestProcessingServlet
     private void listHandles(String prefix, HttpServletRequest servletReq, HttpServletResponse servletResp) throws IOException {
         try {
             ListHandlesRequest listReq = getListHandlesRequest(prefix, servletReq);
+            if (StreamingListCallback.isRequested(servletReq)) {
+                StreamingListCallback.checkNotPaged(servletReq);
+                listReq.certify = getBooleanParameter(servletReq, "cert");
+                streamListing(servletReq, servletResp, listReq);
+                return;
+            }
             ListCallback listCallback = new ListCallback();
             listCallback.page = getIntegerParameter(servletReq, "page", -1);
             listCallback.pageSize = getIntegerParameter(servletReq, "pageSize", -1);
+            String cursor = servletReq.getParameter("cursor");
+            if (cursor != null) listCallback.startAfter = ListCallback.decodeCursor(cursor);
+            listCallback.requestPage(listReq);
             listReq.certify = getBooleanParameter(servletReq, "cert");
             ResponseMessageCallback callbackWrapper = listCallback;
             if (handleServer != null) callbackWrapper = new LoggingResponseMessageCallbackWrapper(listCallback, handleServer, handleServer.logHttpAccesses(), listReq, getRemoteInetAddress(servletReq), "HDLApi");
@@ -243,6 +252,7 @@ public class HandleJsonRestApiServlet extends BaseHandleRequestProcessingServlet
             if (listCallback.unexpectedResponse != null) {
                 processResponse(servletReq, servletResp, listReq, listCallback.unexpectedResponse);
             } else {
+                listCallback.finishListing();
                 listCallback.processListHandlesResponse(servletReq, servletResp, listReq, listCallback.handles, listCallback.totalCount);
             }
         } catch (IllegalArgumentException e) {
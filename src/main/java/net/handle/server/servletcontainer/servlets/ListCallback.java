@@ -21,6 +21,7 @@ import net.handle.hdllib.AbstractRequest;
 import net.handle.hdllib.AbstractResponse;
 import net.handle.hdllib.GsonUtility;
 import net.handle.hdllib.HandleException;
+import net.handle.hdllib.ListHandlesRequest;
 import net.handle.hdllib.ListHandlesResponse;
 import net.handle.hdllib.ListNAsResponse;
 import net.handle.hdllib.ResponseMessageCallback;
@@ -28,17 +29,42 @@ import net.handle.hdllib.Util;
 
 import com.google.gson.JsonObject;
 
+import org.apache.commons.codec.binary.Base64;
+
 class ListCallback implements ResponseMessageCallback {
     int page;
     int pageSize;
+    // from the cursor parameter: list the handles after this one
+    byte[] startAfter;
     final List<String> handles = new ArrayList<>();
-    int totalCount;
+    long totalCount;
+    String nextCursor;
     AbstractResponse unexpectedResponse;
+    // when a listing with a cursor is not paged by the server
+    private List<byte[]> handlesAfterCursor;
+
+    /**
+     * Asks a local server to read only the requested page of handles and to
+     * give the total from its prefix counts.  Servers reached over the
+     * network ignore this and list every handle.
+     */
+    void requestPage(ListHandlesRequest listReq) {
+        if (startAfter != null) {
+            listReq.startAfter = startAfter;
+            listReq.maxHandles = pageSize;
+            listReq.countHandles = true;
+        } else if (page >= 0 && pageSize >= 0) {
+            listReq.maxHandles = (int) Math.min(Integer.MAX_VALUE - 1, (page + 1L) * pageSize);
+            listReq.countHandles = true;
+        }
+    }
 
     @Override
     public void handleResponse(AbstractResponse resp) throws HandleException {
         if (resp instanceof ListHandlesResponse) {
-            handleListResponse(((ListHandlesResponse) resp).handles);
+            ListHandlesResponse listResp = (ListHandlesResponse) resp;
+            if (listResp.totalCount >= 0) handlePageResponse(listResp);
+            else handleListResponse(listResp.handles);
         } else if (resp instanceof ListNAsResponse) {
             handleListResponse(((ListNAsResponse) resp).handles);
         } else {
@@ -46,7 +72,24 @@ class ListCallback implements ResponseMessageCallback {
         }
     }
 
+    private void handlePageResponse(ListHandlesResponse listResp) {
+        totalCount = listResp.totalCount;
+        if (listResp.nextStartAfter != null) nextCursor = encodeCursor(listResp.nextStartAfter);
+        long skip = startAfter == null && page >= 0 && pageSize >= 0 ? (long) page * pageSize : 0;
+        for (int i = 0; i < listResp.handles.length; i++) {
+            if (i >= skip) handles.add(Util.decodeString(listResp.handles[i]));
+        }
+    }
+
     private void handleListResponse(byte[][] responseHandles) {
+        if (startAfter != null) {
+            if (handlesAfterCursor == null) handlesAfterCursor = new ArrayList<>();
+            for (byte[] handle : responseHandles) {
+                if (Util.compare(handle, startAfter) > 0) handlesAfterCursor.add(handle);
+            }
+            totalCount += responseHandles.length;
+            return;
+        }
         if (page >= 0 && pageSize >= 0) {
             if (pageSize == 0 || totalCount >= (page + 1) * pageSize || totalCount + responseHandles.length <= page * pageSize) {
                 totalCount += responseHandles.length;
@@ -66,15 +109,43 @@ class ListCallback implements ResponseMessageCallback {
         }
     }
 
-    void processListHandlesResponse(HttpServletRequest servletReq, HttpServletResponse servletResp, AbstractRequest listReq, @SuppressWarnings("hiding") List<String> handles, @SuppressWarnings("hiding") int totalCount) throws IOException {
+    /**
+     * Takes the page after the cursor from the handles listed by a server
+     * which did not page the listing itself, ordering them as a local
+     * server would.
+     */
+    void finishListing() {
+        if (handlesAfterCursor == null) return;
+        handlesAfterCursor.sort(Util::compare);
+        int end = pageSize < 0 ? handlesAfterCursor.size() : Math.min(pageSize, handlesAfterCursor.size());
+        for (int i = 0; i < end; i++) {
+            handles.add(Util.decodeString(handlesAfterCursor.get(i)));
+        }
+        if (end > 0 && end < handlesAfterCursor.size()) nextCursor = encodeCursor(handlesAfterCursor.get(end - 1));
+        handlesAfterCursor = null;
+    }
+
+    static String encodeCursor(byte[] handle) {
+        return Base64.encodeBase64URLSafeString(handle);
+    }
+
+    static byte[] decodeCursor(String cursor) {
+        if (cursor.isEmpty() || !Base64.isBase64(cursor)) throw new IllegalArgumentException("Invalid cursor");
+        return Base64.decodeBase64(cursor);
+    }
+
+    void processListHandlesResponse(HttpServletRequest servletReq, HttpServletResponse servletResp, AbstractRequest listReq, @SuppressWarnings("hiding") List<String> handles, @SuppressWarnings("hiding") long totalCount) throws IOException {
         JsonObject json = new JsonObject();
         json.addProperty("responseCode", Integer.valueOf(AbstractMessage.RC_SUCCESS));
         if (listReq.opCode == AbstractMessage.OC_LIST_HANDLES) json.addProperty("prefix", Util.decodeString(listReq.handle));
         json.addProperty("totalCount", String.valueOf(totalCount));
-        if (page >= 0 && pageSize >= 0) {
+        if (startAfter != null) {
+            if (pageSize >= 0) json.addProperty("pageSize", pageSize);
+        } else if (page >= 0 && pageSize >= 0) {
             json.addProperty("page", page);
             json.addProperty("pageSize", pageSize);
         }
+        if (nextCursor != null) json.addProperty("nextCursor", nextCursor);
         String property;
         if (listReq.opCode == AbstractMessage.OC_LIST_HOMED_NAS) {
             property = "prefixes";
@@ -46,6 +46,8 @@ import net.handle.server.servletcontainer.HandleServerInterface;
 public class NativeServlet extends HttpServlet {
     public static final byte[] MSG_INVALID_MSG_SIZE = Util.encodeString("Invalid message length");
     public static final byte[] MSG_INVALID_REQUEST = Util.encodeString("Invalid request");
+    public static final String ENABLE_COMPRESSION = "enable_compression";
+    public static final String COMPRESSION_THRESHOLD = "compression_threshold";
 
     HandleServerInterface handleServer;
     RequestProcessor requestHandler;
@@ -53,9 +55,17 @@ public class NativeServlet extends HttpServlet {
     boolean processAdminRequestsHttp;
     boolean processQueriesHttps;
     boolean processAdminRequestsHttps;
+    // compression of responses and streams, for clients which accept it
+    boolean compression = true;
+    int compressionThreshold = Common.DEFAULT_COMPRESSION_THRESHOLD;
 
     @Override
     public void init() throws ServletException {
+        // set by Main from server_config/http_config
+        String compressionParam = getInitParameter(ENABLE_COMPRESSION);
+        if (compressionParam != null) compression = Boolean.parseBoolean(compressionParam);
+        String thresholdParam = getInitParameter(COMPRESSION_THRESHOLD);
+        if (thresholdParam != null) compressionThreshold = Integer.parseInt(thresholdParam);
         handleServer = (net.handle.server.servletcontainer.HandleServerInterface) getServletContext().getAttribute("net.handle.server.HandleServer");
         if (handleServer == null) {
             requestHandler = (HandleResolver) getServletContext().getAttribute(HandleResolver.class.getName());
@@ -186,6 +196,17 @@ public class NativeServlet extends HttpServlet {
                 if (messageBuf == null) return;
             }
 
+            if (envelope.compressed) {
+                try {
+                    messageBuf = Encoder.decompressMessage(messageBuf, 0, envelope.messageLength);
+                } catch (HandleException e) {
+                    handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, Util.encodeString(e.getMessage())));
+                    return;
+                }
+                envelope.compressed = false;
+                envelope.messageLength = messageBuf.length;
+            }
+
             if (envelope.messageLength < 24) {
                 handleResponse(new ErrorResponse(AbstractMessage.OC_RESERVED, AbstractMessage.RC_PROTOCOL_ERROR, MSG_INVALID_MSG_SIZE));
                 return;
@@ -279,6 +300,16 @@ public class NativeServlet extends HttpServlet {
             try {
                 byte msg[] = response.getEncodedMessage();
 
+                // compress large responses for clients which accept it, before any encryption
+                boolean compressed = false;
+                if (clientAcceptsCompression() && msg.length >= compressionThreshold) {
+                    byte compressedMsg[] = Encoder.compressMessage(msg);
+                    if (compressedMsg != null) {
+                        msg = compressedMsg;
+                        compressed = true;
+                    }
+                }
+
                 //when to encrypt? right before sending it out! after the credential
                 //portion is formed!  encrypt response here if the request asks for
                 //encryption and set the flag in envelop if successful
@@ -304,8 +335,9 @@ public class NativeServlet extends HttpServlet {
                       //                    }
                 }
 
-                // set the envelop flag for encryption
+                // set the envelop flags for compression and encryption
                 MessageEnvelope envelope = new MessageEnvelope();
+                envelope.compressed = compressed;
                 envelope.encrypted = encrypted;
                 envelope.messageLength = msg.length; //use the length after encryption
                 envelope.messageId = 0;
@@ -332,9 +364,9 @@ public class NativeServlet extends HttpServlet {
                 // if the response is "streamable," send the streamed part...
                 if (response.streaming) {
                     if (servletReq.isSecure() && !"DSA".equals(handleServer.getPublicKey().getAlgorithm())) {
-                        sout = new SignedOutputStream(out);
+                        sout = new SignedOutputStream(out, clientAcceptsCompression());
                     } else {
-                        sout = new SignedOutputStream(handleServer.getPrivateKey(), out);
+                        sout = new SignedOutputStream(handleServer.getPrivateKey(), out, clientAcceptsCompression());
                     }
                     response.streamResponse(sout);
                     out.flush();
@@ -354,6 +386,10 @@ public class NativeServlet extends HttpServlet {
             }
         }
 
+        private boolean clientAcceptsCompression() {
+            return currentHdlRequest != null && currentHdlRequest.acceptCompressed && compression;
+        }
+
         private void logAccess(AbstractResponse response) {
             if (currentHdlRequest == null) return;
             String accessString = "HTTP:HDL" + "(" + currentHdlRequest.suggestMajorProtocolVersion + "." + currentHdlRequest.suggestMinorProtocolVersion + ")";
@@ -116,6 +116,12 @@ public class PrefixesServlet extends BaseHandleRequestProcessingServlet {
     private void listPrefixes(HttpServletRequest servletReq, HttpServletResponse servletResp) throws IOException {
         try {
             AbstractRequest listReq = new ListNAsRequest(Common.BLANK_HANDLE, getAuthenticationInfo(servletReq));
+            if (StreamingListCallback.isRequested(servletReq)) {
+                StreamingListCallback.checkNotPaged(servletReq);
+                listReq.certify = getBooleanParameter(servletReq, "cert");
+                streamListing(servletReq, servletResp, listReq);
+                return;
+            }
             ListCallback listCallback = new ListCallback();
             listCallback.page = BaseHandleRequestProcessingServlet.getIntegerParameter(servletReq, "page", -1);
             listCallback.pageSize = BaseHandleRequestProcessingServlet.getIntegerParameter(servletReq, "pageSize", -1);
@@ -0,0 +1,175 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server.servletcontainer.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import net.handle.hdllib.AbstractMessage;
+import net.handle.hdllib.AbstractRequest;
+import net.handle.hdllib.AbstractResponse;
+import net.handle.hdllib.ErrorResponse;
+import net.handle.hdllib.GsonUtility;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.ListHandlesResponse;
+import net.handle.hdllib.ListNAsResponse;
+import net.handle.hdllib.ResponseMessageCallback;
+import net.handle.hdllib.Util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Writes a listing of handles or prefixes to the servlet response as each
+ * message of the listing arrives, instead of collecting the whole listing
+ * first, flushing after each message.  Requested with "stream=true" for a
+ * JSON document like the one for a complete listing, with the total count
+ * and response code after the array, or with "format=ndjson" for one JSON
+ * string per line.
+ *
+ * Nothing is written until the first message of the listing arrives, so an
+ * error before then, such as an authentication failure, is sent as usual.
+ * An error after the listing has started is written at the end of the
+ * output: as the response code and message of the JSON document, or as a
+ * final JSON object line of NDJSON.
+ */
+class StreamingListCallback implements ResponseMessageCallback {
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    private final HttpServletRequest servletReq;
+    private final HttpServletResponse servletResp;
+    private final AbstractRequest listReq;
+    private final boolean ndjson;
+    private final Gson gson = GsonUtility.getGson();
+    private PrintWriter writer;
+    private String callback;
+    private boolean firstElement = true;
+    long totalCount;
+    AbstractResponse unexpectedResponse;
+
+    StreamingListCallback(HttpServletRequest servletReq, HttpServletResponse servletResp, AbstractRequest listReq) {
+        this.servletReq = servletReq;
+        this.servletResp = servletResp;
+        this.listReq = listReq;
+        this.ndjson = isNdjsonRequested(servletReq);
+    }
+
+    /** Returns true if the request asks for the listing to be streamed. */
+    static boolean isRequested(HttpServletRequest servletReq) {
+        return isNdjsonRequested(servletReq) || BaseHandleRequestProcessingServlet.getBooleanParameter(servletReq, "stream");
+    }
+
+    private static boolean isNdjsonRequested(HttpServletRequest servletReq) {
+        return "ndjson".equalsIgnoreCase(servletReq.getParameter("format"));
+    }
+
+    /** Throws an exception if the request also asks for a page, which is not streamed. */
+    static void checkNotPaged(HttpServletRequest servletReq) {
+        if (servletReq.getParameter("page") != null || servletReq.getParameter("pageSize") != null || servletReq.getParameter("cursor") != null) {
+            throw new IllegalArgumentException("Streamed listings can't be paged");
+        }
+    }
+
+    /** Returns true if output has started, after which errors can only be written into the listing. */
+    boolean isStarted() {
+        return writer != null;
+    }
+
+    @Override
+    public void handleResponse(AbstractResponse resp) throws HandleException {
+        byte[][] handles;
+        if (resp instanceof ListHandlesResponse) {
+            handles = ((ListHandlesResponse) resp).handles;
+        } else if (resp instanceof ListNAsResponse) {
+            handles = ((ListNAsResponse) resp).handles;
+        } else {
+            unexpectedResponse = resp;
+            return;
+        }
+        try {
+            if (writer == null) start();
+            for (byte[] handle : handles) {
+                if (ndjson) {
+                    writer.write(gson.toJson(Util.decodeString(handle)));
+                    writer.write('\n');
+                } else {
+                    if (!firstElement) writer.write(',');
+                    writer.write(gson.toJson(Util.decodeString(handle)));
+                }
+                firstElement = false;
+            }
+            totalCount += handles.length;
+            writer.flush();
+        } catch (IOException e) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Error writing listing", e);
+        }
+        // stops the listing; the client has likely gone away
+        if (writer.checkError()) throw new HandleException(HandleException.INTERNAL_ERROR, "Error writing listing");
+    }
+
+    private void start() throws IOException {
+        servletResp.setStatus(HttpServletResponse.SC_OK);
+        servletResp.setCharacterEncoding("UTF-8");
+        if (ndjson) {
+            servletResp.setContentType(NDJSON_CONTENT_TYPE);
+            writer = servletResp.getWriter();
+            return;
+        }
+        callback = servletReq.getParameter("callback");
+        if (callback != null) callback = BaseHandleRequestProcessingServlet.scrubCallbackParameter(callback);
+        if (callback == null) servletResp.setContentType("application/json");
+        else servletResp.setContentType("application/javascript");
+        writer = servletResp.getWriter();
+        if (callback != null) writer.append(callback).append("(");
+        writer.write("{");
+        if (listReq.opCode == AbstractMessage.OC_LIST_HANDLES) {
+            writer.write("\"prefix\":");
+            writer.write(gson.toJson(Util.decodeString(listReq.handle)));
+            writer.write(",");
+        }
+        writer.write(listReq.opCode == AbstractMessage.OC_LIST_HOMED_NAS ? "\"prefixes\":[" : "\"handles\":[");
+    }
+
+    /**
+     * Ends the listing, writing the given error if the listing failed after
+     * it started, or the total count and success otherwise.
+     */
+    void finish(AbstractResponse error) throws IOException {
+        if (writer == null) start();
+        if (ndjson) {
+            if (error != null) writer.write(gson.toJson(errorJson(error)) + "\n");
+        } else {
+            writer.write("],\"totalCount\":");
+            writer.write(gson.toJson(String.valueOf(totalCount)));
+            if (error == null) {
+                writer.write(",\"responseCode\":" + AbstractMessage.RC_SUCCESS);
+            } else {
+                JsonObject json = errorJson(error);
+                writer.write(",\"responseCode\":" + json.get("responseCode"));
+                if (json.has("message")) writer.write(",\"message\":" + json.get("message"));
+            }
+            writer.write("}");
+            if (callback != null) writer.write(");");
+        }
+        writer.flush();
+    }
+
+    private static JsonObject errorJson(AbstractResponse error) {
+        JsonObject json = new JsonObject();
+        json.addProperty("responseCode", error.responseCode);
+        if (error instanceof ErrorResponse && ((ErrorResponse) error).message != null) {
+            json.addProperty("message", Util.decodeString(((ErrorResponse) error).message));
+        }
+        return json;
+    }
+}
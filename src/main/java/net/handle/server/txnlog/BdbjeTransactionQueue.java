@@ -23,6 +23,7 @@ import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleValue;
 import net.handle.hdllib.Transaction;
 import net.handle.hdllib.TransactionScannerInterface;
+import net.handle.server.GroupCommitter;
 import net.handle.server.HandleServer;
 import net.handle.server.bdbje.JeUpgradeTool;
 
@@ -33,15 +34,17 @@ import net.handle.server.bdbje.JeUpgradeTool;
  */
 public class BdbjeTransactionQueue extends AbstractTransactionQueue {
     private static final String DB_DIR_NAME = "db"; //The berkelydb will be stored in a subfolder of /txns
+    private final File dbDir;
     private final Environment dbEnvironment;
     private final Database txnLogDatabase;
     private volatile long lastTxnId = 0;
     private volatile long firstDate = Long.MAX_VALUE;
     private boolean shutdown;
     private final boolean readonly;
+    private final GroupCommitter groupCommitter;
 
     public BdbjeTransactionQueue(File queueDir, StreamTable config) throws Exception {
-        File dbDir = new File(queueDir, DB_DIR_NAME);
+        this.dbDir = new File(queueDir, DB_DIR_NAME);
         if (!dbDir.exists()) {
             dbDir.mkdirs();
         }
@@ -51,7 +54,10 @@ public class BdbjeTransactionQueue extends AbstractTransactionQueue {
         envConfig.setSharedCache(true);
         envConfig.setTransactional(true);
         envConfig.setLockTimeout(config.getInt("bdbje_timeout", 0), TimeUnit.MICROSECONDS);
-        envConfig.setDurability(config.getBoolean("bdbje_no_sync_on_write", false) ? Durability.COMMIT_WRITE_NO_SYNC : Durability.COMMIT_SYNC);
+        boolean noSync = config.getBoolean("bdbje_no_sync_on_write", false);
+        boolean groupCommit = !noSync && !readonly && GroupCommitter.isEnabled(config);
+        // with group commit, writes are synced in batches by the committer
+        envConfig.setDurability(noSync || groupCommit ? Durability.COMMIT_WRITE_NO_SYNC : Durability.COMMIT_SYNC);
         envConfig.setReadOnly(readonly);
         envConfig.setConfigParam(EnvironmentConfig.FREE_DISK, "0");
         dbEnvironment = JeUpgradeTool.openEnvironment(dbDir, envConfig);
@@ -62,6 +68,24 @@ public class BdbjeTransactionQueue extends AbstractTransactionQueue {
         txnLogDatabase = dbEnvironment.openDatabase(null, "txnLogDatabase", dbConfig);
         lastTxnId = calculateLastTxnId();
         firstDate = calculateFirstDate();
+        groupCommitter = groupCommit ? GroupCommitter.fromConfig(config, "transaction queue", () -> dbEnvironment.flushLog(true)) : null;
+    }
+
+    /** Returns true if the given transaction folder holds a queue of this kind. */
+    public static boolean exists(File queueDir) {
+        File[] logFiles = new File(queueDir, DB_DIR_NAME).listFiles((dir, name) -> name.endsWith(".jdb"));
+        return logFiles != null && logFiles.length > 0;
+    }
+
+    /** Deletes the database files of this queue; only to be called after the queue is shut down. */
+    public void deleteAllFiles() {
+        File[] files = dbDir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.getName().endsWith(".jdb")) file.delete();
+            else if (file.getName().equals("je.lck")) file.delete();
+            else if (file.getName().startsWith("je.info")) file.delete();
+        }
     }
 
     @Override
@@ -125,6 +149,7 @@ public class BdbjeTransactionQueue extends AbstractTransactionQueue {
         Transaction txn = new Transaction(txnId, handle, values, action, date);
         BytesMap bytesMap = new BytesMap(txn);
         txnLogDatabase.put(null, bytesMap.getKey(), bytesMap.getData());
+        if (groupCommitter != null) groupCommitter.awaitDurable();
         notifyQueueListeners(txn);
     }
 
@@ -132,6 +157,7 @@ public class BdbjeTransactionQueue extends AbstractTransactionQueue {
     public synchronized void shutdown() {
         if (shutdown) return;
         shutdownQueueListeners();
+        if (groupCommitter != null) groupCommitter.shutdown();
         try {
             shutdown = true;
             if (txnLogDatabase != null) {
@@ -0,0 +1,587 @@
+/**********************************************************************\
+ © COPYRIGHT 2019 Corporation for National Research Initiatives (CNRI);
+                        All rights reserved.
+
+        The HANDLE.NET software is made available subject to the
+      Handle.Net Public License Agreement, which may be obtained at
+          http://hdl.handle.net/20.1000/112 or hdl:20.1000/112
+\**********************************************************************/
+
+package net.handle.server.txnlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import net.cnri.util.StreamTable;
+import net.handle.hdllib.FilteringTransactionScanner;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.Transaction;
+import net.handle.hdllib.TransactionScannerInterface;
+import net.handle.server.GroupCommitter;
+import net.handle.server.HandleServer;
+
+/***********************************************************************
+ * Transaction queue kept in segment files of binary, length-prefixed
+ * records, each segment with a sparse index from transaction ID to file
+ * offset so that a scanner can start near a given transaction instead of
+ * reading the segment from its start.  Segments are read through memory
+ * maps, and the ID, action, and handle hashes of each record are at fixed
+ * offsets, so that records not sent to the requesting server are passed
+ * over without decoding them.
+ *
+ * The files are kept in a "binary" subfolder of the transaction folder.
+ * A new segment is started each day, and whenever the current one reaches
+ * MAX_SEGMENT_SIZE.  Records look like this, in network byte order, where
+ * the length counts the bytes after itself:
+ <pre>
+
+ &lt;length&gt;&lt;txnID:8&gt;&lt;action:1&gt;&lt;date:8&gt;&lt;hashOnAll:4&gt;&lt;hashOnNA:4&gt;&lt;hashOnId:4&gt;&lt;handle-length:4&gt;&lt;handle&gt;
+</pre>
+ * Transaction IDs are handed out before their transactions are added, so
+ * records may be slightly out of order.  Each index entry therefore holds
+ * the greatest ID of the records before its offset; every record before
+ * the offset of an entry whose ID is at most some transaction's ID is
+ * known to come no later than that transaction.  The index of every
+ * INDEX_INTERVAL'th record is kept, in a file alongside the segment which
+ * is rebuilt from the records if it is missing or incomplete.
+ ***********************************************************************/
+public class BinaryTransactionQueue extends AbstractTransactionQueue {
+    public static final String BINARY_TXN_QUEUE = "binary_txn_queue";
+
+    private static final String DIR_NAME = "binary"; // The segments are stored in a subfolder of /txns
+    private static final String SEGMENT_SUFFIX = ".txl";
+    private static final String INDEX_SUFFIX = ".txi";
+    private static final int INDEX_INTERVAL = 64;
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    // offsets of the fields of a record
+    private static final int TXN_ID_OFFSET = 4;
+    private static final int ACTION_OFFSET = 12;
+    private static final int DATE_OFFSET = 13;
+    private static final int HASH_ON_ALL_OFFSET = 21;
+    private static final int HASH_ON_NA_OFFSET = 25;
+    private static final int HASH_ON_ID_OFFSET = 29;
+    private static final int HANDLE_LENGTH_OFFSET = 33;
+    private static final int HEADER_SIZE = 37;
+
+    private final File queueDir;
+    private final boolean readonly;
+    private final Calendar calendar = Calendar.getInstance();
+    private final GroupCommitter groupCommitter;
+    // in the order the segments were started
+    private final List<Segment> segments = new ArrayList<>();
+    private volatile long lastTxnId = 0;
+    private FileChannel lockChannel;
+    private FileLock lock;
+    private boolean shutdown;
+    // listeners are notified in the order the transactions were appended, although they become durable concurrently
+    private final Object notifyLock = new Object();
+    private long numAppended = 0;
+    private long numNotified = 0;
+
+    private class Segment {
+        final int number;
+        final File file;
+        final File indexFile;
+        volatile long firstDate = Long.MAX_VALUE;
+        int day;
+        // the length of the complete records, which is as far as scanners read
+        volatile long length;
+        volatile long maxTxnId;
+        private long recordCount;
+        private long[] indexTxnIds = new long[16];
+        private long[] indexOffsets = new long[16];
+        private int indexSize;
+        private FileChannel channel;
+        private FileChannel indexChannel;
+
+        Segment(int number) {
+            this.number = number;
+            this.file = new File(queueDir, number + SEGMENT_SUFFIX);
+            this.indexFile = new File(queueDir, number + INDEX_SUFFIX);
+        }
+
+        /** Reads the index and the records after its last entry, dropping an incomplete last record. */
+        synchronized void load() throws IOException {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = in.size();
+                int savedEntries = loadIndex(size);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                long pos = 0;
+                if (indexSize > 0) {
+                    pos = indexOffsets[indexSize - 1];
+                    maxTxnId = indexTxnIds[indexSize - 1];
+                    recordCount = (long) (indexSize - 1) * INDEX_INTERVAL;
+                }
+                while (pos + HEADER_SIZE <= size) {
+                    header.clear();
+                    readFully(in, header, pos);
+                    int recordLength = header.getInt(0);
+                    if (recordLength < HEADER_SIZE - 4 || pos + 4 + recordLength > size) break;
+                    if (pos == 0) setFirstDate(header.getLong(DATE_OFFSET));
+                    if (recordCount % INDEX_INTERVAL == 0 && recordCount / INDEX_INTERVAL >= indexSize) addIndexEntry(maxTxnId, pos);
+                    maxTxnId = Math.max(maxTxnId, header.getLong(TXN_ID_OFFSET));
+                    recordCount++;
+                    pos += 4 + recordLength;
+                }
+                length = pos;
+                if (length > 0 && firstDate == Long.MAX_VALUE) {
+                    header.clear();
+                    readFully(in, header, 0);
+                    setFirstDate(header.getLong(DATE_OFFSET));
+                }
+                if (!readonly && savedEntries != indexSize) saveIndex();
+            }
+        }
+
+        /** Reads the saved index entries, returning how many the file holds. */
+        private int loadIndex(long size) throws IOException {
+            if (!indexFile.exists()) return 0;
+            try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                int entries = (int) Math.min(in.size() / 16, Integer.MAX_VALUE);
+                ByteBuffer buf = ByteBuffer.allocate(entries * 16);
+                readFully(in, buf, 0);
+                for (int i = 0; i < entries; i++) {
+                    long offset = buf.getLong(i * 16 + 8);
+                    // entries past the end of the records are left from records never completed
+                    if (offset >= size || (indexSize > 0 && offset <= indexOffsets[indexSize - 1])) break;
+                    addIndexEntry(buf.getLong(i * 16), offset);
+                }
+                return entries;
+            }
+        }
+
+        private void saveIndex() throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(indexSize * 16);
+            for (int i = 0; i < indexSize; i++) {
+                buf.putLong(indexTxnIds[i]).putLong(indexOffsets[i]);
+            }
+            buf.flip();
+            try (FileChannel out = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buf.hasRemaining()) out.write(buf);
+            }
+        }
+
+        private void setFirstDate(long date) {
+            firstDate = date;
+            day = getDayNumber(date);
+        }
+
+        private void addIndexEntry(long txnId, long offset) {
+            if (indexSize == indexOffsets.length) {
+                indexTxnIds = Arrays.copyOf(indexTxnIds, indexSize * 2);
+                indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            }
+            indexTxnIds[indexSize] = txnId;
+            indexOffsets[indexSize] = offset;
+            indexSize++;
+        }
+
+        /**
+         * Returns the offset of the last indexed record before which every record
+         * has an ID no greater than the given ID.
+         */
+        synchronized long findOffset(long afterTxnId) {
+            int low = 0;
+            int high = indexSize - 1;
+            long offset = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTxnIds[mid] <= afterTxnId) {
+                    offset = indexOffsets[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return offset;
+        }
+
+        synchronized void append(ByteBuffer record, long txnId, long date) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+                // drop any incomplete record left by a crash
+                channel.truncate(length);
+                indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            long pos = length;
+            while (record.hasRemaining()) {
+                channel.write(record, pos + record.position());
+            }
+            if (recordCount % INDEX_INTERVAL == 0 && recordCount / INDEX_INTERVAL >= indexSize) {
+                addIndexEntry(maxTxnId, pos);
+                ByteBuffer entry = ByteBuffer.allocate(16);
+                entry.putLong(maxTxnId).putLong(pos).flip();
+                while (entry.hasRemaining()) indexChannel.write(entry);
+            }
+            if (pos == 0) setFirstDate(date);
+            recordCount++;
+            maxTxnId = Math.max(maxTxnId, txnId);
+            length = pos + record.limit();
+        }
+
+        /** Forces the records written so far to disk. */
+        synchronized void sync() throws IOException {
+            if (channel != null) channel.force(false);
+        }
+
+        synchronized void close() {
+            try {
+                if (channel != null) channel.close();
+                if (indexChannel != null) indexChannel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing transaction queue segment " + file + ": " + e);
+            }
+            channel = null;
+            indexChannel = null;
+        }
+
+        synchronized void delete() {
+            close();
+            file.delete();
+            indexFile.delete();
+        }
+    }
+
+    public BinaryTransactionQueue(File txnDir, StreamTable config) throws Exception {
+        this.queueDir = new File(txnDir, DIR_NAME);
+        if (!queueDir.exists()) {
+            queueDir.mkdirs();
+        }
+        this.readonly = config.getBoolean(HandleServer.READ_ONLY_TXN_QUEUE, false);
+        if (!readonly) getLock();
+        try {
+            loadSegments();
+        } catch (Exception e) {
+            releaseLock();
+            throw e;
+        }
+        groupCommitter = readonly ? null : GroupCommitter.fromConfig(config, "transaction queue", this::syncCurrentSegment);
+    }
+
+    private void getLock() throws Exception {
+        lockChannel = FileChannel.open(new File(queueDir, "lock").toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new Exception("Transaction queue " + queueDir + " is in use by another server");
+        }
+    }
+
+    private void releaseLock() {
+        try {
+            if (lock != null) lock.release();
+            if (lockChannel != null) lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error releasing transaction queue lock: " + e);
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    private void loadSegments() throws IOException {
+        File[] files = queueDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<Integer> numbers = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                numbers.add(Integer.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                System.err.println("Ignoring unexpected file in transaction queue: " + file);
+            }
+        }
+        numbers.sort(null);
+        for (int number : numbers) {
+            Segment segment = new Segment(number);
+            segment.load();
+            segments.add(segment);
+            lastTxnId = Math.max(lastTxnId, segment.maxTxnId);
+        }
+    }
+
+    private int getDayNumber(long date) {
+        synchronized (calendar) {
+            calendar.setTimeInMillis(date);
+            return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+        }
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (in.read(buf, pos + buf.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+    }
+
+    @Override
+    public long getLastTxnId() {
+        return lastTxnId;
+    }
+
+    @Override
+    public long getFirstDate() {
+        synchronized (segments) {
+            for (Segment segment : segments) {
+                if (segment.length > 0) return segment.firstDate;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void addTransaction(long txnId, byte[] handle, HandleValue[] values, byte action, long date) throws Exception {
+        if (readonly) {
+            throw new HandleException(HandleException.STORAGE_RDONLY, "Transaction queue is read-only");
+        }
+        if (txnId <= 0) {
+            throw new HandleException(HandleException.INVALID_VALUE, "An attempt was made to store a transaction with zero or negative txnId.");
+        }
+        // the constructor computes the hashes, which are stored with the record
+        Transaction txn = new Transaction(txnId, handle, values, action, date);
+        long sequence = appendTransaction(txn);
+        boolean durable = false;
+        try {
+            if (groupCommitter == null) syncCurrentSegment();
+            else groupCommitter.awaitDurable();
+            durable = true;
+        } finally {
+            notifyInOrder(sequence, durable ? txn : null);
+        }
+    }
+
+    /** Notifies the listeners of the transaction appended with the given sequence number, once the earlier ones have been; null only takes the turn. */
+    private void notifyInOrder(long sequence, Transaction txn) {
+        boolean interrupted = false;
+        synchronized (notifyLock) {
+            while (numNotified != sequence) {
+                try {
+                    notifyLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                if (txn != null) notifyQueueListeners(txn);
+            } finally {
+                numNotified++;
+                notifyLock.notifyAll();
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /** Appends the transaction, returning its sequence number for {@link #notifyInOrder}. */
+    private synchronized long appendTransaction(Transaction txn) throws Exception {
+        if (shutdown) {
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Transaction queue is shut down");
+        }
+        Segment current = getCurrentSegment();
+        if (current == null || current.length >= MAX_SEGMENT_SIZE || (current.length > 0 && getDayNumber(txn.date) > current.day)) {
+            if (current != null) {
+                // later syncs only force the new segment, so records still waiting on a sync must be forced now
+                current.sync();
+                current.close();
+            }
+            current = new Segment(current == null ? 1 : current.number + 1);
+            synchronized (segments) {
+                segments.add(current);
+            }
+        }
+        current.append(encodeTransaction(txn), txn.txnId, txn.date);
+        if (txn.txnId > lastTxnId) lastTxnId = txn.txnId;
+        return numAppended++;
+    }
+
+    private Segment getCurrentSegment() {
+        synchronized (segments) {
+            return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        }
+    }
+
+    private Segment getNextSegment(Segment segment) {
+        synchronized (segments) {
+            for (Segment next : segments) {
+                if (next.number > segment.number) return next;
+            }
+        }
+        return null;
+    }
+
+    private void syncCurrentSegment() throws IOException {
+        // not synchronized on the queue, since shutdown waits for the committer
+        Segment current = getCurrentSegment();
+        if (current != null) current.sync();
+    }
+
+    private static ByteBuffer encodeTransaction(Transaction txn) {
+        byte[] handle = txn.handle == null ? new byte[0] : txn.handle;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + handle.length);
+        buf.putInt(HEADER_SIZE - 4 + handle.length);
+        buf.putLong(txn.txnId);
+        buf.put(txn.action);
+        buf.putLong(txn.date);
+        buf.putInt(txn.hashOnAll);
+        buf.putInt(txn.hashOnNA);
+        buf.putInt(txn.hashOnId);
+        buf.putInt(handle.length);
+        buf.put(handle);
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (shutdown) return;
+        shutdown = true;
+        shutdownQueueListeners();
+        if (groupCommitter != null) groupCommitter.shutdown();
+        Segment current = getCurrentSegment();
+        if (current != null) {
+            try {
+                current.sync();
+            } catch (IOException e) {
+                System.err.println("Error syncing transaction queue: " + e);
+            }
+            current.close();
+        }
+        releaseLock();
+    }
+
+    /**
+     * Deletes the segments whose transactions are all before the given date,
+     * never deleting the current segment.
+     */
+    @Override
+    public void deleteUntilDate(long date) {
+        if (readonly) return;
+        List<Segment> deleted = new ArrayList<>();
+        synchronized (segments) {
+            while (segments.size() > 1 && segments.get(1).firstDate <= date) {
+                deleted.add(segments.remove(0));
+            }
+        }
+        // open scanners keep their maps of deleted segments
+        for (Segment segment : deleted) {
+            segment.delete();
+        }
+    }
+
+    @Override
+    public TransactionScannerInterface getScanner(@SuppressWarnings("hiding") long lastTxnId) throws Exception {
+        return new QueueScanner(lastTxnId);
+    }
+
+    private class QueueScanner implements FilteringTransactionScanner {
+        private Segment segment;
+        private MappedByteBuffer buf;
+        private long mappedLength;
+        private long pos;
+        private long lastScannedTxnId;
+
+        QueueScanner(long afterTxnId) throws IOException {
+            // start in the first segment with any later transaction
+            synchronized (segments) {
+                for (Segment candidate : segments) {
+                    segment = candidate;
+                    if (candidate.maxTxnId > afterTxnId) break;
+                }
+            }
+            if (segment == null) return;
+            pos = segment.findOffset(afterTxnId);
+            // pass over the records up to the first later one
+            while (hasRecord() && buf.getLong((int) pos + TXN_ID_OFFSET) <= afterTxnId) {
+                pos += 4 + buf.getInt((int) pos);
+            }
+        }
+
+        /** Returns true if there is a record at pos, moving on to later segments or remapping as needed. */
+        private boolean hasRecord() throws IOException {
+            while (segment != null) {
+                if (pos < mappedLength) return true;
+                // checking for a next segment first ensures the length read is final if there is one
+                Segment next = getNextSegment(segment);
+                long segmentLength = segment.length;
+                if (segmentLength > pos) {
+                    try (FileChannel in = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                        buf = in.map(FileChannel.MapMode.READ_ONLY, 0, segmentLength);
+                    }
+                    mappedLength = segmentLength;
+                    continue;
+                }
+                if (next == null) return false;
+                segment = next;
+                buf = null;
+                mappedLength = 0;
+                pos = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized Transaction nextTransaction() throws Exception {
+            return nextTransaction(Long.MAX_VALUE, false, (byte) 0, 0, 0);
+        }
+
+        @Override
+        public synchronized Transaction nextTransaction(long maxTxnId, byte hashType, int numServers, int serverNum) throws Exception {
+            return nextTransaction(maxTxnId, true, hashType, numServers, serverNum);
+        }
+
+        private Transaction nextTransaction(long maxTxnId, boolean filter, byte hashType, int numServers, int serverNum) throws Exception {
+            while (hasRecord()) {
+                int recordPos = (int) pos;
+                long txnId = buf.getLong(recordPos + TXN_ID_OFFSET);
+                if (txnId > maxTxnId) return null;
+                pos += 4 + buf.getInt(recordPos);
+                lastScannedTxnId = txnId;
+                byte action = buf.get(recordPos + ACTION_OFFSET);
+                if (action == Transaction.ACTION_PLACEHOLDER) continue;
+                if (filter && !Transaction.isSentToServer(action, buf.getInt(recordPos + HASH_ON_ALL_OFFSET), buf.getInt(recordPos + HASH_ON_NA_OFFSET), buf.getInt(recordPos + HASH_ON_ID_OFFSET), hashType, numServers, serverNum)) {
+                    continue;
+                }
+                return readTxn(recordPos);
+            }
+            return null;
+        }
+
+        private Transaction readTxn(int recordPos) {
+            Transaction txn = new Transaction();
+            txn.txnId = buf.getLong(recordPos + TXN_ID_OFFSET);
+            txn.action = buf.get(recordPos + ACTION_OFFSET);
+            txn.date = buf.getLong(recordPos + DATE_OFFSET);
+            txn.hashOnAll = buf.getInt(recordPos + HASH_ON_ALL_OFFSET);
+            txn.hashOnNA = buf.getInt(recordPos + HASH_ON_NA_OFFSET);
+            txn.hashOnId = buf.getInt(recordPos + HASH_ON_ID_OFFSET);
+            txn.handle = new byte[buf.getInt(recordPos + HANDLE_LENGTH_OFFSET)];
+            buf.position(recordPos + HEADER_SIZE);
+            buf.get(txn.handle);
+            return txn;
+        }
+
+        @Override
+        public synchronized long getLastScannedTxnId() {
+            return lastScannedTxnId;
+        }
+
+        @Override
+        public synchronized void close() {
+            segment = null;
+            buf = null;
+            mappedLength = 0;
+        }
+    }
+}
@@ -9,6 +9,7 @@
 
 package net.handle.server.txnlog;
 
+import net.handle.hdllib.FilteringTransactionScanner;
 import net.handle.hdllib.HandleValue;
 import net.handle.hdllib.Transaction;
 import net.handle.hdllib.TransactionQueueInterface;
@@ -46,12 +47,58 @@ public class ConcatenatedTransactionQueue extends AbstractTransactionQueue {
         this.oldQueue.addQueueListener(subListener);
         this.currentQueue.addQueueListener(subListener);
         lastTxnIdOfOldQueue = oldQueue.getLastTxnId();
+        if (isOldQueuePruned()) retireOldQueue();
+    }
+
+    /**
+     * Returns true if the current queue no longer starts right after the old queue, which means
+     * the current queue was pruned without the old queue being removed (for example, if the server
+     * stopped in between).  The old queue must then not be served, or mirrors would not be told
+     * to redump the missing transactions.
+     */
+    private boolean isOldQueuePruned() {
+        if (currentQueue.getLastTxnId() < 1) return false;
+        TransactionScannerInterface scanner = null;
+        try {
+            scanner = currentQueue.getScanner(0);
+            if (scanner == null) return false;
+            Transaction txn = scanner.nextTransaction();
+            return txn != null && txn.txnId > lastTxnIdOfOldQueue + 1;
+        } catch (Exception e) {
+            System.err.println("Error reading transaction queue: " + e);
+            return false;
+        } finally {
+            if (scanner != null) scanner.close();
+        }
+    }
+
+    /** Stops serving the old queue and deletes its files, so that it is not chained in again on restart. */
+    private synchronized void retireOldQueue() {
+        TransactionQueueInterface originalQueue = this.oldQueue;
+        if (originalQueue == null) return;
+        this.oldQueue = null;
+        originalQueue.shutdown();
+        deleteAllFiles(originalQueue);
+    }
+
+    private static void deleteAllFiles(TransactionQueueInterface queue) {
+        if (queue instanceof FileBasedTransactionQueue) ((FileBasedTransactionQueue) queue).deleteAllFiles();
+        else if (queue instanceof BdbjeTransactionQueue) ((BdbjeTransactionQueue) queue).deleteAllFiles();
+        else if (queue instanceof ConcatenatedTransactionQueue) ((ConcatenatedTransactionQueue) queue).deleteAllFiles();
+    }
+
+    /** Deletes the files of both queues; only to be called after the queue is shut down. */
+    public void deleteAllFiles() {
+        TransactionQueueInterface originalQueue = this.oldQueue;
+        if (originalQueue != null) deleteAllFiles(originalQueue);
+        deleteAllFiles(currentQueue);
     }
 
     @Override
     public long getFirstDate() {
-        if (oldQueue == null) return this.currentQueue.getFirstDate();
-        return Math.min(this.oldQueue.getFirstDate(), this.currentQueue.getFirstDate());
+        TransactionQueueInterface originalQueue = this.oldQueue;
+        if (originalQueue == null) return this.currentQueue.getFirstDate();
+        return Math.min(originalQueue.getFirstDate(), this.currentQueue.getFirstDate());
     }
 
     @Override
@@ -81,27 +128,27 @@ public class ConcatenatedTransactionQueue extends AbstractTransactionQueue {
         currentQueue.deleteUntilDate(date);
         long firstDateAfter = currentQueue.getFirstDate();
         if (firstDateAfter > firstDateBefore) {
-            TransactionQueueInterface originalQueue = this.oldQueue;
-            this.oldQueue = null;
-            originalQueue.shutdown();
-            if (originalQueue instanceof FileBasedTransactionQueue) ((FileBasedTransactionQueue)originalQueue).deleteAllFiles();
+            retireOldQueue();
         }
     }
 
     @Override
     public TransactionScannerInterface getScanner(long lastTimestamp) throws Exception {
         TransactionScannerInterface oldEnumeration = null;
-        if (lastTimestamp < lastTxnIdOfOldQueue && oldQueue != null) {
-            oldEnumeration = oldQueue.getScanner(lastTimestamp);
+        TransactionQueueInterface originalQueue = this.oldQueue;
+        if (lastTimestamp < lastTxnIdOfOldQueue && originalQueue != null) {
+            oldEnumeration = originalQueue.getScanner(lastTimestamp);
         }
         TransactionScannerInterface currentEnumeration = currentQueue.getScanner(lastTimestamp);
         return new QueueScanner(oldEnumeration, currentEnumeration);
     }
 
-    public class QueueScanner implements TransactionScannerInterface {
+    public class QueueScanner implements FilteringTransactionScanner {
         private final TransactionScannerInterface oldEnumeration;
         private final TransactionScannerInterface currentEnumeration;
         private boolean oldEnumerationDone = false;
+        private long lastScannedTxnId = 0;
+        private boolean reachedMaxTxnId = false;
 
         protected QueueScanner(TransactionScannerInterface oldEnumeration, TransactionScannerInterface currentEnumeration) throws Exception {
             this.oldEnumeration = oldEnumeration;
@@ -119,6 +166,41 @@ public class ConcatenatedTransactionQueue extends AbstractTransactionQueue {
             return currentEnumeration.nextTransaction();
         }
 
+        @Override
+        public Transaction nextTransaction(long maxTxnId, byte hashType, int numServers, int serverNum) throws Exception {
+            Transaction txn;
+            if (oldEnumeration != null && !oldEnumerationDone) {
+                txn = nextTransaction(oldEnumeration, maxTxnId, hashType, numServers, serverNum);
+                if (txn != null || reachedMaxTxnId) return txn;
+                oldEnumerationDone = true;
+            }
+            if (currentEnumeration instanceof FilteringTransactionScanner) {
+                FilteringTransactionScanner filteringScanner = (FilteringTransactionScanner) currentEnumeration;
+                txn = filteringScanner.nextTransaction(maxTxnId, hashType, numServers, serverNum);
+                lastScannedTxnId = Math.max(lastScannedTxnId, filteringScanner.getLastScannedTxnId());
+                return txn;
+            }
+            return nextTransaction(currentEnumeration, maxTxnId, hashType, numServers, serverNum);
+        }
+
+        private Transaction nextTransaction(TransactionScannerInterface scanner, long maxTxnId, byte hashType, int numServers, int serverNum) throws Exception {
+            Transaction txn;
+            while ((txn = scanner.nextTransaction()) != null) {
+                if (txn.txnId > maxTxnId) {
+                    reachedMaxTxnId = true;
+                    return null;
+                }
+                lastScannedTxnId = Math.max(lastScannedTxnId, txn.txnId);
+                if (Transaction.isSentToServer(txn.action, txn.hashOnAll, txn.hashOnNA, txn.hashOnId, hashType, numServers, serverNum)) return txn;
+            }
+            return null;
+        }
+
+        @Override
+        public long getLastScannedTxnId() {
+            return lastScannedTxnId;
+        }
+
         @Override
         public void close() {
             if (oldEnumeration != null) oldEnumeration.close();